@@ -29,9 +29,12 @@
 
 package lineage;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 import weka.clusterers.ClusterEvaluation;
@@ -79,15 +82,16 @@ public class AAFClusterer implements Serializable {
 	 * @param alg - algorithm to use for clustering
 	 */
 	public Cluster[] clusterSubPopulations(SNVGroup group, ClusteringAlgorithms alg, int minNumClusters) {		
+		double[][] data = group.getAlleleFreqBySample();
 		switch(alg) {
 		case FUZZYCMEANS:
-			return fuzzyCMeans(group.getAlleleFreqBySample(), group.getNumSNVs(), 
+			return fuzzyCMeans(data, group.getNumSNVs(), 
 					group.getNumSamples(), minNumClusters, 
 					AAFClusterer.DEFAULT_FUZZIFIER, DistanceMetric.EUCLIDEAN);
 		case KMEANS:
-			return kmeans(group.getAlleleFreqBySample(), group.getNumSNVs(), group.getNumSamples(), minNumClusters);
+			return kmeans(data, group.getNumSNVs(), group.getNumSamples(), minNumClusters);
 		case EM:
-			return em(group.getAlleleFreqBySample(), group.getNumSNVs(), group.getNumSamples());
+			return em(data, group.getNumSNVs(), group.getNumSamples());
 		default:
 			return null;	
 		}
@@ -127,13 +131,11 @@ public class AAFClusterer implements Serializable {
 			// cluster members
 			int[] assignments = clusterer.getAssignments();
 			for(int i = 0; i < assignments.length; i++) {
-				clusters[assignments[i]].addMember(i);
+				clusters[assignments[i]].addMember(i, data[i]);
 			}
 			return clusters;
 		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(-1);
-			return null;
+			throw new LineageException("K-means clustering failed: " + e.getMessage(), e);
 		}
 		
 	}
@@ -179,7 +181,7 @@ public class AAFClusterer implements Serializable {
 			double[][] clusterStdDev = new double[numClusters][numFeatures];
 			for(int i = 0; i < ds.numInstances(); i++) {
 				int clusterId = (int)assignments[i];
-				clusters[clusterId].addMember(i);
+				clusters[clusterId].addMember(i, data[i]);
 				for(int j = 0; j < numFeatures; j++) {
 					clusterStdDev[clusterId][j] += Math.pow(ds.instance(i).value(j) - clusters[clusterId].getCentroid()[j], 2);
 				}
@@ -195,9 +197,7 @@ public class AAFClusterer implements Serializable {
 			
 			return clusters;
 		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(-1);
-			return null;
+			throw new LineageException("EM clustering failed: " + e.getMessage(), e);
 		}
 	}
 	
@@ -266,10 +266,10 @@ public class AAFClusterer implements Serializable {
 			coeff = coeff_new;
 		}
 		
-		return getFCMHardClusters(coeff, centroids, numObs, c);
+		return getFCMHardClusters(data, coeff, centroids, numObs, c);
 	}
 	
-	private Cluster[] getFCMHardClusters(double[][] coeff, double[][] centroids, int numObs, int c) {
+	private Cluster[] getFCMHardClusters(double[][] data, double[][] coeff, double[][] centroids, int numObs, int c) {
 		
 		Cluster[] clusters = new Cluster[c];
 		for(int i = 0; i < c; i++) {
@@ -285,7 +285,7 @@ public class AAFClusterer implements Serializable {
 					clusterId = j;
 				}
 			}
-			clusters[clusterId].addMember(i);
+			clusters[clusterId].addMember(i, data[i]);
 		}
 		return clusters;
 	}
@@ -368,7 +368,10 @@ public class AAFClusterer implements Serializable {
 
 	/**
 	 * Cluster of observation points
-	 * Each cluster has an associated centroid point and a list of members
+	 * Each cluster has an associated centroid point and a list of members.
+	 * The per-feature mean and sum of squared deviations of the members are
+	 * maintained incrementally (Welford), so that two clusters can be merged
+	 * in O(numFeatures) without rescanning their members.
 	 */
 	public class Cluster implements Serializable {
 		
@@ -383,22 +386,73 @@ public class AAFClusterer implements Serializable {
 		/** Cluster standard deviation */
 		private double[] stdDev = null;
 		
-		/** List of observations assigned to this cluster */
-		private ArrayList<Integer> members;
+		/** Observations assigned to this cluster (first numMembers entries are valid) */
+		private int[] members;
+		
+		/** Number of observations assigned to this cluster */
+		private int numMembers;
+		
+		/** Running mean of the member observations per feature */
+		private double[] mean;
+		
+		/** Running sum of squared deviations from the mean per feature */
+		private double[] m2;
 		
 		private boolean robust = false;
 		
 		public Cluster(double[] clusterCentroid, int clusterId) {
 			centroid = clusterCentroid;
-			members = new ArrayList<Integer>();
+			members = new int[4];
+			numMembers = 0;
 			id = clusterId;
 		}
 		
-		public Cluster(double[] clusterCentroid, ArrayList<Integer> assignments, int clusterId) {
-			centroid = clusterCentroid;
-			members = assignments;
-			id = clusterId;
-			
+		/** 
+		 * Copy constructor 
+		 * (the centroid, standard deviation and member statistics are not shared with the original) 
+		 */
+		public Cluster(Cluster c) {
+			id = c.id;
+			centroid = c.centroid.clone();
+			stdDev = (c.stdDev != null) ? c.stdDev.clone() : null;
+			members = Arrays.copyOf(c.members, Math.max(c.numMembers, 4));
+			numMembers = c.numMembers;
+			mean = (c.mean != null) ? c.mean.clone() : null;
+			m2 = (c.m2 != null) ? c.m2.clone() : null;
+			robust = c.robust;
+		}
+		
+		/**
+		 * Reads a cluster saved by write()
+		 */
+		public Cluster(DataInputStream in) throws IOException {
+			id = in.readInt();
+			centroid = readArray(in);
+			stdDev = readArray(in);
+			numMembers = in.readInt();
+			members = new int[Math.max(numMembers, 4)];
+			for(int i = 0; i < numMembers; i++) {
+				members[i] = in.readInt();
+			}
+			mean = readArray(in);
+			m2 = readArray(in);
+			robust = in.readBoolean();
+		}
+		
+		/**
+		 * Saves the cluster (id, centroid, standard deviation, members, member statistics and robustness)
+		 */
+		public void write(DataOutputStream out) throws IOException {
+			out.writeInt(id);
+			writeArray(out, centroid);
+			writeArray(out, stdDev);
+			out.writeInt(numMembers);
+			for(int i = 0; i < numMembers; i++) {
+				out.writeInt(members[i]);
+			}
+			writeArray(out, mean);
+			writeArray(out, m2);
+			out.writeBoolean(robust);
 		}
 		
 		/**
@@ -415,36 +469,60 @@ public class AAFClusterer implements Serializable {
 		/**
 		 * Add a new observation to the cluster
 		 * @param obsId - Id of the observation (index in the data matrix)
+		 * @param obs - observation values (used to update the member statistics)
 		 */
-		public void addMember(int obsId) {
-			members.add(new Integer(obsId));
+		public void addMember(int obsId, double[] obs) {
+			if(numMembers == members.length) {
+				members = Arrays.copyOf(members, 2*members.length);
+			}
+			members[numMembers] = obsId;
+			numMembers++;
+			
+			if(mean == null) {
+				mean = new double[obs.length];
+				m2 = new double[obs.length];
+			}
+			for(int j = 0; j < obs.length; j++) {
+				double delta = obs[j] - mean[j];
+				mean[j] += delta/numMembers;
+				m2[j] += delta*(obs[j] - mean[j]);
+			}
 		}
 		
 		/** 
-		 * Computes the mean of all the members of the cluster
+		 * Merges the members of cluster c into this cluster and sets
+		 * the centroid and standard deviation to the mean and standard deviation
+		 * of the resulting members (computed from the member statistics only)
 		 */
-		public void recomputeCentroidAndStdDev(double[][] data, int numObs, int numFeatures) {
-			double[] newCentroid = new double[numFeatures];
-			for(int i = 0; i < members.size(); i++) {
-				for(int j = 0; j < numFeatures; j++) {
-					newCentroid[j] += data[members.get(i)][j];
-				}
+		public void merge(Cluster c) {
+			if(c.numMembers == 0) {
+				return;
 			}
-			for(int j = 0; j < numFeatures; j++) {
-				newCentroid[j] = newCentroid[j]/members.size();
+			int n1 = numMembers;
+			int n2 = c.numMembers;
+			if(n1 + n2 > members.length) {
+				members = Arrays.copyOf(members, Math.max(n1 + n2, 2*members.length));
 			}
-			centroid = newCentroid;
+			System.arraycopy(c.members, 0, members, n1, n2);
+			numMembers = n1 + n2;
 			
-			double[] clusterStdDev = new double[numFeatures];
-			for(int i = 0; i < members.size(); i++) {
-				for(int j = 0; j < numFeatures; j++) {
-					clusterStdDev[j] += Math.pow(data[members.get(i)][j] - centroid[j], 2);
+			if(mean == null) {
+				mean = c.mean.clone();
+				m2 = c.m2.clone();
+			} else {
+				double n = numMembers;
+				for(int j = 0; j < mean.length; j++) {
+					double delta = c.mean[j] - mean[j];
+					mean[j] += delta*n2/n;
+					m2[j] += c.m2[j] + delta*delta*((double)n1)*n2/n;
 				}
 			}
-			for(int j = 0; j < numFeatures; j++) {
-				clusterStdDev[j] =  Math.sqrt(clusterStdDev[j]/members.size());
+			
+			centroid = mean.clone();
+			stdDev = new double[mean.length];
+			for(int j = 0; j < mean.length; j++) {
+				stdDev[j] = Math.sqrt(m2[j]/numMembers);
 			}
-			stdDev = clusterStdDev;
 		}
 		
 		/**
@@ -467,8 +545,21 @@ public class AAFClusterer implements Serializable {
 			stdDev = dev;
 		}
 		
-		public ArrayList<Integer> getMembership() {
-			return members;
+		/**
+		 * Returns the ids of the observations assigned to this cluster
+		 */
+		public int[] getMembership() {
+			return Arrays.copyOf(members, numMembers);
+		}
+		
+		/** Returns the id of the i-th member */
+		public int getMember(int i) {
+			return members[i];
+		}
+		
+		/** Returns the number of observations assigned to this cluster */
+		public int getSize() {
+			return numMembers;
 		}
 		
 		public int getId() {
@@ -485,7 +576,7 @@ public class AAFClusterer implements Serializable {
 		
 		public String toString() {
 			String c = "";
-			c += "Size: " + members.size() + "\n";
+			c += "Size: " + numMembers + "\n";
 			DecimalFormat df = new DecimalFormat("#.##");
 			c += "VAF Mean: [";
 			for(int i = 0; i < centroid.length; i++) {
@@ -504,4 +595,24 @@ public class AAFClusterer implements Serializable {
 		}
 	}
 	
+	private static double[] readArray(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) return null;
+		double[] a = new double[length];
+		for(int i = 0; i < length; i++) {
+			a[i] = in.readDouble();
+		}
+		return a;
+	}
+	
+	private static void writeArray(DataOutputStream out, double[] a) throws IOException {
+		if(a == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(a.length);
+		for(double x : a) {
+			out.writeDouble(x);
+		}
+	}
 }
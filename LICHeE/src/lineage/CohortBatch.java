@@ -0,0 +1,292 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+package lineage;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.logging.StreamHandler;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import lineage.LineageEngine.Args;
+
+/**
+ * Cohort batch mode: reconstructs the lineage trees of all the patients
+ * listed in a manifest file in a single JVM.
+ * Manifest format: one patient per line, patient id followed by the (whitespace-separated)
+ * options of its run; empty lines and lines starting with # are ignored.
+ * The options given on the batch command line are applied to every patient
+ * unless set in the patient entry.
+ * 
+ * The patients are processed concurrently on a bounded thread pool.
+ * The tree searches reserve their estimated memory from a shared budget,
+ * so that several large searches do not run at the same time.
+ * Each patient's results are saved to its own output files (and its log to the output file with suffix .log);
+ * a cohort summary is saved at the end.
+ *
+ * @autor viq
+ */
+public class CohortBatch {
+	
+	protected static final String SUMMARY_FILE_EXTENSION = ".summary.txt";
+	private static final String LOG_FILE_EXTENSION = ".log";
+	
+	/** Options of the batch command that are not applied to the patient runs */
+	private static final String[] BATCH_OPTIONS = {"batch", "batchThreads", "batchMemory", "o", "h", "build", "convert"};
+	
+	/** Run of a manifest entry */
+	private static class Entry {
+		String patientId;
+		Args args;
+		boolean verbose;
+	}
+	
+	/** Outcome of a patient run */
+	private static class PatientSummary {
+		int numTrees;
+		double topErrorScore;
+		long numFilteredSNVs;
+		double runTime;
+	}
+	
+	public static void run(CommandLine cmdLine, Options options, HelpFormatter hf) {
+		Logger logger = LineageEngine.logger;
+		String manifestFileName = cmdLine.getOptionValue("batch");
+		String summaryFileName = cmdLine.hasOption("o") ? cmdLine.getOptionValue("o") : manifestFileName + SUMMARY_FILE_EXTENSION;
+		
+		// set up all the runs before starting (invalid entries stop the batch)
+		ArrayList<Entry> entries = readManifest(manifestFileName, cmdLine, options, hf);
+		if(entries.size() == 0) {
+			System.out.println("No patients found in the manifest file: " + manifestFileName);
+			System.exit(-1);
+		}
+		int numProcessors = Runtime.getRuntime().availableProcessors();
+		int poolSize = Math.min(entries.size(), numProcessors);
+		if(cmdLine.hasOption("batchThreads")) {
+			poolSize = Math.max(1, Math.min(entries.size(), Integer.parseInt(cmdLine.getOptionValue("batchThreads"))));
+		}
+		long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+		if(cmdLine.hasOption("batchMemory")) {
+			memoryBudget = Long.parseLong(cmdLine.getOptionValue("batchMemory")) << 20;
+		}
+		final MemoryBudget budget = new MemoryBudget(memoryBudget);
+		
+		// the processors are divided among the concurrent runs
+		int numRunThreads = Math.max(1, numProcessors / poolSize);
+		for(Entry e : entries) {
+			Parameters.Builder config = new Parameters.Builder(e.args.parameters);
+			config.NUM_THREADS = numRunThreads;
+			e.args.parameters = config.build();
+		}
+		logger.info("Processing " + entries.size() + " patient(s) on " + poolSize + " thread(s), memory budget: " + budget.getCapacityMB() + " MB");
+		
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		ArrayList<Future<PatientSummary>> results = new ArrayList<Future<PatientSummary>>();
+		for(final Entry e : entries) {
+			results.add(pool.submit(new Callable<PatientSummary>() {
+				public PatientSummary call() throws IOException {
+					return runPatient(e, budget);
+				}
+			}));
+		}
+		pool.shutdown();
+		
+		// cohort summary (in manifest order)
+		DecimalFormat timeFormat = new DecimalFormat("#.##");
+		int numCompleted = 0;
+		try {
+			FileWriter fw = new FileWriter(summaryFileName);
+			fw.write("Patient\tStatus\tTrees\tTop error score\tFiltered SNVs\tTime (s)\tOutput file\n");
+			for(int i = 0; i < entries.size(); i++) {
+				Entry e = entries.get(i);
+				fw.write(e.patientId + "\t");
+				try {
+					PatientSummary r = results.get(i).get();
+					fw.write((r.numTrees > 0 ? "OK" : "NO TREES") + "\t" + r.numTrees + "\t");
+					fw.write((r.numTrees > 0 ? String.valueOf(r.topErrorScore) : "-") + "\t");
+					fw.write(r.numFilteredSNVs + "\t" + timeFormat.format(r.runTime) + "\t");
+					numCompleted++;
+				} catch (ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					String error = (cause.getMessage() != null ? cause.getMessage() : cause.toString()).replace('\n', ' ');
+					logger.warning(e.patientId + ": failed (" + error + ")");
+					fw.write("FAILED: " + error + "\t-\t-\t-\t-\t");
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					fw.write("INTERRUPTED\t-\t-\t-\t-\t");
+				}
+				fw.write(e.args.outputFileName + "\n");
+			}
+			fw.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to write to the file: " + summaryFileName);
+			System.exit(-1);
+		}
+		logger.info("Completed " + numCompleted + " of " + entries.size() + " patient(s), summary saved to: " + summaryFileName);
+	}
+	
+	/**
+	 * Runs the pipeline of the given patient with its own context and log file
+	 */
+	private static PatientSummary runPatient(Entry e, MemoryBudget budget) throws IOException {
+		Logger patientLogger = Logger.getAnonymousLogger();
+		patientLogger.setUseParentHandlers(false);
+		StreamHandler h = new StreamHandler(new FileOutputStream(e.args.outputFileName + LOG_FILE_EXTENSION), new LineageEngine.LogFormatter());
+		h.setLevel(e.verbose ? Level.FINEST : Level.INFO);
+		patientLogger.setLevel(e.verbose ? Level.FINEST : Level.INFO);
+		patientLogger.addHandler(h);
+		
+		PatientSummary r = new PatientSummary();
+		long start = System.currentTimeMillis();
+		try {
+			LineageContext context = new LineageContext(e.args.parameters, patientLogger, budget, null);
+			ArrayList<PHYTree> trees = LineageEngine.buildLineage(e.args, context).trees;
+			r.numTrees = trees.size();
+			if(trees.size() > 0) {
+				r.topErrorScore = trees.get(0).getErrorScore();
+			}
+			r.numFilteredSNVs = context.getFilterAudit().getTotalCount();
+		} finally {
+			h.close();
+		}
+		r.runTime = (System.currentTimeMillis() - start) / 1000.0;
+		LineageEngine.logger.info(e.patientId + ": " + r.numTrees + " valid tree(s) in " + new DecimalFormat("#.##").format(r.runTime) + "s");
+		return r;
+	}
+	
+	/**
+	 * Reads the manifest entries and sets up their run arguments
+	 */
+	private static ArrayList<Entry> readManifest(String manifestFileName, CommandLine cmdLine, Options options, HelpFormatter hf) {
+		// options applied to all the patients
+		ArrayList<Option> cohortOptions = new ArrayList<Option>();
+		for(Option o : cmdLine.getOptions()) {
+			boolean batchOption = false;
+			for(String name : BATCH_OPTIONS) {
+				if(name.equals(o.getOpt())) {
+					batchOption = true;
+					break;
+				}
+			}
+			if(!batchOption) {
+				cohortOptions.add(o);
+			}
+		}
+		
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		HashMap<String, String> outputFiles = new HashMap<String, String>();
+		HashMap<String, String> checkpointFiles = new HashMap<String, String>();
+		try {
+			BufferedReader rd = new BufferedReader(new FileReader(manifestFileName));
+			String line;
+			while((line = rd.readLine()) != null) {
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#")) continue;
+				String[] tokens = line.split("\\s+");
+				String patientId = tokens[0];
+				
+				ArrayList<String> entryArgs = new ArrayList<String>();
+				for(int i = 1; i < tokens.length; i++) {
+					entryArgs.add(tokens[i]);
+				}
+				CommandLine entryLine = parseEntry(patientId, entryArgs, options, hf);
+				for(Option o : cohortOptions) {
+					if(!entryLine.hasOption(o.getOpt())) {
+						entryArgs.add("-" + o.getOpt());
+						if(o.hasArg()) {
+							entryArgs.add(o.getValue());
+						}
+					}
+				}
+				entryLine = parseEntry(patientId, entryArgs, options, hf);
+				
+				Entry e = new Entry();
+				e.patientId = patientId;
+				try {
+					e.args = LineageEngine.parseArgs(entryLine);
+				} catch (IllegalArgumentException ex) {
+					System.out.println("Batch entry " + patientId + ": " + ex.getMessage());
+					hf.printHelp("lichee", options);
+					System.exit(-1);
+				}
+				e.verbose = entryLine.hasOption("v");
+				// the outputs of the patients are independent
+				String other = outputFiles.put(e.args.outputFileName, patientId);
+				if(other != null) {
+					System.out.println("Batch entry " + patientId + ": output file " + e.args.outputFileName + " is also used by entry " + other);
+					System.exit(-1);
+				}
+				if(e.args.checkpointFileName != null) {
+					other = checkpointFiles.put(e.args.checkpointFileName, patientId);
+					if(other != null) {
+						System.out.println("Batch entry " + patientId + ": checkpoint file " + e.args.checkpointFileName + " is also used by entry " + other);
+						System.exit(-1);
+					}
+				}
+				entries.add(e);
+			}
+			rd.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Could not read file: " + manifestFileName);
+			System.exit(-1);
+		}
+		return entries;
+	}
+	
+	private static CommandLine parseEntry(String patientId, ArrayList<String> entryArgs, Options options, HelpFormatter hf) {
+		try {
+			return new BasicParser().parse(options, entryArgs.toArray(new String[entryArgs.size()]));
+		} catch (ParseException e) {
+			System.out.println("Batch entry " + patientId + ": " + e.getMessage());
+			hf.printHelp("lichee", options);
+			System.exit(-1);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream of a gzip or BGZF (block gzip) compressed file.
+ * The file is decompressed by a background thread that feeds the decompressed
+ * data blocks to the reader through a bounded queue; the blocks of BGZF files
+ * are decompressed in parallel (and returned in file order).
+ *
+ * @autor viq
+ */
+public class CompressedFileInputStream extends InputStream {
+
+	/** Size of the decompressed data blocks of gzip files */
+	private static final int BLOCK_SIZE = 1 << 16;
+	/** Maximum number of decompressed (or pending) blocks in the queue */
+	private static final int MAX_QUEUED_BLOCKS = 64;
+	/** Maximum size of a decompressed BGZF block */
+	private static final int MAX_BGZF_BLOCK_SIZE = 1 << 16;
+
+	private final InputStream in;
+	private final BlockingQueue<Future<byte[]>> blocks = new ArrayBlockingQueue<Future<byte[]>>(MAX_QUEUED_BLOCKS);
+	private final Thread producer;
+	private ExecutorService pool;
+	/** Current block */
+	private byte[] block = new byte[0];
+	private int pos;
+	private boolean eof;
+
+	/**
+	 * Opens the compressed file
+	 * @param numThreads - number of threads used to decompress BGZF blocks
+	 */
+	public CompressedFileInputStream(String fileName, int numThreads) throws IOException {
+		in = new BufferedInputStream(new FileInputStream(fileName), BLOCK_SIZE);
+		final boolean bgzf = isBGZF(in);
+		if(bgzf) {
+			pool = Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		producer = new Thread() {
+			public void run() {
+				try {
+					if(bgzf) {
+						readBGZFBlocks();
+					} else {
+						readGzipBlocks();
+					}
+					blocks.put(completed(null));
+				} catch (InterruptedException e) {
+					// closed by the reader
+				} catch (Throwable e) {
+					// every failure is passed on, the reader would otherwise wait for the next block forever
+					IOException error = (e instanceof IOException) ? (IOException) e : new IOException(e);
+					try {
+						blocks.put(failed(error));
+					} catch (InterruptedException ie) {}
+				}
+			}
+		};
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	/**
+	 * Opens the file for reading, decompressing it if it is gzip/BGZF compressed
+	 * @param numThreads - number of threads decompressing BGZF blocks
+	 */
+	public static InputStream open(String fileName, int numThreads) throws IOException {
+		if(isCompressed(fileName)) {
+			return new CompressedFileInputStream(fileName, numThreads);
+		}
+		return new FileInputStream(fileName);
+	}
+
+	/** Returns true if the file starts with the gzip magic number */
+	public static boolean isCompressed(String fileName) {
+		try {
+			InputStream f = new FileInputStream(fileName);
+			try {
+				return f.read() == 0x1f && f.read() == 0x8b;
+			} finally {
+				f.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/** Checks if the first gzip member is a BGZF block (the stream is not advanced) */
+	private static boolean isBGZF(InputStream in) throws IOException {
+		in.mark(18);
+		byte[] h = new byte[18];
+		int n = 0;
+		while(n < h.length) {
+			int r = in.read(h, n, h.length - n);
+			if(r < 0) break;
+			n += r;
+		}
+		in.reset();
+		return n == h.length && (h[3] & 4) != 0 && h[12] == 'B' && h[13] == 'C' && h[14] == 2 && h[15] == 0;
+	}
+
+	private void readGzipBlocks() throws IOException, InterruptedException {
+		GZIPInputStream gz = new GZIPInputStream(in, BLOCK_SIZE);
+		while(true) {
+			byte[] b = new byte[BLOCK_SIZE];
+			int n = 0;
+			while(n < b.length) {
+				int r = gz.read(b, n, b.length - n);
+				if(r < 0) break;
+				n += r;
+			}
+			if(n == 0) break;
+			if(n < b.length) {
+				byte[] last = new byte[n];
+				System.arraycopy(b, 0, last, 0, n);
+				b = last;
+			}
+			blocks.put(completed(b));
+			if(Thread.interrupted()) throw new InterruptedException();
+		}
+	}
+
+	private void readBGZFBlocks() throws IOException, InterruptedException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] header = new byte[12];
+		while(true) {
+			int b = data.read();
+			if(b < 0) break;
+			header[0] = (byte) b;
+			try {
+				data.readFully(header, 1, header.length - 1);
+			} catch (EOFException e) {
+				throw new IOException("Truncated BGZF block");
+			}
+			if((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8 || (header[3] & 4) == 0) {
+				throw new IOException("Invalid BGZF block header");
+			}
+			int xlen = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+			byte[] extra = new byte[xlen];
+			data.readFully(extra);
+			int bsize = -1;
+			for(int i = 0; i + 4 <= xlen; ) {
+				int slen = (extra[i+2] & 0xff) | ((extra[i+3] & 0xff) << 8);
+				if(extra[i] == 'B' && extra[i+1] == 'C' && slen == 2 && i + 6 <= xlen) {
+					bsize = (extra[i+4] & 0xff) | ((extra[i+5] & 0xff) << 8);
+				}
+				i += 4 + slen;
+			}
+			if(bsize == -1) {
+				throw new IOException("Missing BGZF block size");
+			}
+			if(bsize < xlen + 19) {
+				throw new IOException("Corrupt BGZF block");
+			}
+			// compressed data + CRC32 + ISIZE
+			final byte[] block = new byte[bsize - xlen - 19 + 8];
+			data.readFully(block);
+			FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return inflateBGZFBlock(block);
+				}
+			});
+			blocks.put(task);
+			pool.execute(task);
+		}
+	}
+
+	private static byte[] inflateBGZFBlock(byte[] block) throws IOException {
+		int n = block.length - 8;
+		int crc = readInt(block, n);
+		int size = readInt(block, n + 4);
+		if(size < 0 || size > MAX_BGZF_BLOCK_SIZE) {
+			throw new IOException("Corrupt BGZF block");
+		}
+		byte[] b = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(block, 0, n);
+			int len = 0;
+			while(len < size) {
+				int r = inflater.inflate(b, len, size - len);
+				if(r == 0 && (inflater.finished() || inflater.needsInput())) break;
+				len += r;
+			}
+			if(len != size) {
+				throw new IOException("Corrupt BGZF block");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt BGZF block: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		CRC32 check = new CRC32();
+		check.update(b);
+		if((int) check.getValue() != crc) {
+			throw new IOException("BGZF block CRC mismatch");
+		}
+		return b;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) | ((b[offset+1] & 0xff) << 8) | ((b[offset+2] & 0xff) << 16) | ((b[offset+3] & 0xff) << 24);
+	}
+
+	private static Future<byte[]> completed(final byte[] b) {
+		FutureTask<byte[]> f = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() {
+				return b;
+			}
+		});
+		f.run();
+		return f;
+	}
+
+	private static Future<byte[]> failed(final IOException e) {
+		FutureTask<byte[]> f = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				throw e;
+			}
+		});
+		f.run();
+		return f;
+	}
+
+	/**
+	 * Advances to the next non-empty decompressed block
+	 * @return false at the end of the file
+	 */
+	private boolean nextBlock() throws IOException {
+		while(!eof && pos == block.length) {
+			try {
+				byte[] b = blocks.take().get();
+				if(b == null) {
+					eof = true;
+					shutdown();
+				} else {
+					block = b;
+					pos = 0;
+				}
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+		return pos < block.length;
+	}
+
+	public int read() throws IOException {
+		if(!nextBlock()) return -1;
+		return block[pos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		int n = 0;
+		while(n < len && nextBlock()) {
+			int r = Math.min(len - n, block.length - pos);
+			System.arraycopy(block, pos, b, off + n, r);
+			pos += r;
+			n += r;
+		}
+		return (n == 0) ? -1 : n;
+	}
+
+	private void shutdown() {
+		producer.interrupt();
+		if(pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	public void close() throws IOException {
+		shutdown();
+		in.close();
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+
+package lineage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Specialized solver of the QP consistency check of a tree (in one sample):
+ * minimizes the sum of squared VAF adjustments x of the nodes subject to
+ * - sum-of-children: sum(x[c]) - x[p] <= VAF[p] - sum(VAF[c]) for each parent p with children c
+ * - absolute value: -margin <= x[i] <= margin
+ * - magnitude: x[i] <= VAF[i]
+ *
+ * Each sum-of-children constraint involves one parent and its children,
+ * so the dual has one variable per family and the node adjustments are
+ * closed-form given the duals of the node's parent and its own family:
+ * x[i] = clip(lambda[i] - lambda[parent(i)], lower[i], upper[i]).
+ * The duals are found by exact coordinate ascent (Hildreth's method):
+ * each update solves the piecewise-linear complementarity condition of one family.
+ * Feasibility is decided exactly beforehand by propagating the lowest
+ * feasible adjustment of each node bottom-up.
+ *
+ * @autor viq
+ */
+public class ConsistencyProjection {
+
+	/** Convergence threshold on the dual updates */
+	private static final double TOLERANCE = 1e-14;
+	private static final int MAX_ITERATIONS = 100000;
+
+	private final int numNodes;
+	/** Parent index of each node (-1 for the root) */
+	private final int[] parent;
+	/** Children of node i: children[childStart[i]] to children[childStart[i+1]-1] */
+	private final int[] childStart;
+	private final int[] children;
+	/** True for the nodes with a sum-of-children constraint */
+	private final boolean[] isParent;
+	/** Nodes in BFS order from the root */
+	private final int[] order;
+
+	private final double[] lower;
+	private final double[] upper;
+	private final double[] diff;
+	private final double[] lambda;
+	private final double[] breakpoints;
+
+	public ConsistencyProjection(PHYTree t) {
+		numNodes = t.treeNodes.size();
+		HashMap<PHYNode, Integer> nodeToIndex = new HashMap<PHYNode, Integer>();
+		for(int i = 0; i < numNodes; i++) {
+			nodeToIndex.put(t.treeNodes.get(i), i);
+		}
+		parent = new int[numNodes];
+		Arrays.fill(parent, -1);
+		childStart = new int[numNodes + 1];
+		isParent = new boolean[numNodes];
+		int numEdges = 0;
+		int maxChildren = 0;
+		for(int i = 0; i < numNodes; i++) {
+			ArrayList<PHYNode> nbrs = t.treeEdges.get(t.treeNodes.get(i));
+			childStart[i] = numEdges;
+			if(nbrs == null) continue;
+			isParent[i] = true;
+			numEdges += nbrs.size();
+			maxChildren = Math.max(maxChildren, nbrs.size());
+		}
+		childStart[numNodes] = numEdges;
+		children = new int[numEdges];
+		for(int i = 0; i < numNodes; i++) {
+			if(!isParent[i]) continue;
+			int k = childStart[i];
+			for(PHYNode c : t.treeEdges.get(t.treeNodes.get(i))) {
+				children[k++] = nodeToIndex.get(c);
+				parent[nodeToIndex.get(c)] = i;
+			}
+		}
+		order = new int[numNodes];
+		boolean[] visited = new boolean[numNodes];
+		int size = 0;
+		for(int r = 0; r < numNodes; r++) {
+			if(parent[r] != -1 || visited[r]) continue;
+			order[size++] = r;
+			visited[r] = true;
+			for(int k = size - 1; k < size; k++) {
+				int i = order[k];
+				for(int e = childStart[i]; e < childStart[i+1]; e++) {
+					if(!visited[children[e]]) {
+						visited[children[e]] = true;
+						order[size++] = children[e];
+					}
+				}
+			}
+		}
+		lower = new double[numNodes];
+		upper = new double[numNodes];
+		diff = new double[numNodes];
+		lambda = new double[numNodes];
+		breakpoints = new double[2*maxChildren + 2];
+	}
+
+	/**
+	 * Solves the QP for the given node VAFs (in the order of the tree nodes)
+	 * @return the VAF adjustments, null if the QP has no solution
+	 */
+	public double[] solve(double[] vafs, double margin) {
+		for(int i = 0; i < numNodes; i++) {
+			lower[i] = -margin;
+			upper[i] = Math.min(margin, (vafs[i] == 0) ? 0.00001 : vafs[i]);
+			if(!isParent[i]) continue;
+			double sc = 0;
+			for(int e = childStart[i]; e < childStart[i+1]; e++) {
+				sc += vafs[children[e]];
+			}
+			diff[i] = vafs[i] - sc;
+			if(diff[i] == 0) {
+				diff[i] = 0.0001;
+			}
+		}
+		if(!isFeasible()) {
+			return null;
+		}
+		
+		Arrays.fill(lambda, 0);
+		for(int iter = 0; iter < MAX_ITERATIONS; iter++) {
+			double maxDelta = 0;
+			// alternate bottom-up and top-down sweeps
+			for(int k = 0; k < numNodes; k++) {
+				int i = (iter % 2 == 0) ? order[numNodes - 1 - k] : order[k];
+				if(!isParent[i]) continue;
+				double l = updateDual(i);
+				if(Double.isNaN(l)) {
+					return null;
+				}
+				maxDelta = Math.max(maxDelta, Math.abs(l - lambda[i]));
+				lambda[i] = l;
+			}
+			if(maxDelta < TOLERANCE) break;
+		}
+		
+		double[] x = new double[numNodes];
+		for(int i = 0; i < numNodes; i++) {
+			x[i] = getAdjustment(i, lambda[i]);
+		}
+		return x;
+	}
+
+	/**
+	 * Returns true if there exist adjustments satisfying all the constraints:
+	 * the lowest feasible adjustment of each node is computed bottom-up
+	 */
+	private boolean isFeasible() {
+		double[] lowest = new double[numNodes];
+		for(int k = numNodes - 1; k >= 0; k--) {
+			int i = order[k];
+			lowest[i] = lower[i];
+			if(isParent[i]) {
+				double sc = 0;
+				for(int e = childStart[i]; e < childStart[i+1]; e++) {
+					sc += lowest[children[e]];
+				}
+				lowest[i] = Math.max(lowest[i], sc - diff[i]);
+			}
+			if(lowest[i] > upper[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Returns the adjustment of node i given its family dual */
+	private double getAdjustment(int i, double lambdaI) {
+		double v = lambdaI - ((parent[i] == -1) ? 0 : lambda[parent[i]]);
+		return Math.min(upper[i], Math.max(lower[i], v));
+	}
+
+	/** 
+	 * Returns the violation of the sum-of-children constraint of family i given its dual:
+	 * sum(x[c]) - x[i] - (VAF[i] - sum(VAF[c])), positive if the constraint is violated
+	 * (non-increasing in the dual)
+	 */
+	private double getViolation(int i, double lambdaI) {
+		double g = -getAdjustment(i, lambdaI) - diff[i];
+		for(int e = childStart[i]; e < childStart[i+1]; e++) {
+			int c = children[e];
+			g += Math.min(upper[c], Math.max(lower[c], lambda[c] - lambdaI));
+		}
+		return g;
+	}
+
+	/**
+	 * Returns the dual of family i that maximizes the dual objective
+	 * given the other duals (NaN if unbounded)
+	 */
+	private double updateDual(int i) {
+		double g = getViolation(i, 0);
+		if(g <= 0) {
+			return 0;
+		}
+		// the violation is piecewise-linear in the dual: find its root between breakpoints
+		int n = 0;
+		double lambdaP = (parent[i] == -1) ? 0 : lambda[parent[i]];
+		breakpoints[n++] = lambdaP + lower[i];
+		breakpoints[n++] = lambdaP + upper[i];
+		for(int e = childStart[i]; e < childStart[i+1]; e++) {
+			int c = children[e];
+			breakpoints[n++] = lambda[c] - upper[c];
+			breakpoints[n++] = lambda[c] - lower[c];
+		}
+		Arrays.sort(breakpoints, 0, n);
+		double a = 0;
+		double ga = g;
+		for(int k = 0; k < n; k++) {
+			double b = breakpoints[k];
+			if(b <= a) continue;
+			double gb = getViolation(i, b);
+			if(gb <= 0) {
+				return a + (b - a)*ga/(ga - gb);
+			}
+			a = b;
+			ga = gb;
+		}
+		return Double.NaN;
+	}
+}
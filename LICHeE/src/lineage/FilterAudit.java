@@ -0,0 +1,240 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Audit of the SNVs removed by the filtering steps of the pipeline (one per run).
+ * The number of removed SNVs is counted per filter reason;
+ * the ids and reasons of the removed SNVs can optionally be saved to a file
+ * by a background writer thread (only a summary is logged to the console).
+ *
+ * @autor viq
+ */
+public class FilterAudit {
+
+	/** SNV filter reasons */
+	public enum Reason {
+		GERMLINE("Filtered as germline", "germline"),
+		INVALID_VAF("Filtered due to VAFs > allowed MAX", "VAFs > allowed MAX"),
+		ABSENT("Filtered as robustly absent in all samples", "absent in all samples"),
+		AMBIGUOUS_GERMLINE("Removed as germline", "ambiguous germline"),
+		CLUSTER_SIZE("Filtered due to cluster size constraint", "cluster size"),
+		NETWORK_ADJUSTMENT("Removed during network adjustment", "network adjustment");
+
+		private final String description;
+		/** Short name used in the summary */
+		private final String label;
+
+		private Reason(String desc, String shortName) {
+			description = desc;
+			label = shortName;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	/** Maximum number of records waiting to be written */
+	private static final int MAX_QUEUED_RECORDS = 1 << 12;
+
+	private long[] counts = new long[Reason.values().length];
+	private RecordWriter writer;
+	private String fileName;
+
+	/**
+	 * Starts saving the filtered SNVs to the given file
+	 * (one line per SNV: id, reason, chromosome, position, description)
+	 */
+	public synchronized void open(String auditFileName) throws IOException {
+		close();
+		fileName = auditFileName;
+		writer = new RecordWriter(new BufferedWriter(new FileWriter(auditFileName), 1 << 16));
+		writer.start();
+	}
+
+	/** Returns true if the filtered SNVs are saved to a file */
+	public synchronized boolean isRecording() {
+		return writer != null;
+	}
+
+	/** Records the given filtered SNV */
+	public synchronized void record(Reason reason, SNVEntry entry) {
+		counts[reason.ordinal()]++;
+		if(writer != null) {
+			writer.add(new Record(reason, entry));
+		}
+	}
+
+	/** Adds the given number of SNVs filtered for the given reason (not saved to the file) */
+	public synchronized void add(Reason reason, long count) {
+		counts[reason.ordinal()] += count;
+	}
+
+	public synchronized long getCount(Reason reason) {
+		return counts[reason.ordinal()];
+	}
+
+	/** Returns the number of filtered SNVs (all reasons) */
+	public synchronized long getTotalCount() {
+		long total = 0;
+		for(long c : counts) {
+			total += c;
+		}
+		return total;
+	}
+
+	/** Returns a one-line summary of the filtered SNV counts */
+	public synchronized String getSummary() {
+		String s = "Filtered SNVs:";
+		long total = 0;
+		for(Reason r : Reason.values()) {
+			if(counts[r.ordinal()] > 0) {
+				s += (total > 0 ? ", " : " ") + counts[r.ordinal()] + " " + r.getLabel();
+				total += counts[r.ordinal()];
+			}
+		}
+		if(total == 0) {
+			s += " none";
+		}
+		if(writer != null) {
+			s += " (saved to: " + fileName + ")";
+		}
+		return s;
+	}
+
+	/** Flushes and closes the audit file (if any) */
+	public synchronized void close() throws IOException {
+		if(writer != null) {
+			RecordWriter w = writer;
+			writer = null;
+			w.finish();
+		}
+	}
+
+	/** Clears the counts */
+	public synchronized void reset() {
+		counts = new long[Reason.values().length];
+	}
+
+	/** 
+	 * Filtered SNV queued to be written 
+	 * (the fields are copied so that the record does not keep the SNV table of the entry alive)
+	 */
+	private static class Record {
+		final Reason reason;
+		final int id;
+		final int chr;
+		final int position;
+		final String description;
+
+		Record(Reason r, SNVEntry e) {
+			reason = r;
+			if(e != null) {
+				id = e.getId();
+				chr = e.getChromosome();
+				position = e.getPosition();
+				description = e.getDescription();
+			} else {
+				id = chr = position = 0;
+				description = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued records to the audit file on a background thread
+	 */
+	private static class RecordWriter extends Thread {
+		/** Record marking the end of the queue */
+		private static final Record END = new Record(null, null);
+
+		private final BufferedWriter out;
+		private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(MAX_QUEUED_RECORDS);
+		private IOException error;
+
+		RecordWriter(BufferedWriter w) {
+			out = w;
+			setDaemon(true);
+		}
+
+		void add(Record r) {
+			try {
+				queue.put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void run() {
+			try {
+				while(true) {
+					Record r = queue.take();
+					if(r == END) break;
+					if(error != null) continue; // keep draining the queue
+					try {
+						out.write("snv" + r.id + "\t" + r.reason.getDescription() + "\t" + r.chr + "\t" + r.position + "\t" + r.description + "\n");
+					} catch (IOException ex) {
+						error = ex;
+					}
+				}
+			} catch (InterruptedException e) {
+				// closed
+			}
+		}
+
+		void finish() throws IOException {
+			add(END);
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			try {
+				out.close();
+			} catch (IOException e) {
+				if(error == null) error = e;
+			}
+			if(error != null) {
+				throw error;
+			}
+		}
+	}
+}
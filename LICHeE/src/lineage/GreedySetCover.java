@@ -0,0 +1,155 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.util.BitSet;
+import java.util.PriorityQueue;
+
+/**
+ * Greedy set cover with lazy evaluation.
+ * The sets are kept in a max-heap keyed on the number of uncovered elements
+ * they contain; since these counts can only decrease, heap entries are
+ * updated lazily when they reach the top of the heap.
+ *
+ * @autor viq
+ */
+public class GreedySetCover {
+
+	/** Elements of each set (in increasing order) */
+	private int[][] setElements;
+	/** Sets containing each element */
+	private int[][] elementSets;
+	/** Number of uncovered elements in each set */
+	private int[] numUncovered;
+	/** Rank of each set (ties are broken in favor of the lower rank) */
+	private int[] setRank;
+	private BitSet covered;
+	private PriorityQueue<SetEntry> maxHeap;
+
+	/** Entry in the set max-heap */
+	private class SetEntry implements Comparable<SetEntry> {
+		int set;
+		/** Number of uncovered elements at the time the entry was added */
+		int size;
+
+		public SetEntry(int setId, int setSize) {
+			set = setId;
+			size = setSize;
+		}
+
+		public int compareTo(SetEntry e) {
+			if(size != e.size) {
+				return e.size - size;
+			}
+			return setRank[set] - setRank[e.set];
+		}
+	}
+
+	/**
+	 * @param sets - ids of the sets containing each element
+	 * @param numSets - number of sets
+	 * @param rank - rank of each set, used to break ties between sets of equal size
+	 */
+	public GreedySetCover(int[][] sets, int numSets, int[] rank) {
+		elementSets = sets;
+		setRank = rank;
+		numUncovered = new int[numSets];
+		for(int[] s : elementSets) {
+			for(int set : s) {
+				numUncovered[set]++;
+			}
+		}
+		setElements = new int[numSets][];
+		for(int set = 0; set < numSets; set++) {
+			setElements[set] = new int[numUncovered[set]];
+		}
+		int[] size = new int[numSets];
+		for(int e = 0; e < elementSets.length; e++) {
+			for(int set : elementSets[e]) {
+				setElements[set][size[set]++] = e;
+			}
+		}
+		covered = new BitSet(elementSets.length);
+		maxHeap = new PriorityQueue<SetEntry>(Math.max(1, numSets));
+		for(int set = 0; set < numSets; set++) {
+			if(numUncovered[set] > 0) {
+				maxHeap.add(new SetEntry(set, numUncovered[set]));
+			}
+		}
+	}
+
+	/**
+	 * Returns the set with the maximum number of uncovered elements
+	 * (the set with the lowest rank among sets of equal size)
+	 * @return -1 if all the elements are covered
+	 */
+	public int getMaxSet() {
+		while(maxHeap.size() > 0) {
+			SetEntry e = maxHeap.peek();
+			if(e.size == numUncovered[e.set]) {
+				return e.set;
+			}
+			// stale entry
+			maxHeap.poll();
+			if(numUncovered[e.set] > 0) {
+				e.size = numUncovered[e.set];
+				maxHeap.add(e);
+			}
+		}
+		return -1;
+	}
+
+	/** Returns the number of uncovered elements in the set */
+	public int getNumUncovered(int set) {
+		return numUncovered[set];
+	}
+
+	public boolean isCovered(int element) {
+		return covered.get(element);
+	}
+
+	/**
+	 * Adds the set to the cover
+	 * @return the elements covered by this set that were not covered before (in increasing order)
+	 */
+	public int[] cover(int set) {
+		int[] newlyCovered = new int[numUncovered[set]];
+		int n = 0;
+		for(int e : setElements[set]) {
+			if(covered.get(e)) continue;
+			covered.set(e);
+			newlyCovered[n++] = e;
+			for(int s : elementSets[e]) {
+				numUncovered[s]--;
+			}
+		}
+		return newlyCovered;
+	}
+}
@@ -0,0 +1,471 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+package lineage;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.math3.distribution.TDistribution;
+
+import com.sun.management.ThreadMXBean;
+
+import lineage.LineageEngine.Args;
+import lineage.LineageEngine.Results;
+
+/**
+ * Benchmarks of the pipeline stages, run with:
+ * java -cp lichee.jar lineage.LineageBenchmark [options]
+ * 
+ * Each stage is benchmarked on each data set: the bundled ccRCC and HGSC patients
+ * (with their LICHeE settings, see data/README) and synthetic inputs of growing size
+ * (simulated by LineageSimulator with the given numbers of SNVs, samples and tree depth). 
+ * Stages:
+ * - parse: loading of the input file (SNV parsing and filtering, VAF table construction)
+ * - assign: assignment of the ambiguous SNVs and filtering of the SNV groups
+ * - cluster: clustering of the SNV groups, filtering and collapsing of the clusters
+ * - network: construction of the constraint network
+ * - search: enumeration of the valid spanning trees of the network
+ * - score: error scores of all the trees
+ * - qp: ranking and QP consistency check of the top trees
+ * 
+ * The stages after the clustering are benchmarked on the clusters of the network whose trees are found
+ * (after the network adjustments, if any); the score and qp stages are skipped if no trees are found.
+ * 
+ * Each benchmark runs warmup iterations followed by measurement iterations of fixed duration.
+ * The input of each operation is prepared before the operation and is not measured,
+ * the result of each operation is consumed so that it cannot be eliminated.
+ * Reported per benchmark: throughput (operations/s, mean and half-width of its 99.9% confidence interval
+ * over the measurement iterations, from the Student t distribution), time per operation, 
+ * and allocation rate (MB/s and bytes per operation, from the bytes allocated by the benchmark thread). 
+ * The pipeline runs on a single thread by default: all the stages then run on the benchmark thread,
+ * so that their allocations are measured; with more threads, the allocations of the short-lived 
+ * worker threads cannot be measured and the allocation rate is not reported.
+ *
+ * @autor viq
+ */
+public class LineageBenchmark {
+	
+	/** Bundled data sets (path in the data directory) and their settings */
+	private static final String[][] DATA_SETS = {
+		{"ccRCC/RK26.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.005"},
+		{"ccRCC/EV003.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.005"},
+		{"ccRCC/EV005.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.005"},
+		{"ccRCC/EV006.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.005"},
+		{"ccRCC/EV007.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.005"},
+		{"ccRCC/RMH002.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.005"},
+		{"ccRCC/RMH004.txt", "-maxVAFAbsent 0.01 -minVAFPresent 0.01"},
+		{"ccRCC/RMH008.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.005 -minPrivateClusterSize 2"},
+		{"hgsc/case1.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.01"},
+		{"hgsc/case2.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.01"},
+		{"hgsc/case3.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.01"},
+		{"hgsc/case4.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.01 -minClusterSize 3"},
+		{"hgsc/case5.txt", "-maxVAFAbsent 0.01 -minVAFPresent 0.04 -minClusterSize 3 -maxClusterDist 0.1"},
+		{"hgsc/case6.txt", "-maxVAFAbsent 0.005 -minVAFPresent 0.01 -maxClusterDist 0.1"}
+	};
+	
+	private static final String[] STAGES = {"parse", "assign", "cluster", "network", "search", "score", "qp"};
+	
+	/** Settings of the synthetic data sets */
+	private static final String SYNTHETIC_SETTINGS = "-maxVAFAbsent 0.02 -minVAFPresent 0.05";
+	
+	/** Confidence level of the reported throughput interval */
+	private static final double CONFIDENCE_LEVEL = 0.999;
+	
+	/** Results of the benchmarked operations are consumed by the sink */
+	private static volatile int sink;
+	
+	/** Data set of the benchmarks and its pipeline state (prepared before the benchmarks) */
+	private static class DataSet {
+		String name;
+		Args args;
+		LineageContext context;
+		SNVDataStore db;
+		/** Clustered SNV groups */
+		ArrayList<SNVGroup> groups;
+		/** Network of the lineage trees (after the network adjustments, if any) and its trees */
+		PHYNetwork network;
+		ArrayList<PHYTree> trees;
+	}
+	
+	/** Benchmarked operation */
+	private static abstract class Operation {
+		/** Prepares the input of the next operation (not measured) */
+		Object setUp() {
+			return null;
+		}
+		/** Runs the operation on the given input and returns its result */
+		abstract Object run(Object input);
+	}
+	
+	/** Measurements of a benchmark */
+	private static class Result {
+		long numOps;
+		double[] opsPerSec;
+		long totalTime;
+		/** Bytes allocated by the operations (-1 if not measured) */
+		long totalAllocated;
+		
+		double getMeanOpsPerSec() {
+			double sum = 0;
+			for(double x : opsPerSec) sum += x;
+			return sum / opsPerSec.length;
+		}
+		
+		double getStdDevOpsPerSec() {
+			double mean = getMeanOpsPerSec();
+			double sum = 0;
+			for(double x : opsPerSec) sum += (x - mean) * (x - mean);
+			return opsPerSec.length > 1 ? Math.sqrt(sum / (opsPerSec.length - 1)) : 0;
+		}
+		
+		/** Returns the half-width of the confidence interval of the mean throughput (NaN for a single iteration) */
+		double getOpsPerSecError() {
+			int n = opsPerSec.length;
+			if(n < 2) return Double.NaN;
+			double t = new TDistribution(n - 1).inverseCumulativeProbability(1 - (1 - CONFIDENCE_LEVEL)/2);
+			return t * getStdDevOpsPerSec() / Math.sqrt(n);
+		}
+	}
+	
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption("data", true, "Data directory of the bundled data sets (default: ../data)");
+		options.addOption("dataSets", true, "Comma-separated names of the bundled data sets to benchmark, e.g. RK26,case5 (default: all, none: no bundled data sets)");
+		options.addOption("synthetic", true, "Comma-separated SNV counts of the synthetic inputs to benchmark (default: 1000,10000)");
+		options.addOption("syntheticSamples", true, "Number of tumor samples of the synthetic inputs (default: 10)");
+		options.addOption("syntheticDepth", true, "Clonal tree depth of the synthetic inputs (default: 3)");
+		options.addOption("stages", true, "Comma-separated stages to benchmark: " + Arrays.toString(STAGES) + " (default: all)");
+		options.addOption("warmup", true, "Number of warmup iterations (default: 3)");
+		options.addOption("iterations", true, "Number of measurement iterations (default: 5)");
+		options.addOption("time", true, "Duration of each iteration in ms (default: 1000)");
+		options.addOption("qpTrees", true, "Number of top trees checked by the qp stage (default: 3)");
+		options.addOption("projectionQP", false, "Use the closed-form projection solver in the qp stage");
+		options.addOption("threads", true, "Number of threads of the pipeline (default: 1)");
+		options.addOption("o", true, "Output file path of the results table (tab-separated)");
+		options.addOption("h", "help", false, "Print usage");
+		
+		CommandLine cmdLine = null;
+		HelpFormatter hf = new HelpFormatter();
+		try {
+			cmdLine = new BasicParser().parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			hf.printHelp("lineage.LineageBenchmark", options);
+			System.exit(-1);
+		}
+		if(cmdLine.hasOption("h")) {
+			hf.printHelp("lineage.LineageBenchmark", options);
+			return;
+		}
+		
+		String dataDir = cmdLine.getOptionValue("data", "../data");
+		List<String> dataSetNames = cmdLine.hasOption("dataSets") ? Arrays.asList(cmdLine.getOptionValue("dataSets").split(",")) : null;
+		String[] syntheticSizes = cmdLine.getOptionValue("synthetic", "1000,10000").split(",");
+		int syntheticSamples = Integer.parseInt(cmdLine.getOptionValue("syntheticSamples", "10"));
+		int syntheticDepth = Integer.parseInt(cmdLine.getOptionValue("syntheticDepth", "3"));
+		List<String> stages = cmdLine.hasOption("stages") ? Arrays.asList(cmdLine.getOptionValue("stages").split(",")) : Arrays.asList(STAGES);
+		for(String stage : stages) {
+			if(!Arrays.asList(STAGES).contains(stage)) {
+				System.out.println("Unknown stage: " + stage);
+				hf.printHelp("lineage.LineageBenchmark", options);
+				System.exit(-1);
+			}
+		}
+		int numWarmup = Integer.parseInt(cmdLine.getOptionValue("warmup", "3"));
+		int numIterations = Math.max(1, Integer.parseInt(cmdLine.getOptionValue("iterations", "5")));
+		long iterationTime = Long.parseLong(cmdLine.getOptionValue("time", "1000")) * 1000000L;
+		
+		Parameters.Builder config = new Parameters.Builder();
+		config.NUM_THREADS = Integer.parseInt(cmdLine.getOptionValue("threads", "1"));
+		config.NUM_TREES_FOR_CONSISTENCY_CHECK = Integer.parseInt(cmdLine.getOptionValue("qpTrees", "3"));
+		config.USE_PROJECTION_QP = cmdLine.hasOption("projectionQP");
+		Parameters benchmarkParameters = config.build();
+		
+		// data sets
+		ArrayList<String[]> dataSets = new ArrayList<String[]>();
+		for(String[] d : DATA_SETS) {
+			String name = getDataSetName(d[0]);
+			if(dataSetNames == null || dataSetNames.contains(name)) {
+				dataSets.add(new String[] {name, new File(dataDir, d[0]).getPath(), d[1]});
+			}
+		}
+		if(cmdLine.getOptionValue("synthetic", "").length() > 0) {
+			for(String size : syntheticSizes) {
+				LineageSimulator sim = new LineageSimulator();
+				sim.numSNVs = Integer.parseInt(size.trim());
+				sim.numSamples = syntheticSamples;
+				sim.treeDepth = syntheticDepth;
+				String name = "sim-" + sim.numSNVs + "-" + sim.numSamples + "-" + sim.treeDepth;
+				try {
+					File f = File.createTempFile("lichee-benchmark-", ".txt");
+					File truth = new File(f.getPath() + LineageSimulator.TRUTH_FILE_EXTENSION);
+					f.deleteOnExit();
+					truth.deleteOnExit();
+					sim.write(f.getPath(), truth.getPath());
+					dataSets.add(new String[] {name, f.getPath(), SYNTHETIC_SETTINGS});
+				} catch (IllegalArgumentException e) {
+					System.out.println(e.getMessage());
+					System.exit(-1);
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.err.println("Failed to create the synthetic input: " + name);
+					System.exit(-1);
+				}
+			}
+		}
+		
+		StringBuilder table = new StringBuilder();
+		String header = "Data set\tSNVs\tSamples\tStage\tOps\tOps/s\tOps/s error (99.9% CI)\tms/op\tAlloc MB/s\tAlloc B/op";
+		System.out.println(header);
+		table.append(header + "\n");
+		for(String[] d : dataSets) {
+			DataSet ds = prepare(d[0], d[1], d[2], benchmarkParameters);
+			for(String stage : stages) {
+				Operation op = getOperation(stage, ds);
+				String row = ds.name + "\t" + (ds.db != null ? ds.db.somaticSNVs.size() : "-") + "\t" + (ds.db != null ? ds.db.getNumSamples() : "-") + "\t" + stage + "\t";
+				if(op == null) {
+					row += "-\t-\t-\t-\t-\t-";
+				} else {
+					System.gc();
+					row += format(measure(op, numWarmup, numIterations, iterationTime, benchmarkParameters.NUM_THREADS == 1));
+				}
+				System.out.println(row);
+				table.append(row + "\n");
+			}
+		}
+		
+		if(cmdLine.hasOption("o")) {
+			String tableFileName = cmdLine.getOptionValue("o");
+			try {
+				FileWriter fw = new FileWriter(tableFileName);
+				fw.write(table.toString());
+				fw.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Failed to write to the file: " + tableFileName);
+				System.exit(-1);
+			}
+		}
+	}
+	
+	/**
+	 * Loads the data set and runs the pipeline once (to prepare the input of each stage)
+	 */
+	private static DataSet prepare(String name, String inputFileName, String settings, Parameters benchmarkParameters) {
+		Options caseOptions = new Options();
+		for(String o : new String[] {"maxVAFAbsent", "minVAFPresent", "minClusterSize", "minPrivateClusterSize", "maxClusterDist", "e"}) {
+			caseOptions.addOption(o, true, "");
+		}
+		caseOptions.addOption("i", true, "");
+		caseOptions.addOption("n", true, "");
+		caseOptions.addOption("c", false, "");
+		
+		DataSet ds = new DataSet();
+		ds.name = name;
+		try {
+			ds.args = LineageEngine.parseArgs(new BasicParser().parse(caseOptions, ("-i " + inputFileName + " -n 0 " + settings).split(" ")));
+		} catch (ParseException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		ds.args.outputFileName = null;
+		Parameters.Builder config = new Parameters.Builder(ds.args.parameters);
+		config.NUM_THREADS = benchmarkParameters.NUM_THREADS;
+		config.NUM_TREES_FOR_CONSISTENCY_CHECK = benchmarkParameters.NUM_TREES_FOR_CONSISTENCY_CHECK;
+		config.USE_PROJECTION_QP = benchmarkParameters.USE_PROJECTION_QP;
+		ds.args.parameters = config.build();
+		
+		// the pipeline logs are not benchmarked
+		Logger logger = Logger.getAnonymousLogger();
+		logger.setUseParentHandlers(false);
+		logger.setLevel(Level.OFF);
+		ds.context = new LineageContext(ds.args.parameters, logger);
+		
+		ds.db = LineageEngine.loadSNVData(ds.args, ds.context);
+		ds.groups = LineageEngine.createGroups(ds.db, ds.context);
+		if(ds.groups.size() == 0) {
+			return ds;
+		}
+		LineageEngine.clusterGroups(ds.args, ds.db, ds.groups, ds.context);
+		// network and trees of the run (the groups keep the clusters of the adjusted network, if any)
+		Results results = LineageEngine.findLineageTrees(ds.args, ds.context, ds.db, ds.groups);
+		ds.network = results.network;
+		ds.trees = results.trees;
+		return ds;
+	}
+	
+	/**
+	 * Returns the operation of the given stage on the data set 
+	 * (null if the stage has no input: no SNV groups or no trees)
+	 */
+	private static Operation getOperation(String stage, final DataSet ds) {
+		final LineageContext context = ds.context;
+		if(stage.equals("parse")) {
+			return new Operation() {
+				Object run(Object input) {
+					return new SNVDataStore(ds.args.inputFileName, null, ds.args.normalSampleId, context, false);
+				}
+			};
+		}
+		if(stage.equals("assign")) {
+			return new Operation() {
+				Object setUp() {
+					return new SNVDataStore(ds.args.inputFileName, null, ds.args.normalSampleId, context, false);
+				}
+				Object run(Object input) {
+					SNVDataStore db = (SNVDataStore) input;
+					db.callSNVGroups();
+					return db;
+				}
+			};
+		}
+		if(ds.network == null) {
+			return null;
+		}
+		if(stage.equals("cluster")) {
+			return new Operation() {
+				Object setUp() {
+					return LineageEngine.createGroups(ds.db, context);
+				}
+				@SuppressWarnings("unchecked")
+				Object run(Object input) {
+					ArrayList<SNVGroup> groups = (ArrayList<SNVGroup>) input;
+					LineageEngine.clusterGroups(ds.args, ds.db, groups, context);
+					return groups;
+				}
+			};
+		}
+		if(stage.equals("network")) {
+			return new Operation() {
+				Object run(Object input) {
+					return new PHYNetwork(ds.groups, ds.db.getNumSamples(), context);
+				}
+			};
+		}
+		if(stage.equals("search")) {
+			return new Operation() {
+				// the search modifies the edges of the network
+				Object setUp() {
+					return new PHYNetwork(ds.groups, ds.db.getNumSamples(), context);
+				}
+				Object run(Object input) {
+					return ((PHYNetwork) input).getLineageTrees();
+				}
+			};
+		}
+		if(ds.trees.size() == 0) {
+			return null;
+		}
+		if(stage.equals("score")) {
+			return new Operation() {
+				Object run(Object input) {
+					double sum = 0;
+					for(PHYTree t : ds.trees) {
+						sum += t.computeErrorScore();
+					}
+					return sum;
+				}
+			};
+		}
+		return new Operation() {
+			Object run(Object input) {
+				ds.network.evaluateLineageTrees();
+				return ds.trees;
+			}
+		};
+	}
+	
+	/**
+	 * Runs the warmup and measurement iterations of the operation
+	 * @param iterationTime - duration of an iteration (ns), each iteration runs the operation at least once
+	 * @param measureAllocation - true if the operation runs on the benchmark thread only
+	 */
+	private static Result measure(Operation op, int numWarmup, int numIterations, long iterationTime, boolean measureAllocation) {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		Result r = new Result();
+		r.opsPerSec = new double[numIterations];
+		for(int i = 0; i < numWarmup + numIterations; i++) {
+			long numOps = 0;
+			long time = 0;
+			long allocated = 0;
+			long end = System.nanoTime() + iterationTime;
+			do {
+				Object input = op.setUp();
+				long startAllocated = threads.getThreadAllocatedBytes(threadId);
+				long start = System.nanoTime();
+				Object result = op.run(input);
+				time += System.nanoTime() - start;
+				allocated += threads.getThreadAllocatedBytes(threadId) - startAllocated;
+				sink ^= System.identityHashCode(result);
+				numOps++;
+			} while(System.nanoTime() < end);
+			
+			if(i >= numWarmup) {
+				r.opsPerSec[i - numWarmup] = numOps * 1e9 / time;
+				r.numOps += numOps;
+				r.totalTime += time;
+				r.totalAllocated += allocated;
+			}
+		}
+		if(!measureAllocation) {
+			r.totalAllocated = -1;
+		}
+		return r;
+	}
+	
+	private static String format(Result r) {
+		DecimalFormat f = new DecimalFormat("0.###");
+		double seconds = r.totalTime / 1e9;
+		double error = r.getOpsPerSecError();
+		String s = r.numOps + "\t" + f.format(r.getMeanOpsPerSec()) + "\t" + (Double.isNaN(error) ? "-" : f.format(error)) + "\t" 
+			+ f.format(r.totalTime / 1e6 / r.numOps) + "\t";
+		if(r.totalAllocated < 0) {
+			return s + "-\t-";
+		}
+		return s + f.format(r.totalAllocated / 1048576.0 / seconds) + "\t" + (r.totalAllocated / r.numOps);
+	}
+	
+	private static String getDataSetName(String path) {
+		String name = new File(path).getName();
+		return name.substring(0, name.lastIndexOf('.'));
+	}
+}
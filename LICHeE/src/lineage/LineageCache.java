@@ -0,0 +1,218 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+package lineage;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lineage.AAFClusterer.Cluster;
+import lineage.AAFClusterer.ClusteringAlgorithms;
+import lineage.LineageEngine.Args;
+
+/**
+ * Cache of the loaded SNV data and of the SNV group clusters,
+ * shared by the runs of a long-running process (server mode):
+ * repeated analyses of the same input with different network or tree search parameters
+ * skip the loading and clustering steps.
+ * 
+ * A data store is identified by the input files (path, size, modification time),
+ * the normal sample and the parameters used while loading the data.
+ * The cached data stores and clusters are not modified by the runs 
+ * (runs are given copies of the cached clusters).
+ * The filtered SNV counts of the loading step are added to the audit of each run
+ * (the filtered SNVs are saved to the audit file of the run that loaded the data only).
+ * The least recently used data stores are evicted when the cache is full.
+ *
+ * @autor viq
+ */
+public class LineageCache {
+	
+	public static final int DEFAULT_CAPACITY = 16;
+	
+	private final int capacity;
+	/** Data entries in access order */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long numHits;
+	private long numMisses;
+	
+	private static class Entry {
+		/** Loaded data (null until loaded) */
+		SNVDataStore db;
+		/** Number of SNVs filtered while loading (by reason) */
+		long[] filterCounts;
+		/** Clusters of each SNV group (not modified) */
+		final HashMap<SampleProfile, Cluster[]> clusters = new HashMap<SampleProfile, Cluster[]>();
+	}
+	
+	public LineageCache(int maxNumDataStores) {
+		capacity = Math.max(1, maxNumDataStores);
+	}
+	
+	/**
+	 * Returns the data store of the run input files and loading parameters
+	 * (loaded with the given run context if not cached)
+	 */
+	public SNVDataStore getDataStore(Args args, LineageContext context) {
+		String key = getDataKey(args, context.getParameters());
+		Entry e;
+		synchronized(this) {
+			e = entries.get(key);
+			if(e == null) {
+				e = new Entry();
+				entries.put(key, e);
+				evict();
+			}
+		}
+		FilterAudit audit = context.getFilterAudit();
+		synchronized(e) {
+			if(e.db == null) {
+				// runs on the same data wait for the data to be loaded once
+				boolean loaded = false;
+				try {
+					e.db = LineageEngine.loadSNVData(args, context);
+					e.filterCounts = new long[FilterAudit.Reason.values().length];
+					for(FilterAudit.Reason r : FilterAudit.Reason.values()) {
+						e.filterCounts[r.ordinal()] = audit.getCount(r);
+					}
+					loaded = true;
+				} finally {
+					synchronized(this) {
+						if(loaded) {
+							numMisses++;
+						} else {
+							entries.remove(key);
+						}
+					}
+				}
+				return e.db;
+			}
+		}
+		synchronized(this) {
+			numHits++;
+		}
+		for(FilterAudit.Reason r : FilterAudit.Reason.values()) {
+			audit.add(r, e.filterCounts[r.ordinal()]);
+		}
+		context.getLogger().info("Using the cached SNV data of the input file: " + args.inputFileName);
+		return e.db;
+	}
+	
+	/**
+	 * Returns the clusters of the given group of a cached data store
+	 * (clustered by the given clusterer if not cached); 
+	 * the returned clusters can be modified by the run
+	 */
+	public Cluster[] getClusters(SNVDataStore db, SNVGroup group, AAFClusterer clusterer) {
+		Entry e = null;
+		synchronized(this) {
+			for(Entry entry : entries.values()) {
+				if(entry.db == db) {
+					e = entry;
+					break;
+				}
+			}
+		}
+		if(e == null) { // evicted
+			return clusterer.clusterSubPopulations(group, ClusteringAlgorithms.EM, 1);
+		}
+		Cluster[] cached;
+		synchronized(e.clusters) {
+			cached = e.clusters.get(group.getTag());
+		}
+		if(cached == null) {
+			Cluster[] clusters = clusterer.clusterSubPopulations(group, ClusteringAlgorithms.EM, 1);
+			synchronized(e.clusters) {
+				e.clusters.put(group.getTag(), copy(clusters, clusterer));
+			}
+			return clusters;
+		}
+		return copy(cached, clusterer);
+	}
+	
+	public synchronized int getNumDataStores() {
+		return entries.size();
+	}
+	
+	public synchronized long getNumHits() {
+		return numHits;
+	}
+	
+	public synchronized long getNumMisses() {
+		return numMisses;
+	}
+	
+	/** Removes all the cached data */
+	public synchronized void clear() {
+		entries.clear();
+	}
+	
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while(entries.size() > capacity && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+	
+	private static Cluster[] copy(Cluster[] clusters, AAFClusterer clusterer) {
+		Cluster[] c = new Cluster[clusters.length];
+		for(int i = 0; i < clusters.length; i++) {
+			c[i] = clusterer.new Cluster(clusters[i]);
+		}
+		return c;
+	}
+	
+	/** Identifies the input files and the loading parameters of a run */
+	protected static String getDataKey(Args args, Parameters p) {
+		StringBuilder key = new StringBuilder();
+		appendFile(key, args.inputFileName);
+		appendFile(key, args.clustersFileName);
+		appendFile(key, args.cnvFileName);
+		appendFile(key, args.annFileName);
+		appendFile(key, args.cosmicFileName);
+		appendFile(key, args.tcgaFileName);
+		key.append(args.normalSampleId).append('|');
+		key.append(p.INPUT_FORMAT).append('|').append(p.CP).append('|');
+		key.append(p.MAX_ALLOWED_VAF).append('|').append(p.MIN_VAF_PRESENT).append('|').append(p.MAX_VAF_ABSENT).append('|');
+		key.append(p.MIN_SNVS_PER_GROUP).append('|').append(p.MIN_ROBUST_SNVS_PER_GROUP).append('|');
+		key.append(p.MIN_GROUP_PROFILE_SUPPORT).append('|').append(p.MIN_VAF_TARGET_RATIO_PER_SAMPLE);
+		return key.toString();
+	}
+	
+	private static void appendFile(StringBuilder key, String fileName) {
+		if(fileName != null) {
+			File f = new File(fileName);
+			key.append(f.getAbsolutePath()).append(':').append(f.length()).append(':').append(f.lastModified());
+		}
+		key.append('|');
+	}
+}
@@ -0,0 +1,572 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+package lineage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.logging.Logger;
+
+import lineage.AAFClusterer.Cluster;
+import lineage.LineageEngine.Args;
+
+/**
+ * Checkpoint file of a lineage reconstruction run.
+ * The output of the pipeline stages is saved to the checkpoint as the run progresses
+ * (the file is replaced at each save), so that an interrupted run can be resumed 
+ * from the last stage saved with the same input and parameters:
+ * - load, group: not saved, the input is re-loaded 
+ *   (a checkpoint is only resumed with the same input files and loading parameters)
+ * - cluster: filtered and collapsed clusters of each SNV group
+ * - network: clusters of the constraint network being searched and its adjustment phase
+ * - search: trees found by the tree search, and periodic snapshots of the search state 
+ *   while the search is in progress (see PHYNetwork.writeSearchState)
+ * - rank: rank and error score of the trees
+ * - output: the run has completed (the outputs are written again on resume)
+ * 
+ * Layout (big-endian):
+ * - magic number, format version, last saved stage
+ * - keys of the input data and of the cluster, search and rank stage parameters (byte length + UTF-8 bytes)
+ * - stage sections (byte length + section), up to the last saved stage:
+ *   cluster: filtered SNV counts, number of groups, per group: tag, number of clusters, clusters
+ *   network: filtered SNV counts, adjustment phase, number of nodes before the last adjustment, 
+ *            number of nodes, number of groups, per group: tag, number of clusters, clusters
+ *   search: search state (empty if no snapshot has been saved)
+ *   rank: number of trees, per tree in rank order: index in the search order, error score
+ *
+ * @autor viq
+ */
+public class LineageCheckpoint {
+	
+	/** Stages of the lineage pipeline */
+	public enum Stage { LOAD, GROUP, CLUSTER, NETWORK, SEARCH, RANK, OUTPUT }
+	
+	/** Adjustment phase of the constraint network being searched */
+	public enum NetworkPhase { 
+		/** Network of the clustered groups */
+		INITIAL, 
+		/** Network without non-robust nodes */
+		ADJUSTED, 
+		/** Network with all the possible edges */
+		COMPLETE 
+	}
+	
+	private static final long MAGIC = 0x4C49434845454350L; // "LICHEECP"
+	private static final int VERSION = 1;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	protected static final int DEFAULT_SNAPSHOT_INTERVAL = 60;
+	
+	private final String fileName;
+	/** Minimum time between two search state snapshots (ms) */
+	private final long snapshotInterval;
+	private long lastSaveTime;
+	private final Logger logger;
+	
+	// keys of the run
+	private final String dataKey;
+	private final String clusterKey;
+	private final String searchKey;
+	private final String rankKey;
+	
+	/** Last saved stage (null if none) */
+	private Stage stage;
+	private byte[] clusterSection;
+	private byte[] networkSection;
+	private byte[] searchSection;
+	private byte[] rankSection;
+	
+	/** Last stage that can be resumed (null if none) */
+	private Stage resumedStage;
+	/** True until the saved search state is restored */
+	private boolean resumeSearch;
+	private NetworkPhase networkPhase;
+	private int prevNumNodes;
+	private int networkNumNodes;
+	
+	/**
+	 * Creates the checkpoint of the given run
+	 * @param snapshotIntervalSec - minimum time between two search state snapshots (seconds)
+	 */
+	public LineageCheckpoint(String checkpointFileName, int snapshotIntervalSec, Args args, LineageContext context) {
+		fileName = checkpointFileName;
+		snapshotInterval = snapshotIntervalSec * 1000L;
+		logger = context.getLogger();
+		Parameters p = context.getParameters();
+		dataKey = LineageCache.getDataKey(args, p);
+		clusterKey = p.getClusterStageKey();
+		searchKey = p.getSearchStageKey();
+		rankKey = p.getRankStageKey();
+	}
+	
+	/**
+	 * Loads the stages saved in the checkpoint file (if it exists)
+	 * that were computed with the same parameters as this run
+	 * (the checkpoint must have been saved for the same input and loading parameters)
+	 * @return the last stage that can be resumed (null if none)
+	 */
+	public Stage resume() {
+		File file = new File(fileName);
+		if(!file.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			try {
+				if(in.readLong() != MAGIC) {
+					throw new IOException("Not a checkpoint file");
+				}
+				if(in.readInt() != VERSION) {
+					throw new IOException("Unsupported checkpoint file version");
+				}
+				Stage savedStage = Stage.values()[in.readInt()];
+				if(!readString(in).equals(dataKey)) {
+					throw new IOException("The checkpoint was saved for a different input or SNV filtering configuration");
+				}
+				String savedClusterKey = readString(in);
+				String savedSearchKey = readString(in);
+				String savedRankKey = readString(in);
+				clusterSection = readSection(in);
+				if(savedStage.compareTo(Stage.NETWORK) >= 0) {
+					networkSection = readSection(in);
+					searchSection = readSection(in);
+					if(searchSection.length == 0) {
+						searchSection = null;
+					}
+				}
+				if(savedStage.compareTo(Stage.RANK) >= 0) {
+					rankSection = readSection(in);
+				}
+				
+				// the stages computed with different parameters are not resumed
+				resumedStage = savedStage;
+				if(!savedClusterKey.equals(clusterKey)) {
+					resumedStage = Stage.GROUP;
+				} else if(!savedSearchKey.equals(searchKey)) {
+					resumedStage = min(resumedStage, Stage.CLUSTER);
+				} else if(!savedRankKey.equals(rankKey)) {
+					resumedStage = min(resumedStage, Stage.SEARCH);
+				}
+				if(resumedStage.compareTo(Stage.CLUSTER) < 0) {
+					resumedStage = null;
+					clusterSection = null;
+				}
+				if(resumedStage == null || resumedStage.compareTo(Stage.NETWORK) < 0) {
+					networkSection = null;
+					searchSection = null;
+				}
+				if(resumedStage == null || resumedStage.compareTo(Stage.RANK) < 0) {
+					rankSection = null;
+				}
+				stage = resumedStage;
+				resumeSearch = (searchSection != null);
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			throw readError(new IOException("Truncated checkpoint file"));
+		} catch (IOException e) {
+			throw readError(e);
+		}
+		return resumedStage;
+	}
+	
+	private static Stage min(Stage s1, Stage s2) {
+		return s1.compareTo(s2) <= 0 ? s1 : s2;
+	}
+	
+	/** Returns true if the output of the given stage has been resumed from the checkpoint file */
+	public boolean hasStage(Stage s) {
+		return resumedStage != null && resumedStage.compareTo(s) >= 0;
+	}
+	
+	/** Returns true if a saved search state has not been restored yet */
+	public boolean hasSearchState() {
+		return resumeSearch;
+	}
+	
+	// ---- Restore ----
+	
+	/**
+	 * Restores the saved clusters of the given groups of the run
+	 * and the filtered SNV counts of the cluster stage
+	 */
+	public void restoreClusters(ArrayList<SNVGroup> groups, FilterAudit audit) {
+		try {
+			DataInputStream in = openSection(clusterSection);
+			readCounts(in, audit);
+			readGroups(in, groups);
+		} catch (IOException e) {
+			throw readError(e);
+		}
+	}
+	
+	/**
+	 * Restores the clusters of the given groups of the run at the time the saved network was constructed
+	 * (the groups that are not in the network have no clusters) 
+	 * and the filtered SNV counts at that time
+	 * @return the groups of the saved network
+	 */
+	public ArrayList<SNVGroup> restoreNetworkGroups(ArrayList<SNVGroup> groups, FilterAudit audit) {
+		try {
+			DataInputStream in = openSection(networkSection);
+			readCounts(in, audit);
+			networkPhase = NetworkPhase.values()[in.readInt()];
+			prevNumNodes = in.readInt();
+			networkNumNodes = in.readInt();
+			return readGroups(in, groups);
+		} catch (IOException e) {
+			throw readError(e);
+		}
+	}
+	
+	/** Returns the adjustment phase of the saved network */
+	public NetworkPhase getNetworkPhase() {
+		return networkPhase;
+	}
+	
+	/** Returns the number of nodes of the network before the last adjustment of the saved network */
+	public int getPrevNumNodes() {
+		return prevNumNodes;
+	}
+	
+	/**
+	 * Restores the saved tree search state in the network constructed from the saved network groups
+	 * @return true if the search was complete
+	 */
+	public boolean restoreSearch(PHYNetwork net) {
+		resumeSearch = false;
+		try {
+			if(net.numNodes != networkNumNodes) {
+				throw new IOException("The saved search state does not match the constraint network");
+			}
+			return net.readSearchState(openSection(searchSection));
+		} catch (IOException e) {
+			throw readError(e);
+		}
+	}
+	
+	/**
+	 * Restores the saved rank and error scores of the given trees (in search order)
+	 */
+	public void restoreRanking(ArrayList<PHYTree> trees) {
+		try {
+			DataInputStream in = openSection(rankSection);
+			int numTrees = in.readInt();
+			if(numTrees != trees.size()) {
+				throw new IOException("The saved rank does not match the trees found");
+			}
+			ArrayList<PHYTree> ranked = new ArrayList<PHYTree>(numTrees);
+			for(int i = 0; i < numTrees; i++) {
+				PHYTree t = trees.get(in.readInt());
+				t.errorScore = in.readDouble();
+				ranked.add(t);
+			}
+			trees.clear();
+			trees.addAll(ranked);
+		} catch (IOException e) {
+			throw readError(e);
+		}
+	}
+	
+	// ---- Save ----
+	
+	/**
+	 * Saves the clustered SNV groups (cluster stage)
+	 */
+	public void saveClusters(ArrayList<SNVGroup> groups, FilterAudit audit) {
+		try {
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(b);
+			writeCounts(out, audit);
+			out.writeInt(groups.size());
+			for(SNVGroup g : groups) {
+				writeString(out, g.getTag().toString());
+				Cluster[] clusters = g.getSubPopulations();
+				out.writeInt(clusters.length);
+				for(Cluster c : clusters) {
+					c.write(out);
+				}
+			}
+			out.close();
+			clusterSection = b.toByteArray();
+		} catch (IOException e) {
+			throw writeError(e);
+		}
+		networkSection = null;
+		searchSection = null;
+		rankSection = null;
+		save(Stage.CLUSTER);
+	}
+	
+	/**
+	 * Saves the constraint network to be searched (network stage)
+	 * @param phase - adjustment phase of the network
+	 * @param prevNodes - number of nodes of the network before the last adjustment
+	 */
+	public void saveNetwork(PHYNetwork net, NetworkPhase phase, int prevNodes, FilterAudit audit) {
+		// the groups of the network in node id order (the order used to construct the network)
+		LinkedHashMap<SNVGroup, ArrayList<Cluster>> groups = new LinkedHashMap<SNVGroup, ArrayList<Cluster>>();
+		for(int i = 0; i < net.numNodes; i++) {
+			PHYNode n = net.nodesById.get(i);
+			if(n == null || n.getSNVGroup() == null) continue;
+			ArrayList<Cluster> clusters = groups.get(n.getSNVGroup());
+			if(clusters == null) {
+				clusters = new ArrayList<Cluster>();
+				groups.put(n.getSNVGroup(), clusters);
+			}
+			clusters.add(n.getCluster());
+		}
+		try {
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(b);
+			writeCounts(out, audit);
+			out.writeInt(phase.ordinal());
+			out.writeInt(prevNodes);
+			out.writeInt(net.numNodes);
+			out.writeInt(groups.size());
+			for(SNVGroup g : groups.keySet()) {
+				writeString(out, g.getTag().toString());
+				out.writeInt(groups.get(g).size());
+				for(Cluster c : groups.get(g)) {
+					c.write(out);
+				}
+			}
+			out.close();
+			networkSection = b.toByteArray();
+		} catch (IOException e) {
+			throw writeError(e);
+		}
+		searchSection = null;
+		rankSection = null;
+		save(Stage.NETWORK);
+	}
+	
+	/**
+	 * Saves a snapshot of the tree search state of the network 
+	 * if the snapshot interval has elapsed since the last save
+	 */
+	public void saveSearchSnapshot(PHYNetwork net) {
+		if(System.currentTimeMillis() - lastSaveTime < snapshotInterval) {
+			return;
+		}
+		searchSection = getSearchState(net, false);
+		save(Stage.NETWORK);
+		logger.fine("Saved a tree search snapshot to the checkpoint file: " + fileName);
+	}
+	
+	/**
+	 * Saves the trees found by the completed tree search of the network (search stage)
+	 */
+	public void saveSearch(PHYNetwork net) {
+		searchSection = getSearchState(net, true);
+		rankSection = null;
+		save(Stage.SEARCH);
+	}
+	
+	/**
+	 * Saves the rank of the trees (rank stage)
+	 * @param searchOrder - trees in the order found by the search
+	 * @param ranked - trees in rank order
+	 */
+	public void saveRanking(ArrayList<PHYTree> searchOrder, ArrayList<PHYTree> ranked) {
+		IdentityHashMap<PHYTree, Integer> index = new IdentityHashMap<PHYTree, Integer>();
+		for(int i = 0; i < searchOrder.size(); i++) {
+			index.put(searchOrder.get(i), i);
+		}
+		try {
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(b);
+			out.writeInt(ranked.size());
+			for(PHYTree t : ranked) {
+				out.writeInt(index.get(t));
+				out.writeDouble(t.getErrorScore());
+			}
+			out.close();
+			rankSection = b.toByteArray();
+		} catch (IOException e) {
+			throw writeError(e);
+		}
+		save(Stage.RANK);
+	}
+	
+	/**
+	 * Marks the run as completed (output stage)
+	 */
+	public void saveOutput() {
+		save(Stage.OUTPUT);
+	}
+	
+	private byte[] getSearchState(PHYNetwork net, boolean complete) {
+		try {
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(b);
+			net.writeSearchState(out, complete);
+			out.close();
+			return b.toByteArray();
+		} catch (IOException e) {
+			throw writeError(e);
+		}
+	}
+	
+	/**
+	 * Replaces the checkpoint file with the sections up to the given stage
+	 */
+	private void save(Stage savedStage) {
+		stage = savedStage;
+		File file = new File(fileName);
+		File tmp = new File(fileName + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				out.writeLong(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(stage.ordinal());
+				writeString(out, dataKey);
+				writeString(out, clusterKey);
+				writeString(out, searchKey);
+				writeString(out, rankKey);
+				writeSection(out, clusterSection);
+				if(stage.compareTo(Stage.NETWORK) >= 0) {
+					writeSection(out, networkSection);
+					writeSection(out, searchSection);
+				}
+				if(stage.compareTo(Stage.RANK) >= 0) {
+					writeSection(out, rankSection);
+				}
+			} finally {
+				out.close();
+			}
+			if(!tmp.renameTo(file)) {
+				file.delete();
+				if(!tmp.renameTo(file)) {
+					throw new IOException("Could not replace the checkpoint file");
+				}
+			}
+		} catch (IOException e) {
+			throw writeError(e);
+		}
+		lastSaveTime = System.currentTimeMillis();
+	}
+	
+	private LineageException readError(IOException e) {
+		return new LineageException("Failed to resume from the checkpoint file: " + fileName + " (" + e.getMessage() + ")", e);
+	}
+	
+	private LineageException writeError(IOException e) {
+		return new LineageException("Failed to write to the file: " + fileName, e);
+	}
+	
+	// ---- I/O ----
+	
+	private static void writeCounts(DataOutputStream out, FilterAudit audit) throws IOException {
+		for(FilterAudit.Reason r : FilterAudit.Reason.values()) {
+			out.writeLong(audit.getCount(r));
+		}
+	}
+	
+	private static void readCounts(DataInputStream in, FilterAudit audit) throws IOException {
+		audit.reset();
+		for(FilterAudit.Reason r : FilterAudit.Reason.values()) {
+			audit.add(r, in.readLong());
+		}
+	}
+	
+	/**
+	 * Sets the saved clusters of the given groups 
+	 * (the groups that are not saved have no clusters)
+	 * @return the saved groups in the saved order
+	 */
+	private static ArrayList<SNVGroup> readGroups(DataInputStream in, ArrayList<SNVGroup> groups) throws IOException {
+		HashMap<String, SNVGroup> groupsByTag = new HashMap<String, SNVGroup>();
+		for(SNVGroup g : groups) {
+			groupsByTag.put(g.getTag().toString(), g);
+			g.subPopulations = new Cluster[0];
+		}
+		AAFClusterer clusterer = new AAFClusterer();
+		int numGroups = in.readInt();
+		ArrayList<SNVGroup> savedGroups = new ArrayList<SNVGroup>(numGroups);
+		for(int i = 0; i < numGroups; i++) {
+			String tag = readString(in);
+			SNVGroup g = groupsByTag.get(tag);
+			if(g == null) {
+				throw new IOException("The saved SNV group " + tag + " does not match the input");
+			}
+			g.subPopulations = new Cluster[in.readInt()];
+			for(int j = 0; j < g.subPopulations.length; j++) {
+				g.subPopulations[j] = clusterer.new Cluster(in);
+			}
+			savedGroups.add(g);
+		}
+		return savedGroups;
+	}
+	
+	private static DataInputStream openSection(byte[] section) {
+		return new DataInputStream(new ByteArrayInputStream(section));
+	}
+	
+	private static byte[] readSection(DataInputStream in) throws IOException {
+		byte[] section = new byte[in.readInt()];
+		in.readFully(section);
+		return section;
+	}
+	
+	private static void writeSection(DataOutputStream out, byte[] section) throws IOException {
+		if(section == null) {
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(section.length);
+		out.write(section);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, CHARSET);
+	}
+	
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(CHARSET);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+
+package lineage;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Context of a lineage reconstruction run: the run configuration,
+ * the audit of the filtered SNVs, the logger of the run,
+ * the memory budget and data cache shared with concurrent runs (if any),
+ * and the cancellation state of the run.
+ * The pipeline objects of a run (data store, SNV groups, networks) share its context,
+ * so that independent runs can be executed concurrently.
+ *
+ * @autor viq
+ */
+public class LineageContext {
+
+	private final Parameters params;
+	private final FilterAudit audit;
+	private final Logger logger;
+	private final MemoryBudget memoryBudget;
+	private final LineageCache cache;
+	private final AtomicBoolean cancelled;
+
+	public LineageContext(Parameters params, Logger logger) {
+		this(params, logger, null, null);
+	}
+
+	/**
+	 * Creates the context of a run executed concurrently with other runs
+	 * sharing the given memory budget and data cache (either can be null)
+	 */
+	public LineageContext(Parameters params, Logger logger, MemoryBudget budget, LineageCache cache) {
+		this(params, new FilterAudit(), logger, budget, cache, new AtomicBoolean());
+	}
+
+	private LineageContext(Parameters params, FilterAudit audit, Logger logger, MemoryBudget budget, LineageCache cache, AtomicBoolean cancelled) {
+		this.params = params;
+		this.audit = audit;
+		this.logger = logger;
+		this.memoryBudget = budget;
+		this.cache = cache;
+		this.cancelled = cancelled;
+	}
+
+	/**
+	 * Returns a context of the same run with the given configuration
+	 * (sharing the filter audit, the logger, the memory budget, the cache and the cancellation state)
+	 */
+	public LineageContext withParameters(Parameters p) {
+		return new LineageContext(p, audit, logger, memoryBudget, cache, cancelled);
+	}
+
+	public Parameters getParameters() {
+		return params;
+	}
+
+	public FilterAudit getFilterAudit() {
+		return audit;
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	/** Returns the shared memory budget (null if the run is executed alone) */
+	public MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/** Returns the shared data cache (null if the loaded data is not cached) */
+	public LineageCache getCache() {
+		return cache;
+	}
+
+	/** Requests the run to stop (the run is stopped at the next pipeline check) */
+	public void cancel() {
+		cancelled.set(true);
+	}
+
+	public boolean isCancelled() {
+		return cancelled.get();
+	}
+
+	/** Stops the run if it has been cancelled */
+	public void checkCancelled() {
+		if(cancelled.get()) {
+			throw new CancellationException("The run has been cancelled");
+		}
+	}
+}
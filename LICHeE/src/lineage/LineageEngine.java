@@ -35,6 +35,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.concurrent.CancellationException;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
@@ -53,6 +54,8 @@ import util.LineageDisplayConfig;
 import util.Visualizer;
 import lineage.AAFClusterer.Cluster;
 import lineage.AAFClusterer.ClusteringAlgorithms;
+import lineage.LineageCheckpoint.NetworkPhase;
+import lineage.LineageCheckpoint.Stage;
 import lineage.Parameters.Format;
 import lineage.PHYTree;
 
@@ -67,71 +70,253 @@ public class LineageEngine {
 	 * The main pipeline for reconstructing the cell lineage trees
 	 */
 	public static void buildLineage(Args args) {
+		buildLineage(args, new LineageContext(args.parameters, logger));
+	}
+	
+	/**
+	 * Runs the pipeline in the given run context
+	 * (runs with separate contexts can be executed concurrently)
+	 * @throws CancellationException if the run is cancelled
+	 * @throws LineageException if an output, filter log or checkpoint file cannot be written
+	 */
+	public static Results buildLineage(Args args, LineageContext context) {
+		if(args.filterLogFileName != null) {
+			try {
+				context.getFilterAudit().open(args.filterLogFileName);
+			} catch (IOException e) {
+				throw new LineageException("Failed to write to the file: " + args.filterLogFileName, e);
+			}
+		}
+		Results results;
+		try {
+			results = runPipeline(args, context);
+		} catch (RuntimeException e) {
+			// the audit file of a failed or cancelled run is closed before the error is reported
+			try {
+				context.getFilterAudit().close();
+			} catch (IOException ignored) {}
+			throw e;
+		}
+		closeFilterAudit(args, context);
+		return results;
+	}
+	
+	/**
+	 * Runs steps 1-8 of the pipeline
+	 * @throws LineageException if an output or checkpoint file cannot be written
+	 */
+	private static Results runPipeline(Args args, LineageContext context) {
+		Logger log = context.getLogger();
+		
+		// checkpoint of the run (the stages saved with the same input and parameters are resumed)
+		LineageCheckpoint checkpoint = null;
+		if(args.checkpointFileName != null) {
+			checkpoint = new LineageCheckpoint(args.checkpointFileName, args.checkpointInterval, args, context);
+			if(args.resume) {
+				Stage stage = checkpoint.resume();
+				if(stage != null) {
+					log.info("Resuming the run after the " + stage.name().toLowerCase() + " stage saved to the checkpoint file: " + args.checkpointFileName);
+				} else {
+					log.info("No saved stages to resume in the checkpoint file: " + args.checkpointFileName);
+				}
+			}
+		}
 				
-		// 1. load SNV data
-		SNVDataStore db = new SNVDataStore(args.inputFileName, args.clustersFileName, args.normalSampleId);
+		// 1. load SNV data (shared with the runs on the same data if cached)
+		LineageCache cache = context.getCache();
+		SNVDataStore db = (cache != null) ? cache.getDataStore(args, context) : loadSNVData(args, context);
+		context.checkCancelled();
 		
 		// 2. get the SNVs partitioned by group tag and create the appropriate SNV group objects
-		HashMap<String, ArrayList<SNVEntry>> snvsByTag = db.getSomaticGroups();
-		ArrayList<SNVGroup> groups = new ArrayList<SNVGroup>();
-		for(String groupTag : snvsByTag.keySet()) {
-			groups.add(new SNVGroup(groupTag, snvsByTag.get(groupTag), db.isRobustGroup(groupTag)));
-		}
+		ArrayList<SNVGroup> groups = createGroups(db, context);
 		if(groups.size() == 0) {
-			logger.warning("All SNV groups have been filtered out.");
-			return;
+			log.warning("All SNV groups have been filtered out.");
+			Results results = new Results();
+			results.sampleNames = db.getSampleNames();
+			return results;
 		}
 		
-		// 3. cluster SNVs in each group
+		// 3. cluster SNVs in each group (or restore the clusters saved to the checkpoint)
+		if(checkpoint != null && checkpoint.hasStage(Stage.CLUSTER)) {
+			checkpoint.restoreClusters(groups, context.getFilterAudit());
+		} else {
+			clusterGroups(args, db, groups, context);
+			context.checkCancelled();
+			if(checkpoint != null) {
+				checkpoint.saveClusters(groups, context.getFilterAudit());
+			}
+		}
+		
+		// 4-8. construct the constraint network and find the lineage trees
+		return findLineageTrees(args, context, db, groups, checkpoint);
+	}
+	
+	/**
+	 * Creates the SNV groups of the data store (SNVs partitioned by group tag)
+	 */
+	protected static ArrayList<SNVGroup> createGroups(SNVDataStore db, LineageContext context) {
+		HashMap<SampleProfile, ArrayList<SNVEntry>> snvsByTag = db.getSomaticGroups();
+		ArrayList<SNVGroup> groups = new ArrayList<SNVGroup>();
+		for(SampleProfile groupTag : snvsByTag.keySet()) {
+			groups.add(new SNVGroup(groupTag, snvsByTag.get(groupTag), db.isRobustGroup(groupTag), db.getVAFMatrix(), context));
+		}
+		return groups;
+	}
+	
+	/**
+	 * Sets the sub-populations of each group: clusters the group SNVs 
+	 * (or uses the clusters of the clusters file), filters and collapses the clusters
+	 */
+	protected static void clusterGroups(Args args, SNVDataStore db, ArrayList<SNVGroup> groups, LineageContext context) {
+		Logger log = context.getLogger();
+		LineageCache cache = context.getCache();
 		AAFClusterer clusterer = new AAFClusterer();
 		for(SNVGroup group : groups) {
 			if(args.clustersFileName == null) {
-				Cluster[] clusters = clusterer.clusterSubPopulations(group, ClusteringAlgorithms.EM, 1);
-				logger.fine("Clustering results for group: " + group.getTag());
+				Cluster[] clusters = (cache != null) ? cache.getClusters(db, group, clusterer) : clusterer.clusterSubPopulations(group, ClusteringAlgorithms.EM, 1);
+				log.fine("Clustering results for group: " + group.getTag());
 				for(Cluster c : clusters) {
-					logger.fine(c.toString());
+					log.fine(c.toString());
 				}
 				group.setSubPopulations(clusters);
 			} else {
 				ArrayList<Cluster> groupClusters = db.getClusters().get(group.getTag());
 				group.subPopulations = new Cluster[groupClusters.size()];
 				group.subPopulations = groupClusters.toArray(group.subPopulations);
+				if(cache != null) {
+					// the clusters of a cached data store are shared by the runs
+					for(int i = 0; i < group.subPopulations.length; i++) {
+						group.subPopulations[i] = clusterer.new Cluster(group.subPopulations[i]);
+					}
+				}
 			}
 		}
+	}
+	
+	/**
+	 * Loads the SNV data of the run and annotates the SNVs
+	 */
+	protected static SNVDataStore loadSNVData(Args args, LineageContext context) {
+		SNVDataStore db = new SNVDataStore(args.inputFileName, args.clustersFileName, args.normalSampleId, context);
 		
-		// 4. construct the constraint network
-		PHYNetwork constrNetwork = new PHYNetwork(groups, db.getNumSamples());
-		logger.fine(constrNetwork.toString());
+		// 1a. annotate the SNVs (CNV regions, ANNOVAR functions, COSMIC, TCGA)
+		if(args.cnvFileName != null || args.annFileName != null || args.cosmicFileName != null || args.tcgaFileName != null) {
+			db.annotateSNVs(args.cnvFileName, args.annFileName, args.cosmicFileName, args.tcgaFileName);
+		}
+		return db;
+	}
+	
+	/**
+	 * Constructs the constraint network of the clustered groups, 
+	 * then finds, ranks, displays and saves its lineage trees
+	 * (steps 4-8 of the pipeline)
+	 * @throws CancellationException if the run is cancelled
+	 */
+	protected static Results findLineageTrees(Args args, LineageContext context, SNVDataStore db, ArrayList<SNVGroup> groups) {
+		return findLineageTrees(args, context, db, groups, null);
+	}
+	
+	/**
+	 * Runs steps 4-8 of the pipeline, saving their output to the given checkpoint (if not null)
+	 * or resuming the stages restored from the checkpoint
+	 */
+	private static Results findLineageTrees(Args args, LineageContext context, SNVDataStore db, ArrayList<SNVGroup> groups, LineageCheckpoint checkpoint) {
+		Logger log = context.getLogger();
 		
-		// 5. find all the lineage trees that pass the VAF constraints
-		ArrayList<PHYTree> spanningTrees = constrNetwork.getLineageTrees();  
-		logger.info("Found " + spanningTrees.size() + " valid tree(s)");
+		// 4. construct the constraint network (or the network saved to the checkpoint)
+		PHYNetwork constrNetwork;
+		if(checkpoint != null && checkpoint.hasStage(Stage.NETWORK)) {
+			ArrayList<SNVGroup> networkGroups = checkpoint.restoreNetworkGroups(groups, context.getFilterAudit());
+			if(checkpoint.getNetworkPhase() == NetworkPhase.COMPLETE) {
+				constrNetwork = new PHYNetwork(groups, db.getNumSamples(), getCompleteNetworkContext(context));
+			} else {
+				constrNetwork = new PHYNetwork(networkGroups, db.getNumSamples(), context);
+			}
+		} else {
+			constrNetwork = new PHYNetwork(groups, db.getNumSamples(), context);
+			if(checkpoint != null) {
+				checkpoint.saveNetwork(constrNetwork, NetworkPhase.INITIAL, 0, context.getFilterAudit());
+			}
+		}
+		log.fine(constrNetwork.toString());
 		
-		if(spanningTrees.size() == 0) {
-			logger.info("Adjusting the network...");	
-			// if no valid trees were found, fix the network 
-			// remove group nodes that are not robust, complete edges
-			int delta = 0;
-			do {
-				int numNodes = constrNetwork.numNodes;
+		// the memory of the tree search is reserved from the budget shared with concurrent runs
+		MemoryBudget budget = context.getMemoryBudget();
+		int reservedMB = 0;
+		if(budget != null) {
+			reservedMB = budget.reserve(MemoryBudget.estimateTreeSearchBytes(constrNetwork, context.getParameters().MAX_NUM_TREES));
+		}
+		try {
+			return findLineageTrees(args, context, db, groups, constrNetwork, checkpoint);
+		} finally {
+			if(budget != null) {
+				budget.release(reservedMB);
+			}
+		}
+	}
+	
+	/**
+	 * Finds, ranks, displays and saves the lineage trees of the constraint network
+	 * (steps 5-8 of the pipeline)
+	 */
+	private static Results findLineageTrees(Args args, LineageContext context, SNVDataStore db, ArrayList<SNVGroup> groups, PHYNetwork constrNetwork, LineageCheckpoint checkpoint) {
+		Logger log = context.getLogger();
+		
+		// 5. find all the lineage trees that pass the VAF constraints
+		// if no valid trees were found, fix the network: 
+		// remove group nodes that are not robust (while nodes are removed), then complete edges
+		NetworkPhase phase = NetworkPhase.INITIAL;
+		int prevNumNodes = 0;
+		if(checkpoint != null && checkpoint.hasStage(Stage.NETWORK)) {
+			phase = checkpoint.getNetworkPhase();
+			prevNumNodes = checkpoint.getPrevNumNodes();
+		}
+		ArrayList<PHYTree> spanningTrees;
+		while(true) {
+			spanningTrees = searchLineageTrees(constrNetwork, checkpoint, context);
+			if(phase == NetworkPhase.INITIAL) {
+				log.info("Found " + spanningTrees.size() + " valid tree(s)");
+			}
+			if(spanningTrees.size() > 0 || phase == NetworkPhase.COMPLETE) break;
+			
+			if(phase == NetworkPhase.ADJUSTED && constrNetwork.numNodes == prevNumNodes) {
+				constrNetwork = new PHYNetwork(groups, db.getNumSamples(), getCompleteNetworkContext(context));
+				phase = NetworkPhase.COMPLETE;
+			} else {
+				if(phase == NetworkPhase.INITIAL) {
+					log.info("Adjusting the network...");
+				}
+				prevNumNodes = constrNetwork.numNodes;
 				constrNetwork = constrNetwork.fixNetwork();
-				spanningTrees = constrNetwork.getLineageTrees();  
-				delta = numNodes - constrNetwork.numNodes; 
-			} while((delta != 0) && (spanningTrees.size() <= 0));
-			if(spanningTrees.size() <= 0) {
-				Parameters.ALL_EDGES = true;
-				constrNetwork = new PHYNetwork(groups, db.getNumSamples());
-				spanningTrees = constrNetwork.getLineageTrees();
-			}	
-			logger.info("Found " + spanningTrees.size() + " valid trees after network adjustments");	
+				phase = NetworkPhase.ADJUSTED;
+			}
+			if(checkpoint != null) {
+				checkpoint.saveNetwork(constrNetwork, phase, prevNumNodes, context.getFilterAudit());
+			}
+		}
+		if(phase != NetworkPhase.INITIAL) {
+			log.info("Found " + spanningTrees.size() + " valid trees after network adjustments");
 		}
+		context.checkCancelled();
 		
-		// 6. evaluate/rank the trees
+		// 6. evaluate/rank the trees (or restore the rank saved to the checkpoint)
+		if(checkpoint != null && checkpoint.hasStage(Stage.RANK)) {
+			checkpoint.restoreRanking(spanningTrees);
+		} else {
+			ArrayList<PHYTree> searchOrder = (checkpoint != null) ? new ArrayList<PHYTree>(spanningTrees) : null;
+			if(spanningTrees.size() > 0) {
+				constrNetwork.evaluateLineageTrees();
+			}
+			context.checkCancelled();
+			if(checkpoint != null) {
+				checkpoint.saveRanking(searchOrder, spanningTrees);
+			}
+		}
 		if(spanningTrees.size() > 0) {
-			constrNetwork.evaluateLineageTrees();
-			logger.fine("Top tree\nError score: " + spanningTrees.get(0).getErrorScore());	
-			logger.fine(spanningTrees.get(0).toString());
+			log.fine("Top tree\nError score: " + spanningTrees.get(0).getErrorScore());	
+			log.fine(spanningTrees.get(0).toString());
 		} 
+		context.checkCancelled();
 		
 		// 7. result visualization
 		if(args.showNetwork) {
@@ -151,9 +336,69 @@ public class LineageEngine {
 			}
 			// 8. persistent storage	
 			if(args.numSave > 0) {
-				writeTreesToTxtFile(constrNetwork, spanningTrees, db.getSampleNames(), args);
+				if(args.outputFileName != null) {
+					writeTreesToTxtFile(constrNetwork, spanningTrees, db.getSampleNames(), args);
+				}
+				if(args.outputJSONFileName != null) {
+					writeTreesToJSONFile(constrNetwork, spanningTrees, db.getSampleNames(), args);
+				}
+				if(args.outputTreeSetFileName != null) {
+					writeTreesToTreeSetFile(constrNetwork, spanningTrees, db.getSampleNames(), args);
+				}
 			}	
 		} 
+		if(checkpoint != null) {
+			checkpoint.saveOutput();
+		}
+		Results results = new Results();
+		results.network = constrNetwork;
+		results.trees = spanningTrees;
+		results.sampleNames = db.getSampleNames();
+		return results;
+	}
+	
+	/**
+	 * Finds the lineage trees of the network, 
+	 * resuming the search state restored from the checkpoint (if any)
+	 * and saving the trees found to the checkpoint (if not null)
+	 */
+	private static ArrayList<PHYTree> searchLineageTrees(PHYNetwork net, LineageCheckpoint checkpoint, LineageContext context) {
+		if(checkpoint == null) {
+			return net.getLineageTrees();
+		}
+		net.setCheckpoint(checkpoint);
+		ArrayList<PHYTree> trees;
+		if(checkpoint.hasSearchState()) {
+			boolean complete = checkpoint.restoreSearch(net);
+			trees = net.resumeLineageTrees();
+			if(complete) {
+				return trees;
+			}
+		} else {
+			trees = net.getLineageTrees();
+		}
+		// the search of a cancelled run is not complete
+		context.checkCancelled();
+		checkpoint.saveSearch(net);
+		return trees;
+	}
+	
+	/** Returns the context of the complete network (all the possible edges) of the run */
+	private static LineageContext getCompleteNetworkContext(LineageContext context) {
+		Parameters.Builder completeNetwork = new Parameters.Builder(context.getParameters());
+		completeNetwork.ALL_EDGES = true;
+		return context.withParameters(completeNetwork.build());
+	}
+	
+	/** Logs the filtered SNV summary and closes the filter audit file */
+	private static void closeFilterAudit(Args args, LineageContext context) {
+		FilterAudit audit = context.getFilterAudit();
+		context.getLogger().info(audit.getSummary());
+		try {
+			audit.close();
+		} catch (IOException e) {
+			throw new LineageException("Failed to write to the file: " + args.filterLogFileName, e);
+		}
 	}
 	
 	///// I/O /////
@@ -161,30 +406,40 @@ public class LineageEngine {
 	private static void writeTreesToTxtFile(PHYNetwork net, ArrayList<PHYTree> trees, ArrayList<String> sampleNames, Args args) {
 		String treeFileName = args.outputFileName;
 		try {
-			FileWriter fw = new FileWriter(treeFileName);
-			fw.write("Nodes:\n" + net.getNodesWithMembersAsString() + "\n");
-			for(int i = 0; i < args.numSave; i++) {
-				if(trees.size() > i) {
-					fw.write("****Tree " + i + "****\n");
-					String edges = trees.get(i).toString();
-					fw.write(edges);
-					fw.write("Error score: " + trees.get(i).getErrorScore()+"\n\n");	
-					fw.write("Sample decomposition: \n");
-					String lineage = "";
-					for(int j = 0; j < sampleNames.size(); j++) {
-						lineage += trees.get(i).getLineage(j, sampleNames.get(j));
-						lineage += "\n";
-					}
-					fw.write(lineage);
-					fw.write("\n");
-				}
+			// the trees are streamed to the file in rank order
+			TreeFileWriter w = new TreeFileWriter(treeFileName);
+			w.writeNodes(net);
+			for(int i = 0; i < args.numSave && i < trees.size(); i++) {
+				w.writeTree(i, trees.get(i), sampleNames);
 			}
-			fw.write("SNV info:\n" + net.getNodeMembersOnlyAsString() + "\n");
-			fw.close();
+			w.writeSNVInfo(net);
+			w.close();
 		} catch (IOException e) {
-			e.printStackTrace();
-			System.err.println("Failed to write to the file: " + treeFileName);
-			System.exit(-1);
+			throw new LineageException("Failed to write to the file: " + treeFileName, e);
+		}
+	}
+	
+	private static void writeTreesToJSONFile(PHYNetwork net, ArrayList<PHYTree> trees, ArrayList<String> sampleNames, Args args) {
+		String treeFileName = args.outputJSONFileName;
+		try {
+			TreeJSONWriter w = new TreeJSONWriter(treeFileName);
+			w.writeHeader(net, sampleNames);
+			for(int i = 0; i < args.numSave && i < trees.size(); i++) {
+				w.writeTree(trees.get(i), sampleNames);
+			}
+			w.writeSNVs();
+			w.close();
+		} catch (IOException e) {
+			throw new LineageException("Failed to write to the file: " + treeFileName, e);
+		}
+	}
+	
+	private static void writeTreesToTreeSetFile(PHYNetwork net, ArrayList<PHYTree> trees, ArrayList<String> sampleNames, Args args) {
+		String treeFileName = args.outputTreeSetFileName;
+		try {
+			TreeSetFile.write(treeFileName, net, trees, args.numSave, sampleNames);
+		} catch (IOException e) {
+			throw new LineageException("Failed to write to the file: " + treeFileName, e);
 		}
 	}
 	
@@ -195,33 +450,50 @@ public class LineageEngine {
 			fw.write(dotTree);
 			fw.close();
 		} catch (IOException e) {
-			e.printStackTrace();
-			System.err.println("Failed to write to the file: " + treeFileName);
-			System.exit(-1);
+			throw new LineageException("Failed to write to the file: " + treeFileName, e);
 		}
 	}
 	
 	// ---- LAUNCH ----
 	
 	private static final String TREES_TXT_FILE_EXTENSION = ".trees.txt";
+	private static final String SNV_CACHE_FILE_EXTENSION = ".snvcache";
+	/** Maximum error score difference of the QP solvers on the same QP (-compareQP) */
+	private static final double QP_COMPARISON_TOLERANCE = 1e-6;
 	public static void main(String[] args) {
 		Options options = new Options(); 
 		// Commands
 		options.addOption("build", false, "Construct the sample lineage trees");
+		options.addOption("convert", false, "Convert the input file into a binary SNV cache file that can be used as the input file of subsequent runs (saved by default to: input file with suffix " + SNV_CACHE_FILE_EXTENSION + ")");
+		options.addOption("batch", true, "Cohort manifest file path: one patient per line, patient id followed by the options of its run (options given on the command line apply to all the patients); the patients are processed concurrently and a summary is saved to the -o path (default: manifest file with suffix " + CohortBatch.SUMMARY_FILE_EXTENSION + ")");
+		options.addOption("server", false, "Run as a local lineage service: build jobs are submitted over HTTP on the -port port of the loopback interface and their results are returned in JSON format (see LineageServer)");
+		options.addOption("compareQP", true, "Check the projection solver of the QP consistency check against the general QP solver: the QPs of all the trees of the run are solved in each sample by both solvers, with the node VAFs and with the given number of random perturbations of the VAFs (e.g. 1); the QPs on which the solvers disagree are reported (exit status 1 if any)");
+		options.addOption("sweep", true, "Parameter grid of a sweep over the options of the run, e.g. \"maxClusterDist=0.1,0.2;e=0.05,0.1;minClusterSize=1,2\" (flags take the values on/off): the pipeline stages are shared by the grid points where possible and a comparison table of the top trees is saved to the -o path (default: input file with suffix " + ParameterSweep.SWEEP_FILE_EXTENSION + ")");
 		
 		// Input/Output/Display
-		options.addOption("i", true, "Input file path [required]");
-		options.addOption("o", true, "Output file path (default: input file with suffix .trees.txt)");
+		options.addOption("i", true, "Input file path, plain or gzip/BGZF-compressed [required]");
+		options.addOption("o", true, "Output file path (default: input file with suffix .trees.txt, or " + SNV_CACHE_FILE_EXTENSION + " with -convert)");
 		options.addOption("cp", false, "Input data represents cell prevalaence (CP) values");
 		options.addOption("sampleProfile", false, "Input file contains the SSNV sample presence-absence profile (this will disable the default SSNV calling step)");
+		options.addOption("vcf", false, "Input file is a multi-sample VCF file, plain or gzip/BGZF-compressed (VAFs are computed from the sample AD/DP or AF fields of PASS SNV records)");
 		options.addOption("n", "normal", true, "Normal sample column id in the list of samples, 0-based (e.g 0 is the first column) [required without -sampleProfile]");
 		options.addOption("clustersFile", true, "SSNV clusters file path");
+		options.addOption("cnvFile", true, "CNV regions file path used to annotate the SSNVs (chr, start, end, ploidy or chr, ploidy per line)");
+		options.addOption("annFile", true, "ANNOVAR function file path used to annotate the SSNVs (one line per somatic SSNV)");
+		options.addOption("cosmicFile", true, "COSMIC file path used to annotate the SSNVs (id, info, chr, position per line)");
+		options.addOption("tcgaFile", true, "TCGA file path used to annotate the SSNVs (chr, position per line)");
 		options.addOption("s", "save", true, "Maximum number of output trees to save (default: 1)");
 		options.addOption("showNetwork", "net", false, "Display the constraint network");
 		options.addOption("showTree", "tree", true, "Number of top-ranking trees to display (default: 0)");
 		options.addOption("color", false, "Enable lineage tree visualization in color mode");
 		options.addOption("dot", false, "Enable DOT file export of the top-scoring tree for Graphviz visualization (saved by default to: input file with suffix .dot)");
 		options.addOption("dotFile", true, "DOT file path");
+		options.addOption("jsonFile", true, "File path to export the saved trees in JSON format (nodes, trees as parent arrays, error scores, sample decompositions and SNV info)");
+		options.addOption("treeSetFile", true, "File path to export the saved trees in a compact binary format (node table and parent array per tree)");
+		options.addOption("filterLog", true, "File path to save the ids and filter reasons of the filtered SSNVs (only a summary is printed otherwise)");
+		options.addOption("checkpoint", true, "Checkpoint file path: the output of each pipeline stage and periodic snapshots of the tree search are saved to this file");
+		options.addOption("resume", false, "Resume the run from the last stage saved to the -checkpoint file with the same input and parameters (the run starts from the beginning if the file does not exist)");
+		options.addOption("checkpointInterval", true, "Minimum time (seconds) between two tree search snapshots saved to the checkpoint file (default: " + LineageCheckpoint.DEFAULT_SNAPSHOT_INTERVAL + ")");
 	
 		// SSNV filtering / calling
 		options.addOption("maxVAFAbsent", "absent", true, "Maximum VAF to robustly consider an SSNV as absent from a sample [required without -sampleProfile]");
@@ -237,6 +509,13 @@ public class LineageEngine {
 		options.addOption("c", "completeNetwork", false, "Add all possible edges to the constraint network (default: private nodes are connected only to closest level parents; only nodes with no other parents are descendants of root)");
 		options.addOption("e", true, "VAF error margin (default: 0.1)");
 		options.addOption("nTreeQPCheck", true, "Number of top-ranking trees on which the QP consistency check is run, we have not seen this check fail in practice (default: 0, for best performance)");
+		options.addOption("projectionQP", false, "Solve the QP consistency check with the closed-form per-parent projection solver instead of the general QP solver");
+		options.addOption("rankByQP", false, "Run the QP consistency check on all the trees and rank them by its error score (trees that fail the check are ranked last)");
+		
+		// Batch / Server
+		options.addOption("batchThreads", true, "Maximum number of patients (batch mode), jobs (server mode) or grid points (sweep mode) processed concurrently (default: number of processors)");
+		options.addOption("batchMemory", true, "Memory budget (MB) shared by the tree searches of the patients, jobs or grid points processed concurrently in batch, server or sweep mode (default: 3/4 of the maximum heap size)");
+		options.addOption("port", true, "Port of the lineage service in server mode (default: " + LineageServer.DEFAULT_PORT + ")");
 		
 		options.addOption("v", "verbose", false, "Verbose mode");
 		options.addOption("h", "help", false, "Print usage");
@@ -244,19 +523,35 @@ public class LineageEngine {
 		// display order
 		ArrayList<Option> optionsList = new ArrayList<Option>();
 		optionsList.add(options.getOption("build"));
+		optionsList.add(options.getOption("convert"));
+		optionsList.add(options.getOption("batch"));
+		optionsList.add(options.getOption("server"));
+		optionsList.add(options.getOption("sweep"));
+		optionsList.add(options.getOption("compareQP"));
 
 		optionsList.add(options.getOption("i"));
 		optionsList.add(options.getOption("o"));
 		optionsList.add(options.getOption("cp"));
 		optionsList.add(options.getOption("sampleProfile"));
+		optionsList.add(options.getOption("vcf"));
 		optionsList.add(options.getOption("n"));
 		optionsList.add(options.getOption("clustersFile"));
+		optionsList.add(options.getOption("cnvFile"));
+		optionsList.add(options.getOption("annFile"));
+		optionsList.add(options.getOption("cosmicFile"));
+		optionsList.add(options.getOption("tcgaFile"));
 		optionsList.add(options.getOption("s"));
 		optionsList.add(options.getOption("net"));
 		optionsList.add(options.getOption("tree"));
 		optionsList.add(options.getOption("color"));
 		optionsList.add(options.getOption("dot"));
 		optionsList.add(options.getOption("dotFile"));
+		optionsList.add(options.getOption("jsonFile"));
+		optionsList.add(options.getOption("treeSetFile"));
+		optionsList.add(options.getOption("filterLog"));
+		optionsList.add(options.getOption("checkpoint"));
+		optionsList.add(options.getOption("resume"));
+		optionsList.add(options.getOption("checkpointInterval"));
 		optionsList.add(options.getOption("maxVAFAbsent"));
 		optionsList.add(options.getOption("minVAFPresent"));
 		optionsList.add(options.getOption("maxVAFValid"));
@@ -268,6 +563,11 @@ public class LineageEngine {
 		optionsList.add(options.getOption("c"));
 		optionsList.add(options.getOption("e"));
 		optionsList.add(options.getOption("nTreeQPCheck"));
+		optionsList.add(options.getOption("projectionQP"));
+		optionsList.add(options.getOption("rankByQP"));
+		optionsList.add(options.getOption("batchThreads"));
+		optionsList.add(options.getOption("batchMemory"));
+		optionsList.add(options.getOption("port"));
 		optionsList.add(options.getOption("v"));
 		optionsList.add(options.getOption("h"));
 		
@@ -283,14 +583,78 @@ public class LineageEngine {
 			System.exit(-1);
 		}
 		
-		// Set-up input args
+		if(cmdLine.hasOption("batch")) {
+			setUpLogger(cmdLine.hasOption("v"));
+			CohortBatch.run(cmdLine, options, hf);
+			return;
+		}
+		if(cmdLine.hasOption("server")) {
+			setUpLogger(cmdLine.hasOption("v"));
+			LineageServer.run(cmdLine, options, hf);
+			return;
+		}
+		if(cmdLine.hasOption("sweep")) {
+			setUpLogger(cmdLine.hasOption("v"));
+			ParameterSweep.run(cmdLine, options, hf);
+			return;
+		}
+		
+		Args params = null;
+		try {
+			params = parseArgs(cmdLine);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			hf.printHelp("lichee", options);
+			System.exit(-1);
+		}
+		if(cmdLine.hasOption("h")) {
+			new HelpFormatter().printHelp(" ", options);
+		}
+		setUpLogger(cmdLine.hasOption("v"));
+		
+		try {
+			if(cmdLine.hasOption("convert")) {
+				String cacheFileName = cmdLine.hasOption("o") ? cmdLine.getOptionValue("o") : params.inputFileName + SNV_CACHE_FILE_EXTENSION;
+				SNVDataStore.convertToCacheFile(params.inputFileName, cacheFileName, new LineageContext(params.parameters, logger));
+				return;
+			}
+			
+			if(params.numQPComparisonPerturbations >= 0) {
+				params.outputFileName = null;
+				Results results = buildLineage(params, new LineageContext(params.parameters, logger));
+				if(results.network != null && results.network.compareConsistencySolvers(results.trees, params.numQPComparisonPerturbations, 1, QP_COMPARISON_TOLERANCE) > 0) {
+					System.exit(1);
+				}
+				return;
+			}
+			
+			if(cmdLine.hasOption("build")) {
+				buildLineage(params);
+				
+			} else {
+				new HelpFormatter().printHelp("lichee", options);
+				System.exit(-1);
+			}
+		} catch (InputFormatException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (LineageException e) {
+			e.printStackTrace();
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Sets up the run arguments from the command line
+	 * @throws IllegalArgumentException if a required option is missing or an option value is not valid
+	 */
+	protected static Args parseArgs(CommandLine cmdLine) {
 		Args params = new Args();	
 		if(cmdLine.hasOption("i")) {
 			params.inputFileName = cmdLine.getOptionValue("i");
 		} else {
-			System.out.println("Required parameter: input file path [-i]");
-			hf.printHelp("lichee", options);
-			System.exit(-1);
+			throw new IllegalArgumentException("Required parameter: input file path [-i]");
 		}
 		if(cmdLine.hasOption("o")) {
 			params.outputFileName = cmdLine.getOptionValue("o");	
@@ -303,20 +667,72 @@ public class LineageEngine {
 		if(cmdLine.hasOption("dotFile")) {
 			params.outputDOTFileName = cmdLine.getOptionValue("dotFile");	
 		}
+		if(cmdLine.hasOption("jsonFile")) {
+			params.outputJSONFileName = cmdLine.getOptionValue("jsonFile");	
+		}
+		if(cmdLine.hasOption("treeSetFile")) {
+			params.outputTreeSetFileName = cmdLine.getOptionValue("treeSetFile");	
+		}
+		if(cmdLine.hasOption("filterLog")) {
+			params.filterLogFileName = cmdLine.getOptionValue("filterLog");	
+		}
+		if(cmdLine.hasOption("checkpoint")) {
+			params.checkpointFileName = cmdLine.getOptionValue("checkpoint");	
+		}
+		if(cmdLine.hasOption("resume")) {
+			if(params.checkpointFileName == null) {
+				throw new IllegalArgumentException("The -resume option requires a checkpoint file [-checkpoint]");
+			}
+			params.resume = true;
+		}
+		if(cmdLine.hasOption("checkpointInterval")) {
+			params.checkpointInterval = Integer.parseInt(cmdLine.getOptionValue("checkpointInterval"));	
+		}
+		if(cmdLine.hasOption("compareQP")) {
+			String value = cmdLine.getOptionValue("compareQP");
+			try {
+				params.numQPComparisonPerturbations = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				params.numQPComparisonPerturbations = -1;
+			}
+			if(params.numQPComparisonPerturbations < 0) {
+				throw new IllegalArgumentException("The -compareQP option requires a non-negative number of perturbations: " + value);
+			}
+		}
 		
 		if(cmdLine.hasOption("clustersFile")) {
 			params.clustersFileName = cmdLine.getOptionValue("clustersFile");
 		}
+		if(cmdLine.hasOption("cnvFile")) {
+			params.cnvFileName = cmdLine.getOptionValue("cnvFile");
+		}
+		if(cmdLine.hasOption("annFile")) {
+			params.annFileName = cmdLine.getOptionValue("annFile");
+		}
+		if(cmdLine.hasOption("cosmicFile")) {
+			params.cosmicFileName = cmdLine.getOptionValue("cosmicFile");
+		}
+		if(cmdLine.hasOption("tcgaFile")) {
+			params.tcgaFileName = cmdLine.getOptionValue("tcgaFile");
+		}
+		Parameters.Builder config = new Parameters.Builder();
 		if(cmdLine.hasOption("sampleProfile")) {
-			Parameters.INPUT_FORMAT = Format.SNV_WITH_PROFILE;
+			config.INPUT_FORMAT = Format.SNV_WITH_PROFILE;
 		}
+		if(cmdLine.hasOption("vcf")) {
+			if(cmdLine.hasOption("sampleProfile")) {
+				throw new IllegalArgumentException("The -vcf and -sampleProfile options cannot be used together");
+			}
+			config.INPUT_FORMAT = Format.VCF;
+		}
+		
+		// no filtering parameters are required for the conversion
+		boolean convert = cmdLine.hasOption("convert");
 		
 		if(cmdLine.hasOption("n")) {
 			params.normalSampleId = Integer.parseInt(cmdLine.getOptionValue("n"));
-		} else if(!cmdLine.hasOption("sampleProfile")) {
-			System.out.println("Required parameter: normal sample id [-n]");
-			hf.printHelp("lichee", options);
-			System.exit(-1);
+		} else if(!convert && !cmdLine.hasOption("sampleProfile")) {
+			throw new IllegalArgumentException("Required parameter: normal sample id [-n]");
 		}	
 		if(cmdLine.hasOption("showTree")) {
 			params.numShow = Integer.parseInt(cmdLine.getOptionValue("showTree"));
@@ -332,81 +748,95 @@ public class LineageEngine {
 		}
 		
 		if(cmdLine.hasOption("maxVAFAbsent")) {
-			Parameters.MAX_VAF_ABSENT = Double.parseDouble(cmdLine.getOptionValue("maxVAFAbsent"));
-		} else if(!cmdLine.hasOption("sampleProfile")) {
-			System.out.println("Required parameter: -maxVAFAbsent");
-			hf.printHelp("lichee", options);
-			System.exit(-1);
+			config.MAX_VAF_ABSENT = Double.parseDouble(cmdLine.getOptionValue("maxVAFAbsent"));
+		} else if(!convert && !cmdLine.hasOption("sampleProfile")) {
+			throw new IllegalArgumentException("Required parameter: -maxVAFAbsent");
 		}
 		if(cmdLine.hasOption("minVAFPresent")) {
-			Parameters.MIN_VAF_PRESENT = Double.parseDouble(cmdLine.getOptionValue("minVAFPresent"));
-		} else if(!cmdLine.hasOption("sampleProfile")) {
-			System.out.println("Required parameter: -minVAFPresent");
-			hf.printHelp("lichee", options);
-			System.exit(-1);
+			config.MIN_VAF_PRESENT = Double.parseDouble(cmdLine.getOptionValue("minVAFPresent"));
+		} else if(!convert && !cmdLine.hasOption("sampleProfile")) {
+			throw new IllegalArgumentException("Required parameter: -minVAFPresent");
 		}
 		if(cmdLine.hasOption("maxVAFValid")) {
-			Parameters.MAX_ALLOWED_VAF = Double.parseDouble(cmdLine.getOptionValue("maxVAFValid"));
+			config.MAX_ALLOWED_VAF = Double.parseDouble(cmdLine.getOptionValue("maxVAFValid"));
 		}
 		if(cmdLine.hasOption("minProfileSupport")) {
-			Parameters.MIN_GROUP_PROFILE_SUPPORT = Integer.parseInt(cmdLine.getOptionValue("minProfileSupport"));
+			config.MIN_GROUP_PROFILE_SUPPORT = Integer.parseInt(cmdLine.getOptionValue("minProfileSupport"));
 		}
 		if(cmdLine.hasOption("minClusterSize")) {
-			Parameters.MIN_CLUSTER_SIZE = Integer.parseInt(cmdLine.getOptionValue("minClusterSize"));
+			config.MIN_CLUSTER_SIZE = Integer.parseInt(cmdLine.getOptionValue("minClusterSize"));
 		}
 		if(cmdLine.hasOption("minPrivateClusterSize")) {
-			Parameters.MIN_PRIVATE_CLUSTER_SIZE = Integer.parseInt(cmdLine.getOptionValue("minPrivateClusterSize"));
+			config.MIN_PRIVATE_CLUSTER_SIZE = Integer.parseInt(cmdLine.getOptionValue("minPrivateClusterSize"));
 		}
 		if(cmdLine.hasOption("minRobustNodeSupport")) {
-			Parameters.MIN_ROBUST_CLUSTER_SUPPORT = Integer.parseInt(cmdLine.getOptionValue("minRobustNodeSupport"));
+			config.MIN_ROBUST_CLUSTER_SUPPORT = Integer.parseInt(cmdLine.getOptionValue("minRobustNodeSupport"));
 		}
 		if(cmdLine.hasOption("maxClusterDist")) {
-			Parameters.MAX_COLLAPSE_CLUSTER_DIFF = Double.parseDouble(cmdLine.getOptionValue("maxClusterDist"));
+			config.MAX_COLLAPSE_CLUSTER_DIFF = Double.parseDouble(cmdLine.getOptionValue("maxClusterDist"));
 		}
 		if(cmdLine.hasOption("c")) {
-			Parameters.ALL_EDGES = true;
+			config.ALL_EDGES = true;
 		}
 		if(cmdLine.hasOption("cp")) {
-			Parameters.CP = true;
-			Parameters.VAF_MAX = 1.0;
-			Parameters.MAX_ALLOWED_VAF = 1.0;
+			config.CP = true;
+			config.VAF_MAX = 1.0;
+			config.MAX_ALLOWED_VAF = 1.0;
 		}
 		if(cmdLine.hasOption("e")) {
-			Parameters.VAF_ERROR_MARGIN = Double.parseDouble(cmdLine.getOptionValue("e"));
+			config.VAF_ERROR_MARGIN = Double.parseDouble(cmdLine.getOptionValue("e"));
 		}
 		if(cmdLine.hasOption("nTreeQPCheck")) {
-			Parameters.NUM_TREES_FOR_CONSISTENCY_CHECK = Integer.parseInt(cmdLine.getOptionValue("nTreeQPCheck"));
+			config.NUM_TREES_FOR_CONSISTENCY_CHECK = Integer.parseInt(cmdLine.getOptionValue("nTreeQPCheck"));
 		}
-		if(cmdLine.hasOption("h")) {
-			new HelpFormatter().printHelp(" ", options);
+		if(cmdLine.hasOption("projectionQP")) {
+			config.USE_PROJECTION_QP = true;
 		}
-		// logger
+		if(cmdLine.hasOption("rankByQP")) {
+			config.RANK_BY_QP = true;
+		}
+		params.parameters = config.build();
+		return params;
+	}
+	
+	private static void setUpLogger(boolean verbose) {
 		ConsoleHandler h = new ConsoleHandler();
 		h.setFormatter(new LogFormatter());
 		h.setLevel(Level.INFO);
 		logger.setLevel(Level.INFO);
-		if(cmdLine.hasOption("v")) {
+		if(verbose) {
 			h.setLevel(Level.FINEST);
 			logger.setLevel(Level.FINEST);
 		}
 		logger.addHandler(h);
 		logger.setUseParentHandlers(false);
-		
-		if(cmdLine.hasOption("build")) {
-			buildLineage(params);
-			
-		} else {
-			new HelpFormatter().printHelp("lichee", options);
-			System.exit(-1);
-		}
+	}
+	
+	/** Results of a pipeline run */
+	protected static class Results {
+		/** Constraint network of the trees (null if all the SNV groups have been filtered out) */
+		PHYNetwork network;
+		/** Valid lineage trees in rank order */
+		ArrayList<PHYTree> trees = new ArrayList<PHYTree>();
+		ArrayList<String> sampleNames;
 	}
 	
 	protected static class Args {
+		/** Run configuration */
+		Parameters parameters;
+		
 		// --- 'build' command ---
 		String inputFileName;
 		String outputFileName;
 		String outputDOTFileName;	
+		String outputJSONFileName;
+		String outputTreeSetFileName;
 		String clustersFileName;
+		String filterLogFileName;
+		String checkpointFileName;
+		int checkpointInterval = LineageCheckpoint.DEFAULT_SNAPSHOT_INTERVAL;
+		/** Number of VAF perturbations of the QP solver comparison (-1 if not requested) */
+		int numQPComparisonPerturbations = -1;
 		int normalSampleId = 0;
 		String cnvFileName;
 		String annFileName;
@@ -422,6 +852,7 @@ public class LineageEngine {
 		boolean showNetwork = false;
 		boolean verbose = false;
 		boolean color = false;
+		boolean resume = false;
 	}
 
 	protected static class LogFormatter extends Formatter {
@@ -0,0 +1,544 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+package lineage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.logging.StreamHandler;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import lineage.LineageEngine.Args;
+import lineage.LineageEngine.Results;
+
+/**
+ * Long-running lineage service (server mode).
+ * Build jobs are submitted over HTTP on the loopback interface and executed on a worker pool
+ * in the same (warmed-up) JVM; the loaded SNV data and the group clusters are cached across jobs 
+ * (see LineageCache), so repeated analyses of the same input with small parameter changes 
+ * only repeat the network construction and tree search.
+ * 
+ * Job options are given as query parameters named after the command-line options, 
+ * e.g. ?i=data/ccRCC/RK26.txt&n=0&maxVAFAbsent=0.005&minVAFPresent=0.005&s=3 (flags have no value).
+ * The input SNV table can be sent as the request body instead of the input file path (-i).
+ * Output files are only written if requested (-o, -jsonFile, -treeSetFile, -dot/-dotFile).
+ * 
+ * Requests:
+ *   POST /jobs                submits a job, returns its status
+ *   GET /jobs/[id]            returns the job status
+ *   GET /jobs/[id]/result     waits for the job to finish and returns its status and results
+ *   DELETE /jobs/[id]         cancels the job
+ *   POST /build               submits a job, waits for it to finish and returns its status and results
+ *   GET /status               returns the number of jobs and the cache statistics
+ * Responses are JSON objects:
+ *   job status: {"id", "status", "error", "numTrees", "errorScore", "filteredSNVs", "time", "log"}
+ *   job results: job status with the saved trees in the "results" field (TreeJSONWriter layout)
+ *   errors: {"error"}
+ * The results of a finished job are kept in JSON format only (the network and trees are released);
+ * the oldest finished jobs are removed when there are too many or when their results and logs are too large.
+ *
+ * @autor viq
+ */
+public class LineageServer {
+	
+	protected static final int DEFAULT_PORT = 8765;
+	/** Maximum number of finished jobs kept for status requests */
+	private static final int MAX_FINISHED_JOBS = 256;
+	/** Maximum size (bytes) of the results and logs of the finished jobs kept for status requests */
+	private static final long MAX_FINISHED_JOB_BYTES = 256L << 20;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	
+	private enum Status { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+	
+	private static class Job {
+		final int id;
+		final Args args;
+		final LineageContext context;
+		final ByteArrayOutputStream log;
+		final StreamHandler logHandler;
+		final CountDownLatch finished = new CountDownLatch(1);
+		Future<?> future;
+		
+		// set when the job finishes (before the final status)
+		/** Saved trees in JSON format (TreeJSONWriter layout) */
+		String results;
+		int numTrees;
+		double errorScore;
+		String error;
+		long numFilteredSNVs;
+		double runTime;
+		volatile Status status = Status.QUEUED;
+		
+		Job(int jobId, Args jobArgs, LineageContext jobContext, ByteArrayOutputStream jobLog, StreamHandler h) {
+			id = jobId;
+			args = jobArgs;
+			context = jobContext;
+			log = jobLog;
+			logHandler = h;
+		}
+		
+		boolean isFinished() {
+			return status == Status.DONE || status == Status.FAILED || status == Status.CANCELLED;
+		}
+		
+		/** Returns the approximate size (bytes) of the kept results and log */
+		long getSize() {
+			return (results != null ? 2L*results.length() : 0) + log.size();
+		}
+	}
+	
+	private final Options options;
+	private final ExecutorService workers;
+	private final int numJobThreads;
+	private final MemoryBudget budget;
+	private final LineageCache cache = new LineageCache(LineageCache.DEFAULT_CAPACITY);
+	/** Directory of the input tables sent in the requests */
+	private final File inputDir;
+	private final AtomicInteger jobCounter = new AtomicInteger();
+	/** Jobs by id in submission order */
+	private final LinkedHashMap<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+	
+	private LineageServer(Options cmdOptions, int poolSize, long memoryBudget, File tmpDir) {
+		options = cmdOptions;
+		workers = Executors.newFixedThreadPool(poolSize);
+		// the processors are divided among the concurrent jobs
+		numJobThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / poolSize);
+		budget = new MemoryBudget(memoryBudget);
+		inputDir = tmpDir;
+	}
+	
+	public static void run(CommandLine cmdLine, Options options, HelpFormatter hf) {
+		int port = DEFAULT_PORT;
+		if(cmdLine.hasOption("port")) {
+			port = Integer.parseInt(cmdLine.getOptionValue("port"));
+		}
+		int poolSize = Runtime.getRuntime().availableProcessors();
+		if(cmdLine.hasOption("batchThreads")) {
+			poolSize = Math.max(1, Integer.parseInt(cmdLine.getOptionValue("batchThreads")));
+		}
+		long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+		if(cmdLine.hasOption("batchMemory")) {
+			memoryBudget = Long.parseLong(cmdLine.getOptionValue("batchMemory")) << 20;
+		}
+		File tmpDir = new File(System.getProperty("java.io.tmpdir"), "lichee-server-" + port);
+		tmpDir.mkdirs();
+		
+		final LineageServer server = new LineageServer(options, poolSize, memoryBudget, tmpDir);
+		try {
+			HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			http.createContext("/", new HttpHandler() {
+				public void handle(HttpExchange ex) throws IOException {
+					server.handle(ex);
+				}
+			});
+			// requests waiting for results do not block the other requests
+			http.setExecutor(Executors.newCachedThreadPool());
+			http.start();
+		} catch (IOException e) {
+			System.err.println("Failed to start the lineage service on port " + port + ": " + e.getMessage());
+			System.exit(-1);
+		}
+		LineageEngine.logger.info("Lineage service listening on http://127.0.0.1:" + port + "/ (" + poolSize + " job thread(s), memory budget: " + server.budget.getCapacityMB() + " MB)");
+	}
+	
+	// ---- Requests ----
+	
+	private void handle(HttpExchange ex) throws IOException {
+		try {
+			String method = ex.getRequestMethod();
+			String[] path = ex.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+			if(path.length == 1 && path[0].equals("build") && method.equals("POST")) {
+				Job job = submit(ex);
+				job.finished.await();
+				respond(ex, 200, getResults(job));
+			} else if(path.length == 1 && path[0].equals("jobs") && method.equals("POST")) {
+				Job job = submit(ex);
+				respond(ex, 202, getStatus(job));
+			} else if(path.length == 1 && path[0].equals("status") && method.equals("GET")) {
+				respond(ex, 200, getServerStatus());
+			} else if(path.length >= 2 && path.length <= 3 && path[0].equals("jobs")) {
+				Job job = getJob(path[1]);
+				if(job == null) {
+					respond(ex, 404, getError("Unknown job: " + path[1]));
+				} else if(path.length == 3 && path[2].equals("result") && method.equals("GET")) {
+					job.finished.await();
+					respond(ex, 200, getResults(job));
+				} else if(path.length == 2 && method.equals("GET")) {
+					respond(ex, 200, getStatus(job));
+				} else if(path.length == 2 && method.equals("DELETE")) {
+					cancel(job);
+					respond(ex, 200, getStatus(job));
+				} else {
+					respond(ex, 404, getError("Unknown request: " + method + " " + ex.getRequestURI().getPath()));
+				}
+			} else {
+				respond(ex, 404, getError("Unknown request: " + method + " " + ex.getRequestURI().getPath()));
+			}
+		} catch (IllegalArgumentException e) {
+			respond(ex, 400, getError(e.getMessage()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			respond(ex, 503, getError("Interrupted"));
+		} catch (Exception e) {
+			// e.g. the input table cannot be saved
+			String error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+			LineageEngine.logger.warning("Request failed: " + error);
+			try {
+				respond(ex, 500, getError(error));
+			} catch (IOException e2) {
+				// the response was already started
+				ex.close();
+			}
+		}
+	}
+	
+	/**
+	 * Sets up a job from the request options and input table and queues it
+	 * @throws IllegalArgumentException if the job options are not valid
+	 */
+	private Job submit(HttpExchange ex) throws IOException {
+		ArrayList<String> jobArgs = getQueryOptions(ex.getRequestURI().getRawQuery());
+		byte[] input = readBody(ex.getRequestBody());
+		if(input.length > 0) {
+			if(jobArgs.contains("-i")) {
+				throw new IllegalArgumentException("Both an input file path (i) and an input table (request body) were given");
+			}
+			jobArgs.add("-i");
+			jobArgs.add(saveInputTable(input).getPath());
+		}
+		CommandLine cmdLine;
+		try {
+			cmdLine = new BasicParser().parse(options, jobArgs.toArray(new String[jobArgs.size()]));
+		} catch (ParseException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		Args args = LineageEngine.parseArgs(cmdLine);
+		// outputs are returned in the response, files are written only if requested
+		if(!cmdLine.hasOption("o")) {
+			args.outputFileName = null;
+		}
+		args.numShow = 0;
+		args.showNetwork = false;
+		Parameters.Builder config = new Parameters.Builder(args.parameters);
+		config.NUM_THREADS = numJobThreads;
+		args.parameters = config.build();
+		
+		// the job log is returned with its status
+		boolean verbose = cmdLine.hasOption("v");
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		StreamHandler h = new StreamHandler(log, new LineageEngine.LogFormatter());
+		h.setLevel(verbose ? Level.FINEST : Level.INFO);
+		Logger jobLogger = Logger.getAnonymousLogger();
+		jobLogger.setUseParentHandlers(false);
+		jobLogger.setLevel(verbose ? Level.FINEST : Level.INFO);
+		jobLogger.addHandler(h);
+		final Job job;
+		synchronized(jobs) {
+			int id = jobCounter.incrementAndGet();
+			job = new Job(id, args, new LineageContext(args.parameters, jobLogger, budget, cache), log, h);
+			jobs.put(id, job);
+			removeFinishedJobs();
+			job.future = workers.submit(new Runnable() {
+				public void run() {
+					runJob(job);
+				}
+			});
+		}
+		LineageEngine.logger.info("Job " + job.id + " submitted: " + args.inputFileName);
+		return job;
+	}
+	
+	private void runJob(Job job) {
+		synchronized(job) {
+			// a job cancelled while queued is already finished
+			if(job.status != Status.QUEUED) return;
+			job.status = Status.RUNNING;
+		}
+		long start = System.currentTimeMillis();
+		Status status;
+		try {
+			Results results = LineageEngine.buildLineage(job.args, job.context);
+			job.numTrees = results.trees.size();
+			if(job.numTrees > 0) {
+				job.errorScore = results.trees.get(0).getErrorScore();
+			}
+			job.results = getResultsJSON(job, results);
+			status = Status.DONE;
+		} catch (CancellationException e) {
+			status = Status.CANCELLED;
+		} catch (Throwable e) {
+			job.error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+			status = Status.FAILED;
+		}
+		job.runTime = (System.currentTimeMillis() - start) / 1000.0;
+		job.numFilteredSNVs = job.context.getFilterAudit().getTotalCount();
+		job.logHandler.flush();
+		job.status = status;
+		job.finished.countDown();
+		synchronized(jobs) {
+			removeFinishedJobs();
+		}
+		LineageEngine.logger.info("Job " + job.id + " " + status.toString().toLowerCase() + " in " + job.runTime + "s");
+	}
+	
+	/**
+	 * Cancels the job: a queued job is finished immediately, 
+	 * a running job is stopped at its next pipeline check (its final status is set by runJob)
+	 */
+	private void cancel(Job job) {
+		job.context.cancel();
+		synchronized(job) {
+			if(job.status != Status.QUEUED) return;
+			job.status = Status.CANCELLED;
+		}
+		job.future.cancel(false);
+		job.logHandler.flush();
+		job.finished.countDown();
+		synchronized(jobs) {
+			removeFinishedJobs();
+		}
+	}
+	
+	private Job getJob(String id) {
+		try {
+			synchronized(jobs) {
+				return jobs.get(Integer.parseInt(id));
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/** Keeps the most recent finished jobs only (within the count and size limits) */
+	private void removeFinishedJobs() {
+		int numFinished = 0;
+		long size = 0;
+		for(Job j : jobs.values()) {
+			if(j.isFinished()) {
+				numFinished++;
+				size += j.getSize();
+			}
+		}
+		Iterator<Job> it = jobs.values().iterator();
+		while((numFinished > MAX_FINISHED_JOBS || size > MAX_FINISHED_JOB_BYTES) && it.hasNext()) {
+			Job j = it.next();
+			if(j.isFinished()) {
+				it.remove();
+				numFinished--;
+				size -= j.getSize();
+			}
+		}
+	}
+	
+	/**
+	 * Converts the request query parameters into command-line arguments
+	 * @throws IllegalArgumentException for unknown options
+	 */
+	private ArrayList<String> getQueryOptions(String query) throws IOException {
+		ArrayList<String> args = new ArrayList<String>();
+		if(query == null) return args;
+		for(String param : query.split("&")) {
+			if(param.length() == 0) continue;
+			int sep = param.indexOf('=');
+			String name = URLDecoder.decode(sep < 0 ? param : param.substring(0, sep), "UTF-8");
+			Option o = options.getOption(name);
+			if(o == null || name.equals("batch") || name.equals("server") || name.equals("sweep") || name.equals("convert") || name.equals("compareQP")) {
+				throw new IllegalArgumentException("Unknown job option: " + name);
+			}
+			args.add("-" + name);
+			if(o.hasArg()) {
+				if(sep < 0) {
+					throw new IllegalArgumentException("Missing value of the job option: " + name);
+				}
+				args.add(URLDecoder.decode(param.substring(sep + 1), "UTF-8"));
+			}
+		}
+		return args;
+	}
+	
+	/**
+	 * Saves an input table sent in a request 
+	 * (identical tables are saved to the same file, so that their loaded data is cached)
+	 */
+	private File saveInputTable(byte[] input) throws IOException {
+		String digest;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			StringBuilder sb = new StringBuilder();
+			for(byte b : md.digest(input)) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			digest = sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		File f = new File(inputDir, "input-" + digest + ".txt");
+		synchronized(this) {
+			if(!f.exists()) {
+				File tmp = new File(inputDir, "input-" + digest + ".tmp");
+				FileOutputStream out = new FileOutputStream(tmp);
+				out.write(input);
+				out.close();
+				tmp.renameTo(f);
+				f.deleteOnExit();
+			}
+		}
+		return f;
+	}
+	
+	private static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buf = new byte[1 << 16];
+		int n;
+		while((n = in.read(buf)) > 0) {
+			body.write(buf, 0, n);
+		}
+		in.close();
+		return body.toByteArray();
+	}
+	
+	// ---- Responses ----
+	
+	private static void respond(HttpExchange ex, int code, String body) throws IOException {
+		byte[] bytes = body.getBytes(CHARSET);
+		ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		ex.sendResponseHeaders(code, bytes.length);
+		OutputStream out = ex.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+	
+	private static String getError(String message) throws IOException {
+		StringWriter out = new StringWriter();
+		out.write("{\"error\":");
+		TreeJSONWriter.writeString(out, message != null ? message : "");
+		out.write("}\n");
+		return out.toString();
+	}
+	
+	private static String getStatus(Job job) throws IOException {
+		StringWriter out = new StringWriter();
+		writeStatus(out, job);
+		out.write("}\n");
+		return out.toString();
+	}
+	
+	/** Returns the job status and results (the saved trees) */
+	private static String getResults(Job job) throws IOException {
+		StringWriter out = new StringWriter();
+		writeStatus(out, job);
+		out.write(",\n\"results\":");
+		out.write(job.status == Status.DONE ? job.results : "null");
+		out.write("}\n");
+		return out.toString();
+	}
+	
+	/** Returns the saved trees of the job results in JSON format */
+	private static String getResultsJSON(Job job, Results r) throws IOException {
+		if(r.network == null) {
+			return "null";
+		}
+		StringWriter out = new StringWriter();
+		TreeJSONWriter w = new TreeJSONWriter(out);
+		w.writeHeader(r.network, r.sampleNames);
+		for(int i = 0; i < job.args.numSave && i < r.trees.size(); i++) {
+			w.writeTree(r.trees.get(i), r.sampleNames);
+		}
+		w.writeSNVs();
+		return out.toString();
+	}
+	
+	/** Writes the job status fields (the object is left open) */
+	private static void writeStatus(Writer out, Job job) throws IOException {
+		Status status = job.status;
+		out.write("{\"id\":" + job.id + ",\"status\":");
+		TreeJSONWriter.writeString(out, status.toString());
+		if(status == Status.FAILED) {
+			out.write(",\"error\":");
+			TreeJSONWriter.writeString(out, job.error);
+		}
+		if(job.isFinished()) {
+			if(status == Status.DONE) {
+				out.write(",\"numTrees\":" + job.numTrees);
+				if(job.numTrees > 0) {
+					out.write(",\"errorScore\":" + job.errorScore);
+				}
+			}
+			out.write(",\"filteredSNVs\":" + job.numFilteredSNVs);
+			out.write(",\"time\":" + job.runTime);
+			out.write(",\"log\":");
+			TreeJSONWriter.writeString(out, new String(job.log.toByteArray(), CHARSET));
+		}
+	}
+	
+	private String getServerStatus() {
+		int numQueued = 0, numRunning = 0, numFinished = 0;
+		synchronized(jobs) {
+			for(Job j : jobs.values()) {
+				if(j.status == Status.QUEUED) numQueued++;
+				else if(j.status == Status.RUNNING) numRunning++;
+				else numFinished++;
+			}
+		}
+		return "{\"queued\":" + numQueued + ",\"running\":" + numRunning + ",\"finished\":" + numFinished 
+				+ ",\"cachedDataSets\":" + cache.getNumDataStores() + ",\"cacheHits\":" + cache.getNumHits() + ",\"cacheMisses\":" + cache.getNumMisses() + "}\n";
+	}
+}
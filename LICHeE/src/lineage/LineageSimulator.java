@@ -0,0 +1,364 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+package lineage;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Generator of synthetic multi-sample tumor data sets, run with:
+ * java -cp lichee.jar lineage.LineageSimulator [options]
+ * 
+ * Simulation model:
+ * - clonal tree: a founder clone (child of the normal cells) and its descendant clones,
+ *   with a path of the given depth below the founder and the other clones attached to random parents
+ *   (within the tree depth)
+ * - samples: each tumor sample is a mixture of normal cells (1 - purity) and of a few clones
+ *   with random proportions; each clone is present in at least one sample
+ * - SNVs: each clone carries a random number of SNVs (the founder carries a larger share), 
+ *   present in the cells of the clone and of its descendants; the expected VAF of an SNV 
+ *   is half of its cell prevalence in the sample (heterozygous, diploid)
+ * - sequencing noise: the read depth of each SNV in each sample is Poisson with the given mean coverage,
+ *   the variant reads are binomial with the expected VAF (plus the sequencing error rate)
+ * 
+ * The input file is saved in the SNVDataStore format (normal sample in column 0, 
+ * the description of each SNV is the id of its clone), and the true tree
+ * (clones, SNV counts, sample profiles and sample compositions) to the output file with suffix .truth.txt.
+ *
+ * @autor viq
+ */
+public class LineageSimulator {
+	
+	protected static final String TRUTH_FILE_EXTENSION = ".truth.txt";
+	
+	// configuration
+	protected int numSamples = 10;
+	protected int numSNVs = 1000;
+	/** Depth of the clonal tree below the founder clone */
+	protected int treeDepth = 3;
+	/** Number of clones (default: twice the tree depth) */
+	protected int numClones = 0;
+	protected int maxClonesPerSample = 3;
+	protected double coverage = 100;
+	protected double errorRate = 0.001;
+	protected double minPurity = 0.7;
+	protected long seed = 1;
+	
+	// simulated data
+	private Random rand;
+	/** Parent of each clone (clone 0 is the founder, its parent is -1) */
+	private int[] parents;
+	private int[] depths;
+	/** Proportion of each clone in each sample (samples x clones) */
+	private double[][] proportions;
+	private double[] purities;
+	/** Cell prevalence of the SNVs of each clone in each sample (samples x clones) */
+	private double[][] prevalences;
+	private int[] snvCounts;
+	
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption("o", true, "Output input file path [required] (the true tree is saved to the file with suffix " + TRUTH_FILE_EXTENSION + ")");
+		options.addOption("samples", true, "Number of tumor samples (default: 10)");
+		options.addOption("snvs", true, "Number of SNVs (default: 1000)");
+		options.addOption("depth", true, "Depth of the clonal tree below the founder clone (default: 3)");
+		options.addOption("clones", true, "Number of clones (default: twice the tree depth)");
+		options.addOption("clonesPerSample", true, "Maximum number of clones mixed in a sample (default: 3)");
+		options.addOption("coverage", true, "Mean read depth (default: 100)");
+		options.addOption("errorRate", true, "Sequencing error rate (default: 0.001)");
+		options.addOption("minPurity", true, "Minimum tumor purity of a sample (default: 0.7)");
+		options.addOption("seed", true, "Random seed (default: 1)");
+		options.addOption("h", "help", false, "Print usage");
+		
+		CommandLine cmdLine = null;
+		HelpFormatter hf = new HelpFormatter();
+		try {
+			cmdLine = new BasicParser().parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			hf.printHelp("lineage.LineageSimulator", options);
+			System.exit(-1);
+		}
+		if(cmdLine.hasOption("h") || !cmdLine.hasOption("o")) {
+			hf.printHelp("lineage.LineageSimulator", options);
+			System.exit(cmdLine.hasOption("h") ? 0 : -1);
+		}
+		
+		LineageSimulator sim = new LineageSimulator();
+		if(cmdLine.hasOption("samples")) {
+			sim.numSamples = Integer.parseInt(cmdLine.getOptionValue("samples"));
+		}
+		if(cmdLine.hasOption("snvs")) {
+			sim.numSNVs = Integer.parseInt(cmdLine.getOptionValue("snvs"));
+		}
+		if(cmdLine.hasOption("depth")) {
+			sim.treeDepth = Integer.parseInt(cmdLine.getOptionValue("depth"));
+		}
+		if(cmdLine.hasOption("clones")) {
+			sim.numClones = Integer.parseInt(cmdLine.getOptionValue("clones"));
+		}
+		if(cmdLine.hasOption("clonesPerSample")) {
+			sim.maxClonesPerSample = Integer.parseInt(cmdLine.getOptionValue("clonesPerSample"));
+		}
+		if(cmdLine.hasOption("coverage")) {
+			sim.coverage = Double.parseDouble(cmdLine.getOptionValue("coverage"));
+		}
+		if(cmdLine.hasOption("errorRate")) {
+			sim.errorRate = Double.parseDouble(cmdLine.getOptionValue("errorRate"));
+		}
+		if(cmdLine.hasOption("minPurity")) {
+			sim.minPurity = Double.parseDouble(cmdLine.getOptionValue("minPurity"));
+		}
+		if(cmdLine.hasOption("seed")) {
+			sim.seed = Long.parseLong(cmdLine.getOptionValue("seed"));
+		}
+		String inputFileName = cmdLine.getOptionValue("o");
+		try {
+			sim.write(inputFileName, inputFileName + TRUTH_FILE_EXTENSION);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.exit(-1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to write to the file: " + inputFileName);
+			System.exit(-1);
+		}
+		System.out.println("Saved " + sim.numSNVs + " SNVs of " + sim.parents.length + " clones in " + sim.numSamples + " samples to: " + inputFileName);
+	}
+	
+	/**
+	 * Simulates a data set and saves its input file and its true tree
+	 * @throws IllegalArgumentException if the configuration is not valid
+	 */
+	public void write(String inputFileName, String truthFileName) throws IOException {
+		simulate();
+		writeInputFile(inputFileName);
+		writeTruthFile(truthFileName);
+	}
+	
+	/** Simulates the clonal tree, the sample compositions and the SNV counts of the clones */
+	private void simulate() {
+		int n = (numClones > 0) ? numClones : Math.max(1, 2 * treeDepth);
+		if(numSamples < 1 || numSNVs < 1 || treeDepth < 0 || maxClonesPerSample < 1) {
+			throw new IllegalArgumentException("The number of samples, SNVs and clones per sample must be positive, the tree depth must not be negative");
+		}
+		if(n < treeDepth + 1) {
+			throw new IllegalArgumentException("The tree of depth " + treeDepth + " requires at least " + (treeDepth + 1) + " clones");
+		}
+		if(treeDepth == 0 && n > 1) {
+			throw new IllegalArgumentException("The tree of depth 0 has a single clone (the founder clone)");
+		}
+		rand = new Random(seed);
+		
+		// clonal tree: a path of the tree depth, then random parents
+		parents = new int[n];
+		depths = new int[n];
+		parents[0] = -1;
+		for(int c = 1; c < n; c++) {
+			if(c <= treeDepth) {
+				parents[c] = c - 1;
+			} else {
+				do {
+					parents[c] = rand.nextInt(c);
+				} while(depths[parents[c]] >= treeDepth);
+			}
+			depths[c] = depths[parents[c]] + 1;
+		}
+		
+		// sample compositions: each clone is present in at least one sample
+		proportions = new double[numSamples][n];
+		purities = new double[numSamples];
+		ArrayList<Integer> unassigned = new ArrayList<Integer>();
+		for(int c = 0; c < n; c++) {
+			unassigned.add(c);
+		}
+		for(int s = 0; s < numSamples; s++) {
+			int numMixed = 1 + rand.nextInt(maxClonesPerSample);
+			double sum = 0;
+			for(int k = 0; k < numMixed; k++) {
+				int c;
+				if(unassigned.size() > 0) {
+					c = unassigned.remove(rand.nextInt(unassigned.size()));
+				} else {
+					c = rand.nextInt(n);
+				}
+				// clone proportions are bounded away from 0 
+				double w = 0.2 + rand.nextDouble();
+				proportions[s][c] += w;
+				sum += w;
+			}
+			purities[s] = minPurity + rand.nextDouble() * (1 - minPurity);
+			for(int c = 0; c < n; c++) {
+				proportions[s][c] *= purities[s] / sum;
+			}
+		}
+		// the remaining clones are added to random samples
+		while(unassigned.size() > 0) {
+			int s = rand.nextInt(numSamples);
+			int c = unassigned.remove(0);
+			double w = purities[s] / (maxClonesPerSample + 1);
+			for(int c2 = 0; c2 < n; c2++) {
+				proportions[s][c2] *= (purities[s] - w) / purities[s];
+			}
+			proportions[s][c] += w;
+		}
+		
+		// cell prevalence of the SNVs of a clone: the proportions of the clone and its descendants
+		prevalences = new double[numSamples][n];
+		for(int s = 0; s < numSamples; s++) {
+			for(int c = 0; c < n; c++) {
+				for(int a = c; a != -1; a = parents[a]) {
+					prevalences[s][a] += proportions[s][c];
+				}
+			}
+		}
+		
+		// SNV counts: the founder has a larger share, every clone has at least one SNV
+		double[] weights = new double[n];
+		double sum = 0;
+		for(int c = 0; c < n; c++) {
+			weights[c] = (c == 0 ? 3 : 1) * (0.5 + rand.nextDouble());
+			sum += weights[c];
+		}
+		snvCounts = new int[n];
+		int total = 0;
+		for(int c = 0; c < n; c++) {
+			snvCounts[c] = Math.max(1, (int) (numSNVs * weights[c] / sum));
+			total += snvCounts[c];
+		}
+		snvCounts[0] += numSNVs - total;
+		if(snvCounts[0] < 1) {
+			throw new IllegalArgumentException("The number of SNVs must be at least the number of clones (" + n + ")");
+		}
+	}
+	
+	private void writeInputFile(String inputFileName) throws IOException {
+		DecimalFormat vafFormat = new DecimalFormat("0.#####");
+		BufferedWriter out = new BufferedWriter(new FileWriter(inputFileName), 1 << 16);
+		StringBuilder line = new StringBuilder("#Chrom\tPos\tDESC\tNormal");
+		for(int s = 0; s < numSamples; s++) {
+			line.append("\tS" + (s + 1));
+		}
+		out.write(line.toString());
+		out.newLine();
+		
+		int snvId = 0;
+		for(int c = 0; c < parents.length; c++) {
+			for(int i = 0; i < snvCounts[c]; i++) {
+				line.setLength(0);
+				line.append("chr" + (1 + snvId % 22) + "\t" + (1000 + snvId) + "\tclone" + (c + 1));
+				line.append("\t" + vafFormat.format(getObservedVAF(0)));
+				for(int s = 0; s < numSamples; s++) {
+					line.append("\t" + vafFormat.format(getObservedVAF(prevalences[s][c] / 2)));
+				}
+				out.write(line.toString());
+				out.newLine();
+				snvId++;
+			}
+		}
+		out.close();
+	}
+	
+	/**
+	 * Clones (id, parent id, depth, number of SNVs, sample profile),
+	 * then the composition of each sample (purity and clone proportions)
+	 */
+	private void writeTruthFile(String truthFileName) throws IOException {
+		DecimalFormat f = new DecimalFormat("0.####");
+		FileWriter fw = new FileWriter(truthFileName);
+		fw.write("#Clone\tParent\tDepth\tSNVs\tProfile\n");
+		for(int c = 0; c < parents.length; c++) {
+			StringBuilder profile = new StringBuilder("0");
+			for(int s = 0; s < numSamples; s++) {
+				profile.append(prevalences[s][c] > 0 ? "1" : "0");
+			}
+			fw.write((c + 1) + "\t" + (parents[c] + 1) + "\t" + depths[c] + "\t" + snvCounts[c] + "\t" + profile + "\n");
+		}
+		fw.write("#Sample\tPurity\tClone proportions\n");
+		for(int s = 0; s < numSamples; s++) {
+			fw.write("S" + (s + 1) + "\t" + f.format(purities[s]));
+			for(int c = 0; c < parents.length; c++) {
+				if(proportions[s][c] > 0) {
+					fw.write("\t" + (c + 1) + ":" + f.format(proportions[s][c]));
+				}
+			}
+			fw.write("\n");
+		}
+		fw.close();
+	}
+	
+	/** Returns the VAF observed with sequencing noise for the given expected VAF */
+	private double getObservedVAF(double vaf) {
+		int depth = Math.max(1, samplePoisson(coverage));
+		double p = vaf * (1 - errorRate) + (1 - vaf) * errorRate;
+		return (double) sampleBinomial(depth, p) / depth;
+	}
+	
+	private int samplePoisson(double mean) {
+		if(mean >= 30) { // normal approximation
+			return (int) Math.max(0, Math.round(mean + Math.sqrt(mean) * rand.nextGaussian()));
+		}
+		double l = Math.exp(-mean);
+		double p = 1;
+		int k = 0;
+		do {
+			k++;
+			p *= rand.nextDouble();
+		} while(p > l);
+		return k - 1;
+	}
+	
+	private int sampleBinomial(int n, double p) {
+		double mean = n * p;
+		if(mean < 30 && n * (1 - p) >= 30) {
+			return Math.min(n, samplePoisson(mean));
+		}
+		if(n * (1 - p) < 30 && mean >= 30) {
+			return n - Math.min(n, samplePoisson(n * (1 - p)));
+		}
+		if(mean >= 30) { // normal approximation
+			return (int) Math.min(n, Math.max(0, Math.round(mean + Math.sqrt(mean * (1 - p)) * rand.nextGaussian())));
+		}
+		int k = 0;
+		for(int i = 0; i < n; i++) {
+			if(rand.nextDouble() < p) k++;
+		}
+		return k;
+	}
+}
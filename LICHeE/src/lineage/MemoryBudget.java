@@ -0,0 +1,104 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+package lineage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Heap memory budget shared by concurrently executed lineage runs (batch mode).
+ * A run reserves the estimated footprint of its tree search before starting it
+ * and releases it once its trees are saved, so that several large searches
+ * are never executed at the same time.
+ * A reservation larger than the whole budget is reduced to the budget (the run is executed alone).
+ *
+ * @autor viq
+ */
+public class MemoryBudget {
+
+	private static final long MB = 1 << 20;
+	/** Estimated footprint of a spanning tree (node list, edge map) */
+	private static final long TREE_BYTES = 256;
+	/** Estimated footprint of a spanning tree node (node list entry, edge map entry and child list) */
+	private static final long TREE_NODE_BYTES = 160;
+
+	private final int capacityMB;
+	private final Semaphore available;
+
+	public MemoryBudget(long maxBytes) {
+		capacityMB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / MB));
+		// fair: reservations are granted in arrival order (large reservations are not starved)
+		available = new Semaphore(capacityMB, true);
+	}
+
+	/**
+	 * Blocks until the given number of bytes is available
+	 * @return reserved amount (MB) to be released
+	 */
+	public int reserve(long bytes) {
+		int mb = (int) Math.max(1, Math.min(capacityMB, (bytes + MB - 1) / MB));
+		available.acquireUninterruptibly(mb);
+		return mb;
+	}
+
+	public void release(int reservedMB) {
+		if(reservedMB > 0) {
+			available.release(reservedMB);
+		}
+	}
+
+	public int getCapacityMB() {
+		return capacityMB;
+	}
+
+	/**
+	 * Estimates the memory required to store the spanning trees of the network:
+	 * the number of trees is bounded by the product of the in-degrees of the non-root nodes
+	 * and by the maximum number of trees to generate
+	 */
+	public static long estimateTreeSearchBytes(PHYNetwork net, int maxNumTrees) {
+		HashMap<PHYNode, Integer> inDegree = new HashMap<PHYNode, Integer>();
+		for(PHYNode n : net.edges.keySet()) {
+			ArrayList<PHYNode> nbrs = net.edges.get(n);
+			if(nbrs == null) continue;
+			for(PHYNode n2 : nbrs) {
+				Integer d = inDegree.get(n2);
+				inDegree.put(n2, (d == null) ? 1 : d + 1);
+			}
+		}
+		double numTrees = 1;
+		for(int d : inDegree.values()) {
+			numTrees *= d;
+			if(numTrees >= maxNumTrees) break;
+		}
+		numTrees = Math.min(numTrees, maxNumTrees);
+		return (long) (numTrees * (TREE_BYTES + net.numNodes * TREE_NODE_BYTES));
+	}
+}
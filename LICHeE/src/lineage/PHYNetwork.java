@@ -29,14 +29,22 @@
 
 package lineage;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -84,14 +92,20 @@ public class PHYNetwork implements Serializable {
 	/** Total number of tissue samples */
 	public int numSamples;
 		
-	private static Logger logger = LineageEngine.logger;
+	/** Context of the run */
+	private transient LineageContext context;
+	private transient Parameters params;
+	private transient Logger logger;
 	
 	// ---- Network Construction ----
 	
 	/**
 	 * Constructs a PHYNetwork from the sub-populations of the SNV groups
 	 */
-	public PHYNetwork(ArrayList<SNVGroup> groups, int totalNumSamples) {
+	public PHYNetwork(ArrayList<SNVGroup> groups, int totalNumSamples, LineageContext runContext) {
+		context = runContext;
+		params = context.getParameters();
+		logger = context.getLogger();
 		numSamples = totalNumSamples;
 		numNodes = 0;
 		nodes = new HashMap<Integer, ArrayList<PHYNode>>();
@@ -99,7 +113,7 @@ public class PHYNetwork implements Serializable {
 		edges = new HashMap<PHYNode, ArrayList<PHYNode>>(); 
 	
 		// add root node
-		PHYNode root = new PHYNode(numSamples+1, numNodes);
+		PHYNode root = new PHYNode(numSamples+1, numNodes, params.VAF_MAX);
 		addNode(root, numSamples+1);
 				
 		// add group sub-population nodes
@@ -137,7 +151,7 @@ public class PHYNetwork implements Serializable {
 			}
 		}
 		
-		if(Parameters.ALL_EDGES) {
+		if(params.ALL_EDGES) {
 			addAllHiddenEdges();
 		}
 		
@@ -234,9 +248,9 @@ public class PHYNetwork implements Serializable {
 	/**
 	 * Returns the AAF error margin on the edge between the from and to nodes
 	 */
-	protected static double getAAFErrorMargin(PHYNode from, PHYNode to, int i) {
-		//if(Parameters.STATIC_ERROR_MARGIN) {
-			//return Parameters.AAF_ERROR_MARGIN;
+	protected double getAAFErrorMargin(PHYNode from, PHYNode to, int i) {
+		//if(params.STATIC_ERROR_MARGIN) {
+			//return params.AAF_ERROR_MARGIN;
 		//}
 		
 		double parentStdError;
@@ -244,22 +258,22 @@ public class PHYNetwork implements Serializable {
 		int parentSampleSize = 0;
 		int childSampleSize = 0;
 		if(from.isRoot()) {
-			parentStdError = Parameters.VAF_ERROR_MARGIN;
+			parentStdError = params.VAF_ERROR_MARGIN;
 		} else {
-			parentSampleSize = from.getCluster().getMembership().size();
+			parentSampleSize = from.getCluster().getSize();
 			parentStdError = 1.96*from.getStdDev(i)/Math.sqrt((double)parentSampleSize);
 		}	
 		if(to.isRoot()) {
-			childStdError = Parameters.VAF_ERROR_MARGIN;
+			childStdError = params.VAF_ERROR_MARGIN;
 		} else {
-			childSampleSize = to.getCluster().getMembership().size();
+			childSampleSize = to.getCluster().getSize();
 			childStdError = 1.96*to.getStdDev(i)/Math.sqrt((double)childSampleSize);
 		}
 		double standardError = parentStdError + childStdError;
-		if(standardError > Parameters.VAF_ERROR_MARGIN) {
+		if(standardError > params.VAF_ERROR_MARGIN) {
 			return standardError;
 		}
-		return Parameters.VAF_ERROR_MARGIN;
+		return params.VAF_ERROR_MARGIN;
 	}
 	
 	/** Adds a new node to the graph */
@@ -339,7 +353,7 @@ public class PHYNetwork implements Serializable {
 					if (toRemove == null) {
 						toRemove = c;
 						group = g;
-					} else if(c.getMembership().size() < toRemove.getMembership().size()) { // smallest
+					} else if(c.getSize() < toRemove.getSize()) { // smallest
 						toRemove = c;
 						group = g;
 					}
@@ -348,13 +362,20 @@ public class PHYNetwork implements Serializable {
 		}
 		if(toRemove != null) {
 			group.removeCluster(toRemove);
-			logger.log(Level.INFO, "Removed cluster " + toRemove.getId() + " of group " + group.getTag() + " of size " + toRemove.getMembership().size() + " with members: ");
-			for(Integer snv : toRemove.getMembership()) {
+			logger.log(Level.INFO, "Removed cluster " + toRemove.getId() + " of group " + group.getTag() + " of size " + toRemove.getSize());
+			boolean log = logger.isLoggable(Level.FINE);
+			if(log) {
+				logger.log(Level.FINE, "Removed cluster members: ");
+			}
+			for(int snv : toRemove.getMembership()) {
 				SNVEntry entry = group.getSNVs().get(snv);
-				logger.log(Level.INFO, entry.toString());
+				context.getFilterAudit().record(FilterAudit.Reason.NETWORK_ADJUSTMENT, entry);
+				if(log) {
+					logger.log(Level.FINE, entry.toString());
+				}
 			}
 		}
-		return new PHYNetwork(new ArrayList<SNVGroup>(filteredGroups), numSamples);
+		return new PHYNetwork(new ArrayList<SNVGroup>(filteredGroups), numSamples, context);
 	}
 	
 	/** 
@@ -367,12 +388,8 @@ public class PHYNetwork implements Serializable {
 		Cluster c2 = n2.getCluster();
 		
 		// collapse c1 and c2
-		Cluster union = new AAFClusterer().new Cluster(c1.getCentroid().clone(), new ArrayList<Integer>(c1.getMembership()), c1.getId());
-		union.setStdDev(c1.getStdDev());
-		for(Integer obs : c2.getMembership()) {
-			union.addMember(obs);
-		}
-		union.recomputeCentroidAndStdDev(g.alleleFreqBySample, g.getSNVs().size(), g.getNumSamples());
+		Cluster union = new AAFClusterer().new Cluster(c1);
+		union.merge(c2);
 		
 		SNVGroup newG = null;
 		Set<SNVGroup> groups = new HashSet<SNVGroup>();
@@ -385,8 +402,7 @@ public class PHYNetwork implements Serializable {
 					}
 				} else {
 					if(newG == null) {
-						newG = new SNVGroup(g.getTag(), g.getSNVs(), g.isRobust());
-						newG.subPopulations = g.subPopulations.clone();
+						newG = new SNVGroup(g);
 						newG.removeCluster(c1);
 						newG.removeCluster(c2);
 						newG.addCluster(union);
@@ -395,7 +411,7 @@ public class PHYNetwork implements Serializable {
 				}
 			}
 		}
-		return new PHYNetwork(new ArrayList<SNVGroup>(groups), numSamples);
+		return new PHYNetwork(new ArrayList<SNVGroup>(groups), numSamples, context);
 	}
 	
 	/** Removes a node and reconstructs the network */
@@ -407,7 +423,7 @@ public class PHYNetwork implements Serializable {
 			if(g != null) {
 				if(g.equals(node.getSNVGroup())) {
 					if(newG == null) {
-						newG = new SNVGroup(g.getTag(), g.getSNVs(), g.isRobust());
+						newG = new SNVGroup(g);
 						newG.setSubPopulations(g.subPopulations.clone());
 						newG.removeCluster(node.getCluster());
 						groups.add(newG);
@@ -419,7 +435,7 @@ public class PHYNetwork implements Serializable {
 				}
 			}
 		}
-		return new PHYNetwork(new ArrayList<SNVGroup>(groups), numSamples);
+		return new PHYNetwork(new ArrayList<SNVGroup>(groups), numSamples, context);
 	}
 	
 	// ---- Spanning PHYTree Generation ----
@@ -437,107 +453,165 @@ public class PHYNetwork implements Serializable {
 	
 	private transient int numGrowCalls = 0;
 	
+	/** Tree T grown by the search */
+	private transient PHYTree t;
+	
+	/** Frames of the grow calls in progress */
+	private transient ArrayList<GrowFrame> growStack;
+	
+	/** Checkpoint the search state snapshots are saved to (null if not saved) */
+	private transient LineageCheckpoint checkpoint;
+	
+	/** State of a grow call */
+	private static class GrowFrame {
+		/** List used to reconstruct the original F */
+		ArrayList<PHYEdge> ff = new ArrayList<PHYEdge>();
+		/** Bridge test result */
+		boolean b = false;
+		/** Tree edge of the nested grow call in progress (null if none) */
+		PHYEdge e;
+		/** Edges added to / removed from F for the nested grow call */
+		ArrayList<PHYEdge> edgesAdded;
+		ArrayList<PHYEdge> edgesRemoved;
+	}
+	
 	/**
-	 * Finds all spanning trees rooted at r
+	 * Starts a grow call on tree T
 	 */
-	public void grow(PHYTree t) {
+	private void enterGrow() {
 		numGrowCalls++;
 		// if the tree t contains all the nodes, it is complete
 		if(t.treeNodes.size() == numNodes) {
 			L = t;
 			spanningTrees.add(L.clone());
 		} else {
-			// list used to reconstruct the original F
-			ArrayList<PHYEdge> ff = new ArrayList<PHYEdge>();
-			
-			boolean b = false;
-			while(!b && (f.size() > 0)) {
-				// new tree edge
-				PHYEdge e = f.remove(f.size() - 1);
-				PHYNode v = e.to;
-				t.addNode(v);
-				t.addEdge(e.from, v);
+			growStack.add(new GrowFrame());
+		}
+	}
+	
+	/**
+	 * Finds all spanning trees rooted at r.
+	 * The recursive grow calls are run on an explicit stack of frames,
+	 * so that the search can be saved between two steps and resumed
+	 */
+	private void grow() {
+		int numSteps = 0;
+		while(growStack.size() > 0) {
+			GrowFrame frame = growStack.get(growStack.size() - 1);
+			if(frame.e != null) {
+				// the nested grow call has returned
+				if(spanningTrees.size() == params.MAX_NUM_TREES) {
+					return;
+				}
 				
-				//check if adding this node does not violate the constraint
-				if(t.checkConstraint(e.from)) {
-					// update f
-					ArrayList<PHYEdge> edgesAdded = new ArrayList<PHYEdge>();
-					ArrayList<PHYNode> vNbrs = edges.get(v);
-					if(vNbrs != null) {
-						for(PHYNode w : vNbrs) {
-							if(!t.containsNode(w)) {
-								PHYEdge vw = new PHYEdge(v, w);
-								f.add(vw);
-								edgesAdded.add(vw);
-							}
-						}
-					}
+				// pop
+				f.removeAll(frame.edgesAdded);
+			
+				// restore
+				f.addAll(frame.edgesRemoved);
 				
-					// remove (w,v) w in T from f
-					ArrayList<PHYEdge> edgesRemoved = new ArrayList<PHYEdge>();
-					for(int i = 0; i < f.size(); i++) {
-						PHYEdge wv = f.get(i);
-						if(t.containsNode(wv.from) && (wv.to.equals(v))) {
-							edgesRemoved.add(wv);
+				PHYEdge e = frame.e;
+				frame.e = null;
+				frame.edgesAdded = null;
+				frame.edgesRemoved = null;
+				removeTreeEdge(frame, e);
+				continue;
+			}
+			if(frame.b || f.size() == 0) {
+				// pop from ff, push to f, add to G
+				for(int i = frame.ff.size()-1; i >=0; i--) {
+					PHYEdge e = frame.ff.get(i);
+					f.add(e);
+					this.addEdge(e.from, e.to);
+				}
+				growStack.remove(growStack.size() - 1);
+				continue;
+			}
+			if(checkpoint != null && (++numSteps % 1024) == 0) {
+				checkpoint.saveSearchSnapshot(this);
+			}
+			
+			// new tree edge
+			PHYEdge e = f.remove(f.size() - 1);
+			PHYNode v = e.to;
+			t.addNode(v);
+			t.addEdge(e.from, v);
+			
+			//check if adding this node does not violate the constraint
+			if(t.checkConstraint(e.from, params.VAF_ERROR_MARGIN)) {
+				// update f
+				ArrayList<PHYEdge> edgesAdded = new ArrayList<PHYEdge>();
+				ArrayList<PHYNode> vNbrs = edges.get(v);
+				if(vNbrs != null) {
+					for(PHYNode w : vNbrs) {
+						if(!t.containsNode(w)) {
+							PHYEdge vw = new PHYEdge(v, w);
+							f.add(vw);
+							edgesAdded.add(vw);
 						}
 					}
-					f.removeAll(edgesRemoved);
-	
-					if(numGrowCalls % 1000000 == 0 && numGrowCalls != 0) {
-						System.out.println(numGrowCalls);
-					}
-					
-					if(numGrowCalls >= Parameters.MAX_NUM_GROW_CALLS) {
-						return;
-					}
-					
-					// recurse
-					grow(t);
-					
-					if(spanningTrees.size() == Parameters.MAX_NUM_TREES) {
-						return;
+				}
+			
+				// remove (w,v) w in T from f
+				ArrayList<PHYEdge> edgesRemoved = new ArrayList<PHYEdge>();
+				for(int i = 0; i < f.size(); i++) {
+					PHYEdge wv = f.get(i);
+					if(t.containsNode(wv.from) && (wv.to.equals(v))) {
+						edgesRemoved.add(wv);
 					}
-					
-					// pop
-					f.removeAll(edgesAdded);
-				
-					// restore
-					f.addAll(edgesRemoved);
+				}
+				f.removeAll(edgesRemoved);
+
+				if(numGrowCalls % 1000000 == 0 && numGrowCalls != 0) {
+					System.out.println(numGrowCalls);
 				}
 				
-				// remove e from T and G
-				t.removeEdge(e.from, e.to);
-				this.removeEdge(e.from, e.to);
-				
-				// add e to FF
-				ff.add(e);
+				if(numGrowCalls >= params.MAX_NUM_GROW_CALLS || context.isCancelled()) {
+					return;
+				}
 				
-				// bridge test
-				b = true;
-				for(PHYNode w : this.edges.keySet()) {
-					ArrayList<PHYNode> wNbrs = this.edges.get(w);
-					if(wNbrs == null) continue;
-					for(PHYNode n : wNbrs) {
-						if(n.equals(v)) {
-							// check if w is a descendant of v in L
-							if((L == null) || (!L.isDescendent(v, w))) {
-								b = false;
-								break;
-							}
-						}
-					}
-					if(!b) break;
-				}				
+				// recurse
+				frame.e = e;
+				frame.edgesAdded = edgesAdded;
+				frame.edgesRemoved = edgesRemoved;
+				enterGrow();
+			} else {
+				removeTreeEdge(frame, e);
 			}
-			
-			// pop from ff, push to f, add to G
-			for(int i = ff.size()-1; i >=0; i--) {
-				PHYEdge e = ff.get(i);
-				f.add(e);
-				this.addEdge(e.from, e.to);
+		}
+	}
+	
+	/**
+	 * Removes the tree edge e from T and G 
+	 * and runs the bridge test of its node
+	 */
+	private void removeTreeEdge(GrowFrame frame, PHYEdge e) {
+		PHYNode v = e.to;
+		
+		// remove e from T and G
+		t.removeEdge(e.from, e.to);
+		this.removeEdge(e.from, e.to);
+		
+		// add e to FF
+		frame.ff.add(e);
+		
+		// bridge test
+		boolean b = true;
+		for(PHYNode w : this.edges.keySet()) {
+			ArrayList<PHYNode> wNbrs = this.edges.get(w);
+			if(wNbrs == null) continue;
+			for(PHYNode n : wNbrs) {
+				if(n.equals(v)) {
+					// check if w is a descendant of v in L
+					if((L == null) || (!L.isDescendent(v, w))) {
+						b = false;
+						break;
+					}
+				}
 			}
-			ff.clear();
+			if(!b) break;
 		}
+		frame.b = b;
 	}
 	
 	/**
@@ -548,22 +622,195 @@ public class PHYNetwork implements Serializable {
 		spanningTrees = new ArrayList<PHYTree>();
 		
 		// initialize tree t to contain the root
-		PHYTree t = new PHYTree();
+		t = new PHYTree();
 		PHYNode root = nodes.get(numSamples+1).get(0);
 		t.addNode(root);
 		// initialize f to contain all edges (root, v)
 		f = new ArrayList<PHYEdge>();
+		growStack = new ArrayList<GrowFrame>();
 		ArrayList<PHYNode> nbrs = edges.get(root);
 		if(nbrs == null || nbrs.size() == 0) return spanningTrees;
 		for(PHYNode n : nbrs) {
 			f.add(new PHYEdge(root, n));
 			
 		}
-		grow(t);
+		enterGrow();
+		grow();
 		//applyConsistencyConstraints(spanningTrees);
 		return spanningTrees;
 	}
 	
+	/**
+	 * Resumes the tree search from the search state read by readSearchState()
+	 * and returns all the spanning trees found
+	 */
+	public ArrayList<PHYTree> resumeLineageTrees() {
+		grow();
+		return spanningTrees;
+	}
+	
+	/** Sets the checkpoint the tree search state snapshots are saved to */
+	public void setCheckpoint(LineageCheckpoint searchCheckpoint) {
+		checkpoint = searchCheckpoint;
+	}
+	
+	/**
+	 * Saves the state of the tree search: the trees found so far and,
+	 * if the search is in progress, tree T, F, the edges of G and the grow call frames
+	 * (nodes are saved by id)
+	 * @param complete - save the trees found only
+	 */
+	protected void writeSearchState(DataOutputStream out, boolean complete) throws IOException {
+		out.writeInt(numGrowCalls);
+		out.writeInt(spanningTrees.size());
+		for(PHYTree tree : spanningTrees) {
+			writeTree(out, tree);
+		}
+		out.writeBoolean(complete);
+		if(complete) return;
+		out.writeBoolean(L != null);
+		writeTree(out, t);
+		writeEdges(out, f);
+		out.writeInt(numEdges);
+		out.writeInt(edges.size());
+		for(PHYNode n : edges.keySet()) {
+			out.writeInt(n.getNodeId());
+			ArrayList<PHYNode> nbrs = edges.get(n);
+			out.writeInt(nbrs.size());
+			for(PHYNode m : nbrs) {
+				out.writeInt(m.getNodeId());
+			}
+		}
+		out.writeInt(growStack.size());
+		for(GrowFrame frame : growStack) {
+			writeEdges(out, frame.ff);
+			out.writeBoolean(frame.b);
+			out.writeBoolean(frame.e != null);
+			if(frame.e != null) {
+				out.writeInt(frame.e.from.getNodeId());
+				out.writeInt(frame.e.to.getNodeId());
+				writeEdges(out, frame.edgesAdded);
+				writeEdges(out, frame.edgesRemoved);
+			}
+		}
+	}
+	
+	/**
+	 * Restores the state of the tree search saved by writeSearchState()
+	 * (the network must have been constructed from the same SNV groups)
+	 * @return true if the search was complete
+	 */
+	protected boolean readSearchState(DataInputStream in) throws IOException {
+		numGrowCalls = in.readInt();
+		int numTrees = in.readInt();
+		spanningTrees = new ArrayList<PHYTree>(numTrees);
+		for(int i = 0; i < numTrees; i++) {
+			spanningTrees.add(readTree(in));
+		}
+		growStack = new ArrayList<GrowFrame>();
+		if(in.readBoolean()) {
+			return true;
+		}
+		boolean hasL = in.readBoolean();
+		t = readTree(in);
+		// L is the (last complete state of the) tree T
+		L = hasL ? t : null;
+		f = readEdges(in);
+		numEdges = in.readInt();
+		edges = new HashMap<PHYNode, ArrayList<PHYNode>>();
+		int numKeys = in.readInt();
+		for(int i = 0; i < numKeys; i++) {
+			PHYNode n = readNode(in);
+			int numNbrs = in.readInt();
+			ArrayList<PHYNode> nbrs = new ArrayList<PHYNode>(numNbrs);
+			for(int j = 0; j < numNbrs; j++) {
+				nbrs.add(readNode(in));
+			}
+			edges.put(n, nbrs);
+		}
+		int numFrames = in.readInt();
+		for(int i = 0; i < numFrames; i++) {
+			GrowFrame frame = new GrowFrame();
+			frame.ff = readEdges(in);
+			frame.b = in.readBoolean();
+			if(in.readBoolean()) {
+				PHYNode from = readNode(in);
+				frame.e = new PHYEdge(from, readNode(in));
+				frame.edgesAdded = readEdges(in);
+				frame.edgesRemoved = readEdges(in);
+			}
+			growStack.add(frame);
+		}
+		return false;
+	}
+	
+	/** Saves the tree as its nodes in insertion order with their parents (-1 for the root) */
+	private static void writeTree(DataOutputStream out, PHYTree tree) throws IOException {
+		out.writeInt(tree.treeNodes.size());
+		for(PHYNode n : tree.treeNodes) {
+			out.writeInt(n.getNodeId());
+		}
+		// the children lists are saved as is (including the empty lists of the search)
+		out.writeInt(tree.treeEdges.size());
+		for(PHYNode n : tree.treeEdges.keySet()) {
+			ArrayList<PHYNode> children = tree.treeEdges.get(n);
+			out.writeInt(n.getNodeId());
+			out.writeInt(children.size());
+			for(PHYNode child : children) {
+				out.writeInt(child.getNodeId());
+			}
+		}
+	}
+	
+	private PHYTree readTree(DataInputStream in) throws IOException {
+		PHYTree tree = new PHYTree();
+		int numTreeNodes = in.readInt();
+		for(int i = 0; i < numTreeNodes; i++) {
+			tree.treeNodes.add(readNode(in));
+		}
+		int numParents = in.readInt();
+		for(int i = 0; i < numParents; i++) {
+			PHYNode n = readNode(in);
+			int numChildren = in.readInt();
+			ArrayList<PHYNode> children = new ArrayList<PHYNode>(numChildren);
+			for(int j = 0; j < numChildren; j++) {
+				children.add(readNode(in));
+			}
+			tree.treeEdges.put(n, children);
+		}
+		return tree;
+	}
+	
+	private static void writeEdges(DataOutputStream out, ArrayList<PHYEdge> edgeList) throws IOException {
+		out.writeInt(edgeList.size());
+		for(PHYEdge e : edgeList) {
+			out.writeInt(e.from.getNodeId());
+			out.writeInt(e.to.getNodeId());
+		}
+	}
+	
+	private ArrayList<PHYEdge> readEdges(DataInputStream in) throws IOException {
+		int numEdgesInList = in.readInt();
+		ArrayList<PHYEdge> edgeList = new ArrayList<PHYEdge>(numEdgesInList);
+		for(int i = 0; i < numEdgesInList; i++) {
+			PHYNode from = readNode(in);
+			edgeList.add(new PHYEdge(from, readNode(in)));
+		}
+		return edgeList;
+	}
+	
+	private PHYNode readNode(DataInputStream in) throws IOException {
+		return getNode(in.readInt());
+	}
+	
+	private PHYNode getNode(int nodeId) throws IOException {
+		PHYNode n = nodesById.get(nodeId);
+		if(n == null) {
+			throw new IOException("The saved search state does not match the constraint network (node " + nodeId + ")");
+		}
+		return n;
+	}
+	
 	/**
 	 * Applies the AAF constraints to all the spanning trees
 	 * and removes the trees that don't pass the constraints
@@ -592,7 +839,7 @@ public class PHYNetwork implements Serializable {
 					affSum += n2.getAAF(i);
 					//errMargin += getAAFErrorMargin(n, n2, i);
 				}
-				errMargin = Parameters.AAF_ERROR_MARGIN;
+				errMargin = params.AAF_ERROR_MARGIN;
 				if(affSum > n.getAAF(i) + errMargin) {
 					return false;
 				}
@@ -606,9 +853,10 @@ public class PHYNetwork implements Serializable {
 	 * and removes the trees that don't pass the constraints
 	 */
 	private void applyConsistencyConstraints(List<PHYTree> trees) {
+		boolean[] passed = checkConsistencyConstraints(trees);
 		//ArrayList<PHYTree> toBeRemoved = new ArrayList<PHYTree>();
 		for(int i = 0; i < trees.size(); i++) {
-			if(!checkConsistencyConstraints(trees.get(i))) {
+			if(!passed[i]) {
 				//toBeRemoved.add(t);
 				logger.info("Top tree " + i + " did not pass the QP consistency check");
 			}
@@ -616,90 +864,184 @@ public class PHYNetwork implements Serializable {
 		//spanningTrees.removeAll(toBeRemoved);
 	}
 	
+	/**
+	 * Checks the consistency constraints of the given trees in parallel
+	 * @return true for the trees that pass the constraints
+	 */
+	private boolean[] checkConsistencyConstraints(final List<PHYTree> trees) {
+		final boolean[] passed = new boolean[trees.size()];
+		if(trees.size() == 0) return passed;
+		if(!params.USE_PROJECTION_QP) {
+			configureSolverLogging();
+		}
+		int numTasks = Math.max(1, Math.min(params.NUM_THREADS, trees.size()));
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for(int k = 0; k < numTasks; k++) {
+			final int start = (int) ((long) trees.size()*k/numTasks);
+			final int end = (int) ((long) trees.size()*(k+1)/numTasks);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					for(int i = start; i < end; i++) {
+						if(context.isCancelled()) break;
+						passed[i] = checkConsistencyConstraints(trees.get(i));
+					}
+					return null;
+				}
+			});
+		}
+		if(tasks.size() == 1) {
+			try {
+				tasks.get(0).call();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			return passed;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+		try {
+			for(Future<Object> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		return passed;
+	}
+	
+	/**
+	 * Ranks all the spanning trees by the error score of the QP consistency check
+	 * (the trees that don't pass the check are ranked last, by their original score)
+	 */
+	private void rankByConsistencyConstraints() {
+		boolean[] passed = checkConsistencyConstraints(spanningTrees);
+		ArrayList<PHYTree> validTrees = new ArrayList<PHYTree>();
+		ArrayList<PHYTree> failedTrees = new ArrayList<PHYTree>();
+		for(int i = 0; i < spanningTrees.size(); i++) {
+			if(passed[i]) {
+				validTrees.add(spanningTrees.get(i));
+			} else {
+				failedTrees.add(spanningTrees.get(i));
+			}
+		}
+		Collections.sort(validTrees);
+		spanningTrees.clear();
+		spanningTrees.addAll(validTrees);
+		spanningTrees.addAll(failedTrees);
+		if(failedTrees.size() > 0) {
+			logger.info(failedTrees.size() + " tree(s) did not pass the QP consistency check");
+		}
+	}
+	
+	private static boolean solverLoggingConfigured = false;
+	
+	/** Disables the logging of the QP solver (configured once) */
+	private static synchronized void configureSolverLogging() {
+		if(solverLoggingConfigured) return;
+		org.apache.log4j.BasicConfigurator.configure();
+		org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+		solverLoggingConfigured = true;
+	}
+	
 	/**
 	 * Returns true if the tree passes the consistency constraints
 	 * @param t - spanning tree
 	 */
 	private boolean checkConsistencyConstraints(PHYTree t) {
-		org.apache.log4j.BasicConfigurator.configure();
-		org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
-			
 		HashMap<PHYNode, Integer> nodeToIndex = new HashMap<PHYNode, Integer>();
 		int numNodes = t.treeNodes.size();
 		for(int i = 0; i < numNodes; i++) {
 			nodeToIndex.put(t.treeNodes.get(i), i);
 		}
 		
-		int nVariables = numNodes*numSamples;
-		int nConstraints = nVariables + 2*nVariables + nVariables; // sum-of-child + abs val (2) + magnitude
-		
-		double[] diffVAFSCPerNode = new double[nConstraints]; 
-		for(int i = 0; i < nConstraints; i++) {
-			diffVAFSCPerNode[i] = 0.0001;
-		}
-		double[][] adjacency = new double[nConstraints][nVariables];
-		
-		// sum of children 
+		// the constraints of different samples do not share variables:
+		// the QP is solved independently per sample
+		ConsistencyProjection projection = params.USE_PROJECTION_QP ? new ConsistencyProjection(t) : null;
+		double[] vafs = new double[numNodes];
+		double errorScore = 0;
 		for(int j = 0; j < numSamples; j++) {
 			for(int i = 0; i < numNodes; i++) {
-				PHYNode n = t.treeNodes.get(i);
-				ArrayList<PHYNode> children = t.treeEdges.get(n);
-				if(children == null) continue;
-				diffVAFSCPerNode[i*numSamples + j] = n.getAAF(j);
-				double sc = 0;
-				for(PHYNode c : children) {
-					sc += c.getAAF(j);
-				}
-				diffVAFSCPerNode[i*numSamples + j] -= sc;
-				if(diffVAFSCPerNode[i*numSamples + j] == 0) {
-					diffVAFSCPerNode[i*numSamples + j] = 0.0001;
-				}
-				for(PHYNode c : children) {
-					int childIndex = nodeToIndex.get(c);
-					adjacency[i*numSamples + j][numNodes*j + childIndex] = 1;
-				}
-				adjacency[i*numSamples + j][numNodes*j + i] = -1;
+				vafs[i] = t.treeNodes.get(i).getAAF(j);
+			}
+			double[] epsilon;
+			if(projection != null) {
+				epsilon = projection.solve(vafs, params.VAF_ERROR_MARGIN);
+			} else {
+				epsilon = solveConsistencyQP(t, nodeToIndex, vafs);
+			}
+			if(epsilon == null) return false;
+			for(int i = 0; i < epsilon.length; i++) {
+				errorScore += Math.pow(epsilon[i], 2);
 			}
 		}
-				
+		t.errorScore = errorScore;
+		return true;
+	}
+	
+	/**
+	 * Solves the consistency QP of the tree for the given node VAFs (of one sample):
+	 * minimizes the VAF adjustments (one variable per node) subject to
+	 * the sum-of-children, absolute value, and magnitude constraints
+	 * @return the VAF adjustments, null if the QP has no solution
+	 */
+	private double[] solveConsistencyQP(PHYTree t, HashMap<PHYNode, Integer> nodeToIndex, double[] vafs) {
+		int numNodes = t.treeNodes.size();
+		ArrayList<ConvexMultivariateRealFunction> ineq = new ArrayList<ConvexMultivariateRealFunction>(4*numNodes);
+		
+		// sum of children (nodes with no children are unconstrained)
+		for(int i = 0; i < numNodes; i++) {
+			PHYNode n = t.treeNodes.get(i);
+			ArrayList<PHYNode> children = t.treeEdges.get(n);
+			if(children == null) continue;
+			double diffVAFSC = vafs[i];
+			double sc = 0;
+			for(PHYNode c : children) {
+				sc += vafs[nodeToIndex.get(c)];
+			}
+			diffVAFSC -= sc;
+			if(diffVAFSC == 0) {
+				diffVAFSC = 0.0001;
+			}
+			double[] row = new double[numNodes];
+			for(PHYNode c : children) {
+				row[nodeToIndex.get(c)] = 1;
+			}
+			row[i] = -1;
+			ineq.add(new LinearMultivariateRealFunction(row, -diffVAFSC));
+		}
+		
 		// absolute value
-		for(int i = 0; i < nVariables; i++) {
-			adjacency[nVariables + i][i] = 1;
-			adjacency[2*nVariables + i][i] = -1;
-			diffVAFSCPerNode[nVariables + i] = Parameters.VAF_ERROR_MARGIN;
-			diffVAFSCPerNode[2*nVariables + i] = Parameters.VAF_ERROR_MARGIN;
+		for(int i = 0; i < numNodes; i++) {
+			double[] row = new double[numNodes];
+			row[i] = 1;
+			ineq.add(new LinearMultivariateRealFunction(row, -params.VAF_ERROR_MARGIN));
+		}
+		for(int i = 0; i < numNodes; i++) {
+			double[] row = new double[numNodes];
+			row[i] = -1;
+			ineq.add(new LinearMultivariateRealFunction(row, -params.VAF_ERROR_MARGIN));
 		}
 		
 		// magnitude
-		for(int j = 0; j < numSamples; j++) {
-			for(int i = 0; i < numNodes; i++) {
-				adjacency[3*nVariables + i*numSamples + j][numNodes*j + i] = 1;
-				diffVAFSCPerNode[3*nVariables + i*numSamples + j] = t.treeNodes.get(i).getAAF(j);
-				if(t.treeNodes.get(i).getAAF(j) == 0) {
-					diffVAFSCPerNode[3*nVariables + i*numSamples + j] = 0.00001;
-				}
-			}
+		for(int i = 0; i < numNodes; i++) {
+			double[] row = new double[numNodes];
+			row[i] = 1;
+			double aaf = vafs[i];
+			ineq.add(new LinearMultivariateRealFunction(row, (aaf == 0) ? -0.00001 : -aaf));
 		}
-
+		
 		// identity
-		double[][] p = new double[nVariables][nVariables];
-		for(int i = 0; i < nVariables; i++) {
-			for(int j = 0; j < nVariables; j++) {
-				if(i == j) {
-					p[i][j] = 1;
-				}
-			}
+		double[][] p = new double[numNodes][numNodes];
+		for(int i = 0; i < numNodes; i++) {
+			p[i][i] = 1;
 		}
 		
 		OptimizationRequest or = new OptimizationRequest();
-		PDQuadraticMultivariateRealFunction f = new PDQuadraticMultivariateRealFunction(p, null, 0);
-		ConvexMultivariateRealFunction[] ineq = new ConvexMultivariateRealFunction[nConstraints];
-		for(int i = 0; i < nConstraints; i++) {
-			ineq[i] = new LinearMultivariateRealFunction(adjacency[i], -diffVAFSCPerNode[i]);
-		}
-
-		or.setF0(f);
-		or.setFi(ineq);
+		or.setF0(new PDQuadraticMultivariateRealFunction(p, null, 0));
+		or.setFi(ineq.toArray(new ConvexMultivariateRealFunction[ineq.size()]));
 		or.setToleranceFeas(1.E-9);
 		or.setTolerance(1.E-9);
 		
@@ -707,25 +1049,25 @@ public class PHYNetwork implements Serializable {
 		opt.setOptimizationRequest(or);
 		try {
 			int r = opt.optimize();
-			if(r != 0) return false;
-			double[] epsilon = opt.getOptimizationResponse().getSolution();
-			t.errorScore = 0;
-			for(int i = 0; i < epsilon.length; i++) {
-				t.errorScore += Math.pow(epsilon[i], 2);
-			}
+			if(r != 0) return null;
+			return opt.getOptimizationResponse().getSolution();
 		} catch (Exception e) {
-			return false;
+			return null;
 		}
-		return true;
 	}
 	
 	/** 
 	 * Evaluates the spanning trees by computing their error score
-	 * and ranking them by this score (lowest error first)
+	 * and ranking them by this score (lowest error first),
+	 * or by the QP consistency error score if enabled
 	 */
 	public void evaluateLineageTrees() {
 		Collections.sort(spanningTrees);
-		int numTreesToCheck = spanningTrees.size() <= Parameters.NUM_TREES_FOR_CONSISTENCY_CHECK ? spanningTrees.size() : Parameters.NUM_TREES_FOR_CONSISTENCY_CHECK;
+		if(params.RANK_BY_QP) {
+			rankByConsistencyConstraints();
+			return;
+		}
+		int numTreesToCheck = spanningTrees.size() <= params.NUM_TREES_FOR_CONSISTENCY_CHECK ? spanningTrees.size() : params.NUM_TREES_FOR_CONSISTENCY_CHECK;
 		//int origSize = spanningTrees.size();
 		applyConsistencyConstraints(spanningTrees.subList(0, numTreesToCheck));
 		//int nRemoved = origSize - spanningTrees.size();
@@ -757,6 +1099,79 @@ public class PHYNetwork implements Serializable {
 		System.out.println("All trees are distinct");
 	}
 	
+	/**
+	 * Debugging only - compares the projection solver of the QP consistency check with the general QP solver:
+	 * the QP of each tree is solved in each sample with the node VAFs and with the given number
+	 * of random perturbations of the VAFs (up to twice the VAF error margin, to cover infeasible QPs);
+	 * the solvers agree on a QP if both find no solution or if their error scores differ by at most the tolerance
+	 * @return the number of QPs on which the solvers disagree
+	 */
+	protected int compareConsistencySolvers(List<PHYTree> trees, int numPerturbations, long seed, double tolerance) {
+		configureSolverLogging();
+		Random rand = new Random(seed);
+		int numQPs = 0;
+		int numInfeasible = 0;
+		int numMismatches = 0;
+		double maxScoreDiff = 0;
+		long qpTime = 0;
+		long projectionTime = 0;
+		for(int k = 0; k < trees.size(); k++) {
+			PHYTree t = trees.get(k);
+			int numNodes = t.treeNodes.size();
+			HashMap<PHYNode, Integer> nodeToIndex = new HashMap<PHYNode, Integer>();
+			for(int i = 0; i < numNodes; i++) {
+				nodeToIndex.put(t.treeNodes.get(i), i);
+			}
+			ConsistencyProjection projection = new ConsistencyProjection(t);
+			double[] vafs = new double[numNodes];
+			for(int j = 0; j < numSamples; j++) {
+				for(int p = 0; p <= numPerturbations; p++) {
+					for(int i = 0; i < numNodes; i++) {
+						vafs[i] = t.treeNodes.get(i).getAAF(j);
+						if(p > 0) {
+							vafs[i] = Math.max(0, vafs[i] + (2*rand.nextDouble() - 1)*2*params.VAF_ERROR_MARGIN);
+						}
+					}
+					long start = System.nanoTime();
+					double[] x = solveConsistencyQP(t, nodeToIndex, vafs);
+					qpTime += System.nanoTime() - start;
+					start = System.nanoTime();
+					double[] y = projection.solve(vafs, params.VAF_ERROR_MARGIN);
+					projectionTime += System.nanoTime() - start;
+					
+					numQPs++;
+					if(x == null && y == null) {
+						numInfeasible++;
+						continue;
+					}
+					if(x == null || y == null) {
+						numMismatches++;
+						logger.warning("Tree " + k + ", sample " + j + (p > 0 ? " (perturbation " + p + ")" : "") + ": the QP solver " + (x == null ? "found no solution" : "found a solution") + ", the projection solver " + (y == null ? "found no solution" : "found a solution"));
+						continue;
+					}
+					double diff = Math.abs(getSumOfSquares(x) - getSumOfSquares(y));
+					maxScoreDiff = Math.max(maxScoreDiff, diff);
+					if(diff > tolerance) {
+						numMismatches++;
+						logger.warning("Tree " + k + ", sample " + j + (p > 0 ? " (perturbation " + p + ")" : "") + ": error scores differ by " + diff);
+					}
+				}
+			}
+		}
+		logger.info("QP solver comparison on " + trees.size() + " tree(s): " + numQPs + " QPs (" + numInfeasible + " with no solution), " 
+				+ numMismatches + " mismatch(es), maximum error score difference " + maxScoreDiff 
+				+ ", QP solver time " + qpTime/1000000 + " ms, projection solver time " + projectionTime/1000000 + " ms");
+		return numMismatches;
+	}
+	
+	private static double getSumOfSquares(double[] x) {
+		double sum = 0;
+		for(double v : x) {
+			sum += v*v;
+		}
+		return sum;
+	}
+	
 	// ---- Visualization ----
 	
 	/** Displays the constraint network graph */
@@ -815,73 +1230,46 @@ public class PHYNetwork implements Serializable {
 	 * Returns a string representation of the graph
 	 */
 	public String getNodesAsString() {
-		String s = "";
-		for(int i = numSamples + 1; i >= 0; i--) {
-			ArrayList<PHYNode> levelNodes = nodes.get(i);
-			if(levelNodes != null) {
-				for(PHYNode n : levelNodes) {
-					if(n.isRoot()) continue;
-					String tag = n.getSNVGroup().getTag();
-					s += n.getNodeId() + "\t";
-					s += tag + "\t";
-					s += n.getCluster().getMembership().size() + "\t";
-					double[] c = n.getCluster().getCentroid();
-					DecimalFormat df = new DecimalFormat("#.##");
-					int idx = 0;
-					for(int j = 0; j < tag.length(); j++) {
-						if(tag.charAt(j) == '1') {
-							s += df.format(c[idx]) + "\t";
-							idx++;
-						} else {
-							s += df.format(0) + "\t";
-						}
-					}
-					s += "\n";
-				}
-			}
+		TreeFileWriter w = TreeFileWriter.toStringWriter();
+		try {
+			w.writeNodeCentroids(this);
+		} catch (IOException e) {
+			throw new AssertionError(e);
 		}
-		return s;
+		return w.toString();
 	}
+	
 	public String getNodesWithMembersAsString() {
-		String s = "";
+		TreeFileWriter w = TreeFileWriter.toStringWriter();
+		try {
+			w.writeNodesWithMembers(this);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return w.toString();
+	}
+	
+	/**
+	 * Returns all the nodes of the network by level, starting from the root
+	 * (the order used by the structured result exports)
+	 */
+	public ArrayList<PHYNode> getNodeTable() {
+		ArrayList<PHYNode> table = new ArrayList<PHYNode>(numNodes);
 		for(int i = numSamples + 1; i >= 0; i--) {
 			ArrayList<PHYNode> levelNodes = nodes.get(i);
-			if(levelNodes != null) {
-				for(PHYNode n : levelNodes) {
-					if(n.isRoot()) continue;
-					ArrayList<SNVEntry> snvs = n.getSNVs(n.getSNVGroup().getSNVs());
-					s += n.getNodeId();
-		    		s += "\t" + n.getSNVGroup().getTag();
-		    		s += "\t[";
-		    		DecimalFormat df = new DecimalFormat("#.##");
-					for(int j = 0; j < n.getCluster().getCentroid().length; j++) {
-						s += " " + df.format(n.getCluster().getCentroid()[j]);
-					}
-					s += "]";
-		    		for(SNVEntry snv : snvs) {
-		    			s += "\tsnv" + snv.getId();
-		        	}
-					s += "\n";
-				}
-			}
+			if(levelNodes == null) continue;
+			table.addAll(levelNodes);
 		}
-		return s;
+		return table;
 	}
 	
 	public String getNodeMembersOnlyAsString() {
-		String s = "";
-		for(int i = numSamples + 1; i >= 0; i--) {
-			ArrayList<PHYNode> levelNodes = nodes.get(i);
-			if(levelNodes != null) {
-				for(PHYNode n : levelNodes) {
-					if(n.isRoot()) continue;
-					ArrayList<SNVEntry> snvs = n.getSNVs(n.getSNVGroup().getSNVs());
-		    		for(SNVEntry snv : snvs) {
-		    			s += "snv" + snv.getId() + ": " + snv.getChromosome() + " " + snv.getPosition() + " " + snv.getDescription() + "\n";
-		        	}
-				}
-			}
+		TreeFileWriter w = TreeFileWriter.toStringWriter();
+		try {
+			w.writeNodeMembers(this);
+		} catch (IOException e) {
+			throw new AssertionError(e);
 		}
-		return s;
+		return w.toString();
 	}
 }
@@ -65,6 +65,9 @@ public class PHYNode implements Serializable, Comparable<PHYNode> {
 	/** Level in the constraint network */
 	private int level;
 	
+	/** VAF of the root node */
+	private double rootVAF;
+	
 	/** 
 	 * Internal node constructor
 	 * @param g - SNV group the node belongs to
@@ -91,9 +94,11 @@ public class PHYNode implements Serializable, Comparable<PHYNode> {
 	
 	/**
 	 * Root node constructor
+	 * @param vafMax - VAF of the root node in all samples
 	 */
-	public PHYNode(int networkLevel, int uniqueId) {
+	public PHYNode(int networkLevel, int uniqueId, double vafMax) {
 		isRoot = true;
+		rootVAF = vafMax;
 		nodeId = uniqueId;
 		level = networkLevel;
 	}
@@ -141,7 +146,7 @@ public class PHYNode implements Serializable, Comparable<PHYNode> {
 	
 	public int getSize() {
 		if(cluster == null) return 0;
-		return cluster.getMembership().size();
+		return cluster.getSize();
 	}
 	
 	/**
@@ -160,7 +165,7 @@ public class PHYNode implements Serializable, Comparable<PHYNode> {
 	 */
 	public double getAAF(int sampleId) {
 		if(isRoot) {
-			return Parameters.VAF_MAX;
+			return rootVAF;
 		} 
 		if(isLeaf) {
 			return 0;
@@ -196,10 +201,9 @@ public class PHYNode implements Serializable, Comparable<PHYNode> {
 	 * corresponding to this node
 	 */
 	public ArrayList<SNVEntry> getSNVs(ArrayList<SNVEntry> groupSNVs) {
-		ArrayList<Integer> ids = cluster.getMembership();
-		ArrayList<SNVEntry> nodeSNVs = new ArrayList<SNVEntry>();
-		for(int i : ids) {
-			nodeSNVs.add(groupSNVs.get(i));
+		ArrayList<SNVEntry> nodeSNVs = new ArrayList<SNVEntry>(cluster.getSize());
+		for(int i = 0; i < cluster.getSize(); i++) {
+			nodeSNVs.add(groupSNVs.get(cluster.getMember(i)));
 		}
 		return nodeSNVs;
 	}
@@ -220,7 +224,7 @@ public class PHYNode implements Serializable, Comparable<PHYNode> {
 		if(!isLeaf && !isRoot) {
 			//node += nodeId + ": \n";
 			node += snvGroup.getTag() + "\n";
-			node += "("+cluster.getMembership().size()+")";
+			node += "("+cluster.getSize()+")";
 		} else if(isLeaf) {
 			node += "sample " + leafSampleId;
 		} else {
@@ -29,9 +29,10 @@
 
 package lineage;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 
@@ -118,6 +119,30 @@ public class PHYTree implements Comparable<PHYTree>, Serializable {
 		return treeNodes.get(0);
 	}
 	
+	/**
+	 * Returns the parent of each node of the given node table as an index in the table
+	 * (-1 for the root and nodes not in the tree)
+	 */
+	public int[] getParents(ArrayList<PHYNode> nodeTable) {
+		HashMap<PHYNode, Integer> index = new HashMap<PHYNode, Integer>();
+		for(int i = 0; i < nodeTable.size(); i++) {
+			index.put(nodeTable.get(i), i);
+		}
+		int[] parents = new int[nodeTable.size()];
+		Arrays.fill(parents, -1);
+		for(PHYNode n1 : treeEdges.keySet()) {
+			Integer from = index.get(n1);
+			if(from == null) continue;
+			for(PHYNode n2 : treeEdges.get(n1)) {
+				Integer to = index.get(n2);
+				if(to != null) {
+					parents[to] = from;
+				}
+			}
+		}
+		return parents;
+	}
+	
 	/** 
 	 * Returns a copy of the tree
 	 */
@@ -153,18 +178,20 @@ public class PHYTree implements Comparable<PHYTree>, Serializable {
 		return false;
 	}
 	
-	public boolean checkConstraint(PHYNode n) {
+	/**
+	 * Returns true if the children VAF sum of node n does not exceed its VAF
+	 * by more than the given error margin in any sample
+	 */
+	public boolean checkConstraint(PHYNode n, double errMargin) {
 		ArrayList<PHYNode> nbrs = treeEdges.get(n);			
 		if(nbrs == null) return true;
 				
 		for(int i = 0; i < n.getNumSamples(); i++) {
 			double affSum = 0;
-			double errMargin = 0.0;
 			for(PHYNode n2 : nbrs) {
 				affSum += n2.getAAF(i);
 				//errMargin += PHYNetwork.getAAFErrorMargin(n, n2, i);
 			}
-			errMargin = Parameters.VAF_ERROR_MARGIN;
 			if(affSum > n.getAAF(i) + errMargin) {
 				return false;
 			}
@@ -174,14 +201,13 @@ public class PHYTree implements Comparable<PHYTree>, Serializable {
 	}
 	
 	public String toString() {
-		String graph = "";
-		for(PHYNode n1 : treeEdges.keySet()) {
-			ArrayList<PHYNode> nbrs = treeEdges.get(n1);
-			for(PHYNode n2 : nbrs) {
-				graph += n1.getNodeId() + " -> " + n2.getNodeId() + "\n";
-			}
+		TreeFileWriter w = TreeFileWriter.toStringWriter();
+		try {
+			w.writeEdges(this);
+		} catch (IOException e) {
+			throw new AssertionError(e);
 		}
-		return graph;
+		return w.toString();
 	}
 	
 	public String getNodeSNVString() {
@@ -240,32 +266,13 @@ public class PHYTree implements Comparable<PHYTree>, Serializable {
 	 * Returns the sub-populations of a given sample
 	 */
 	public String getLineage(int sampleId, String sampleName) {
-		StringBuilder lineage = new StringBuilder();
-		lineage.append("\tSample lineage decomposition: ");
-		lineage.append(sampleName + "\n");
-		lineage.append("GL\n");
-		
-		// traverse the tree starting from the root in DFS order
-		String indent = "";
-		for(PHYNode n : treeEdges.get(treeNodes.get(0))) {
-			getLineageHelper(lineage, indent, n, sampleId);
-		}
-		return lineage.toString();
-	}
-	
-	private void getLineageHelper(StringBuilder lineage, String indent, PHYNode n, int sampleId) {
-		//indent += "     ";	
-		indent += ".....";	
-		
-		DecimalFormat df = new DecimalFormat("#.###");
-		if(n.getSNVGroup().containsSample(sampleId)) {
-			lineage.append(indent + n.getSNVGroup().getTag() + ": " + df.format(n.getAAF(sampleId)) + " [" + df.format(n.getStdDev(sampleId)) + "]\n");
-		}
-		if(treeEdges.get(n) != null) {
-			for(PHYNode nbr : treeEdges.get(n)) {
-				getLineageHelper(lineage, indent, nbr, sampleId);
-			}
+		TreeFileWriter w = TreeFileWriter.toStringWriter();
+		try {
+			w.writeLineage(this, sampleId, sampleName);
+		} catch (IOException e) {
+			throw new AssertionError(e);
 		}
+		return w.toString();
 	}
 	
 	public void getLineageClusters(ArrayList<PHYNode> path, ArrayList<ArrayList<PHYNode>> clones, PHYNode n, int sampleId) {
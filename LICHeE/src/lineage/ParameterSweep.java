@@ -0,0 +1,498 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+package lineage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.logging.StreamHandler;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import lineage.LineageEngine.Args;
+import lineage.LineageEngine.Results;
+
+/**
+ * Parameter sweep mode: reconstructs the lineage trees of an input 
+ * for every point of a grid of parameter values and compares their top trees.
+ * Grid format: semicolon-separated list of option=values entries with comma-separated values, 
+ * e.g. "maxClusterDist=0.1,0.2;e=0.05,0.1;minClusterSize=1,2" (flags take the values on/off);
+ * the other options of the command line apply to all the grid points.
+ * 
+ * Each pipeline stage depends on part of the parameters only, so the stages are computed 
+ * once per distinct upstream configuration and shared by the downstream grid points:
+ * - load and cluster: once per input and SNV filtering parameters (see LineageCache)
+ * - cluster filtering and collapsing: once per -minClusterSize, -minPrivateClusterSize, 
+ *   -maxClusterDist and -minRobustNodeSupport values
+ * - network and tree search: once per remaining configuration
+ *   (run together since the search adjusts the network when no valid trees are found)
+ * The grid points are processed concurrently on a bounded thread pool sharing a memory budget (as in batch mode).
+ * The comparison table of the grid points is saved to the -o path 
+ * and the logs of the points to the same path with suffix .log.
+ *
+ * @autor viq
+ */
+public class ParameterSweep {
+	
+	protected static final String SWEEP_FILE_EXTENSION = ".sweep.txt";
+	private static final String LOG_FILE_EXTENSION = ".log";
+	
+	/** Options of the sweep command that are not applied to the grid point runs */
+	private static final String[] SWEEP_OPTIONS = {"sweep", "batchThreads", "batchMemory", "o", "h", "build", "convert"};
+	
+	/** Run of a grid point */
+	private static class Point {
+		int id;
+		/** Values of the swept options */
+		String[] values;
+		Args args;
+		boolean verbose;
+		final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	}
+	
+	/** Outcome of a grid point run */
+	private static class PointSummary {
+		int numTrees;
+		double topErrorScore;
+		int numNodes;
+		long numFilteredSNVs;
+		double runTime;
+	}
+	
+	/** SNV groups with filtered and collapsed clusters (shared by the grid points, not modified) */
+	private static class ClusteredGroups {
+		ArrayList<SNVGroup> groups;
+		/** Number of SNVs filtered while clustering (by reason) */
+		long[] filterCounts;
+	}
+	
+	/** Results of a stage computed once per key (by the first grid point that requires it) */
+	private static class StageResults<T> {
+		private final HashMap<String, FutureTask<T>> results = new HashMap<String, FutureTask<T>>();
+		
+		T get(String key, Callable<T> stage) throws InterruptedException {
+			FutureTask<T> task;
+			boolean compute = false;
+			synchronized(results) {
+				task = results.get(key);
+				if(task == null) {
+					task = new FutureTask<T>(stage);
+					results.put(key, task);
+					compute = true;
+				}
+			}
+			if(compute) {
+				task.run();
+			}
+			try {
+				return task.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				if(cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new RuntimeException(cause);
+			}
+		}
+		
+		int size() {
+			synchronized(results) {
+				return results.size();
+			}
+		}
+	}
+	
+	private final ArrayList<String> sweptOptions = new ArrayList<String>();
+	private final ArrayList<Point> points = new ArrayList<Point>();
+	private final LineageCache cache;
+	private final MemoryBudget budget;
+	private final StageResults<ClusteredGroups> clusterStages = new StageResults<ClusteredGroups>();
+	private final StageResults<PointSummary> searchStages = new StageResults<PointSummary>();
+	
+	private ParameterSweep(int maxNumDataStores, MemoryBudget memoryBudget) {
+		cache = new LineageCache(maxNumDataStores);
+		budget = memoryBudget;
+	}
+	
+	public static void run(CommandLine cmdLine, Options options, HelpFormatter hf) {
+		Logger logger = LineageEngine.logger;
+		
+		// set up the runs of all the grid points before starting
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<String[]> values = new ArrayList<String[]>();
+		ArrayList<Point> points = null;
+		try {
+			parseGrid(cmdLine.getOptionValue("sweep"), options, names, values);
+			points = createPoints(cmdLine, options, names, values);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			hf.printHelp("lichee", options);
+			System.exit(-1);
+		}
+		String tableFileName = cmdLine.hasOption("o") ? cmdLine.getOptionValue("o") : points.get(0).args.inputFileName + SWEEP_FILE_EXTENSION;
+		
+		int numProcessors = Runtime.getRuntime().availableProcessors();
+		int poolSize = Math.min(points.size(), numProcessors);
+		if(cmdLine.hasOption("batchThreads")) {
+			poolSize = Math.max(1, Math.min(points.size(), Integer.parseInt(cmdLine.getOptionValue("batchThreads"))));
+		}
+		long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+		if(cmdLine.hasOption("batchMemory")) {
+			memoryBudget = Long.parseLong(cmdLine.getOptionValue("batchMemory")) << 20;
+		}
+		
+		// the processors are divided among the concurrent runs
+		int numRunThreads = Math.max(1, numProcessors / poolSize);
+		for(Point p : points) {
+			Parameters.Builder config = new Parameters.Builder(p.args.parameters);
+			config.NUM_THREADS = numRunThreads;
+			p.args.parameters = config.build();
+		}
+		final ParameterSweep sweep = new ParameterSweep(points.size(), new MemoryBudget(memoryBudget));
+		sweep.sweptOptions.addAll(names);
+		sweep.points.addAll(points);
+		logger.info("Processing " + points.size() + " grid point(s) on " + poolSize + " thread(s), memory budget: " + sweep.budget.getCapacityMB() + " MB");
+		
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		ArrayList<Future<PointSummary>> results = new ArrayList<Future<PointSummary>>();
+		for(final Point p : points) {
+			results.add(pool.submit(new Callable<PointSummary>() {
+				public PointSummary call() throws InterruptedException {
+					return sweep.runPoint(p);
+				}
+			}));
+		}
+		pool.shutdown();
+		
+		sweep.writeTable(tableFileName, results);
+		sweep.writeLogs(tableFileName + LOG_FILE_EXTENSION);
+		logger.info("Computed " + sweep.cache.getNumMisses() + " data set(s), " + sweep.clusterStages.size() + " cluster configuration(s) and " 
+				+ sweep.searchStages.size() + " tree search(es) for " + points.size() + " grid point(s)");
+		logger.info("Comparison table saved to: " + tableFileName);
+	}
+	
+	/**
+	 * Runs the pipeline of the given grid point, 
+	 * reusing the stages shared with the other points
+	 */
+	private PointSummary runPoint(final Point p) throws InterruptedException {
+		final Logger pointLogger = Logger.getAnonymousLogger();
+		pointLogger.setUseParentHandlers(false);
+		StreamHandler h = new StreamHandler(p.log, new LineageEngine.LogFormatter());
+		h.setLevel(p.verbose ? Level.FINEST : Level.INFO);
+		pointLogger.setLevel(p.verbose ? Level.FINEST : Level.INFO);
+		pointLogger.addHandler(h);
+		
+		long start = System.currentTimeMillis();
+		PointSummary r;
+		try {
+			final Parameters params = p.args.parameters;
+			final LineageContext context = new LineageContext(params, pointLogger, budget, cache);
+			
+			// 1. load (once per data set)
+			final SNVDataStore db = cache.getDataStore(p.args, context);
+			String dataKey = LineageCache.getDataKey(p.args, params);
+			
+			// 2-3. group and cluster (once per cluster configuration)
+			String clusterKey = dataKey + "|" + params.getClusterStageKey();
+			final ClusteredGroups clustered = clusterStages.get(clusterKey, new Callable<ClusteredGroups>() {
+				public ClusteredGroups call() {
+					LineageContext stageContext = new LineageContext(params, pointLogger, null, cache);
+					ClusteredGroups c = new ClusteredGroups();
+					c.groups = LineageEngine.createGroups(db, stageContext);
+					LineageEngine.clusterGroups(p.args, db, c.groups, stageContext);
+					c.filterCounts = new long[FilterAudit.Reason.values().length];
+					for(FilterAudit.Reason reason : FilterAudit.Reason.values()) {
+						c.filterCounts[reason.ordinal()] = stageContext.getFilterAudit().getCount(reason);
+					}
+					return c;
+				}
+			});
+			for(FilterAudit.Reason reason : FilterAudit.Reason.values()) {
+				context.getFilterAudit().add(reason, clustered.filterCounts[reason.ordinal()]);
+			}
+			
+			// 4-6. network and tree search (once per configuration)
+			String searchKey = clusterKey + "|" + params.getSearchStageKey() + "|" + params.getRankStageKey();
+			r = searchStages.get(searchKey, new Callable<PointSummary>() {
+				public PointSummary call() {
+					PointSummary s = new PointSummary();
+					if(clustered.groups.size() == 0) {
+						pointLogger.warning("All SNV groups have been filtered out.");
+					} else {
+						// the points share the clusters, not the groups
+						ArrayList<SNVGroup> groups = new ArrayList<SNVGroup>();
+						for(SNVGroup g : clustered.groups) {
+							groups.add(new SNVGroup(g, context));
+						}
+						Results results = LineageEngine.findLineageTrees(p.args, context, db, groups);
+						s.numTrees = results.trees.size();
+						if(s.numTrees > 0) {
+							s.topErrorScore = results.trees.get(0).getErrorScore();
+						}
+						s.numNodes = results.network.numNodes;
+					}
+					s.numFilteredSNVs = context.getFilterAudit().getTotalCount();
+					pointLogger.info(context.getFilterAudit().getSummary());
+					return s;
+				}
+			});
+		} finally {
+			h.close();
+		}
+		double runTime = (System.currentTimeMillis() - start) / 1000.0;
+		LineageEngine.logger.info("Point " + p.id + " (" + getDescription(p) + "): " + r.numTrees + " valid tree(s) in " + new DecimalFormat("#.##").format(runTime) + "s");
+		PointSummary summary = new PointSummary();
+		summary.numTrees = r.numTrees;
+		summary.topErrorScore = r.topErrorScore;
+		summary.numNodes = r.numNodes;
+		summary.numFilteredSNVs = r.numFilteredSNVs;
+		summary.runTime = runTime;
+		return summary;
+	}
+	
+	private String getDescription(Point p) {
+		String s = "";
+		for(int i = 0; i < sweptOptions.size(); i++) {
+			s += (i > 0 ? " " : "") + sweptOptions.get(i) + "=" + p.values[i];
+		}
+		return s;
+	}
+	
+	/**
+	 * Saves the comparison table of the grid points (in grid order)
+	 */
+	private void writeTable(String tableFileName, ArrayList<Future<PointSummary>> results) {
+		Logger logger = LineageEngine.logger;
+		DecimalFormat timeFormat = new DecimalFormat("#.##");
+		Point best = null;
+		double bestScore = 0;
+		try {
+			FileWriter fw = new FileWriter(tableFileName);
+			fw.write("Point");
+			for(String name : sweptOptions) {
+				fw.write("\t" + name);
+			}
+			fw.write("\tStatus\tTrees\tTop error score\tNodes\tFiltered SNVs\tTime (s)\n");
+			for(int i = 0; i < points.size(); i++) {
+				Point p = points.get(i);
+				fw.write(String.valueOf(p.id));
+				for(String value : p.values) {
+					fw.write("\t" + value);
+				}
+				try {
+					PointSummary r = results.get(i).get();
+					fw.write("\t" + (r.numTrees > 0 ? "OK" : "NO TREES") + "\t" + r.numTrees + "\t");
+					fw.write((r.numTrees > 0 ? String.valueOf(r.topErrorScore) : "-") + "\t");
+					fw.write(r.numNodes + "\t" + r.numFilteredSNVs + "\t" + timeFormat.format(r.runTime) + "\n");
+					if(r.numTrees > 0 && (best == null || r.topErrorScore < bestScore)) {
+						best = p;
+						bestScore = r.topErrorScore;
+					}
+				} catch (ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					String error = (cause.getMessage() != null ? cause.getMessage() : cause.toString()).replace('\n', ' ');
+					logger.warning("Point " + p.id + ": failed (" + error + ")");
+					fw.write("\tFAILED: " + error + "\t-\t-\t-\t-\t-\n");
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					fw.write("\tINTERRUPTED\t-\t-\t-\t-\t-\n");
+				}
+			}
+			fw.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to write to the file: " + tableFileName);
+			System.exit(-1);
+		}
+		if(best != null) {
+			logger.info("Lowest top tree error score: " + bestScore + " at point " + best.id + " (" + getDescription(best) + ")");
+		}
+	}
+	
+	/**
+	 * Saves the logs of the grid points (in grid order)
+	 */
+	private void writeLogs(String logFileName) {
+		try {
+			OutputStream out = new FileOutputStream(logFileName);
+			for(Point p : points) {
+				out.write(("--- Point " + p.id + ": " + getDescription(p) + "\r\n").getBytes());
+				p.log.writeTo(out);
+			}
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to write to the file: " + logFileName);
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Parses the grid option names and values
+	 * @throws IllegalArgumentException if the grid is not valid
+	 */
+	private static void parseGrid(String grid, Options options, ArrayList<String> names, ArrayList<String[]> values) {
+		for(String entry : grid.split(";")) {
+			entry = entry.trim();
+			if(entry.length() == 0) continue;
+			int sep = entry.indexOf('=');
+			if(sep <= 0 || sep == entry.length() - 1) {
+				throw new IllegalArgumentException("Invalid sweep grid entry (expected option=value1,value2,...): " + entry);
+			}
+			String name = entry.substring(0, sep).trim();
+			if(name.startsWith("-")) {
+				name = name.substring(1);
+			}
+			Option o = options.getOption(name);
+			boolean sweepOption = false;
+			for(String s : SWEEP_OPTIONS) {
+				if(o != null && s.equals(o.getOpt())) {
+					sweepOption = true;
+				}
+			}
+			if(o == null || sweepOption || o.getOpt().equals("batch") || o.getOpt().equals("server")) {
+				throw new IllegalArgumentException("Option cannot be swept: " + name);
+			}
+			name = o.getOpt();
+			if(names.contains(name)) {
+				throw new IllegalArgumentException("Option is swept more than once: " + name);
+			}
+			String[] optionValues = entry.substring(sep + 1).split(",");
+			for(int i = 0; i < optionValues.length; i++) {
+				optionValues[i] = optionValues[i].trim();
+				if(!o.hasArg() && !optionValues[i].equals("on") && !optionValues[i].equals("off")) {
+					throw new IllegalArgumentException("Invalid value of flag " + name + " (expected on/off): " + optionValues[i]);
+				}
+			}
+			names.add(name);
+			values.add(optionValues);
+		}
+		if(names.size() == 0) {
+			throw new IllegalArgumentException("The sweep grid is empty");
+		}
+	}
+	
+	/**
+	 * Creates the grid points (the last option varies fastest) and sets up their run arguments
+	 * @throws IllegalArgumentException if the arguments of a grid point are not valid
+	 */
+	private static ArrayList<Point> createPoints(CommandLine cmdLine, Options options, ArrayList<String> names, ArrayList<String[]> values) {
+		// options applied to all the grid points
+		ArrayList<String> commonArgs = new ArrayList<String>();
+		for(Option o : cmdLine.getOptions()) {
+			boolean skip = names.contains(o.getOpt());
+			for(String name : SWEEP_OPTIONS) {
+				if(name.equals(o.getOpt())) {
+					skip = true;
+					break;
+				}
+			}
+			if(!skip) {
+				commonArgs.add("-" + o.getOpt());
+				if(o.hasArg()) {
+					commonArgs.add(o.getValue());
+				}
+			}
+		}
+		
+		ArrayList<Point> points = new ArrayList<Point>();
+		int[] index = new int[names.size()];
+		while(true) {
+			Point p = new Point();
+			p.id = points.size() + 1;
+			p.values = new String[names.size()];
+			ArrayList<String> pointArgs = new ArrayList<String>(commonArgs);
+			for(int i = 0; i < names.size(); i++) {
+				String value = values.get(i)[index[i]];
+				p.values[i] = value;
+				if(options.getOption(names.get(i)).hasArg()) {
+					pointArgs.add("-" + names.get(i));
+					pointArgs.add(value);
+				} else if(value.equals("on")) {
+					pointArgs.add("-" + names.get(i));
+				}
+			}
+			CommandLine pointLine;
+			try {
+				pointLine = new BasicParser().parse(options, pointArgs.toArray(new String[pointArgs.size()]));
+			} catch (ParseException e) {
+				throw new IllegalArgumentException("Sweep point " + p.id + ": " + e.getMessage());
+			}
+			try {
+				p.args = LineageEngine.parseArgs(pointLine);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Sweep point " + p.id + ": " + e.getMessage());
+			}
+			// only the comparison table is saved
+			p.args.outputFileName = null;
+			p.args.outputDOTFileName = null;
+			p.args.outputJSONFileName = null;
+			p.args.outputTreeSetFileName = null;
+			p.args.filterLogFileName = null;
+			p.args.checkpointFileName = null;
+			p.args.resume = false;
+			p.args.numShow = 0;
+			p.args.showNetwork = false;
+			p.verbose = pointLine.hasOption("v");
+			points.add(p);
+			
+			// next point
+			int i = names.size() - 1;
+			while(i >= 0 && index[i] == values.get(i).length - 1) {
+				index[i] = 0;
+				i--;
+			}
+			if(i < 0) break;
+			index[i]++;
+		}
+		return points;
+	}
+}
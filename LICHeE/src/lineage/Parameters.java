@@ -1,39 +1,159 @@
 package lineage;
 
+/**
+ * Immutable configuration of a lineage reconstruction run
+ * (created with a Parameters.Builder, which holds the default values)
+ */
 public class Parameters {
-	
+
 	// Input type
 	protected enum Format { VCF, SNV, SNV_WITH_PROFILE}
-	protected static Format INPUT_FORMAT = Format.SNV;
-	protected static boolean CP = false;
-	
+	protected final Format INPUT_FORMAT;
+	protected final boolean CP;
+
 	// SNV group partitioning
-	protected static double MAX_ALLOWED_VAF = 0.6;
-	protected static double MIN_VAF_PRESENT = 0.005; 
-	protected static double MAX_VAF_ABSENT = 0.005;
-	protected static int MIN_SNVS_PER_GROUP = 1;  
-	protected static int MIN_ROBUST_SNVS_PER_GROUP = 0;  
-	protected static double MIN_GROUP_PROFILE_SUPPORT = 2;  
-	protected static double MIN_VAF_TARGET_RATIO_PER_SAMPLE = 0.5;
-	
+	protected final double MAX_ALLOWED_VAF;
+	protected final double MIN_VAF_PRESENT;
+	protected final double MAX_VAF_ABSENT;
+	protected final int MIN_SNVS_PER_GROUP;
+	protected final int MIN_ROBUST_SNVS_PER_GROUP;
+	protected final double MIN_GROUP_PROFILE_SUPPORT;
+	protected final double MIN_VAF_TARGET_RATIO_PER_SAMPLE;
+
 	// Clusters
 	/** Minimum size a sub-population cluster must have to be a considered a node in the network */
-	protected static int MIN_CLUSTER_SIZE = 2;
-	protected static int MIN_PRIVATE_CLUSTER_SIZE = 1; 
-	protected static double MIN_ROBUST_CLUSTER_SUPPORT = 2;
-	
+	protected final int MIN_CLUSTER_SIZE;
+	protected final int MIN_PRIVATE_CLUSTER_SIZE;
+	protected final double MIN_ROBUST_CLUSTER_SUPPORT;
+
 	/** Maximum centroid difference up to which two clusters can be collapsed */
-	protected static double MAX_COLLAPSE_CLUSTER_DIFF = 0.2; 
-	
+	protected final double MAX_COLLAPSE_CLUSTER_DIFF;
+
 	// Constraint graph and spanning tree generation
 	/** Maximum VAF (used for the root node) */
-	protected static double VAF_MAX = 0.5;
+	protected final double VAF_MAX;
 	/** Error margin used for comparing VAF centroid values when adding edges in the network */
-	protected static double VAF_ERROR_MARGIN = 0.1;	
-	protected static boolean ALL_EDGES = false;
-	
+	protected final double VAF_ERROR_MARGIN;
+	protected final boolean ALL_EDGES;
+
 	/** Stop tree search once this many valid trees have been found */
-	protected static int MAX_NUM_TREES = 100000;
-	protected static int MAX_NUM_GROW_CALLS = 100000000;
-	protected static int NUM_TREES_FOR_CONSISTENCY_CHECK = 0;
+	protected final int MAX_NUM_TREES;
+	protected final int MAX_NUM_GROW_CALLS;
+	protected final int NUM_TREES_FOR_CONSISTENCY_CHECK;
+	/** Solve the QP consistency check with the closed-form projection solver instead of JOptimizer */
+	protected final boolean USE_PROJECTION_QP;
+	/** Run the QP consistency check on all the trees and rank them by its error score */
+	protected final boolean RANK_BY_QP;
+
+	// Performance
+	/** Maximum number of threads used by the parallel steps */
+	protected final int NUM_THREADS;
+
+	private Parameters(Builder b) {
+		INPUT_FORMAT = b.INPUT_FORMAT;
+		CP = b.CP;
+		MAX_ALLOWED_VAF = b.MAX_ALLOWED_VAF;
+		MIN_VAF_PRESENT = b.MIN_VAF_PRESENT;
+		MAX_VAF_ABSENT = b.MAX_VAF_ABSENT;
+		MIN_SNVS_PER_GROUP = b.MIN_SNVS_PER_GROUP;
+		MIN_ROBUST_SNVS_PER_GROUP = b.MIN_ROBUST_SNVS_PER_GROUP;
+		MIN_GROUP_PROFILE_SUPPORT = b.MIN_GROUP_PROFILE_SUPPORT;
+		MIN_VAF_TARGET_RATIO_PER_SAMPLE = b.MIN_VAF_TARGET_RATIO_PER_SAMPLE;
+		MIN_CLUSTER_SIZE = b.MIN_CLUSTER_SIZE;
+		MIN_PRIVATE_CLUSTER_SIZE = b.MIN_PRIVATE_CLUSTER_SIZE;
+		MIN_ROBUST_CLUSTER_SUPPORT = b.MIN_ROBUST_CLUSTER_SUPPORT;
+		MAX_COLLAPSE_CLUSTER_DIFF = b.MAX_COLLAPSE_CLUSTER_DIFF;
+		VAF_MAX = b.VAF_MAX;
+		VAF_ERROR_MARGIN = b.VAF_ERROR_MARGIN;
+		ALL_EDGES = b.ALL_EDGES;
+		MAX_NUM_TREES = b.MAX_NUM_TREES;
+		MAX_NUM_GROW_CALLS = b.MAX_NUM_GROW_CALLS;
+		NUM_TREES_FOR_CONSISTENCY_CHECK = b.NUM_TREES_FOR_CONSISTENCY_CHECK;
+		USE_PROJECTION_QP = b.USE_PROJECTION_QP;
+		RANK_BY_QP = b.RANK_BY_QP;
+		NUM_THREADS = b.NUM_THREADS;
+	}
+
+	// Stage dependencies: parameters read by each pipeline stage after the data is loaded
+	// (the loading parameters are part of the LineageCache data key)
+
+	/** Returns the parameters of the cluster filtering and collapsing stage */
+	protected String getClusterStageKey() {
+		return MIN_CLUSTER_SIZE + "|" + MIN_PRIVATE_CLUSTER_SIZE + "|" + MAX_COLLAPSE_CLUSTER_DIFF + "|" + MIN_ROBUST_CLUSTER_SUPPORT;
+	}
+
+	/** Returns the parameters of the network construction and tree search stages */
+	protected String getSearchStageKey() {
+		return VAF_MAX + "|" + VAF_ERROR_MARGIN + "|" + ALL_EDGES + "|" + MAX_NUM_TREES + "|" + MAX_NUM_GROW_CALLS;
+	}
+
+	/** Returns the parameters of the tree ranking stage */
+	protected String getRankStageKey() {
+		return NUM_TREES_FOR_CONSISTENCY_CHECK + "|" + USE_PROJECTION_QP + "|" + RANK_BY_QP;
+	}
+
+	/**
+	 * Mutable set of parameter values (initialized to the defaults)
+	 * used to create the run configuration
+	 */
+	public static class Builder {
+		protected Format INPUT_FORMAT = Format.SNV;
+		protected boolean CP = false;
+
+		protected double MAX_ALLOWED_VAF = 0.6;
+		protected double MIN_VAF_PRESENT = 0.005;
+		protected double MAX_VAF_ABSENT = 0.005;
+		protected int MIN_SNVS_PER_GROUP = 1;
+		protected int MIN_ROBUST_SNVS_PER_GROUP = 0;
+		protected double MIN_GROUP_PROFILE_SUPPORT = 2;
+		protected double MIN_VAF_TARGET_RATIO_PER_SAMPLE = 0.5;
+
+		protected int MIN_CLUSTER_SIZE = 2;
+		protected int MIN_PRIVATE_CLUSTER_SIZE = 1;
+		protected double MIN_ROBUST_CLUSTER_SUPPORT = 2;
+		protected double MAX_COLLAPSE_CLUSTER_DIFF = 0.2;
+
+		protected double VAF_MAX = 0.5;
+		protected double VAF_ERROR_MARGIN = 0.1;
+		protected boolean ALL_EDGES = false;
+		protected int MAX_NUM_TREES = 100000;
+		protected int MAX_NUM_GROW_CALLS = 100000000;
+		protected int NUM_TREES_FOR_CONSISTENCY_CHECK = 0;
+		protected boolean USE_PROJECTION_QP = false;
+		protected boolean RANK_BY_QP = false;
+
+		protected int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+		public Builder() {}
+
+		/** Initializes the values to the given configuration */
+		public Builder(Parameters p) {
+			INPUT_FORMAT = p.INPUT_FORMAT;
+			CP = p.CP;
+			MAX_ALLOWED_VAF = p.MAX_ALLOWED_VAF;
+			MIN_VAF_PRESENT = p.MIN_VAF_PRESENT;
+			MAX_VAF_ABSENT = p.MAX_VAF_ABSENT;
+			MIN_SNVS_PER_GROUP = p.MIN_SNVS_PER_GROUP;
+			MIN_ROBUST_SNVS_PER_GROUP = p.MIN_ROBUST_SNVS_PER_GROUP;
+			MIN_GROUP_PROFILE_SUPPORT = p.MIN_GROUP_PROFILE_SUPPORT;
+			MIN_VAF_TARGET_RATIO_PER_SAMPLE = p.MIN_VAF_TARGET_RATIO_PER_SAMPLE;
+			MIN_CLUSTER_SIZE = p.MIN_CLUSTER_SIZE;
+			MIN_PRIVATE_CLUSTER_SIZE = p.MIN_PRIVATE_CLUSTER_SIZE;
+			MIN_ROBUST_CLUSTER_SUPPORT = p.MIN_ROBUST_CLUSTER_SUPPORT;
+			MAX_COLLAPSE_CLUSTER_DIFF = p.MAX_COLLAPSE_CLUSTER_DIFF;
+			VAF_MAX = p.VAF_MAX;
+			VAF_ERROR_MARGIN = p.VAF_ERROR_MARGIN;
+			ALL_EDGES = p.ALL_EDGES;
+			MAX_NUM_TREES = p.MAX_NUM_TREES;
+			MAX_NUM_GROW_CALLS = p.MAX_NUM_GROW_CALLS;
+			NUM_TREES_FOR_CONSISTENCY_CHECK = p.NUM_TREES_FOR_CONSISTENCY_CHECK;
+			USE_PROJECTION_QP = p.USE_PROJECTION_QP;
+			RANK_BY_QP = p.RANK_BY_QP;
+			NUM_THREADS = p.NUM_THREADS;
+		}
+
+		public Parameters build() {
+			return new Parameters(this);
+		}
+	}
 }
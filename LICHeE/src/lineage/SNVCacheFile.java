@@ -0,0 +1,263 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Binary columnar SNV file format used to cache the parsed input SNVs.
+ * The file is memory-mapped when loaded.
+ *
+ * Layout (big-endian):
+ * - magic number, format version
+ * - number of samples, number of SNVs, number of profile words per SNV (0 if no profiles)
+ * - sample names (byte length + UTF-8 bytes)
+ * - chromosome column (int per SNV)
+ * - position column (int per SNV)
+ * - VAF matrix in column-major order (double per SNV per sample)
+ * - presence profiles (long words per SNV, if present)
+ * - description offset table (long per SNV + end offset)
+ * - descriptions (UTF-8 bytes)
+ *
+ * @autor viq
+ */
+public class SNVCacheFile {
+
+	private static final long MAGIC = 0x4C49434845455343L; // "LICHEESC"
+	private static final int VERSION = 1;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private int numSamples;
+	private int numSNVs;
+	private int profileWords;
+	private ArrayList<String> sampleNames;
+	private IntBuffer chromosomes;
+	private IntBuffer positions;
+	/** VAF column of each sample */
+	private DoubleBuffer[] vafs;
+	private LongBuffer profiles;
+	private LongBuffer descriptionOffsets;
+	private ByteBuffer descriptions;
+
+	/**
+	 * Memory-maps the given cache file
+	 */
+	public SNVCacheFile(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file.getFD()));
+			if(in.readLong() != MAGIC) {
+				throw new IOException("Not an SNV cache file: " + fileName);
+			}
+			if(in.readInt() != VERSION) {
+				throw new IOException("Unsupported SNV cache file version: " + fileName);
+			}
+			numSamples = in.readInt();
+			numSNVs = in.readInt();
+			profileWords = in.readInt();
+			long offset = 8 + 4*4;
+			sampleNames = new ArrayList<String>();
+			for(int i = 0; i < numSamples; i++) {
+				byte[] name = new byte[in.readInt()];
+				in.readFully(name);
+				sampleNames.add(new String(name, CHARSET));
+				offset += 4 + name.length;
+			}
+
+			FileChannel channel = file.getChannel();
+			chromosomes = map(channel, offset, 4L*numSNVs).asIntBuffer();
+			offset += 4L*numSNVs;
+			positions = map(channel, offset, 4L*numSNVs).asIntBuffer();
+			offset += 4L*numSNVs;
+			vafs = new DoubleBuffer[numSamples];
+			for(int j = 0; j < numSamples; j++) {
+				vafs[j] = map(channel, offset, 8L*numSNVs).asDoubleBuffer();
+				offset += 8L*numSNVs;
+			}
+			profiles = map(channel, offset, 8L*numSNVs*profileWords).asLongBuffer();
+			offset += 8L*numSNVs*profileWords;
+			descriptionOffsets = map(channel, offset, 8L*(numSNVs + 1)).asLongBuffer();
+			offset += 8L*(numSNVs + 1);
+			descriptions = map(channel, offset, descriptionOffsets.get(numSNVs));
+		} catch (EOFException e) {
+			throw new IOException("Truncated SNV cache file: " + fileName);
+		} finally {
+			// the mappings remain valid after the file is closed
+			file.close();
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+		if(size > Integer.MAX_VALUE) {
+			throw new IOException("SNV cache file section is too large to be mapped");
+		}
+		if(offset + size > channel.size()) {
+			throw new IOException("Truncated SNV cache file");
+		}
+		return channel.map(MapMode.READ_ONLY, offset, size);
+	}
+
+	/**
+	 * Returns true if the given file is an SNV cache file
+	 */
+	public static boolean isCacheFile(String fileName) {
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+			try {
+				return in.readLong() == MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the given SNVs to a cache file
+	 * @param withProfiles - store the SNV presence profiles
+	 */
+	public static void write(String fileName, ArrayList<String> sampleNames, ArrayList<SNVEntry> snvs, boolean withProfiles) throws IOException {
+		int numSamples = sampleNames.size();
+		int profileWords = withProfiles ? SampleProfile.newBitArray(numSamples).length : 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numSamples);
+			out.writeInt(snvs.size());
+			out.writeInt(profileWords);
+			for(String name : sampleNames) {
+				byte[] b = name.getBytes(CHARSET);
+				out.writeInt(b.length);
+				out.write(b);
+			}
+			for(SNVEntry entry : snvs) {
+				out.writeInt(entry.getChromosome());
+			}
+			for(SNVEntry entry : snvs) {
+				out.writeInt(entry.getPosition());
+			}
+			for(int j = 0; j < numSamples; j++) {
+				for(SNVEntry entry : snvs) {
+					out.writeDouble(entry.getVAF(j));
+				}
+			}
+			if(withProfiles) {
+				for(SNVEntry entry : snvs) {
+					for(long word : entry.getProfile().toBitArray()) {
+						out.writeLong(word);
+					}
+				}
+			}
+			byte[][] descriptions = new byte[snvs.size()][];
+			long descOffset = 0;
+			for(int i = 0; i < snvs.size(); i++) {
+				descriptions[i] = snvs.get(i).getDescription().getBytes(CHARSET);
+				out.writeLong(descOffset);
+				descOffset += descriptions[i].length;
+			}
+			out.writeLong(descOffset);
+			for(byte[] d : descriptions) {
+				out.write(d);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// Getters
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public int getNumSNVs() {
+		return numSNVs;
+	}
+
+	public ArrayList<String> getSampleNames() {
+		return sampleNames;
+	}
+
+	/** Returns true if the cache contains the SNV presence profiles */
+	public boolean hasProfiles() {
+		return profileWords > 0;
+	}
+
+	public int getChromosome(int snv) {
+		return chromosomes.get(snv);
+	}
+
+	public int getPosition(int snv) {
+		return positions.get(snv);
+	}
+
+	public double getVAF(int snv, int sample) {
+		return vafs[sample].get(snv);
+	}
+
+	/** Returns the (read-only) VAF column of the given sample */
+	public DoubleBuffer getVAFColumn(int sample) {
+		return vafs[sample].duplicate();
+	}
+
+	public SampleProfile getProfile(int snv) {
+		long[] words = new long[profileWords];
+		for(int i = 0; i < profileWords; i++) {
+			words[i] = profiles.get(snv*profileWords + i);
+		}
+		return new SampleProfile(numSamples, words);
+	}
+
+	public String getDescription(int snv) {
+		int start = (int) descriptionOffsets.get(snv);
+		byte[] b = new byte[(int) descriptionOffsets.get(snv + 1) - start];
+		ByteBuffer d = descriptions.duplicate();
+		d.position(start);
+		d.get(b);
+		return new String(b, CHARSET);
+	}
+}
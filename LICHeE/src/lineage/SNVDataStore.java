@@ -30,13 +30,21 @@
 package lineage;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -58,17 +66,35 @@ public class SNVDataStore {
 	/** List of SNVs with ambiguous VAFs in at least one sample */
 	protected ArrayList<SNVEntry> ambiguousSNVs;
 	/** Map of sample profile tags to a list of SNVs with this profile */
-	private HashMap<String, ArrayList<SNVEntry>> tag2SNVs;
-	private HashMap<String, ArrayList<Cluster>> tag2Clusters;
+	private HashMap<SampleProfile, ArrayList<SNVEntry>> tag2SNVs;
+	private HashMap<SampleProfile, ArrayList<Cluster>> tag2Clusters;
+	/** Data of all somatic SNVs */
+	private SNVTable snvTable;
+	/** VAFs of all somatic SNVs (shared by the SNV groups) */
+	private VAFMatrix vafMatrix;
 	/** Index of the normal sample in the input sample list*/
 	private int normalSample;
-	private static Logger logger = LineageEngine.logger;
+	/** Run configuration */
+	private final Parameters params;
+	private final FilterAudit audit;
+	private final Logger logger;
 
-	public SNVDataStore(String snvInputFile, String clusterInputFile, int normalSampleId) {
+	public SNVDataStore(String snvInputFile, String clusterInputFile, int normalSampleId, LineageContext context) {
+		this(snvInputFile, clusterInputFile, normalSampleId, context, true);
+	}
+	
+	/**
+	 * Loads the input SNVs; the SNV groups of the loaded SNVs 
+	 * are called only if callGroups is set (see callSNVGroups())
+	 */
+	protected SNVDataStore(String snvInputFile, String clusterInputFile, int normalSampleId, LineageContext context, boolean callGroups) {
+		params = context.getParameters();
+		audit = context.getFilterAudit();
+		logger = context.getLogger();
 		normalSample = normalSampleId;
 		somaticSNVs = new ArrayList<SNVEntry>();
-		tag2SNVs = new HashMap<String, ArrayList<SNVEntry>>();
-		tag2Clusters = new HashMap<String, ArrayList<Cluster>>();
+		tag2SNVs = new HashMap<SampleProfile, ArrayList<SNVEntry>>();
+		tag2Clusters = new HashMap<SampleProfile, ArrayList<Cluster>>();
 		ambiguousSNVs = new ArrayList<SNVEntry>();	
 		// load and process input SNVs
 		if(clusterInputFile == null) {
@@ -76,6 +102,7 @@ public class SNVDataStore {
 		} else {
 			loadSNVFileWithClusters(snvInputFile, clusterInputFile);
 		}
+		buildSNVTable();
 		
 		logger.fine("Sample id -> name map:");
 		for(int i = 0; i < getNumSamples(); i++) {
@@ -83,19 +110,27 @@ public class SNVDataStore {
 		}
 		logger.fine("Initial robust groups:");
 		reportSNVGroups();
-		if(Parameters.INPUT_FORMAT == Parameters.Format.SNV_WITH_PROFILE || clusterInputFile != null) return;
-		
+		if(!callGroups || params.INPUT_FORMAT == Format.SNV_WITH_PROFILE || clusterInputFile != null) return;
+		callSNVGroups();
+	}
+	
+	/**
+	 * Calls the final SNV groups of the loaded SNVs (input without profiles or clusters): 
+	 * the SNVs of small groups are assigned to existing groups or new groups, 
+	 * then the groups are filtered
+	 */
+	protected void callSNVGroups() {
 		// handle mutations from small groups as ambiguous
-		ArrayList<String> smallGroups = new ArrayList<String>();
-		for(String tag : tag2SNVs.keySet()) {
-			if(tag2SNVs.get(tag).size() < Parameters.MIN_GROUP_PROFILE_SUPPORT) {
+		ArrayList<SampleProfile> smallGroups = new ArrayList<SampleProfile>();
+		for(SampleProfile tag : tag2SNVs.keySet()) {
+			if(tag2SNVs.get(tag).size() < params.MIN_GROUP_PROFILE_SUPPORT) {
 				for(SNVEntry entry : tag2SNVs.get(tag)) {
 					ambiguousSNVs.add(entry);
 				}
 				smallGroups.add(tag);
 			}
 		}
-		for(String group : smallGroups) {
+		for(SampleProfile group : smallGroups) {
 			tag2SNVs.remove(group);
 		}
 		// assign ambiguous SNVs to existing groups or create new groups
@@ -106,6 +141,51 @@ public class SNVDataStore {
 		reportSNVGroups();
 	}
 	
+	/** Empty data store used to convert input files */
+	private SNVDataStore(LineageContext context) {
+		params = context.getParameters();
+		audit = context.getFilterAudit();
+		logger = context.getLogger();
+		somaticSNVs = new ArrayList<SNVEntry>();
+		tag2SNVs = new HashMap<SampleProfile, ArrayList<SNVEntry>>();
+		tag2Clusters = new HashMap<SampleProfile, ArrayList<Cluster>>();
+		ambiguousSNVs = new ArrayList<SNVEntry>();
+	}
+	
+	/**
+	 * Converts the input SNV file into the binary SNV cache format
+	 * (all the input SNVs are stored, no filtering is applied);
+	 * the cache file can be used as the input file of subsequent runs
+	 */
+	public static void convertToCacheFile(String snvInputFile, String cacheFile, LineageContext context) {
+		SNVDataStore db = new SNVDataStore(context);
+		db.loadUnfilteredSNVFile(snvInputFile);
+		try {
+			SNVCacheFile.write(cacheFile, db.sampleNames, db.somaticSNVs, db.params.INPUT_FORMAT == Format.SNV_WITH_PROFILE);
+		} catch (IOException e) {
+			throw new LineageException("Failed to write to the file: " + cacheFile, e);
+		}
+		db.logger.log(Level.INFO, "Saved " + db.somaticSNVs.size() + " SNVs to the cache file: " + cacheFile);
+	}
+	
+	/**
+	 * Copies the data of all the somatic SNVs into a single SNV table
+	 * (in order, the row of each SNV is its VAF matrix row) 
+	 * that backs the VAF matrix; the tables of the loaded chunks are released
+	 * (the SNVs filtered while loading are not moved: the filter audit copies their fields
+	 * and no other view of the chunk tables is kept)
+	 */
+	private void buildSNVTable() {
+		int numRows = somaticSNVs.size();
+		SNVFileReader source = (numRows > 0) ? somaticSNVs.get(0).table.getSource() : null;
+		snvTable = new SNVTable(numSamples, source, numRows);
+		for(int i = 0; i < numRows; i++) {
+			SNVEntry entry = somaticSNVs.get(i);
+			entry.moveTo(snvTable, snvTable.copyRow(entry.table, entry.row));
+		}
+		vafMatrix = snvTable.getVAFMatrix();
+	}
+	
 	/**
 	 * Assign ambiguous SNVs to existing groups; 
 	 * create new groups for SNVs with no suitable matches
@@ -113,29 +193,40 @@ public class SNVDataStore {
 	private void assignAmbiguousSNVs() {
 		if (ambiguousSNVs.size() == 0) return;
 		
-		ArrayList<String> targetTags = new ArrayList<String>(tag2SNVs.keySet());
-		String all1s = "", all0s = "";
-		for (int i = 0; i < numSamples; i++) { 
-			all1s += "1";
-			all0s += "0";
-		}
+		ArrayList<SampleProfile> targetTags = new ArrayList<SampleProfile>(tag2SNVs.keySet());
+		SampleProfile all1s = SampleProfile.all(numSamples);
+		SampleProfile all0s = SampleProfile.none(numSamples);
 		if(!tag2SNVs.containsKey(all0s)) {
 			targetTags.add(all0s);
 		}
 		targetTags.add(all1s);
 
+		// find the closest SNV of each initial target group (in parallel)
+		int[] numIndexed = new int[targetTags.size()];
+		for(int k = 0; k < targetTags.size(); k++) {
+			if(tag2SNVs.containsKey(targetTags.get(k))) {
+				numIndexed[k] = tag2SNVs.get(targetTags.get(k)).size();
+			}
+		}
+		double[][] initialTargetDist = findClosestInitialTargets(targetTags, all0s, all1s);
+
 		logger.log(Level.FINE, "Ambiguous profile SNV assignment (" + ambiguousSNVs.size() + " total): ");
 		ArrayList<SNVEntry> toRemove = new ArrayList<SNVEntry>();
-		for(SNVEntry snv : ambiguousSNVs) {	
+		for(int s = 0; s < ambiguousSNVs.size(); s++) {
+			SNVEntry snv = ambiguousSNVs.get(s);
 			double bestDistToTarget = 0;
-			String bestTarget = "";
+			SampleProfile bestTarget = null;
 				
-			for(String target : targetTags) {				
+			for(int k = 0; k < targetTags.size(); k++) {
+				SampleProfile target = targetTags.get(k);
 				if(!canConvert(snv, target)) continue;
 				// if the target is germline, move to germline regardless of distance
 				if(target.equals(all1s)) {
 					toRemove.add(snv);
-					logger.log(Level.FINE, "**Removed as germline:\n" + snv);
+					audit.record(FilterAudit.Reason.AMBIGUOUS_GERMLINE, snv);
+					if(logger.isLoggable(Level.FINE)) {
+						logger.log(Level.FINE, "**Removed as germline:\n" + snv);
+					}
 					break;
 				}				
 				if(target.equals(all0s)) {
@@ -146,41 +237,46 @@ public class SNVDataStore {
 					}
 					continue;
 				}
-				// compare to each mutation in the target group
-				for(SNVEntry targetSNV : tag2SNVs.get(target)) {
-					// compute the distance to the target snv
-					double dist = distToTargetVAF(snv, targetSNV);
-					if(dist > bestDistToTarget) {
-						bestDistToTarget = dist;
-						bestTarget = target;
+				// compare to the closest initial mutation in the target group
+				// and to each mutation assigned to the group so far
+				double dist = initialTargetDist[s][k];
+				ArrayList<SNVEntry> targetSNVs = tag2SNVs.get(target);
+				for(int j = numIndexed[k]; j < targetSNVs.size(); j++) {
+					double d = distToTargetVAF(snv, targetSNVs.get(j));
+					if(d > dist) {
+						dist = d;
 					}
 				}
+				if(dist > bestDistToTarget) {
+					bestDistToTarget = dist;
+					bestTarget = target;
+				}
 			}
-			if(bestTarget.equals(all0s)) {
+			if(all0s.equals(bestTarget)) {
 				snv.updateGroup(bestTarget);
-				logger.log(Level.FINE, "Assigned " + snv.getAmbigProfile() + " to " + bestTarget + " with dist " + bestDistToTarget + ": " + snv);
+				logger.log(Level.FINE, "Assigned " + snv.getAmbigProfile(params) + " to " + bestTarget + " with dist " + bestDistToTarget + ": " + snv);
 				continue;
 			}
 			
-			if(bestDistToTarget != 0 && bestDistToTarget >= getHammingWeight(bestTarget)*Parameters.MIN_VAF_TARGET_RATIO_PER_SAMPLE) {
+			if(bestDistToTarget != 0 && bestDistToTarget >= bestTarget.getHammingWeight()*params.MIN_VAF_TARGET_RATIO_PER_SAMPLE) {
 				// found a valid match
 				snv.updateGroup(bestTarget);
 				toRemove.add(snv);
 				tag2SNVs.get(bestTarget).add(snv);
-				logger.log(Level.FINE, "Assigned " + snv.getAmbigProfile() + " to " + bestTarget + " with dist " + bestDistToTarget + ": " + snv);
+				logger.log(Level.FINE, "Assigned " + snv.getAmbigProfile(params) + " to " + bestTarget + " with dist " + bestDistToTarget + ": " + snv);
 				continue;
 			}
 			
-			logger.log(Level.FINE, "**No existing candidate group found for " + snv.getAmbigProfile() + "" + ((bestDistToTarget != 0) ? " (best dist = " + bestDistToTarget + " to target " + bestTarget + "): " : ": ") + snv);
+			logger.log(Level.FINE, "**No existing candidate group found for " + snv.getAmbigProfile(params) + "" + ((bestDistToTarget != 0) ? " (best dist = " + bestDistToTarget + " to target " + bestTarget + "): " : ": ") + snv);
 
 		}
 		ambiguousSNVs.removeAll(toRemove);
 		
 		// remaining snvs had no suitable matches and potentially represent true branches
 		// we minimize the number of additional nodes by merging the groups
-		HashMap<String, ArrayList<SNVEntry>> ambiguousGroups = mergeAmbiguousSNVs(ambiguousSNVs);
+		HashMap<SampleProfile, ArrayList<SNVEntry>> ambiguousGroups = mergeAmbiguousSNVs(ambiguousSNVs);
 		
-		for(String tag : ambiguousGroups.keySet()) {
+		for(SampleProfile tag : ambiguousGroups.keySet()) {
 			if(tag.equals(all0s)) continue;
 			if(!tag2SNVs.containsKey(tag)) {
 				tag2SNVs.put(tag, ambiguousGroups.get(tag));
@@ -190,73 +286,169 @@ public class SNVDataStore {
 		tag2SNVs.remove(all0s);
 	}
 	
+	/** Minimum number of ambiguous SNVs assigned by a separate thread */
+	private static final int MIN_SNVS_PER_TASK = 256;
+	
 	/**
-	 * Finds the minimum number of groups that can incorporate the ambiguous input SNVs
-	 * applying the greedy set cover algorithm
+	 * Computes the maximum VAF similarity of each ambiguous SNV to the SNVs 
+	 * of each of the (initial) target groups it can be converted to
+	 * (only values that can change the best target are computed, the rest are 0)
+	 * @return distances by ambiguous SNV and target
 	 */
-	private HashMap<String, ArrayList<SNVEntry>> mergeAmbiguousSNVs(ArrayList<SNVEntry> snvs) {
-		HashMap<String, ArrayList<SNVEntry>> groups = new HashMap<String, ArrayList<SNVEntry>>();
-		HashMap<String, ArrayList<SNVEntry>> adj = new HashMap<String, ArrayList<SNVEntry>>();
-		
-		// generate all possible target profiles 
-		ArrayList<String> targets = generateAllPossibleTargets(snvs);
-		for(String t : targets) {
-			//System.out.println("Target " + t);
-			if(!adj.keySet().contains(t)) {
-				adj.put(t, new ArrayList<SNVEntry>());
+	private double[][] findClosestInitialTargets(final ArrayList<SampleProfile> targetTags, final SampleProfile all0s, final SampleProfile all1s) {
+		final VAFTree[] index = new VAFTree[targetTags.size()];
+		for(int k = 0; k < targetTags.size(); k++) {
+			SampleProfile target = targetTags.get(k);
+			if(!target.equals(all0s) && !target.equals(all1s)) {
+				index[k] = new VAFTree(tag2SNVs.get(target), numSamples);
 			}
 		}
+		final double[][] dist = new double[ambiguousSNVs.size()][targetTags.size()];
 		
-		// min vertex cover
-		for(SNVEntry entry : snvs) {
-			for(String target : adj.keySet()) {
-				if(canConvert(entry, target)) {
-					adj.get(target).add(entry);
+		int numTasks = Math.max(1, Math.min(params.NUM_THREADS, ambiguousSNVs.size()/MIN_SNVS_PER_TASK));
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for(int t = 0; t < numTasks; t++) {
+			final int start = (int) ((long) ambiguousSNVs.size()*t/numTasks);
+			final int end = (int) ((long) ambiguousSNVs.size()*(t+1)/numTasks);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					for(int s = start; s < end; s++) {
+						SNVEntry snv = ambiguousSNVs.get(s);
+						double[] vafs = snv.getVAFs();
+						// closer targets found before this one in the target order have precedence
+						double bestDistToTarget = 0;
+						for(int k = 0; k < targetTags.size(); k++) {
+							SampleProfile target = targetTags.get(k);
+							if(!canConvert(snv, target)) continue;
+							if(target.equals(all1s)) break;
+							double d;
+							if(target.equals(all0s)) {
+								d = distToZero(snv);
+							} else {
+								d = index[k].getMaxSimilarity(vafs, getComparedSamples(snv, target), bestDistToTarget);
+								dist[s][k] = d;
+							}
+							if(d > bestDistToTarget) {
+								bestDistToTarget = d;
+							}
+						}
+					}
+					return null;
 				}
+			});
+		}
+		if(tasks.size() == 1) {
+			try {
+				tasks.get(0).call();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
 			}
+			return dist;
 		}
-		while(snvs.size() > 0) {
-			// find the largest set
-			int maxSize = 0;
-			String maxSet = "";
-			for(String target : adj.keySet()) {
-				if(adj.get(target).size() > maxSize) {
-					maxSize = adj.get(target).size();
-					maxSet = target;
+		ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+		try {
+			for(Future<Object> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		return dist;
+	}
+	
+	/**
+	 * Returns the samples in which the VAFs of the SNV and SNVs of the target group are compared:
+	 * samples present in the target or with evidence of presence of the SNV 
+	 */
+	private int[] getComparedSamples(SNVEntry snv, SampleProfile target) {
+		int[] samples = new int[numSamples];
+		int n = 0;
+		for(int i = 0; i < numSamples; i++) {
+			if(!target.isSet(i) && !snv.isPresent(i) && !snv.evidenceOfPresence(i)) continue;
+			samples[n++] = i;
+		}
+		return Arrays.copyOf(samples, n);
+	}
+	
+	/**
+	 * Finds the minimum number of groups that can incorporate the ambiguous input SNVs
+	 * applying the greedy set cover algorithm
+	 */
+	private HashMap<SampleProfile, ArrayList<SNVEntry>> mergeAmbiguousSNVs(ArrayList<SNVEntry> snvs) {
+		HashMap<SampleProfile, ArrayList<SNVEntry>> groups = new HashMap<SampleProfile, ArrayList<SNVEntry>>();
+		
+		// generate all possible target profiles of each SNV
+		HashMap<SampleProfile, Integer> targetIds = new HashMap<SampleProfile, Integer>();
+		ArrayList<SampleProfile> targets = new ArrayList<SampleProfile>();
+		int[][] snvTargets = new int[snvs.size()][];
+		for(int i = 0; i < snvs.size(); i++) {
+			ArrayList<SampleProfile> snvTargetProfiles = getAllPossibleTargets(snvs.get(i));
+			snvTargets[i] = new int[snvTargetProfiles.size()];
+			for(int j = 0; j < snvTargetProfiles.size(); j++) {
+				SampleProfile t = snvTargetProfiles.get(j);
+				Integer id = targetIds.get(t);
+				if(id == null) {
+					id = targets.size();
+					targetIds.put(t, id);
+					targets.add(t);
 				}
+				snvTargets[i][j] = id;
 			}
-			if(maxSize == 1) break;
+		}
+		// ties between targets of the same size are broken by the target map order
+		int[] rank = new int[targets.size()];
+		int r = 0;
+		for(Integer id : targetIds.values()) {
+			rank[id] = r++;
+		}
+		
+		// min vertex cover
+		GreedySetCover setCover = new GreedySetCover(snvTargets, targets.size(), rank);
+		int numUncovered = snvs.size();
+		while(numUncovered > 0) {
+			// find the largest set
+			int maxSet = setCover.getMaxSet();
+			if(setCover.getNumUncovered(maxSet) == 1) break;
 			
-			groups.put(maxSet, adj.get(maxSet));
-			for(SNVEntry entry : adj.get(maxSet)) {
-				logger.log(Level.FINE, "Assigned " + entry.getAmbigProfile() + " to " + maxSet + ": " + entry);
-				entry.updateGroup(maxSet);
-				for(String target : adj.keySet()) {
-					if(target.equals(maxSet)) continue;
-					ArrayList<SNVEntry> l = adj.get(target);
-					if(l.contains(entry)) {
-						l.remove(entry);
-					}
-				}
-				snvs.remove(entry);
+			SampleProfile target = targets.get(maxSet);
+			ArrayList<SNVEntry> group = new ArrayList<SNVEntry>();
+			for(int i : setCover.cover(maxSet)) {
+				SNVEntry entry = snvs.get(i);
+				logger.log(Level.FINE, "Assigned " + entry.getAmbigProfile(params) + " to " + target + ": " + entry);
+				entry.updateGroup(target);
+				group.add(entry);
+			}
+			groups.put(target, group);
+			numUncovered -= group.size();
+		}
+		ArrayList<SNVEntry> remaining = new ArrayList<SNVEntry>();
+		for(int i = 0; i < snvs.size(); i++) {
+			if(!setCover.isCovered(i)) {
+				remaining.add(snvs.get(i));
 			}
-			adj.remove(maxSet);
 		}
+		snvs.clear();
+		snvs.addAll(remaining);
 		
 		// the remaining targets are supported by only 1 SNV
 		// decide the groups of the remaining SNVs based on their proximity to the thresholds
 		for(SNVEntry snv : snvs) {
-			String tag = "";
+			long[] bits = snv.getProfile().toBitArray();
 			for(int i = 0; i < numSamples; i++) {
-				if(snv.getProfile().charAt(i) == '0' && snv.evidenceOfPresence(i)) {
-					double delta0 = snv.getVAF(i) - Parameters.MAX_VAF_ABSENT;
-					double delta1 = Parameters.MIN_VAF_PRESENT - snv.getVAF(i);
-					tag += (delta1 < delta0) ? '1' : snv.getProfile().charAt(i);
-				} else {
-					tag += snv.getProfile().charAt(i);
+				if(!snv.isPresent(i) && snv.evidenceOfPresence(i)) {
+					double delta0 = snv.getVAF(i) - params.MAX_VAF_ABSENT;
+					double delta1 = params.MIN_VAF_PRESENT - snv.getVAF(i);
+					if(delta1 < delta0) {
+						SampleProfile.setBit(bits, i);
+					}
 				}
 			}
-			logger.log(Level.FINE, "Assigned " + snv.getAmbigProfile() + " to " + tag + ": " + snv);
+			SampleProfile tag = new SampleProfile(numSamples, bits);
+			logger.log(Level.FINE, "Assigned " + snv.getAmbigProfile(params) + " to " + tag + ": " + snv);
 			if(!groups.containsKey(tag)) {
 				groups.put(tag, new ArrayList<SNVEntry>());
 			}
@@ -266,31 +458,39 @@ public class SNVDataStore {
 		return groups;
 	}
 	
-	private ArrayList<String> generateAllPossibleTargets(ArrayList<SNVEntry> snvs) {
-		ArrayList<String> targets = new ArrayList<String>();
-		for(SNVEntry snv: snvs) {
-			extendTarget("", snv, targets);
-		}
-		return targets;
-	}
-	
-	private void extendTarget(String partialProfile, SNVEntry snv, ArrayList<String> targets) {
-		int sample = partialProfile.length();
-		if(sample == numSamples) {
-			targets.add(partialProfile);
-			return;
+	/**
+	 * Returns all the profiles the SNV can be converted to
+	 * (its profile extended by any subset of the samples with evidence of presence),
+	 * ordered by the extension bits, where the first sample is the most significant
+	 */
+	private ArrayList<SampleProfile> getAllPossibleTargets(SNVEntry snv) {
+		SampleProfile ext = snv.getPresenceEvidence().andNot(snv.getProfile());
+		int[] extSamples = new int[ext.getHammingWeight()];
+		int k = 0;
+		for(int i = 0; i < numSamples; i++) {
+			if(ext.isSet(i)) {
+				extSamples[k++] = i;
+			}
 		}
-		extendTarget(partialProfile + ""+ snv.getProfile().charAt(sample), snv, targets);
-		if(snv.getProfile().charAt(sample) == '0' && snv.evidenceOfPresence(sample)) {
-			extendTarget(partialProfile + '1', snv, targets);
+		long[] profile = snv.getProfile().toBitArray();
+		ArrayList<SampleProfile> targets = new ArrayList<SampleProfile>();
+		for(long subset = 0; subset < (1L << k); subset++) {
+			long[] bits = profile.clone();
+			for(int j = 0; j < k; j++) {
+				if((subset & (1L << (k-1-j))) != 0) {
+					SampleProfile.setBit(bits, extSamples[j]);
+				}
+			}
+			targets.add(new SampleProfile(numSamples, bits));
 		}
+		return targets;
 	}
 	
 	private double distToZero(SNVEntry snv) {
-		String tag = snv.getProfile();
+		SampleProfile tag = snv.getProfile();
 		double dist = 0;
 		for(int i = 0; i < numSamples; i++) {
-			if(tag.charAt(i) == '1' || snv.evidenceOfPresence(i)) {
+			if(tag.isSet(i) || snv.evidenceOfPresence(i)) {
 				dist += 0.0001/snv.getVAF(i);
 			}
 		}
@@ -298,44 +498,22 @@ public class SNVDataStore {
 	}
 	
 	private double distToTargetVAF(SNVEntry snv, SNVEntry targetSNV) {
-		String tag = snv.getProfile();
-		String targetTag = targetSNV.getProfile();
+		SampleProfile tag = snv.getProfile();
+		SampleProfile targetTag = targetSNV.getProfile();
 		double dist = 0;
 		for(int i = 0; i < numSamples; i++) {
-			if(targetTag.charAt(i) == '0' && tag.charAt(i) == '0' && !snv.evidenceOfPresence(i)) continue;
-			double min = targetSNV.getVAF(i) < snv.getVAF(i) ? targetSNV.getVAF(i) : snv.getVAF(i);
-			double max = targetSNV.getVAF(i) > snv.getVAF(i) ? targetSNV.getVAF(i) : snv.getVAF(i);
-			if(min == 0) {
-				min = 0.0001;
-			}
-			dist += min/max;
+			if(!targetTag.isSet(i) && !tag.isSet(i) && !snv.evidenceOfPresence(i)) continue;
+			dist += VAFTree.vafRatio(targetSNV.getVAF(i), snv.getVAF(i));
 		}
 		return dist;
 	}
 	
-	private boolean canConvert(SNVEntry snv, String target) {
-		String tag = snv.getProfile();		
-		for (int i = 0; i < tag.length(); i++) {
-			if (tag.charAt(i) != target.charAt(i)) {
-				if(tag.charAt(i) == '1') {
-					return false;
-				}
-				if(!snv.evidenceOfPresence(i)) {
-					return false;
-				}
-			}
-		}
-		return true;
-	}
-	
-	private int getHammingWeight(String tag) {
-		int w = 0;
-		for(int i = 0; i < tag.length(); i++) {
-			if(tag.charAt(i) == '1') {
-				w++;
-			}
-		}
-		return w;
+	/**
+	 * The SNV can be converted to the target if the target only adds 
+	 * samples with evidence of presence to its profile
+	 */
+	private boolean canConvert(SNVEntry snv, SampleProfile target) {
+		return snv.getProfile().canConvertTo(target, snv.getPresenceEvidence());
 	}
 	
 	/**
@@ -346,29 +524,29 @@ public class SNVDataStore {
 	 */
 	private void filterGroups() {
 		// apply minimum size and robust size constraint
-		ArrayList<String> filteredOut = new ArrayList<String>();
-		for(String tag : tag2SNVs.keySet()) {
-			if(isAbsent(tag) || (tag2SNVs.get(tag).size() < Parameters.MIN_SNVS_PER_GROUP)) {
+		ArrayList<SampleProfile> filteredOut = new ArrayList<SampleProfile>();
+		for(SampleProfile tag : tag2SNVs.keySet()) {
+			if(tag.isEmpty() || (tag2SNVs.get(tag).size() < params.MIN_SNVS_PER_GROUP)) {
 				filteredOut.add(tag);
 				continue;
 			}
 	
-			if(Parameters.MIN_ROBUST_SNVS_PER_GROUP > 0) {
+			if(params.MIN_ROBUST_SNVS_PER_GROUP > 0) {
 				int numRobust = 0;
 				for(SNVEntry entry : tag2SNVs.get(tag)) {
 					if(entry.isRobust()) {
 						numRobust++;
-						if(numRobust >= Parameters.MIN_ROBUST_SNVS_PER_GROUP) {
+						if(numRobust >= params.MIN_ROBUST_SNVS_PER_GROUP) {
 							break;
 						}
 					}
 				}
-				if(numRobust < Parameters.MIN_ROBUST_SNVS_PER_GROUP) {
+				if(numRobust < params.MIN_ROBUST_SNVS_PER_GROUP) {
 					filteredOut.add(tag);
 				}
 			}
 		}
-		for(String group : filteredOut) {
+		for(SampleProfile group : filteredOut) {
 			tag2SNVs.remove(group);
 		}
 	}
@@ -379,33 +557,20 @@ public class SNVDataStore {
 	 * - VAF higher than max threshold
 	 * - absence in all samples
 	 * 
-	 * SNVs that pass the above filters are stored based
-	 * on their robustness
+	 * @return the reason the SNV is filtered out, 
+	 * null if the SNV passes the filters
 	 */
-	private void processSNVEntry(SNVEntry entry) {
-		if(Parameters.INPUT_FORMAT != Format.SNV_WITH_PROFILE && entry.isPresent(normalSample)) {
-			logger.log(Level.INFO, "**Filtered as germline: \n" + entry);
-			return;
+	private FilterAudit.Reason filterSNVEntry(SNVEntry entry) {
+		if(params.INPUT_FORMAT != Format.SNV_WITH_PROFILE && entry.isPresent(normalSample)) {
+			return FilterAudit.Reason.GERMLINE;
 		}
 		if(!hasValidVAFs(entry)) {
-			logger.log(Level.INFO, "**Filtered due to VAFs > allowed MAX: \n" + entry);
-			return;
-		}
-		if(entry.isRobust() && isAbsent(entry.getProfile())) {
-			logger.log(Level.INFO, "**Filtered as robustly absent in all samples: \n" + entry);
-			return;
+			return FilterAudit.Reason.INVALID_VAF;
 		}
-		somaticSNVs.add(entry);	
-		
-		if(entry.isRobust()) {
-			String tag = entry.getProfile();
-			if (!tag2SNVs.containsKey(tag)){
-				tag2SNVs.put(tag, new ArrayList<SNVEntry>());	
-			}
-			tag2SNVs.get(tag).add(entry); 
-		} else {
-			ambiguousSNVs.add(entry);
+		if(entry.isRobust() && entry.getProfile().isEmpty()) {
+			return FilterAudit.Reason.ABSENT;
 		}
+		return null;
 	}
 	
 	/**
@@ -414,19 +579,7 @@ public class SNVDataStore {
 	private boolean hasValidVAFs(SNVEntry snv) {
 		for(int i = 0; i < numSamples; i++) {
 			// check if the VAF i too high
-			if(snv.getVAF(i) > Parameters.MAX_ALLOWED_VAF) {
-				return false;
-			}
-		}
-		return true;
-	}
-	
-	/** 
-	 * Checks if the SNV is absent in all the samples
-	 */
-	private boolean isAbsent(String tag) {
-		for(int i = 0; i < numSamples; i++) {
-			if(tag.charAt(i) == '1') {
+			if(snv.getVAF(i) > params.MAX_ALLOWED_VAF) {
 				return false;
 			}
 		}
@@ -447,22 +600,26 @@ public class SNVDataStore {
 		return sampleNames;
 	}
 	
-	public HashMap<String, ArrayList<SNVEntry>> getSomaticGroups() {
+	public HashMap<SampleProfile, ArrayList<SNVEntry>> getSomaticGroups() {
 		return tag2SNVs;
 	}
 	
-	public HashMap<String, ArrayList<Cluster>> getClusters() {
+	public HashMap<SampleProfile, ArrayList<Cluster>> getClusters() {
 		return tag2Clusters;
 	}
 	
+	public VAFMatrix getVAFMatrix() {
+		return vafMatrix;
+	}
+	
 	
 	/** A group is robust if it contains sufficient robust mutations */
-	public boolean isRobustGroup(String groupTag) {
+	public boolean isRobustGroup(SampleProfile groupTag) {
 		int numRobust = 0;
 		for(SNVEntry entry : tag2SNVs.get(groupTag)) {
 			if(entry.isRobust()) {
 				numRobust++;
-				if(numRobust >= Parameters.MIN_GROUP_PROFILE_SUPPORT) {
+				if(numRobust >= params.MIN_GROUP_PROFILE_SUPPORT) {
 					return true;
 				}
 			}
@@ -473,12 +630,12 @@ public class SNVDataStore {
 	/****** IO ******/
 	
 	public void reportSNVGroups() {
-		ArrayList<String> tags = new ArrayList<String>(tag2SNVs.keySet());
+		ArrayList<SampleProfile> tags = new ArrayList<SampleProfile>(tag2SNVs.keySet());
 		Collections.sort(tags);
 		Collections.reverse(tags);
 
 		logger.log(Level.FINE, "Profile\t#SNVs\t#Robust\tMean VAF(Robust Mean VAF)");	
-		for (String tag : tags){
+		for (SampleProfile tag : tags){
 			if (tag2SNVs.get(tag).size() == 0) {
 				continue;
 			}
@@ -519,24 +676,250 @@ public class SNVDataStore {
 	
 	////// SNV File I/O //////
 	
-	private void loadSNVFile(String inputFile) {
-		try {
-			BufferedReader rd = new BufferedReader(new FileReader(inputFile));
-			String currLine = rd.readLine();
-			if(currLine == null) {
-				returnInputFileFormatError("Empty file", null); 
+	/** Minimum size of an input file chunk loaded by a separate thread */
+	private static final long MIN_CHUNK_SIZE = 1 << 20;
+	
+	/** Minimum number of SNVs in a cache file chunk loaded by a separate thread */
+	private static final int MIN_CACHE_CHUNK_SIZE = 1 << 14;
+	
+	/**
+	 * SNV entries loaded from a newline-aligned chunk of the input file
+	 * (or a range of SNVs of an SNV cache file, or an entire VCF/compressed input file).
+	 * Entry ids are local to the chunk until they are re-based during the merge. 
+	 */
+	private class SNVFileChunk implements Callable<SNVFileChunk> {
+		/** Data of the SNVs of the chunk */
+		private SNVTable table;
+		private SNVFileReader rd;
+		private SNVCacheFile cache;
+		private int startRow, endRow;
+		private VCFReader vcf;
+		private final boolean filter;
+		private int numLines;
+		/** SNVs that passed the filters (all the SNVs if not filtering) */
+		private ArrayList<SNVEntry> somatic = new ArrayList<SNVEntry>();
+		private ArrayList<SNVEntry> ambiguous = new ArrayList<SNVEntry>();
+		/** Robust SNVs by profile tag, in the order the tags were first seen */
+		private LinkedHashMap<SampleProfile, ArrayList<SNVEntry>> groups = new LinkedHashMap<SampleProfile, ArrayList<SNVEntry>>();
+		/** Filtered SNVs and their filter reasons (only kept if they are audited or logged) */
+		private final boolean keepFiltered = audit.isRecording() || logger.isLoggable(Level.FINE);
+		private ArrayList<SNVEntry> filtered = new ArrayList<SNVEntry>();
+		private ArrayList<FilterAudit.Reason> filterReasons = new ArrayList<FilterAudit.Reason>();
+		/** Number of filtered SNVs per filter reason */
+		private int[] filterCounts = new int[FilterAudit.Reason.values().length];
+		
+		public SNVFileChunk(SNVFileReader file, long start, long end, boolean filterEntries) throws IOException {
+			rd = new SNVFileReader(file, start, end);
+			table = new SNVTable(numSamples, rd.getSource());
+			filter = filterEntries;
+		}
+		
+		/** Chunk of the remaining lines of the given (stream) reader */
+		public SNVFileChunk(SNVFileReader file, boolean filterEntries) {
+			rd = file;
+			table = new SNVTable(numSamples, rd.getSource());
+			filter = filterEntries;
+		}
+		
+		public SNVFileChunk(SNVCacheFile file, int start, int end, boolean filterEntries) {
+			cache = file;
+			startRow = start;
+			endRow = end;
+			table = new SNVTable(numSamples, null, end - start);
+			filter = filterEntries;
+		}
+		
+		public SNVFileChunk(VCFReader file, boolean filterEntries) {
+			vcf = file;
+			table = new SNVTable(numSamples, null);
+			filter = filterEntries;
+		}
+		
+		public SNVFileChunk call() throws IOException {
+			if(rd != null) {
+				while(rd.nextLine()) {
+					addSNVEntry(parseSNVEntry(rd, table, numLines+1));
+				}
+				rd.close();
+			} else if(vcf != null) {
+				while(vcf.nextRecord()) {
+					addSNVEntry(parseVCFEntry(vcf, table, numLines+1));
+				}
+			} else {
+				for(int row = startRow; row < endRow; row++) {
+					addSNVEntry(createSNVEntry(cache, row, table, numLines+1));
+				}
 			}
-			parseHeader(currLine);
-			
-			currLine = rd.readLine();
-			int totalSNVCounter = 0;
-			while (currLine != null) {
-				SNVEntry entry = parseSNVEntry(currLine, totalSNVCounter+1);
-				totalSNVCounter++;
+			return this;
+		}
+		
+		private void addSNVEntry(SNVEntry entry) {
+			numLines++;
+			if(filter) {
 				processSNVEntry(entry);
-				currLine = rd.readLine();
+			} else {
+				somatic.add(entry);
+			}
+		}
+		
+		/** 
+		 * Stores the SNVs that pass the filters 
+		 * based on their robustness 
+		 */
+		private void processSNVEntry(SNVEntry entry) {
+			FilterAudit.Reason reason = filterSNVEntry(entry);
+			if(reason != null) {
+				if(keepFiltered) {
+					filtered.add(entry);
+					filterReasons.add(reason);
+				} else {
+					filterCounts[reason.ordinal()]++;
+				}
+				return;
+			}
+			somatic.add(entry);	
+			
+			if(entry.isRobust()) {
+				SampleProfile tag = entry.getProfile();
+				if (!groups.containsKey(tag)){
+					groups.put(tag, new ArrayList<SNVEntry>());	
+				}
+				groups.get(tag).add(entry); 
+			} else {
+				ambiguous.add(entry);
 			}
+		}
+		
+		/** Sets the SNV ids based on the line number of the first line in the chunk */
+		private void setFirstId(int firstId) {
+			table.shiftIds(firstId - 1);
+		}
+	}
+	
+	/**
+	 * Loads the input file header and splits the input file (after the header) 
+	 * into chunks that are loaded in parallel; 
+	 * the input file can be a text SNV file, an SNV cache file, or a VCF file
+	 * (VCF files and gzip/BGZF compressed files are streamed by a single thread
+	 * while they are decompressed in the background)
+	 * @return chunks in file order
+	 */
+	private ArrayList<SNVFileChunk> loadSNVFileChunks(String inputFile, boolean filter) throws IOException {
+		ArrayList<SNVFileChunk> chunks = new ArrayList<SNVFileChunk>();
+		if(params.INPUT_FORMAT == Format.VCF && !SNVCacheFile.isCacheFile(inputFile)) {
+			VCFReader vcf = null;
+			try {
+				vcf = new VCFReader(inputFile, params.NUM_THREADS);
+			} catch (IOException e) {
+				returnInputFileFormatError(e.getMessage(), null);
+			}
+			sampleNames = vcf.getSampleNames();
+			numSamples = sampleNames.size();
+			if(numSamples < 2) {
+				returnInputFileFormatError("The VCF file must have at least 2 samples", null);
+			}
+			logger.log(Level.FINE, "Input file contains " + numSamples + " samples!");
+			chunks.add(new SNVFileChunk(vcf, filter));
+			runSNVFileChunks(chunks);
+			vcf.close();
+			logger.log(Level.INFO, "Skipped " + vcf.getNumSkipped() + " VCF records (non-PASS, non-SNV, or unsupported chromosome)");
+			return chunks;
+		}
+		if(SNVCacheFile.isCacheFile(inputFile)) {
+			SNVCacheFile cache = new SNVCacheFile(inputFile);
+			sampleNames = cache.getSampleNames();
+			numSamples = sampleNames.size();
+			logger.log(Level.FINE, "Input file contains " + numSamples + " samples!");
+			if(params.INPUT_FORMAT == Format.SNV_WITH_PROFILE && !cache.hasProfiles()) {
+				returnInputFileFormatError("The SNV cache file does not contain the sample presence-absence profiles", null);
+			}
+			int numChunks = Math.max(1, Math.min(params.NUM_THREADS, cache.getNumSNVs()/MIN_CACHE_CHUNK_SIZE));
+			for(int i = 0; i < numChunks; i++) {
+				int start = (int) ((long) cache.getNumSNVs()*i/numChunks);
+				int end = (int) ((long) cache.getNumSNVs()*(i+1)/numChunks);
+				chunks.add(new SNVFileChunk(cache, start, end, filter));
+			}
+			runSNVFileChunks(chunks);
+			return chunks;
+		}
+		
+		SNVFileReader rd;
+		if(CompressedFileInputStream.isCompressed(inputFile)) {
+			rd = new SNVFileReader(inputFile, new CompressedFileInputStream(inputFile, params.NUM_THREADS));
+		} else {
+			rd = new SNVFileReader(inputFile);
+		}
+		if(!rd.nextLine()) {
+			returnInputFileFormatError("Empty file", null); 
+		}
+		parseHeader(rd.getLine());
+		if(rd.isStream()) {
+			chunks.add(new SNVFileChunk(rd, filter));
+			runSNVFileChunks(chunks);
 			rd.close();
+			return chunks;
+		}
+		long start = rd.getPosition();
+		int numChunks = (int) Math.max(1, Math.min(params.NUM_THREADS, (rd.getSize() - start)/MIN_CHUNK_SIZE));
+		long[] boundaries = rd.getChunkBoundaries(start, numChunks);
+		for(int i = 0; i < boundaries.length - 1; i++) {
+			chunks.add(new SNVFileChunk(rd, boundaries[i], boundaries[i+1], filter));
+		}
+		runSNVFileChunks(chunks);
+		rd.close();
+		return chunks;
+	}
+	
+	private void runSNVFileChunks(ArrayList<SNVFileChunk> chunks) throws IOException {
+		if(chunks.size() == 1) {
+			chunks.get(0).call();
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(chunks.size());
+		try {
+			for(Future<SNVFileChunk> f : pool.invokeAll(chunks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private void loadSNVFile(String inputFile) {
+		try {
+			// merge the chunks in file order (SNV ids are assigned by line number)
+			int totalSNVCounter = 0;
+			for(SNVFileChunk chunk : loadSNVFileChunks(inputFile, true)) {
+				chunk.setFirstId(totalSNVCounter+1);
+				totalSNVCounter += chunk.numLines;
+				for(int i = 0; i < chunk.filtered.size(); i++) {
+					audit.record(chunk.filterReasons.get(i), chunk.filtered.get(i));
+					if(logger.isLoggable(Level.FINE)) {
+						logger.log(Level.FINE, "**" + chunk.filterReasons.get(i).getDescription() + ": \n" + chunk.filtered.get(i));
+					}
+				}
+				for(FilterAudit.Reason reason : FilterAudit.Reason.values()) {
+					audit.add(reason, chunk.filterCounts[reason.ordinal()]);
+				}
+				somaticSNVs.addAll(chunk.somatic);
+				for(SampleProfile tag : chunk.groups.keySet()) {
+					if (!tag2SNVs.containsKey(tag)){
+						tag2SNVs.put(tag, new ArrayList<SNVEntry>());	
+					}
+					tag2SNVs.get(tag).addAll(chunk.groups.get(tag));
+				}
+				ambiguousSNVs.addAll(chunk.ambiguous);
+			}
 			logger.log(Level.INFO, "There are " + totalSNVCounter + " SNVs in the input file. \nAfter pre-processing, the input consists of " + somaticSNVs.size() +" somatic SNVs. \n");
 		} catch (IOException e){
 			returnInputFileFormatError("Could not read file: " + inputFile, null);
@@ -544,32 +927,27 @@ public class SNVDataStore {
 		
 	}
 	
-	private void loadSNVFileWithClusters(String inputFile, String clustersFile) {
-		// load the input SNV file 
+	/** Loads all the SNVs of the input file (no filtering) */
+	private void loadUnfilteredSNVFile(String inputFile) {
 		try {
-			BufferedReader rd = new BufferedReader(new FileReader(inputFile));
-			String currLine = rd.readLine();
-			if(currLine == null) {
-				returnInputFileFormatError("Empty file", null); 
-			}
-			parseHeader(currLine);
-			
-			currLine = rd.readLine();
 			int totalSNVCounter = 0;
-			while (currLine != null) {
-				SNVEntry entry = parseSNVEntry(currLine, totalSNVCounter+1);
-				totalSNVCounter++;
-				somaticSNVs.add(entry);	// no filtering
-				currLine = rd.readLine();
+			for(SNVFileChunk chunk : loadSNVFileChunks(inputFile, false)) {
+				chunk.setFirstId(totalSNVCounter+1);
+				totalSNVCounter += chunk.numLines;
+				somaticSNVs.addAll(chunk.somatic);
 			}
-			rd.close();
 			logger.log(Level.INFO, "There are " + totalSNVCounter + " SNVs in the input file.\n");
 		} catch (IOException e){
 			returnInputFileFormatError("Could not read file: " + inputFile, null);
 		}
+	}
+	
+	private void loadSNVFileWithClusters(String inputFile, String clustersFile) {
+		// load the input SNV file 
+		loadUnfilteredSNVFile(inputFile);
 		// load the clusters file
 		try {
-			BufferedReader rd = new BufferedReader(new FileReader(clustersFile));
+			BufferedReader rd = new BufferedReader(new InputStreamReader(CompressedFileInputStream.open(clustersFile, params.NUM_THREADS)));
 			String currLine = rd.readLine();
 			if(currLine == null) {
 				returnInputFileFormatError("Empty file", null); 
@@ -579,12 +957,12 @@ public class SNVDataStore {
 			while (currLine != null) {
 				double[] vafs = new double[numSamples];
 				ArrayList<Integer> members = new ArrayList<Integer>();
-				String profile = parseSNVCluster(currLine, vafs, members);
-				int numSetSamples = getHammingWeight(profile);
+				SampleProfile profile = parseSNVCluster(currLine, vafs, members);
+				int numSetSamples = profile.getHammingWeight();
 				double[] centroid = new double[numSetSamples];
 				int idx = 0;
 				for(int i = 0; i < numSamples; i++) {
-					if(profile.charAt(i) == '1') {
+					if(profile.isSet(i)) {
 						centroid[idx] = vafs[i];
 						idx++;
 					}
@@ -601,10 +979,18 @@ public class SNVDataStore {
 					tag2SNVs.put(profile, new ArrayList<SNVEntry>());
 				}
 				for(int i = 0; i < members.size(); i++) {
-					c.addMember(startId + i);
 					SNVEntry snv = somaticSNVs.get(members.get(i)-1);
-					snv.presenceProfile = profile;
-					snv.isRobust = true;
+					double[] obs = new double[numSetSamples];
+					idx = 0;
+					for(int j = 0; j < numSamples; j++) {
+						if(profile.isSet(j)) {
+							obs[idx] = snv.getVAF(j);
+							idx++;
+						}
+					}
+					c.addMember(startId + i, obs);
+					snv.updateGroup(profile);
+					snv.table.setRobust(snv.row, true);
 					tag2SNVs.get(profile).add(snv);
 				}
 				if(!tag2Clusters.containsKey(profile)) {
@@ -623,16 +1009,12 @@ public class SNVDataStore {
 	// Format information
 	protected static final int NUM_REQ_FIELDS_SNV_FILE = 3;
 	protected static final int NUM_REQ_FIELDS_SNV_W_PROFILE_FILE = 4;
-	public static int getNumRequiredFields() {
-		return Parameters.INPUT_FORMAT == Format.SNV ? NUM_REQ_FIELDS_SNV_FILE : NUM_REQ_FIELDS_SNV_W_PROFILE_FILE;
+	private int getNumRequiredFields() {
+		return params.INPUT_FORMAT == Format.SNV_WITH_PROFILE ? NUM_REQ_FIELDS_SNV_W_PROFILE_FILE : NUM_REQ_FIELDS_SNV_FILE;
 	}
 		
 	public static void returnInputFileFormatError(String desc, String entry) {
-		System.err.println("[Wrong input file format] " + desc);
-		if(entry != null) {
-			System.err.println("Line: " + entry);
-		}
-		System.exit(1);
+		throw new InputFormatException(desc, entry);
 	}
 	
 	private void parseHeader(String headerLine) {	
@@ -646,78 +1028,125 @@ public class SNVDataStore {
 		logger.log(Level.FINE, "Input file contains " + numSamples + " samples!");
 	}
 	
-	/** Returns the SNV chromosome as an integer value */
-	private int parseChrNum(String chrString) {
-		if(chrString.contains("chr")) {
-			chrString = chrString.substring(3, chrString.length());
-		}
-		if(chrString.equals("x")) return 23;
-		if(chrString.equals("y")) return 24;
-		try {
-			return Integer.parseInt(chrString);
-		} catch (Exception e) {
-			return -1;
+	/** Parses the current line of the input file reader */
+	private SNVEntry parseSNVEntry(SNVFileReader rd, SNVTable table, int lineId) {
+		int row = table.addRow(lineId);
+		if(table.getSource() != null) {
+			table.setLine(row, rd.getLineOffset(), rd.getLineLength());
 		}
-	}
-	
-	private SNVEntry parseSNVEntry(String line, int lineId) {
-		SNVEntry entry = new SNVEntry(line, lineId);
 		
 		// parse the entry fields
-		String[] entryParts = line.split("\t");
 		int numFields = getNumRequiredFields();
-		if(entryParts.length != (numFields + numSamples)) {
-			returnInputFileFormatError("Expecting " + numFields + " fields and " + numSamples + " samples based on the header", line);
+		if(rd.getNumFields() != (numFields + numSamples)) {
+			returnInputFileFormatError("Expecting " + numFields + " fields and " + numSamples + " samples based on the header", rd.getLine());
 		}
 		
-		entry.chr = parseChrNum(entryParts[0].trim().toLowerCase());
-		if(entry.chr == -1) {
-			returnInputFileFormatError("Chromosome " + entryParts[0], line);
+		int chr = rd.parseChromosome(0);
+		if(chr == -1) {
+			returnInputFileFormatError("Chromosome " + rd.getField(0), rd.getLine());
 		}
+		table.setChromosome(row, chr);
 		try {
-			entry.position = Integer.parseInt(entryParts[1].trim());
+			table.setPosition(row, rd.parseInt(1));
 		} catch (NumberFormatException e) {
-			returnInputFileFormatError("Position " + entryParts[1].trim(), line);
+			returnInputFileFormatError("Position " + rd.getTrimmedField(1), rd.getLine());
 		}	 
-		entry.description = entryParts[2].trim();
-		if(Parameters.INPUT_FORMAT == Format.SNV_WITH_PROFILE) {
-			entry.presenceProfile = entryParts[3].trim();
-			if(entry.presenceProfile.length() != numSamples) {
-				returnInputFileFormatError("Presence profile " + entry.presenceProfile + " length does not match the number of input samples", line);
+		table.setDescription(row, rd.getTrimmedField(2));
+		if(params.INPUT_FORMAT == Format.SNV_WITH_PROFILE) {
+			String profile = rd.getTrimmedField(3);
+			if(profile.length() != numSamples) {
+				returnInputFileFormatError("Presence profile " + profile + " length does not match the number of input samples", rd.getLine());
 			}
-		} else {
-			entry.presenceProfile = "";
-			entry.ambigPresenceProfile = "";
+			table.setProfile(row, SampleProfile.parse(profile));
 		}
 		
 		// parse per sample VAF values
-		entry.VAF = new double[numSamples];
-		entry.isRobust = true;
 		for(int i = 0; i < numSamples; i++) {
 			try {
-				entry.VAF[i] = Double.parseDouble(entryParts[numFields + i]);
+				table.setVAF(row, i, rd.parseDouble(numFields + i));
 			} catch (NumberFormatException e) {
-				returnInputFileFormatError("VAF value " + entryParts[i + numFields], line);
+				returnInputFileFormatError("VAF value " + rd.getField(i + numFields), rd.getLine());
 			}
-			if(Parameters.INPUT_FORMAT == Format.SNV_WITH_PROFILE) continue;
-			if (entry.VAF[i] <  Parameters.MIN_VAF_PRESENT){
-				if (entry.VAF[i] >=  Parameters.MAX_VAF_ABSENT) {
-					entry.isRobust = false;
-					entry.ambigPresenceProfile += "*";
-				} else {
-					entry.ambigPresenceProfile += "0";
+		}
+		SNVEntry entry = new SNVEntry(table, row);
+		setPresenceProfile(entry);
+		
+		return entry;
+	}
+	
+	/** Parses the current record of the VCF file reader */
+	private SNVEntry parseVCFEntry(VCFReader vcf, SNVTable table, int lineId) {
+		if(!vcf.isValidRecord()) {
+			returnInputFileFormatError("Expecting 9 fields and " + numSamples + " samples based on the VCF header", vcf.getLine());
+		}
+		int row = table.addRow(lineId);
+		table.setChromosome(row, vcf.getChromosome());
+		table.setPosition(row, vcf.getPosition());
+		if(vcf.getPosition() == -1) {
+			returnInputFileFormatError("Position", vcf.getLine());
+		}
+		table.setDescription(row, vcf.getDescription());
+		
+		// compute per sample VAF values
+		for(int i = 0; i < numSamples; i++) {
+			try {
+				table.setVAF(row, i, vcf.getVAF(i));
+			} catch (NumberFormatException e) {
+				returnInputFileFormatError("Sample " + sampleNames.get(i) + " AD/DP/AF values (" + e.getMessage() + ")", vcf.getLine());
+			}
+		}
+		SNVEntry entry = new SNVEntry(table, row);
+		setPresenceProfile(entry);
+		return entry;
+	}
+	
+	/** Creates the entry of the given SNV of an SNV cache file */
+	private SNVEntry createSNVEntry(SNVCacheFile cache, int cacheRow, SNVTable table, int lineId) {
+		int row = table.addRow(lineId);
+		table.setChromosome(row, cache.getChromosome(cacheRow));
+		table.setPosition(row, cache.getPosition(cacheRow));
+		table.setDescription(row, cache.getDescription(cacheRow));
+		if(params.INPUT_FORMAT == Format.SNV_WITH_PROFILE) {
+			table.setProfile(row, cache.getProfile(cacheRow));
+		}
+		for(int i = 0; i < numSamples; i++) {
+			table.setVAF(row, i, cache.getVAF(cacheRow, i));
+		}
+		SNVEntry entry = new SNVEntry(table, row);
+		setPresenceProfile(entry);
+		return entry;
+	}
+	
+	/** 
+	 * Sets the presence-absence profile of the entry based on its VAFs 
+	 * (unless the profile was provided in the input) 
+	 */
+	private void setPresenceProfile(SNVEntry entry) {
+		boolean isRobust = true;
+		long[] presence = SampleProfile.newBitArray(numSamples);
+		long[] evidence = SampleProfile.newBitArray(numSamples);
+		for(int i = 0; i < numSamples; i++) {
+			double vaf = entry.getVAF(i);
+			if(vaf > params.MAX_VAF_ABSENT) {
+				SampleProfile.setBit(evidence, i);
+			}
+			if(params.INPUT_FORMAT == Format.SNV_WITH_PROFILE) continue;
+			if (vaf <  params.MIN_VAF_PRESENT){
+				if (vaf >=  params.MAX_VAF_ABSENT) {
+					isRobust = false;
 				}
-				entry.presenceProfile += "0";
 			} else { 
-				entry.presenceProfile += "1";
-				entry.ambigPresenceProfile += "1";
+				SampleProfile.setBit(presence, i);
 			}
 		}
-		
-		return entry;
+		entry.table.setRobust(entry.row, isRobust);
+		entry.table.setPresenceEvidence(entry.row, new SampleProfile(numSamples, evidence));
+		if(params.INPUT_FORMAT != Format.SNV_WITH_PROFILE) {
+			entry.table.setProfile(entry.row, new SampleProfile(numSamples, presence));
+		}
 	}
 	
-	private String parseSNVCluster(String line, double[] centroid, ArrayList<Integer> members) {	
+	private SampleProfile parseSNVCluster(String line, double[] centroid, ArrayList<Integer> members) {	
 		// parse the entry fields
 		String[] entryParts = line.split("\t");
 		int numFields = 2;
@@ -750,7 +1179,7 @@ public class SNVDataStore {
 				returnInputFileFormatError("SSNV member entry " + s.trim() + " is not a valid number ", line);
 			}
 		}
-		return profile;
+		return SampleProfile.parse(profile);
 	}
 	
 	////// Additional SNV annotations ////
@@ -758,9 +1187,9 @@ public class SNVDataStore {
 	private ArrayList<CNVRegion> loadCNVs(String inputCNVFile){
 		ArrayList<CNVRegion> CNVs = new ArrayList<CNVRegion>();
 		try {
-			BufferedReader rd = new BufferedReader(new FileReader(inputCNVFile));
+			BufferedReader rd = new BufferedReader(new InputStreamReader(CompressedFileInputStream.open(inputCNVFile, params.NUM_THREADS)));
 			String currLine = rd.readLine();
-			if (currLine.charAt(0) == '#') {
+			if (currLine != null && currLine.length() > 0 && currLine.charAt(0) == '#') {
 				currLine = rd.readLine();             
 			}
 			while (currLine != null){
@@ -778,13 +1207,13 @@ public class SNVDataStore {
 	private ArrayList<String> loadAnnovarFunction(String inputAnnFile){
 		ArrayList<String> anns = new ArrayList<String>();
 		try {
-			BufferedReader rd = new BufferedReader(new FileReader(inputAnnFile));
+			BufferedReader rd = new BufferedReader(new InputStreamReader(CompressedFileInputStream.open(inputAnnFile, params.NUM_THREADS)));
 			String currLine = rd.readLine();
 			while (currLine != null){
 				String[] entryParts = currLine.split("\t");
 				String ann = "";
 				ann += entryParts[0] + " ";
-				ann += entryParts[1];
+				ann += (entryParts.length > 1) ? entryParts[1] : "";
 				anns.add(ann);
 				currLine = rd.readLine();
 			}
@@ -795,15 +1224,33 @@ public class SNVDataStore {
 		return anns;
 	}
 	
-	// returns COSMIC info by SNV position
-	private HashMap<Integer, String> loadCOSMIC(String inputCOSMICFile){
-		HashMap<Integer, String> cosmicDB = new HashMap<Integer, String>();
+	/** Returns the hash key of the given genomic position */
+	private static long getPositionKey(int chr, int pos) {
+		return ((long) chr << 32) | (pos & 0xffffffffL);
+	}
+	
+	/** 
+	 * Returns COSMIC info by SNV position key 
+	 * (columns: id, info, chromosome, position)
+	 */
+	private HashMap<Long, String> loadCOSMIC(String inputCOSMICFile){
+		HashMap<Long, String> cosmicDB = new HashMap<Long, String>();
 		try {
-			BufferedReader rd = new BufferedReader(new FileReader(inputCOSMICFile));
+			BufferedReader rd = new BufferedReader(new InputStreamReader(CompressedFileInputStream.open(inputCOSMICFile, params.NUM_THREADS)));
 			String currLine = rd.readLine();
 			while (currLine != null){
 				String[] entryParts = currLine.split("\t");
-				cosmicDB.put(Integer.parseInt(entryParts[3]), entryParts[1]);
+				if(entryParts.length > 3) {
+					int chr = VCFReader.parseChromosome(entryParts[2].trim());
+					try {
+						int pos = Integer.parseInt(entryParts[3].trim());
+						if(chr != -1) {
+							cosmicDB.put(getPositionKey(chr, pos), entryParts[1]);
+						}
+					} catch (NumberFormatException e) {
+						// header or malformed line
+					}
+				}
 				currLine = rd.readLine();
 			}
 			rd.close();
@@ -813,20 +1260,27 @@ public class SNVDataStore {
 		return cosmicDB;
 	}
 	
-	private HashMap<Integer, ArrayList<Integer>> loadTCGA(String inputTCGAFile){
-		HashMap<Integer, ArrayList<Integer>> tcgaDB = new HashMap<Integer, ArrayList<Integer>>();
+	/** 
+	 * Returns the TCGA SNV position keys 
+	 * (columns: chromosome, position)
+	 */
+	private HashSet<Long> loadTCGA(String inputTCGAFile){
+		HashSet<Long> tcgaDB = new HashSet<Long>();
 		try {
-			BufferedReader rd = new BufferedReader(new FileReader(inputTCGAFile));
+			BufferedReader rd = new BufferedReader(new InputStreamReader(CompressedFileInputStream.open(inputTCGAFile, params.NUM_THREADS)));
 			String currLine = rd.readLine();
 			while (currLine != null){
 				String[] entryParts = currLine.split("\t");
-				int chr = Integer.parseInt(entryParts[0].trim());
-				int pos = Integer.parseInt(entryParts[1].trim());
-				if(tcgaDB.containsKey(chr)) {
-					tcgaDB.get(chr).add(pos);
-				} else {
-					tcgaDB.put(chr, new ArrayList<Integer>());
-					tcgaDB.get(chr).add(pos);
+				if(entryParts.length > 1) {
+					int chr = VCFReader.parseChromosome(entryParts[0].trim());
+					try {
+						int pos = Integer.parseInt(entryParts[1].trim());
+						if(chr != -1) {
+							tcgaDB.add(getPositionKey(chr, pos));
+						}
+					} catch (NumberFormatException e) {
+						// header or malformed line
+					}
 				}
 				currLine = rd.readLine();
 			}
@@ -837,41 +1291,118 @@ public class SNVDataStore {
 		return tcgaDB;
 	}
 	
+	/**
+	 * Flags the somatic SNVs that fall into any of the given CNV regions.
+	 * The SNVs and the regions are sorted by (chromosome, position) and joined 
+	 * in a single sweep that tracks the maximum end of the regions started so far
+	 * on the current chromosome (regions may overlap).
+	 * @return number of SNVs in CNV regions
+	 */
+	private int annotateCNVs(ArrayList<CNVRegion> cnvs) {
+		ArrayList<CNVRegion> regions = new ArrayList<CNVRegion>(cnvs);
+		Collections.sort(regions, new Comparator<CNVRegion>() {
+			public int compare(CNVRegion r1, CNVRegion r2) {
+				if(r1.getChromosome() != r2.getChromosome()) {
+					return (r1.getChromosome() < r2.getChromosome()) ? -1 : 1;
+				}
+				if(r1.getStartPos() != r2.getStartPos()) {
+					return (r1.getStartPos() < r2.getStartPos()) ? -1 : 1;
+				}
+				return 0;
+			}
+		});
+		ArrayList<SNVEntry> snvs = new ArrayList<SNVEntry>(somaticSNVs);
+		Collections.sort(snvs, new Comparator<SNVEntry>() {
+			public int compare(SNVEntry e1, SNVEntry e2) {
+				if(e1.getChromosome() != e2.getChromosome()) {
+					return (e1.getChromosome() < e2.getChromosome()) ? -1 : 1;
+				}
+				if(e1.getPosition() != e2.getPosition()) {
+					return (e1.getPosition() < e2.getPosition()) ? -1 : 1;
+				}
+				return 0;
+			}
+		});
+		
+		int numInCNV = 0;
+		int next = 0;
+		int chr = Integer.MIN_VALUE;
+		long maxEnd = -1;
+		for(SNVEntry entry : snvs) {
+			if(entry.getChromosome() != chr) {
+				chr = entry.getChromosome();
+				maxEnd = -1;
+				while(next < regions.size() && regions.get(next).getChromosome() < chr) {
+					next++;
+				}
+			}
+			while(next < regions.size() && regions.get(next).getChromosome() == chr 
+					&& regions.get(next).getStartPos() <= entry.getPosition()) {
+				maxEnd = Math.max(maxEnd, regions.get(next).getEndPos());
+				next++;
+			}
+			boolean inCNV = (maxEnd >= entry.getPosition());
+			entry.setInCNVRegion(inCNV);
+			if(inCNV) {
+				entry.addAnnotation("+CNV+");
+				numInCNV++;
+			}
+		}
+		return numInCNV;
+	}
+	
+	/**
+	 * Annotates the somatic SNVs given the CNV regions, ANNOVAR functions 
+	 * (one line per somatic SNV, in input order), COSMIC and TCGA entries
+	 * (the file names can be null)
+	 */
 	public void annotateSNVs(String inputCNVFile, String inputAnnFile, String cosmicFile, String tcgaFile) {
-		ArrayList<CNVRegion> cnvs = null;
 		if(inputCNVFile != null) {
-			cnvs = loadCNVs(inputCNVFile);
+			ArrayList<CNVRegion> cnvs = loadCNVs(inputCNVFile);
+			int numInCNV = annotateCNVs(cnvs);
+			logger.info(numInCNV + " SNVs are in " + cnvs.size() + " CNV regions");
 		}
 		ArrayList<String> anns = null;
 		if(inputAnnFile != null) {
 			anns = loadAnnovarFunction(inputAnnFile);
+			if(anns.size() != somaticSNVs.size()) {
+				logger.warning("The number of ANNOVAR annotations (" + anns.size() + ") does not match the number of somatic SNVs (" + somaticSNVs.size() + ")");
+			}
 		}
-		HashMap<Integer, String> cosmicDB = null;
+		HashMap<Long, String> cosmicDB = null;
 		if(cosmicFile != null) {
 			cosmicDB = loadCOSMIC(cosmicFile);
 		}
-		HashMap<Integer, ArrayList<Integer>> tcgaDB = null;
-		if(cosmicFile != null) {
+		HashSet<Long> tcgaDB = null;
+		if(tcgaFile != null) {
 			tcgaDB = loadTCGA(tcgaFile);
 		}
+		int numCOSMIC = 0, numTCGA = 0;
 		for (int i = 0; i < somaticSNVs.size(); i++) {
 			SNVEntry entry = somaticSNVs.get(i);
-			if (cnvs != null){
-				entry.checkInCNVRegion(cnvs);
-			}
-			if(anns != null) {
+			if(anns != null && i < anns.size()) {
 				entry.addAnnotation(anns.get(i));
 			}
+			long key = getPositionKey(entry.getChromosome(), entry.getPosition());
 			if(cosmicDB != null) {
-				if(cosmicDB.containsKey(entry.getPosition())) {
-					entry.addAnnotation(cosmicDB.get(entry.getPosition()));
+				String info = cosmicDB.get(key);
+				if(info != null) {
+					entry.addAnnotation(info);
+					numCOSMIC++;
 				}
 			}
 			if(tcgaDB != null) {
-				if(tcgaDB.containsKey(entry.getChromosome()) && tcgaDB.get(entry.getChromosome()).contains(entry.getPosition())) {
+				if(tcgaDB.contains(key)) {
 					entry.addAnnotation("+TCGA+");
+					numTCGA++;
 				}
 			}
 		}
+		if(cosmicDB != null) {
+			logger.info(numCOSMIC + " SNVs are in COSMIC");
+		}
+		if(tcgaDB != null) {
+			logger.info(numTCGA + " SNVs are in TCGA");
+		}
 	}
 }
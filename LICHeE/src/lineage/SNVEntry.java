@@ -32,112 +32,138 @@
  */
 package lineage;
 
-import java.util.ArrayList;
-
-import util.CNVRegion;
+import java.io.IOException;
 
+/**
+ * Lightweight view of a row of an SNV table
+ */
 public class SNVEntry {
 	
-	/** SNV entry info */
-	protected int id;
-	protected int chr;
-	protected int position;
-	protected String description;
-	protected String presenceProfile;
-	protected String ambigPresenceProfile;
-	protected double[] VAF;
-	protected boolean isRobust;
-	protected String snvEntryString;
-	protected boolean inCNVRegion;
-	protected String annotation;
+	/** Table storing the SNV data and row of the SNV in the table */
+	protected SNVTable table;
+	protected int row;
 	 
-	public SNVEntry(String line, int lineId) {
-		id = lineId;
-		snvEntryString = line;
-		annotation = "";
+	public SNVEntry(SNVTable snvTable, int snvRow) {
+		table = snvTable;
+		row = snvRow;
+	}
+	
+	/** Moves the view to the given row of another table (holding a copy of the SNV data) */
+	protected void moveTo(SNVTable snvTable, int snvRow) {
+		table = snvTable;
+		row = snvRow;
 	}
 	
 	public int getId() {
-		return id;
+		return table.getId(row);
+	}
+	
+	/** Returns the row of the SNV in the data store VAF matrix */
+	public int getIndex() {
+		return row;
 	}
 	
 	/** Returns the SNV chromosome */
 	public int getChromosome() {
-		return chr;
+		return table.getChromosome(row);
 	}
 	
 	/** Returns the SNV position  */
 	public int getPosition() {
-		return position;
+		return table.getPosition(row);
 	}
 	
 	/** Returns the description field */
 	public String getDescription() {
-		return description;
+		return table.getDescription(row);
 	}
 	
 	/** Returns the VAF in sample i */
 	public double getVAF(int i) {
-		return VAF[i];
+		return table.getVAF(row, i);
+	}
+	
+	/** Returns a copy of the VAFs in all the samples */
+	public double[] getVAFs() {
+		double[] vafs = new double[table.getNumSamples()];
+		for(int i = 0; i < vafs.length; i++) {
+			vafs[i] = table.getVAF(row, i);
+		}
+		return vafs;
 	}
 	
 	/** Returns true if the SNV was robustly called in all samples  */
 	public boolean isRobust() {
-		return isRobust;
+		return table.isRobust(row);
 	}
 	
 	/** Returns the sample presence-absence profile */
-	public String getProfile() {
-		return presenceProfile;
+	public SampleProfile getProfile() {
+		return table.getProfile(row);
 	}
 	
-	public String getAmbigProfile() {
-		return ambigPresenceProfile;
+	/** Returns the samples with evidence of presence */
+	public SampleProfile getPresenceEvidence() {
+		return table.getPresenceEvidence(row);
+	}
+	
+	/** 
+	 * Returns the input presence-absence profile string, 
+	 * where samples with ambiguous VAFs are marked with '*' 
+	 */
+	public String getAmbigProfile(Parameters params) {
+		char[] s = new char[table.getNumSamples()];
+		for(int i = 0; i < s.length; i++) {
+			double vaf = getVAF(i);
+			if(vaf >= params.MIN_VAF_PRESENT) {
+				s[i] = '1';
+			} else if(vaf >= params.MAX_VAF_ABSENT) {
+				s[i] = '*';
+			} else {
+				s[i] = '0';
+			}
+		}
+		return new String(s);
 	}
 	
 	/** Sets the sample presence-absence profile */
-	public void updateGroup(String code) {
-		presenceProfile = code;
+	public void updateGroup(SampleProfile code) {
+		table.setProfile(row, code);
 	}
 	
 	/** Returns true if profile[sampleId] == 1 */
 	public boolean isPresent(int sampleId) {
-		return presenceProfile.charAt(sampleId) == '1';
+		return getProfile().isSet(sampleId);
 	}
 	
+	/** Returns true if the VAF in the sample is above the absence threshold of the run */
 	public boolean evidenceOfPresence(int sample){
-		return (VAF[sample] > Parameters.MAX_VAF_ABSENT );
+		return getPresenceEvidence().isSet(sample);
 	}
 	
 	public String getAnnotation() {
-		return annotation;
+		return table.getAnnotation(row);
 	}
 	
 	public void addAnnotation(String ann) {
-		annotation += ann + "; ";
+		table.addAnnotation(row, ann);
 	}
 
-	public boolean checkInCNVRegion(ArrayList<CNVRegion> CNVs) {
-		for (CNVRegion cnv : CNVs){
-			int loc = cnv.compareLocation(chr, position);
-			if (loc == 0) {
-				inCNVRegion = true;
-				return true;
-			}
-			if (loc == -1) {
-				inCNVRegion = false;
-				return false;
-			}
-		}
-		inCNVRegion = false;
-		return false;
+	public void setInCNVRegion(boolean inCNV) {
+		table.setInCNVRegion(row, inCNV);
 	}
 	
 	public boolean isInCNVRegion() {
-		return inCNVRegion;
+		return table.isInCNVRegion(row);
 	}
 	
+	/** Returns the input line of this entry (re-read from the input file) */
 	public String toString() {
-		return snvEntryString;
+		if(table.getSource() != null) {
+			try {
+				return table.getSource().readLine(table.getLineOffset(row), table.getLineLength(row));
+			} catch (IOException e) {}
+		}
+		return "snv" + getId() + ": " + getChromosome() + " " + getPosition() + " " + getDescription();
 	}
 }
@@ -0,0 +1,544 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reader of tab-separated SNV input files.
+ * The file is memory-mapped (in windows of at most MAX_WINDOW_SIZE bytes) 
+ * and scanned line by line; the fields of the current line are parsed 
+ * directly from the mapped bytes without creating intermediate strings.
+ * Lines can be re-read on demand given their file offset and length.
+ * A file can be split into newline-aligned chunks that are read 
+ * by separate readers (e.g. in parallel).
+ * Compressed files are read sequentially from a (decompressing) input stream
+ * into a heap window instead; their lines cannot be re-read or split into chunks.
+ *
+ * @autor viq
+ */
+public class SNVFileReader {
+	
+	/** Maximum size of a mapped file region */
+	private static final int MAX_WINDOW_SIZE = 1 << 28;
+	
+	/** Initial size of the window of a stream reader (grown for longer lines) */
+	private static final int STREAM_WINDOW_SIZE = 1 << 20;
+	
+	/** Maximum number of significant digits handled by the fast double parser */
+	private static final int MAX_FAST_DIGITS = 18;
+	
+	/** Powers of 10 that are exactly representable as doubles */
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for(int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i-1]*10;
+		}
+	}
+	
+	private static final Charset CHARSET = Charset.defaultCharset();
+	
+	private final String path;
+	private FileChannel channel;
+	/** Input stream of a sequential reader (null if the file is memory-mapped) */
+	private InputStream in;
+	/** Reader that owns the file channel (this reader, unless it reads a chunk of the file) */
+	private final SNVFileReader source;
+	/** End of the region read by this reader (the file size, unless it reads a chunk of the file) */
+	private long endOffset;
+	
+	/** Currently mapped region of the file */
+	private ByteBuffer buf;
+	/** File offset of the start of the mapped region */
+	private long bufOffset;
+	/** Position of the next line in the mapped region */
+	private int pos;
+	
+	/** Current line boundaries in the mapped region (terminator excluded) */
+	private int lineStart;
+	private int lineEnd;
+	/** Current line field boundaries in the mapped region */
+	private int numFields;
+	private int[] fieldStart = new int[16];
+	private int[] fieldEnd = new int[16];
+	
+	public SNVFileReader(String inputFile) throws IOException {
+		path = inputFile;
+		source = this;
+		channel = new RandomAccessFile(path, "r").getChannel();
+		endOffset = channel.size();
+		map(0);
+	}
+	
+	/**
+	 * Creates a reader of the lines in the [start, end) region of the file
+	 * that shares the file channel of the given reader
+	 * @requires start and end to be line boundaries (see getChunkBoundaries)
+	 */
+	public SNVFileReader(SNVFileReader file, long start, long end) throws IOException {
+		source = file.source;
+		path = source.path;
+		channel = source.channel;
+		endOffset = end;
+		map(start);
+	}
+	
+	/**
+	 * Creates a sequential reader of the given input stream (e.g. of a compressed file)
+	 */
+	public SNVFileReader(String inputFile, InputStream input) throws IOException {
+		path = inputFile;
+		source = this;
+		in = input;
+		endOffset = Long.MAX_VALUE;
+		buf = ByteBuffer.allocate(STREAM_WINDOW_SIZE);
+		buf.limit(0);
+		map(0);
+	}
+	
+	private void map(long offset) throws IOException {
+		if(in != null) {
+			fill(offset);
+			return;
+		}
+		long size = Math.min(MAX_WINDOW_SIZE, endOffset - offset);
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		bufOffset = offset;
+		pos = 0;
+	}
+	
+	/**
+	 * Moves the window of a stream reader to the given offset
+	 * (keeping the bytes already read past it) and fills it from the stream;
+	 * the window is grown if it is already full
+	 */
+	private void fill(long offset) throws IOException {
+		int from = (int) (offset - bufOffset);
+		int keep = buf.limit() - from;
+		ByteBuffer b = buf;
+		if(keep == buf.capacity()) {
+			b = ByteBuffer.allocate(Math.min(MAX_WINDOW_SIZE, 2*buf.capacity()));
+		}
+		System.arraycopy(buf.array(), from, b.array(), 0, keep);
+		int n = keep;
+		while(n < b.capacity()) {
+			int r = in.read(b.array(), n, b.capacity() - n);
+			if(r < 0) {
+				endOffset = offset + n;
+				break;
+			}
+			n += r;
+		}
+		b.limit(n);
+		buf = b;
+		bufOffset = offset;
+		pos = 0;
+	}
+	
+	/** Returns true if the reader reads the file sequentially from a stream */
+	public boolean isStream() {
+		return in != null;
+	}
+	
+	/**
+	 * Splits the file region starting at the given offset into at most numChunks 
+	 * chunks of similar size that start and end at line boundaries
+	 * @return chunk boundary offsets (chunk i is [b[i], b[i+1]))
+	 */
+	public long[] getChunkBoundaries(long start, int numChunks) throws IOException {
+		if(in != null) {
+			return new long[] {start, getSize()};
+		}
+		long fileSize = source.endOffset;
+		long chunkSize = Math.max(1, (fileSize - start)/numChunks);
+		ArrayList<Long> boundaries = new ArrayList<Long>();
+		boundaries.add(start);
+		ByteBuffer b = ByteBuffer.allocate(1 << 16);
+		for(int i = 1; i < numChunks; i++) {
+			// find the first line that starts at or after the tentative boundary
+			long offset = Math.max(start + i*chunkSize, boundaries.get(boundaries.size()-1) + 1) - 1;
+			long boundary = fileSize;
+			boolean cr = false;
+			while(offset < fileSize && boundary == fileSize) {
+				b.clear();
+				int n = channel.read(b, offset);
+				if(n <= 0) break;
+				for(int j = 0; j < n; j++) {
+					byte c = b.get(j);
+					if(cr) {
+						boundary = (c == '\n') ? offset + j + 1 : offset + j;
+						break;
+					}
+					if(c == '\n') {
+						boundary = offset + j + 1;
+						break;
+					}
+					cr = (c == '\r');
+				}
+				offset += n;
+			}
+			if(boundary >= fileSize) break;
+			boundaries.add(boundary);
+		}
+		boundaries.add(fileSize);
+		long[] chunks = new long[boundaries.size()];
+		for(int i = 0; i < chunks.length; i++) {
+			chunks[i] = boundaries.get(i);
+		}
+		return chunks;
+	}
+	
+	/** Returns the size of the file (unknown for a stream reader until it is read) */
+	public long getSize() {
+		return source.endOffset;
+	}
+	
+	/** Returns the file offset of the next line */
+	public long getPosition() {
+		return bufOffset + pos;
+	}
+	
+	/** 
+	 * Returns the reader that owns the file channel (used to re-read lines),
+	 * null if the lines cannot be re-read
+	 */
+	public SNVFileReader getSource() {
+		return (in != null) ? null : source;
+	}
+	
+	/** 
+	 * Advances to the next line of the file 
+	 * @return false if there are no more lines
+	 */
+	public boolean nextLine() throws IOException {
+		while(true) {
+			int limit = buf.limit();
+			boolean eof = (bufOffset + limit == endOffset);
+			if(pos >= limit) {
+				if(eof) return false;
+				map(bufOffset + pos);
+				continue;
+			}
+			lineStart = pos;
+			numFields = 0;
+			int start = pos;
+			int i = pos;
+			for(; i < limit; i++) {
+				byte b = buf.get(i);
+				if(b == '\t') {
+					addField(start, i);
+					start = i + 1;
+				} else if(b == '\n' || b == '\r') {
+					break;
+				}
+			}
+			if(i == limit && !eof) {
+				// the line continues past the mapped region
+				if(lineStart == 0 && (in == null || buf.capacity() >= MAX_WINDOW_SIZE)) {
+					throw new IOException("Line exceeds the maximum supported length at offset " + bufOffset);
+				}
+				map(bufOffset + lineStart);
+				continue;
+			}
+			if(i < limit && buf.get(i) == '\r' && i + 1 == limit && !eof) {
+				// possible \r\n split across mapped regions
+				map(bufOffset + lineStart);
+				continue;
+			}
+			lineEnd = i;
+			addField(start, i);
+			// skip the line terminator
+			if(i < limit) {
+				if(buf.get(i) == '\r' && i + 1 < limit && buf.get(i + 1) == '\n') {
+					i++;
+				}
+				i++;
+			}
+			pos = i;
+			// trailing empty fields are ignored (consistent with String.split)
+			while(numFields > 0 && fieldStart[numFields-1] == fieldEnd[numFields-1]) {
+				numFields--;
+			}
+			return true;
+		}
+	}
+	
+	private void addField(int start, int end) {
+		if(numFields == fieldStart.length) {
+			fieldStart = Arrays.copyOf(fieldStart, 2*numFields);
+			fieldEnd = Arrays.copyOf(fieldEnd, 2*numFields);
+		}
+		fieldStart[numFields] = start;
+		fieldEnd[numFields] = end;
+		numFields++;
+	}
+	
+	/** Returns the number of fields in the current line */
+	public int getNumFields() {
+		return numFields;
+	}
+	
+	/** Returns the file offset of the current line */
+	public long getLineOffset() {
+		return bufOffset + lineStart;
+	}
+	
+	/** Returns the length of the current line in bytes (terminator excluded) */
+	public int getLineLength() {
+		return lineEnd - lineStart;
+	}
+	
+	/** Returns the current line */
+	public String getLine() {
+		return decode(lineStart, lineEnd);
+	}
+	
+	/** Returns field i of the current line */
+	public String getField(int i) {
+		return decode(fieldStart[i], fieldEnd[i]);
+	}
+	
+	/** Returns field i of the current line without leading and trailing whitespace */
+	public String getTrimmedField(int i) {
+		int start = fieldStart[i];
+		int end = fieldEnd[i];
+		while(start < end && isWhitespace(buf.get(start))) start++;
+		while(end > start && isWhitespace(buf.get(end-1))) end--;
+		return decode(start, end);
+	}
+	
+	private String decode(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for(int i = start; i < end; i++) {
+			bytes[i - start] = buf.get(i);
+		}
+		return new String(bytes, CHARSET);
+	}
+	
+	private static boolean isWhitespace(byte b) {
+		return b >= 0 && b <= ' ';
+	}
+	
+	/**
+	 * Parses field i of the current line as an integer 
+	 * (same format as Integer.parseInt, surrounding whitespace is ignored)
+	 */
+	public int parseInt(int i) {
+		int start = fieldStart[i];
+		int end = fieldEnd[i];
+		while(start < end && isWhitespace(buf.get(start))) start++;
+		while(end > start && isWhitespace(buf.get(end-1))) end--;
+		return parseInt(start, end);
+	}
+	
+	private int parseInt(int start, int end) {
+		if(start == end) {
+			throw new NumberFormatException("Empty value");
+		}
+		boolean neg = false;
+		int i = start;
+		byte b = buf.get(i);
+		if(b == '-' || b == '+') {
+			neg = (b == '-');
+			i++;
+			if(i == end) {
+				throw new NumberFormatException(decode(start, end));
+			}
+		}
+		long value = 0;
+		for(; i < end; i++) {
+			int d = buf.get(i) - '0';
+			if(d < 0 || d > 9) {
+				throw new NumberFormatException(decode(start, end));
+			}
+			value = value*10 + d;
+			if(value > (long) Integer.MAX_VALUE + 1) {
+				throw new NumberFormatException(decode(start, end));
+			}
+		}
+		value = neg ? -value : value;
+		if(value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+			throw new NumberFormatException(decode(start, end));
+		}
+		return (int) value;
+	}
+	
+	/**
+	 * Parses field i of the current line as a double, returns the same value as Double.parseDouble.
+	 * Plain decimal values with up to MAX_FAST_DIGITS significant digits are converted directly
+	 * (exact for mantissas < 2^53 and exponents up to 22), other values fall back to Double.parseDouble.
+	 */
+	public double parseDouble(int f) {
+		int start = fieldStart[f];
+		int end = fieldEnd[f];
+		while(start < end && isWhitespace(buf.get(start))) start++;
+		while(end > start && isWhitespace(buf.get(end-1))) end--;
+		
+		int i = start;
+		boolean neg = false;
+		if(i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+			neg = (buf.get(i) == '-');
+			i++;
+		}
+		long mantissa = 0;
+		int numDigits = 0;
+		int exp10 = 0;
+		boolean hasDigits = false;
+		for(; i < end; i++) {
+			int d = buf.get(i) - '0';
+			if(d < 0 || d > 9) break;
+			hasDigits = true;
+			if(mantissa == 0 && d == 0) continue;
+			if(++numDigits > MAX_FAST_DIGITS) return Double.parseDouble(decode(start, end));
+			mantissa = mantissa*10 + d;
+		}
+		if(i < end && buf.get(i) == '.') {
+			i++;
+			for(; i < end; i++) {
+				int d = buf.get(i) - '0';
+				if(d < 0 || d > 9) break;
+				hasDigits = true;
+				exp10--;
+				if(mantissa == 0 && d == 0) continue;
+				if(++numDigits > MAX_FAST_DIGITS) return Double.parseDouble(decode(start, end));
+				mantissa = mantissa*10 + d;
+			}
+		}
+		if(hasDigits && i < end && (buf.get(i) == 'e' || buf.get(i) == 'E')) {
+			i++;
+			boolean expNeg = false;
+			if(i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+				expNeg = (buf.get(i) == '-');
+				i++;
+			}
+			int exp = 0;
+			int expStart = i;
+			for(; i < end; i++) {
+				int d = buf.get(i) - '0';
+				if(d < 0 || d > 9 || exp > 10000) break;
+				exp = exp*10 + d;
+			}
+			if(i == expStart) return Double.parseDouble(decode(start, end));
+			exp10 += expNeg ? -exp : exp;
+		}
+		if(!hasDigits || i != end) {
+			// special values and malformed input
+			return Double.parseDouble(decode(start, end));
+		}
+		if(mantissa == 0) {
+			return neg ? -0.0 : 0.0;
+		}
+		if(exp10 < -22 || exp10 > 22 || mantissa >= (1L << 53)) {
+			return Double.parseDouble(decode(start, end));
+		}
+		double value = (exp10 < 0) ? mantissa/POW10[-exp10] : mantissa*POW10[exp10];
+		return neg ? -value : value;
+	}
+	
+	/**
+	 * Parses field i of the current line as a chromosome number 
+	 * (with or without the 'chr' prefix, X = 23 and Y = 24)
+	 * @return -1 if the chromosome is not valid
+	 */
+	public int parseChromosome(int f) {
+		int start = fieldStart[f];
+		int end = fieldEnd[f];
+		while(start < end && isWhitespace(buf.get(start))) start++;
+		while(end > start && isWhitespace(buf.get(end-1))) end--;
+		for(int i = start; i + 2 < end; i++) {
+			if(toLower(buf.get(i)) == 'c' && toLower(buf.get(i+1)) == 'h' && toLower(buf.get(i+2)) == 'r') {
+				start += 3;
+				break;
+			}
+		}
+		if(end - start == 1) {
+			byte b = toLower(buf.get(start));
+			if(b == 'x') return 23;
+			if(b == 'y') return 24;
+		}
+		try {
+			return parseInt(start, end);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private static byte toLower(byte b) {
+		return (b >= 'A' && b <= 'Z') ? (byte)(b + ('a' - 'A')) : b;
+	}
+	
+	/** 
+	 * Reads a line of the file given its offset and length 
+	 * (the file is re-opened for this read only if the reader has been closed)
+	 */
+	public synchronized String readLine(long offset, int length) throws IOException {
+		if(source != this) {
+			return source.readLine(offset, length);
+		}
+		if(in != null) {
+			throw new IOException("Lines of a stream cannot be re-read");
+		}
+		if(channel != null && channel.isOpen()) {
+			return readLine(channel, offset, length);
+		}
+		FileChannel ch = new RandomAccessFile(path, "r").getChannel();
+		try {
+			return readLine(ch, offset, length);
+		} finally {
+			ch.close();
+		}
+	}
+	
+	private static String readLine(FileChannel ch, long offset, int length) throws IOException {
+		ByteBuffer line = ByteBuffer.allocate(length);
+		while(line.hasRemaining()) {
+			if(ch.read(line, offset + line.position()) < 0) break;
+		}
+		return new String(line.array(), 0, line.position(), CHARSET);
+	}
+	
+	public synchronized void close() throws IOException {
+		buf = null;
+		if(source == this && channel != null) {
+			channel.close();
+		}
+		if(in != null) {
+			in.close();
+		}
+	}
+}
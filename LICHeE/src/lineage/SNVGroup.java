@@ -31,6 +31,7 @@ package lineage;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.PriorityQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,10 +50,13 @@ import lineage.AAFClusterer.DistanceMetric;
 public class SNVGroup implements Serializable {
 
 	private static final long serialVersionUID = 1L;
+	
+	/** Maximum initial capacity of the cluster pair queue */
+	private static final int MAX_INITIAL_QUEUE_CAPACITY = 1 << 20;
 
 	/** Binary tag identifying the group 
 	 * (the length of the tag is equal to the number of input samples) */
-	private String tag;
+	private SampleProfile tag;
 	
 	/** Number of samples represented by this group */
 	private int numSamples;
@@ -60,8 +64,14 @@ public class SNVGroup implements Serializable {
 	/** Indices of the samples represented in this group (from 0 to |tag|-1 MSF order) */
 	private int[] sampleIndex;
 	
-	/** Alternative allele frequency data matrix (numSNVs x numSamples) */
-	protected transient double[][] alleleFreqBySample;
+	/** Sample mask: position of each input sample in sampleIndex, -1 if the sample is not represented */
+	private int[] sampleMask;
+	
+	/** Shared VAF matrix of the input SNVs */
+	private transient VAFMatrix vafs;
+	
+	/** Rows of the SNVs of this group in the VAF matrix */
+	private transient int[] rows;
 	
 	/** SubPopulation clusters */
 	protected Cluster[] subPopulations;
@@ -72,52 +82,44 @@ public class SNVGroup implements Serializable {
 	/** Flag indicating whether this group is robust */
 	private transient boolean isRobust;
 	
-	private static Logger logger = LineageEngine.logger;
+	/** Context of the run */
+	private transient LineageContext context;
+	private transient Parameters params;
+	private transient Logger logger;
 	
-	public SNVGroup(String groupTag, ArrayList<SNVEntry> groupSNVs, boolean isGroupRobust) {
+	public SNVGroup(SampleProfile groupTag, ArrayList<SNVEntry> groupSNVs, boolean isGroupRobust, VAFMatrix vafMatrix, LineageContext runContext) {
+		context = runContext;
+		params = context.getParameters();
+		logger = context.getLogger();
 		tag = groupTag;
 		isRobust = isGroupRobust;
-		numSamples = 0;		
-		sampleIndex = new int[tag.length()];
-		for(int i = 0; i < tag.length(); i++) {
-			if(tag.charAt(i) == '1') {
-				sampleIndex[numSamples] = i;
-				numSamples++;
-			}
-		}
+		setSampleIndex();
 		snvs = groupSNVs;
-		alleleFreqBySample = new double[snvs.size()][numSamples];
+		vafs = vafMatrix;
+		rows = new int[snvs.size()];
 		for(int i = 0; i < snvs.size(); i++) {
-			SNVEntry snv = snvs.get(i);
-			for(int j = 0; j < numSamples; j++) {
-				alleleFreqBySample[i][j] = snv.getVAF(sampleIndex[j]);
-			}
+			rows[i] = snvs.get(i).getIndex();
 		}
 	}
 
-	public SNVGroup(String groupTag, double[] centroid, int size) {
+	public SNVGroup(SampleProfile groupTag, double[] centroid, int size, LineageContext runContext) {
+		context = runContext;
+		params = context.getParameters();
+		logger = context.getLogger();
 		tag = groupTag;
 		isRobust = true;
-		numSamples = 0;		
-		sampleIndex = new int[tag.length()];
-		
-		for(int i = 0; i < tag.length(); i++) {
-			if(tag.charAt(i) == '1') {
-				sampleIndex[numSamples] = i;
-				numSamples++;
-			}
-		}
+		setSampleIndex();
 		double[] c = new double[numSamples];
 		int idx = 0;
-		for(int i = 0; i < tag.length(); i++) {
-			if(tag.charAt(i) == '1') {
+		for(int i = 0; i < tag.getNumSamples(); i++) {
+			if(tag.isSet(i)) {
 				c[idx] = centroid[i];
 				idx++;
 			}
 		}
 		
 		snvs = new ArrayList<SNVEntry>();
-		alleleFreqBySample = new double[snvs.size()][numSamples];
+		rows = new int[0];
 		subPopulations = new Cluster[1];
 		AAFClusterer aafc = new AAFClusterer();
 		subPopulations[0] = aafc.new Cluster(c, 0);
@@ -125,13 +127,74 @@ public class SNVGroup implements Serializable {
 		
 	}
 	
+	/**
+	 * Creates a copy of group g that shares the SNVs and VAF data of g
+	 * (the sub-population array is copied, the clusters are not)
+	 */
+	public SNVGroup(SNVGroup g) {
+		this(g, g.context);
+	}
+	
+	/**
+	 * Creates a copy of group g in the given run context
+	 * (e.g. to reuse the clustered group in a run with other network parameters)
+	 */
+	public SNVGroup(SNVGroup g, LineageContext runContext) {
+		context = runContext;
+		params = context.getParameters();
+		logger = context.getLogger();
+		tag = g.tag;
+		isRobust = g.isRobust;
+		numSamples = g.numSamples;
+		sampleIndex = g.sampleIndex;
+		sampleMask = g.sampleMask;
+		snvs = g.snvs;
+		vafs = g.vafs;
+		rows = g.rows;
+		if(g.subPopulations != null) {
+			subPopulations = g.subPopulations.clone();
+		}
+	}
+	
+	private void setSampleIndex() {
+		numSamples = 0;		
+		sampleIndex = new int[tag.getNumSamples()];
+		sampleMask = new int[tag.getNumSamples()];
+		for(int i = 0; i < tag.getNumSamples(); i++) {
+			sampleMask[i] = -1;
+			if(tag.isSet(i)) {
+				sampleIndex[numSamples] = i;
+				sampleMask[i] = numSamples;
+				numSamples++;
+			}
+		}
+	}
+	
 	// Getters/Setters
 	
 	public ArrayList<SNVEntry> getSNVs() {
 		return snvs;
 	}
 	
+	/** 
+	 * Returns the VAF of the i-th SNV of the group 
+	 * in the j-th sample represented in the group 
+	 */
+	public double getVAF(int i, int j) {
+		return vafs.get(rows[i], sampleIndex[j]);
+	}
+	
+	/** 
+	 * Returns the VAF values of the group SNVs (numSNVs x numSamples) 
+	 * (a new matrix is created on every call)
+	 */
 	public double[][] getAlleleFreqBySample() {
+		double[][] alleleFreqBySample = new double[rows.length][numSamples];
+		for(int j = 0; j < numSamples; j++) {
+			for(int i = 0; i < rows.length; i++) {
+				alleleFreqBySample[i][j] = vafs.get(rows[i], sampleIndex[j]);
+			}
+		}
 		return alleleFreqBySample;
 	}
 	
@@ -140,7 +203,7 @@ public class SNVGroup implements Serializable {
 	}
 	
 	public int getNumSamplesTotal() {
-		return tag.length();
+		return tag.getNumSamples();
 	}
 	
 	public int[] getSampleIds() {
@@ -155,7 +218,7 @@ public class SNVGroup implements Serializable {
 		return subPopulations;
 	}
 	
-	public String getTag() {
+	public SampleProfile getTag() {
 		return tag;
 	}
 	
@@ -168,12 +231,7 @@ public class SNVGroup implements Serializable {
 	 * @return -1 if this sample is not represented in the group
 	 */
 	public int getSampleIndex(int sampleId) {
-		for(int i = 0; i < numSamples; i++) {
-			if(sampleIndex[i] == sampleId) {
-				return i;
-			}
-		}
-		return -1;
+		return sampleMask[sampleId];
 	}
 	
 	/**
@@ -188,28 +246,40 @@ public class SNVGroup implements Serializable {
 			return false;
 		}
 		SNVGroup g = (SNVGroup) o;
-		if(this.tag == g.tag) {
-			return true;
-		} else {
-			return false;
-		}
+		return tag.equals(g.tag);
+	}
+	
+	public int hashCode() {
+		return tag.hashCode();
 	}
 	
 	// --- Sub-population Cluster Filtering / Collapse ---
 	
 	/** Entry in the cluster centroid distance minimum priority queue */
-	protected class ClusterPairDistance {
-		/** Cluster pair */
+	protected class ClusterPairDistance implements Comparable<ClusterPairDistance> {
+		/** Cluster pair (indices in the list of candidate clusters) */
 		protected int clusterId1;
 		protected int clusterId2;
 		/** Distance between cluster centroids */
 		protected double distance;
+		/** Insertion order (ties are broken in favor of the earlier pair) */
+		protected int seq;
+		/** Versions of the two clusters at the time the distance was computed */
+		protected int version1;
+		protected int version2;
 		
 		public ClusterPairDistance(int cluster1, int cluster2, double clusterDistance) {
 			clusterId1 = cluster1;
 			clusterId2 = cluster2;
 			distance = clusterDistance;
 		}
+		
+		public int compareTo(ClusterPairDistance pd) {
+			if(distance != pd.distance) {
+				return distance < pd.distance ? -1 : 1;
+			}
+			return seq - pd.seq;
+		}
 	}
 	
 	
@@ -224,13 +294,19 @@ public class SNVGroup implements Serializable {
 		// 1. filter out clusters that are too small 
 		ArrayList<Cluster> filteredClusters = new ArrayList<Cluster>();
 		for(Cluster c : clusters) {
-			if((c.getMembership().size() >= Parameters.MIN_CLUSTER_SIZE) || ((numSamples == 1) && c.getMembership().size() >= Parameters.MIN_PRIVATE_CLUSTER_SIZE)) { // don't filter out private mutations
+			if((c.getSize() >= params.MIN_CLUSTER_SIZE) || ((numSamples == 1) && c.getSize() >= params.MIN_PRIVATE_CLUSTER_SIZE)) { // don't filter out private mutations
 				filteredClusters.add(c);
 			} else {
-				logger.log(Level.INFO, "**Filtered due to cluster size constraint (" + tag + " size " + c.getMembership().size() + "):");
-				for(Integer snv : c.getMembership()) {
+				boolean log = logger.isLoggable(Level.FINE);
+				if(log) {
+					logger.log(Level.FINE, "**Filtered due to cluster size constraint (" + tag + " size " + c.getSize() + "):");
+				}
+				for(int snv : c.getMembership()) {
 					SNVEntry entry = snvs.get(snv);
-					logger.log(Level.INFO, entry.toString());
+					context.getFilterAudit().record(FilterAudit.Reason.CLUSTER_SIZE, entry);
+					if(log) {
+						logger.log(Level.FINE, entry.toString());
+					}
 				}
 			}
 		}
@@ -244,82 +320,75 @@ public class SNVGroup implements Serializable {
 		
 		// 2. collapse clusters that have similar centroids
 		
-		// compute the distance matrix between clusters
-		// as long as there are clusters to collapse (i.e. cluster centroid distance
-		// is less than MAX_COLLAPSE_CLUSTER_DIFF), collapse clusters with smallest distance first
-		ArrayList<ClusterPairDistance> minDistQueue = new ArrayList<ClusterPairDistance>();
+		// agglomerative merging: as long as there are clusters to collapse (i.e. cluster centroid distance
+		// is less than MAX_COLLAPSE_CLUSTER_DIFF), collapse clusters with smallest distance first;
+		// queue entries that refer to a merged cluster are invalidated lazily using the cluster versions
 		int numClusters = filteredClusters.size();
+		Cluster[] candidates = filteredClusters.toArray(new Cluster[numClusters]);
+		boolean[] collapsed = new boolean[numClusters];
+		int[] version = new int[numClusters];
+		long numPairs = (long) numClusters*(numClusters-1)/2;
+		PriorityQueue<ClusterPairDistance> minDistQueue = new PriorityQueue<ClusterPairDistance>((int) Math.max(1, Math.min(numPairs, MAX_INITIAL_QUEUE_CAPACITY)));
+		int seq = 0;
 		for(int i = 0; i < numClusters; i++) {
 			for(int j = i+1; j < numClusters; j++) {
-				Cluster c1 = filteredClusters.get(i);
-				Cluster c2 = filteredClusters.get(j);
-				//double dist = c1.getDistanceToCluster(c2.getCentroid(), DistanceMetric.EUCLIDEAN);
-				double dist = c1.getDistanceToCluster(c2.getCentroid(), DistanceMetric.AVG_PER_SAMPLE);
-				ClusterPairDistance pd = new ClusterPairDistance(c1.getId(), c2.getId(), dist);
-				
-				int k = 0;
-				for(k = 0; k < minDistQueue.size(); k++) {
-					if(minDistQueue.get(k).distance > dist) {
-						break;
-					}
-				}
-				minDistQueue.add(k, pd);
+				double dist = candidates[i].getDistanceToCluster(candidates[j].getCentroid(), DistanceMetric.AVG_PER_SAMPLE);
+				ClusterPairDistance pd = new ClusterPairDistance(i, j, dist);
+				pd.seq = seq++;
+				minDistQueue.add(pd);
 			}
 		}
 		
-		while((minDistQueue.size() > 0) && 
-				((minDistQueue.get(0).distance < Parameters.MAX_COLLAPSE_CLUSTER_DIFF))) {
-			ClusterPairDistance pd = minDistQueue.remove(0);
-			Cluster c1 = clusters[pd.clusterId1];
-			Cluster c2 = clusters[pd.clusterId2];
-			
-			// collapse into c1
-			for(Integer obs : c2.getMembership()) {
-				c1.addMember(obs);
+		while(minDistQueue.size() > 0) {
+			ClusterPairDistance pd = minDistQueue.peek();
+			if(collapsed[pd.clusterId1] || collapsed[pd.clusterId2] 
+			   || pd.version1 != version[pd.clusterId1] || pd.version2 != version[pd.clusterId2]) {
+				// stale entry
+				minDistQueue.poll();
+				continue;
+			}
+			if(pd.distance >= params.MAX_COLLAPSE_CLUSTER_DIFF) {
+				break;
 			}
-			numClusters--;
+			minDistQueue.poll();
+			Cluster c1 = candidates[pd.clusterId1];
+			Cluster c2 = candidates[pd.clusterId2];
 			
-			c1.recomputeCentroidAndStdDev(alleleFreqBySample, snvs.size(), numSamples);
-			filteredClusters.remove(c2);
-			logger.log(Level.FINE, "Collapse clusters: group = " + tag + " cluster " + pd.clusterId1 + " and " + pd.clusterId2 + 
+			// collapse into c1
+			c1.merge(c2);
+			collapsed[pd.clusterId2] = true;
+			version[pd.clusterId1]++;
+			logger.log(Level.FINE, "Collapse clusters: group = " + tag + " cluster " + c1.getId() + " and " + c2.getId() + 
 					" distance = " + pd.distance + ". New cluster: " + c1);
 			
-			// remove distances from c1 and c2 from the queue
-			ArrayList<ClusterPairDistance> toRemove = new ArrayList<ClusterPairDistance>();
-			for(ClusterPairDistance cpd : minDistQueue) {
-				if(cpd.clusterId1 == c1.getId() || cpd.clusterId2 == c1.getId() 
-				   || cpd.clusterId1 == c2.getId() || cpd.clusterId2 == c2.getId()) {
-					toRemove.add(cpd);
-				}
-			}
-			minDistQueue.removeAll(toRemove);
-			
 			// compute the distance from c1 to all the other clusters
-			for(Cluster c : filteredClusters) {
-				if(c.getId() == c1.getId() || c.getId() == c2.getId()) {
+			for(int k = 0; k < numClusters; k++) {
+				if(collapsed[k] || k == pd.clusterId1) {
 					continue;
 				}
-				double dist = c1.getDistanceToCluster(c.getCentroid(), DistanceMetric.AVG_PER_SAMPLE);
-				ClusterPairDistance cpd = new ClusterPairDistance(c1.getId(), c.getId(), dist);
-				
-				int k = 0;
-				for(k = 0; k < minDistQueue.size(); k++) {
-					if(minDistQueue.get(k).distance > dist) {
-						break;
-					}
-				}
-				minDistQueue.add(k, cpd);
+				double dist = c1.getDistanceToCluster(candidates[k].getCentroid(), DistanceMetric.AVG_PER_SAMPLE);
+				ClusterPairDistance cpd = new ClusterPairDistance(pd.clusterId1, k, dist);
+				cpd.seq = seq++;
+				cpd.version1 = version[pd.clusterId1];
+				cpd.version2 = version[k];
+				minDistQueue.add(cpd);
+			}
+		}
+		filteredClusters.clear();
+		for(int i = 0; i < numClusters; i++) {
+			if(!collapsed[i]) {
+				filteredClusters.add(candidates[i]);
 			}
 		}
 		
 		// compute the robustness of each cluster
 		for(Cluster c : filteredClusters) {
 			int numRobust = 0;
-			for(Integer snv : c.getMembership()) {
-				SNVEntry entry = snvs.get(snv);
+			for(int i = 0; i < c.getSize(); i++) {
+				SNVEntry entry = snvs.get(c.getMember(i));
 				if(entry.isRobust()) {
 					numRobust++;
-					if(numRobust >= Parameters.MIN_ROBUST_CLUSTER_SUPPORT) {
+					if(numRobust >= params.MIN_ROBUST_CLUSTER_SUPPORT) {
 						c.setRobust();
 						break;
 					}
@@ -0,0 +1,329 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Struct-of-arrays storage of SNV data: one primitive column per SNV attribute,
+ * addressed by row (SNVEntry objects are lightweight views of a table row).
+ *
+ * VAFs are stored in column-major order (one column per sample),
+ * so that a table holding exactly the somatic SNVs can back the VAF matrix.
+ * Presence profiles are dictionary-encoded: each row stores the id of its
+ * profile in the table dictionary of distinct profiles.
+ * Descriptions are stored as UTF-8 bytes and annotations (rare) in a sparse map.
+ *
+ * Rows are appended by a single thread; tables can be read concurrently.
+ *
+ * @autor viq
+ */
+public class SNVTable {
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int DEFAULT_CAPACITY = 1 << 10;
+
+	private final int numSamples;
+	private int numRows;
+	private int capacity;
+
+	private int[] ids;
+	private int[] chromosomes;
+	private int[] positions;
+	/** VAFs in column-major order (sample j of row i at j*capacity + i) */
+	private double[] vafs;
+	/** Presence profile and presence evidence ids in the profile dictionary (-1 if not set) */
+	private int[] profiles;
+	private int[] evidence;
+	private ArrayList<SampleProfile> profileDict = new ArrayList<SampleProfile>();
+	private HashMap<SampleProfile, Integer> profileIds = new HashMap<SampleProfile, Integer>();
+	private BitSet robust = new BitSet();
+	private BitSet inCNVRegion = new BitSet();
+
+	/** Descriptions (UTF-8 bytes) */
+	private byte[] descriptions;
+	private int descriptionsSize;
+	private int[] descriptionStart;
+	private int[] descriptionLength;
+
+	/** Input file and location of the input line of each SNV (null if the lines cannot be re-read) */
+	private SNVFileReader source;
+	private long[] lineOffsets;
+	private int[] lineLengths;
+
+	/** Annotations by row */
+	private HashMap<Integer, String> annotations = new HashMap<Integer, String>();
+
+	/**
+	 * @param source - input file the lines of the SNVs can be re-read from (can be null)
+	 */
+	public SNVTable(int numSamples, SNVFileReader source) {
+		this(numSamples, source, DEFAULT_CAPACITY);
+	}
+
+	public SNVTable(int numSamples, SNVFileReader source, int initialCapacity) {
+		this.numSamples = numSamples;
+		this.source = source;
+		capacity = Math.max(1, initialCapacity);
+		ids = new int[capacity];
+		chromosomes = new int[capacity];
+		positions = new int[capacity];
+		vafs = new double[capacity*numSamples];
+		profiles = new int[capacity];
+		evidence = new int[capacity];
+		descriptions = new byte[16*capacity];
+		descriptionStart = new int[capacity];
+		descriptionLength = new int[capacity];
+		if(source != null) {
+			lineOffsets = new long[capacity];
+			lineLengths = new int[capacity];
+		}
+	}
+
+	/**
+	 * Appends a new row
+	 * @return row index
+	 */
+	public int addRow(int id) {
+		if(numRows == capacity) {
+			grow(2*capacity);
+		}
+		int row = numRows++;
+		ids[row] = id;
+		profiles[row] = -1;
+		evidence[row] = -1;
+		return row;
+	}
+
+	private void grow(int newCapacity) {
+		ids = Arrays.copyOf(ids, newCapacity);
+		chromosomes = Arrays.copyOf(chromosomes, newCapacity);
+		positions = Arrays.copyOf(positions, newCapacity);
+		double[] v = new double[newCapacity*numSamples];
+		for(int j = 0; j < numSamples; j++) {
+			System.arraycopy(vafs, j*capacity, v, j*newCapacity, numRows);
+		}
+		vafs = v;
+		profiles = Arrays.copyOf(profiles, newCapacity);
+		evidence = Arrays.copyOf(evidence, newCapacity);
+		descriptionStart = Arrays.copyOf(descriptionStart, newCapacity);
+		descriptionLength = Arrays.copyOf(descriptionLength, newCapacity);
+		if(source != null) {
+			lineOffsets = Arrays.copyOf(lineOffsets, newCapacity);
+			lineLengths = Arrays.copyOf(lineLengths, newCapacity);
+		}
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Appends a copy of the given row of another table
+	 * (of the same number of samples)
+	 * @return row index
+	 */
+	public int copyRow(SNVTable from, int row) {
+		int r = addRow(from.ids[row]);
+		chromosomes[r] = from.chromosomes[row];
+		positions[r] = from.positions[row];
+		for(int j = 0; j < numSamples; j++) {
+			vafs[j*capacity + r] = from.vafs[j*from.capacity + row];
+		}
+		if(from.profiles[row] != -1) {
+			profiles[r] = getProfileId(from.profileDict.get(from.profiles[row]));
+		}
+		if(from.evidence[row] != -1) {
+			evidence[r] = getProfileId(from.profileDict.get(from.evidence[row]));
+		}
+		robust.set(r, from.robust.get(row));
+		inCNVRegion.set(r, from.inCNVRegion.get(row));
+		addDescription(r, from.descriptions, from.descriptionStart[row], from.descriptionLength[row]);
+		if(source != null && from.source == source) {
+			lineOffsets[r] = from.lineOffsets[row];
+			lineLengths[r] = from.lineLengths[row];
+		}
+		String ann = from.annotations.get(row);
+		if(ann != null) {
+			annotations.put(r, ann);
+		}
+		return r;
+	}
+
+	/** Returns the id of the given profile in the dictionary (added if missing) */
+	private int getProfileId(SampleProfile profile) {
+		Integer id = profileIds.get(profile);
+		if(id == null) {
+			id = profileDict.size();
+			profileDict.add(profile);
+			profileIds.put(profile, id);
+		}
+		return id;
+	}
+
+	/** Adds all the SNV ids by the given offset */
+	public void shiftIds(int offset) {
+		for(int i = 0; i < numRows; i++) {
+			ids[i] += offset;
+		}
+	}
+
+	/**
+	 * Returns the VAF matrix backed by the VAF column of this table
+	 * (the VAFs are copied only if the table has unused capacity)
+	 */
+	public VAFMatrix getVAFMatrix() {
+		if(capacity != numRows && numRows > 0) {
+			grow(numRows);
+		}
+		return new VAFMatrix((numRows > 0) ? vafs : new double[0], numRows, numSamples);
+	}
+
+	// Getters/Setters
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public int getId(int row) {
+		return ids[row];
+	}
+
+	public int getChromosome(int row) {
+		return chromosomes[row];
+	}
+
+	public void setChromosome(int row, int chr) {
+		chromosomes[row] = chr;
+	}
+
+	public int getPosition(int row) {
+		return positions[row];
+	}
+
+	public void setPosition(int row, int pos) {
+		positions[row] = pos;
+	}
+
+	public double getVAF(int row, int sample) {
+		return vafs[sample*capacity + row];
+	}
+
+	public void setVAF(int row, int sample, double vaf) {
+		vafs[sample*capacity + row] = vaf;
+	}
+
+	/** Returns the profile of the row, null if not set */
+	public SampleProfile getProfile(int row) {
+		int id = profiles[row];
+		return (id == -1) ? null : profileDict.get(id);
+	}
+
+	public void setProfile(int row, SampleProfile profile) {
+		profiles[row] = (profile == null) ? -1 : getProfileId(profile);
+	}
+
+	public SampleProfile getPresenceEvidence(int row) {
+		int id = evidence[row];
+		return (id == -1) ? null : profileDict.get(id);
+	}
+
+	public void setPresenceEvidence(int row, SampleProfile profile) {
+		evidence[row] = (profile == null) ? -1 : getProfileId(profile);
+	}
+
+	public boolean isRobust(int row) {
+		return robust.get(row);
+	}
+
+	public void setRobust(int row, boolean isRobust) {
+		robust.set(row, isRobust);
+	}
+
+	public boolean isInCNVRegion(int row) {
+		return inCNVRegion.get(row);
+	}
+
+	public void setInCNVRegion(int row, boolean inCNV) {
+		inCNVRegion.set(row, inCNV);
+	}
+
+	public String getDescription(int row) {
+		return new String(descriptions, descriptionStart[row], descriptionLength[row], CHARSET);
+	}
+
+	public void setDescription(int row, String description) {
+		byte[] b = description.getBytes(CHARSET);
+		addDescription(row, b, 0, b.length);
+	}
+
+	private void addDescription(int row, byte[] b, int start, int length) {
+		if(descriptionsSize + length > descriptions.length) {
+			descriptions = Arrays.copyOf(descriptions, Math.max(2*descriptions.length, descriptionsSize + length));
+		}
+		System.arraycopy(b, start, descriptions, descriptionsSize, length);
+		descriptionStart[row] = descriptionsSize;
+		descriptionLength[row] = length;
+		descriptionsSize += length;
+	}
+
+	public String getAnnotation(int row) {
+		String ann = annotations.get(row);
+		return (ann == null) ? "" : ann;
+	}
+
+	public void addAnnotation(int row, String ann) {
+		annotations.put(row, getAnnotation(row) + ann + "; ");
+	}
+
+	/** Returns the input file the lines of the SNVs can be re-read from, null if not available */
+	public SNVFileReader getSource() {
+		return source;
+	}
+
+	public long getLineOffset(int row) {
+		return lineOffsets[row];
+	}
+
+	public int getLineLength(int row) {
+		return lineLengths[row];
+	}
+
+	/** Sets the location of the input line of the row */
+	public void setLine(int row, long offset, int length) {
+		lineOffsets[row] = offset;
+		lineLengths[row] = length;
+	}
+}
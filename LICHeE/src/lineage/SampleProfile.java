@@ -0,0 +1,291 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Binary sample presence-absence profile (bit i is set if the mutation is present in sample i).
+ * Profiles of up to 64 samples are stored in a single long,
+ * larger profiles in a packed array of longs.
+ *
+ * The string form of a profile (one '0'/'1' character per sample, sample 0 first)
+ * is only used for output; profiles compare and hash the same way as their string form.
+ *
+ * @autor viq
+ */
+public class SampleProfile implements Serializable, Comparable<SampleProfile> {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Number of samples */
+	private final int numSamples;
+	/** Profile bits (used if numSamples <= 64) */
+	private final long bits;
+	/** Profile bits (used if numSamples > 64, null otherwise) */
+	private final long[] words;
+	/** Hash code of the string form */
+	private final int hash;
+
+	/**
+	 * Creates a profile from the given bit array
+	 * (the array should not be modified after this call)
+	 */
+	public SampleProfile(int numSamples, long[] bitArray) {
+		this.numSamples = numSamples;
+		if(numSamples <= 64) {
+			bits = bitArray.length > 0 ? bitArray[0] : 0;
+			words = null;
+		} else {
+			bits = 0;
+			words = bitArray;
+		}
+		hash = computeHash();
+	}
+
+	private SampleProfile(int numSamples, long singleWord) {
+		this.numSamples = numSamples;
+		bits = singleWord;
+		words = null;
+		hash = computeHash();
+	}
+
+	/** Returns a new bit array that can hold a profile of the given number of samples */
+	public static long[] newBitArray(int numSamples) {
+		return new long[(numSamples + 63) >>> 6];
+	}
+
+	/** Sets the bit of sample i in the given bit array */
+	public static void setBit(long[] bitArray, int i) {
+		bitArray[i >>> 6] |= 1L << i;
+	}
+
+	/** Clears the bit of sample i in the given bit array */
+	public static void clearBit(long[] bitArray, int i) {
+		bitArray[i >>> 6] &= ~(1L << i);
+	}
+
+	/** Returns the profile of the given number of samples with no samples set */
+	public static SampleProfile none(int numSamples) {
+		return new SampleProfile(numSamples, newBitArray(numSamples));
+	}
+
+	/** Returns the profile of the given number of samples with all samples set */
+	public static SampleProfile all(int numSamples) {
+		long[] a = newBitArray(numSamples);
+		for(int i = 0; i < numSamples; i++) {
+			setBit(a, i);
+		}
+		return new SampleProfile(numSamples, a);
+	}
+
+	/**
+	 * Parses the string form of a profile
+	 * (all characters other than '1' are treated as absent)
+	 */
+	public static SampleProfile parse(String profile) {
+		long[] a = newBitArray(profile.length());
+		for(int i = 0; i < profile.length(); i++) {
+			if(profile.charAt(i) == '1') {
+				setBit(a, i);
+			}
+		}
+		return new SampleProfile(profile.length(), a);
+	}
+
+	/** Returns the bits of the profile as an array of longs */
+	public long[] toBitArray() {
+		if(words != null) {
+			return words.clone();
+		}
+		long[] a = newBitArray(numSamples);
+		if(a.length > 0) {
+			a[0] = bits;
+		}
+		return a;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/** Returns true if the sample is present in the profile */
+	public boolean isSet(int sample) {
+		if(words == null) {
+			return (bits & (1L << sample)) != 0;
+		}
+		return (words[sample >>> 6] & (1L << sample)) != 0;
+	}
+
+	/** Returns the number of samples present in the profile */
+	public int getHammingWeight() {
+		if(words == null) {
+			return Long.bitCount(bits);
+		}
+		int w = 0;
+		for(long word : words) {
+			w += Long.bitCount(word);
+		}
+		return w;
+	}
+
+	/** Returns true if no samples are present in the profile */
+	public boolean isEmpty() {
+		if(words == null) {
+			return bits == 0;
+		}
+		for(long word : words) {
+			if(word != 0) return false;
+		}
+		return true;
+	}
+
+	/** Returns true if all the samples of profile p are also present in this profile */
+	public boolean isSupersetOf(SampleProfile p) {
+		if(words == null) {
+			return (p.bits & ~bits) == 0;
+		}
+		for(int i = 0; i < words.length; i++) {
+			if((p.words[i] & ~words[i]) != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if this profile can be converted into the target profile
+	 * by only setting samples in the given ambiguity mask
+	 * (i.e. this <= target <= this | mask)
+	 */
+	public boolean canConvertTo(SampleProfile target, SampleProfile mask) {
+		if(words == null) {
+			return (bits & ~target.bits) == 0 && (target.bits & ~(bits | mask.bits)) == 0;
+		}
+		for(int i = 0; i < words.length; i++) {
+			if((words[i] & ~target.words[i]) != 0) return false;
+			if((target.words[i] & ~(words[i] | mask.words[i])) != 0) return false;
+		}
+		return true;
+	}
+
+	/** Returns the samples set in this profile and not in profile p */
+	public SampleProfile andNot(SampleProfile p) {
+		if(words == null) {
+			return new SampleProfile(numSamples, bits & ~p.bits);
+		}
+		long[] a = new long[words.length];
+		for(int i = 0; i < words.length; i++) {
+			a[i] = words[i] & ~p.words[i];
+		}
+		return new SampleProfile(numSamples, a);
+	}
+
+	/**
+	 * Hash code of the string form
+	 * (keeps the iteration order of the profile hash maps the same as with string tags)
+	 */
+	private int computeHash() {
+		int h = 0;
+		for(int i = 0; i < numSamples; i++) {
+			h = 31*h + (isSet(i) ? '1' : '0');
+		}
+		return h;
+	}
+
+	public int hashCode() {
+		return hash;
+	}
+
+	public boolean equals(Object o) {
+		if(this == o) {
+			return true;
+		}
+		if(!(o instanceof SampleProfile)) {
+			return false;
+		}
+		SampleProfile p = (SampleProfile) o;
+		if(numSamples != p.numSamples || hash != p.hash) {
+			return false;
+		}
+		if(words == null) {
+			return bits == p.bits;
+		}
+		return Arrays.equals(words, p.words);
+	}
+
+	/**
+	 * Orders profiles the same way as their string form
+	 * (the first differing sample decides, present > absent)
+	 */
+	public int compareTo(SampleProfile p) {
+		if(numSamples != p.numSamples) {
+			int n = Math.min(numSamples, p.numSamples);
+			for(int i = 0; i < n; i++) {
+				if(isSet(i) != p.isSet(i)) {
+					return isSet(i) ? 1 : -1;
+				}
+			}
+			return numSamples - p.numSamples;
+		}
+		if(words == null) {
+			long diff = bits ^ p.bits;
+			if(diff == 0) return 0;
+			return (bits & Long.lowestOneBit(diff)) != 0 ? 1 : -1;
+		}
+		for(int i = 0; i < words.length; i++) {
+			long diff = words[i] ^ p.words[i];
+			if(diff != 0) {
+				return (words[i] & Long.lowestOneBit(diff)) != 0 ? 1 : -1;
+			}
+		}
+		return 0;
+	}
+
+	/** Returns the string form of the profile (one '0'/'1' character per sample) */
+	public String toString() {
+		char[] s = new char[numSamples];
+		for(int i = 0; i < numSamples; i++) {
+			s[i] = isSet(i) ? '1' : '0';
+		}
+		return new String(s);
+	}
+
+	/**
+	 * Returns the string form of the profile
+	 * where the samples in the ambiguity mask that are not set are marked with '*'
+	 */
+	public String toString(SampleProfile ambiguous) {
+		char[] s = new char[numSamples];
+		for(int i = 0; i < numSamples; i++) {
+			s[i] = isSet(i) ? '1' : (ambiguous.isSet(i) ? '*' : '0');
+		}
+		return new String(s);
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+
+/**
+ * Streaming writer of the lineage tree results (.trees.txt format).
+ * The network nodes, trees, sample decompositions and SNV info are rendered
+ * directly into a buffered output stream (trees can be written one at a time).
+ * The number formats are created once per writer.
+ *
+ * @autor viq
+ */
+public class TreeFileWriter {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Writer out;
+	/** Centroid VAF format */
+	private final DecimalFormat centroidFormat = new DecimalFormat("#.##");
+	/** Sample decomposition VAF format */
+	private final DecimalFormat lineageFormat = new DecimalFormat("#.###");
+
+	public TreeFileWriter(String fileName) throws IOException {
+		this(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName)), BUFFER_SIZE));
+	}
+
+	public TreeFileWriter(Writer writer) {
+		out = writer;
+	}
+
+	/** Writes the nodes section of the tree file */
+	public void writeNodes(PHYNetwork net) throws IOException {
+		out.write("Nodes:\n");
+		writeNodesWithMembers(net);
+		out.write("\n");
+	}
+
+	/**
+	 * Writes the i-th tree section of the tree file:
+	 * edges, error score, and sample decompositions
+	 */
+	public void writeTree(int i, PHYTree t, ArrayList<String> sampleNames) throws IOException {
+		out.write("****Tree " + i + "****\n");
+		writeEdges(t);
+		out.write("Error score: ");
+		out.write(String.valueOf(t.getErrorScore()));
+		out.write("\n\n");
+		out.write("Sample decomposition: \n");
+		for(int j = 0; j < sampleNames.size(); j++) {
+			writeLineage(t, j, sampleNames.get(j));
+			out.write("\n");
+		}
+		out.write("\n");
+	}
+
+	/** Writes the SNV info section of the tree file */
+	public void writeSNVInfo(PHYNetwork net) throws IOException {
+		out.write("SNV info:\n");
+		writeNodeMembers(net);
+		out.write("\n");
+	}
+
+	// Network
+
+	/** Writes the non-root nodes by level (id, tag, size, per-sample centroid VAFs) */
+	public void writeNodeCentroids(PHYNetwork net) throws IOException {
+		for(int i = net.numSamples + 1; i >= 0; i--) {
+			ArrayList<PHYNode> levelNodes = net.nodes.get(i);
+			if(levelNodes == null) continue;
+			for(PHYNode n : levelNodes) {
+				if(n.isRoot()) continue;
+				SampleProfile tag = n.getSNVGroup().getTag();
+				out.write(String.valueOf(n.getNodeId()));
+				out.write("\t");
+				out.write(tag.toString());
+				out.write("\t");
+				out.write(String.valueOf(n.getCluster().getSize()));
+				out.write("\t");
+				double[] c = n.getCluster().getCentroid();
+				int idx = 0;
+				for(int j = 0; j < tag.getNumSamples(); j++) {
+					if(tag.isSet(j)) {
+						out.write(centroidFormat.format(c[idx]));
+						idx++;
+					} else {
+						out.write(centroidFormat.format(0));
+					}
+					out.write("\t");
+				}
+				out.write("\n");
+			}
+		}
+	}
+
+	/** Writes the non-root nodes by level (id, tag, centroid, member SNV ids) */
+	public void writeNodesWithMembers(PHYNetwork net) throws IOException {
+		for(int i = net.numSamples + 1; i >= 0; i--) {
+			ArrayList<PHYNode> levelNodes = net.nodes.get(i);
+			if(levelNodes == null) continue;
+			for(PHYNode n : levelNodes) {
+				if(n.isRoot()) continue;
+				out.write(String.valueOf(n.getNodeId()));
+				out.write("\t");
+				out.write(n.getSNVGroup().getTag().toString());
+				out.write("\t[");
+				double[] c = n.getCluster().getCentroid();
+				for(int j = 0; j < c.length; j++) {
+					out.write(" ");
+					out.write(centroidFormat.format(c[j]));
+				}
+				out.write("]");
+				ArrayList<SNVEntry> groupSNVs = n.getSNVGroup().getSNVs();
+				for(int j = 0; j < n.getCluster().getSize(); j++) {
+					out.write("\tsnv");
+					out.write(String.valueOf(groupSNVs.get(n.getCluster().getMember(j)).getId()));
+				}
+				out.write("\n");
+			}
+		}
+	}
+
+	/** Writes the member SNVs of the non-root nodes by level (id, chromosome, position, description, annotation) */
+	public void writeNodeMembers(PHYNetwork net) throws IOException {
+		for(int i = net.numSamples + 1; i >= 0; i--) {
+			ArrayList<PHYNode> levelNodes = net.nodes.get(i);
+			if(levelNodes == null) continue;
+			for(PHYNode n : levelNodes) {
+				if(n.isRoot()) continue;
+				ArrayList<SNVEntry> groupSNVs = n.getSNVGroup().getSNVs();
+				for(int j = 0; j < n.getCluster().getSize(); j++) {
+					SNVEntry snv = groupSNVs.get(n.getCluster().getMember(j));
+					out.write("snv");
+					out.write(String.valueOf(snv.getId()));
+					out.write(": ");
+					out.write(String.valueOf(snv.getChromosome()));
+					out.write(" ");
+					out.write(String.valueOf(snv.getPosition()));
+					out.write(" ");
+					out.write(snv.getDescription());
+					String annotation = snv.getAnnotation();
+					if(annotation.length() > 0) {
+						out.write(" ");
+						out.write(annotation.trim());
+					}
+					out.write("\n");
+				}
+			}
+		}
+	}
+
+	// Trees
+
+	/** Writes the tree edges (one edge per line) */
+	public void writeEdges(PHYTree t) throws IOException {
+		for(PHYNode n1 : t.treeEdges.keySet()) {
+			for(PHYNode n2 : t.treeEdges.get(n1)) {
+				out.write(String.valueOf(n1.getNodeId()));
+				out.write(" -> ");
+				out.write(String.valueOf(n2.getNodeId()));
+				out.write("\n");
+			}
+		}
+	}
+
+	/** Writes the sub-populations of the given sample in DFS order of the tree */
+	public void writeLineage(PHYTree t, int sampleId, String sampleName) throws IOException {
+		out.write("\tSample lineage decomposition: ");
+		out.write(sampleName);
+		out.write("\n");
+		out.write("GL\n");
+		for(PHYNode n : t.treeEdges.get(t.treeNodes.get(0))) {
+			writeLineage(t, n, sampleId, 1);
+		}
+	}
+
+	private void writeLineage(PHYTree t, PHYNode n, int sampleId, int depth) throws IOException {
+		if(n.getSNVGroup().containsSample(sampleId)) {
+			for(int i = 0; i < depth; i++) {
+				out.write(".....");
+			}
+			out.write(n.getSNVGroup().getTag().toString());
+			out.write(": ");
+			out.write(lineageFormat.format(n.getAAF(sampleId)));
+			out.write(" [");
+			out.write(lineageFormat.format(n.getStdDev(sampleId)));
+			out.write("]\n");
+		}
+		if(t.treeEdges.get(n) != null) {
+			for(PHYNode nbr : t.treeEdges.get(n)) {
+				writeLineage(t, nbr, sampleId, depth + 1);
+			}
+		}
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/** Returns a writer that renders into a string (see toString) */
+	protected static TreeFileWriter toStringWriter() {
+		return new TreeFileWriter(new StringWriter());
+	}
+
+	/** Returns the output of a string writer */
+	public String toString() {
+		return out.toString();
+	}
+}
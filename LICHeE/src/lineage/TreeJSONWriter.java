@@ -0,0 +1,264 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+
+package lineage;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Streaming JSON writer of the lineage tree results for downstream tools.
+ * 
+ * Layout:
+ * {"samples": [names],
+ *  "nodes": [{"id", "root"} or {"id", "level", "profile", "vaf": [per sample], "stdDev": [per sample], "members": [SNV ids]}],
+ *  "trees": [{"rank", "errorScore", "parents": [per node], 
+ *             "decomposition": [{"sample", "nodes": [{"node", "depth", "vaf", "stdDev"}]}]}],
+ *  "snvs": [{"id", "chr", "pos", "description", "annotation"}]}
+ * 
+ * Nodes are listed by level starting from the root (see PHYNetwork.getNodeTable); 
+ * tree parents and decomposition nodes are indices into the node list (-1 for the root).
+ * Trees are written one at a time, in rank order.
+ *
+ * @autor viq
+ */
+public class TreeJSONWriter {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private final Writer out;
+	private ArrayList<PHYNode> nodeTable;
+	/** Node table index of each node id */
+	private int[] nodeIndex;
+	private int numTrees;
+
+	public TreeJSONWriter(String fileName) throws IOException {
+		this(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), CHARSET), BUFFER_SIZE));
+	}
+
+	public TreeJSONWriter(Writer writer) {
+		out = writer;
+	}
+
+	/**
+	 * Writes the samples and the node table of the network
+	 * and opens the tree list
+	 */
+	public void writeHeader(PHYNetwork net, ArrayList<String> sampleNames) throws IOException {
+		nodeTable = net.getNodeTable();
+		nodeIndex = getTableIndex();
+		out.write("{\"samples\":[");
+		for(int j = 0; j < sampleNames.size(); j++) {
+			if(j > 0) out.write(",");
+			writeString(sampleNames.get(j));
+		}
+		out.write("],\n\"nodes\":[");
+		for(int i = 0; i < nodeTable.size(); i++) {
+			if(i > 0) out.write(",");
+			out.write("\n");
+			writeNode(nodeTable.get(i), sampleNames.size());
+		}
+		out.write("],\n\"trees\":[");
+	}
+
+	private void writeNode(PHYNode n, int numSamples) throws IOException {
+		out.write("{\"id\":");
+		out.write(String.valueOf(n.getNodeId()));
+		if(n.isRoot()) {
+			out.write(",\"root\":true}");
+			return;
+		}
+		out.write(",\"level\":");
+		out.write(String.valueOf(n.getLevel()));
+		out.write(",\"profile\":");
+		writeString(n.getSNVGroup().getTag().toString());
+		out.write(",\"vaf\":[");
+		for(int j = 0; j < numSamples; j++) {
+			if(j > 0) out.write(",");
+			writeNumber(n.getAAF(j));
+		}
+		out.write("],\"stdDev\":[");
+		for(int j = 0; j < numSamples; j++) {
+			if(j > 0) out.write(",");
+			writeNumber(n.getStdDev(j));
+		}
+		out.write("],\"members\":[");
+		ArrayList<SNVEntry> groupSNVs = n.getSNVGroup().getSNVs();
+		for(int j = 0; j < n.getCluster().getSize(); j++) {
+			if(j > 0) out.write(",");
+			out.write(String.valueOf(groupSNVs.get(n.getCluster().getMember(j)).getId()));
+		}
+		out.write("]}");
+	}
+
+	/**
+	 * Writes the next tree (trees must be written in rank order)
+	 */
+	public void writeTree(PHYTree t, ArrayList<String> sampleNames) throws IOException {
+		if(numTrees > 0) out.write(",");
+		out.write("\n{\"rank\":");
+		out.write(String.valueOf(numTrees));
+		out.write(",\"errorScore\":");
+		writeNumber(t.getErrorScore());
+		out.write(",\"parents\":[");
+		int[] parents = t.getParents(nodeTable);
+		for(int i = 0; i < parents.length; i++) {
+			if(i > 0) out.write(",");
+			out.write(String.valueOf(parents[i]));
+		}
+		out.write("],\"decomposition\":[");
+		for(int j = 0; j < sampleNames.size(); j++) {
+			if(j > 0) out.write(",");
+			out.write("{\"sample\":");
+			writeString(sampleNames.get(j));
+			out.write(",\"nodes\":[");
+			int count = 0;
+			for(PHYNode n : t.treeEdges.get(t.treeNodes.get(0))) {
+				count = writeLineage(t, n, j, 1, count);
+			}
+			out.write("]}");
+		}
+		out.write("]}");
+		numTrees++;
+	}
+
+	/** Returns the node table index of each node id */
+	private int[] getTableIndex() {
+		int maxId = 0;
+		for(PHYNode n : nodeTable) {
+			maxId = Math.max(maxId, n.getNodeId());
+		}
+		int[] index = new int[maxId + 1];
+		for(int i = 0; i < nodeTable.size(); i++) {
+			index[nodeTable.get(i).getNodeId()] = i;
+		}
+		return index;
+	}
+
+	/** Writes the sub-populations of the given sample in DFS order of the tree */
+	private int writeLineage(PHYTree t, PHYNode n, int sampleId, int depth, int count) throws IOException {
+		if(n.getSNVGroup().containsSample(sampleId)) {
+			if(count > 0) out.write(",");
+			out.write("{\"node\":");
+			out.write(String.valueOf(nodeIndex[n.getNodeId()]));
+			out.write(",\"depth\":");
+			out.write(String.valueOf(depth));
+			out.write(",\"vaf\":");
+			writeNumber(n.getAAF(sampleId));
+			out.write(",\"stdDev\":");
+			writeNumber(n.getStdDev(sampleId));
+			out.write("}");
+			count++;
+		}
+		if(t.treeEdges.get(n) != null) {
+			for(PHYNode nbr : t.treeEdges.get(n)) {
+				count = writeLineage(t, nbr, sampleId, depth + 1, count);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Closes the tree list and writes the member SNVs of the nodes
+	 */
+	public void writeSNVs() throws IOException {
+		out.write("],\n\"snvs\":[");
+		int count = 0;
+		for(PHYNode n : nodeTable) {
+			if(n.isRoot()) continue;
+			ArrayList<SNVEntry> groupSNVs = n.getSNVGroup().getSNVs();
+			for(int j = 0; j < n.getCluster().getSize(); j++) {
+				SNVEntry snv = groupSNVs.get(n.getCluster().getMember(j));
+				if(count > 0) out.write(",");
+				out.write("\n{\"id\":");
+				out.write(String.valueOf(snv.getId()));
+				out.write(",\"chr\":");
+				out.write(String.valueOf(snv.getChromosome()));
+				out.write(",\"pos\":");
+				out.write(String.valueOf(snv.getPosition()));
+				out.write(",\"description\":");
+				writeString(snv.getDescription());
+				String annotation = snv.getAnnotation().trim();
+				if(annotation.length() > 0) {
+					out.write(",\"annotation\":");
+					writeString(annotation);
+				}
+				out.write("}");
+				count++;
+			}
+		}
+		out.write("]}\n");
+	}
+
+	/** Writes a number (null if not finite) */
+	private void writeNumber(double v) throws IOException {
+		if(Double.isNaN(v) || Double.isInfinite(v)) {
+			out.write("null");
+		} else {
+			out.write(String.valueOf(v));
+		}
+	}
+
+	private void writeString(String s) throws IOException {
+		writeString(out, s);
+	}
+
+	/** Writes a quoted and escaped JSON string */
+	protected static void writeString(Writer out, String s) throws IOException {
+		out.write('"');
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch(c) {
+			case '"': out.write("\\\""); break;
+			case '\\': out.write("\\\\"); break;
+			case '\n': out.write("\\n"); break;
+			case '\r': out.write("\\r"); break;
+			case '\t': out.write("\\t"); break;
+			default:
+				if(c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				} else {
+					out.write(c);
+				}
+			}
+		}
+		out.write('"');
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+
+package lineage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Compact binary format of the lineage tree results for downstream tools.
+ *
+ * Layout (big-endian):
+ * - magic number, format version
+ * - number of samples, number of nodes, number of trees
+ * - sample names (byte length + UTF-8 bytes)
+ * - node table (nodes by level starting from the root, see PHYNetwork.getNodeTable), per node:
+ *   node id, level, profile (byte length + UTF-8 bytes, empty for the root),
+ *   VAF and standard deviation per sample, number of member SNVs + member SNV ids
+ * - trees in rank order, per tree: error score, parent index in the node table per node (-1 for the root)
+ *
+ * The sample decompositions of a tree can be derived from the parent array
+ * and the node VAFs (a node is present in the samples set in its profile).
+ *
+ * @autor viq
+ */
+public class TreeSetFile {
+
+	private static final long MAGIC = 0x4C49434845455453L; // "LICHEETS"
+	private static final int VERSION = 1;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private ArrayList<String> sampleNames;
+	private int[] nodeIds;
+	private int[] nodeLevels;
+	private String[] nodeProfiles;
+	/** VAFs and standard deviations in row-major order (sample j of node i at i*numSamples + j) */
+	private double[] nodeVAFs;
+	private double[] nodeStdDevs;
+	private int[][] nodeMembers;
+	private double[] errorScores;
+	private int[][] parents;
+
+	/**
+	 * Loads the given tree-set file
+	 */
+	public TreeSetFile(String fileName) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+		try {
+			if(in.readLong() != MAGIC) {
+				throw new IOException("Not a tree-set file: " + fileName);
+			}
+			if(in.readInt() != VERSION) {
+				throw new IOException("Unsupported tree-set file version: " + fileName);
+			}
+			int numSamples = in.readInt();
+			int numNodes = in.readInt();
+			int numTrees = in.readInt();
+			sampleNames = new ArrayList<String>(numSamples);
+			for(int j = 0; j < numSamples; j++) {
+				sampleNames.add(readString(in));
+			}
+			nodeIds = new int[numNodes];
+			nodeLevels = new int[numNodes];
+			nodeProfiles = new String[numNodes];
+			nodeVAFs = new double[numNodes*numSamples];
+			nodeStdDevs = new double[numNodes*numSamples];
+			nodeMembers = new int[numNodes][];
+			for(int i = 0; i < numNodes; i++) {
+				nodeIds[i] = in.readInt();
+				nodeLevels[i] = in.readInt();
+				nodeProfiles[i] = readString(in);
+				for(int j = 0; j < numSamples; j++) {
+					nodeVAFs[i*numSamples + j] = in.readDouble();
+				}
+				for(int j = 0; j < numSamples; j++) {
+					nodeStdDevs[i*numSamples + j] = in.readDouble();
+				}
+				nodeMembers[i] = new int[in.readInt()];
+				for(int k = 0; k < nodeMembers[i].length; k++) {
+					nodeMembers[i][k] = in.readInt();
+				}
+			}
+			errorScores = new double[numTrees];
+			parents = new int[numTrees][numNodes];
+			for(int t = 0; t < numTrees; t++) {
+				errorScores[t] = in.readDouble();
+				for(int i = 0; i < numNodes; i++) {
+					parents[t][i] = in.readInt();
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, CHARSET);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(CHARSET);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/**
+	 * Writes the top trees of the given network to a tree-set file
+	 * @param numTrees - maximum number of trees to write
+	 */
+	public static void write(String fileName, PHYNetwork net, ArrayList<PHYTree> trees, int numTrees, ArrayList<String> sampleNames) throws IOException {
+		numTrees = Math.min(numTrees, trees.size());
+		int numSamples = sampleNames.size();
+		ArrayList<PHYNode> nodeTable = net.getNodeTable();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numSamples);
+			out.writeInt(nodeTable.size());
+			out.writeInt(numTrees);
+			for(String name : sampleNames) {
+				writeString(out, name);
+			}
+			for(PHYNode n : nodeTable) {
+				out.writeInt(n.getNodeId());
+				out.writeInt(n.getLevel());
+				writeString(out, n.isRoot() ? "" : n.getSNVGroup().getTag().toString());
+				for(int j = 0; j < numSamples; j++) {
+					out.writeDouble(n.getAAF(j));
+				}
+				for(int j = 0; j < numSamples; j++) {
+					out.writeDouble(n.getStdDev(j));
+				}
+				if(n.isRoot()) {
+					out.writeInt(0);
+					continue;
+				}
+				ArrayList<SNVEntry> groupSNVs = n.getSNVGroup().getSNVs();
+				out.writeInt(n.getCluster().getSize());
+				for(int k = 0; k < n.getCluster().getSize(); k++) {
+					out.writeInt(groupSNVs.get(n.getCluster().getMember(k)).getId());
+				}
+			}
+			// each tree: its error score and the parent index of every node in the node table
+			for(int t = 0; t < numTrees; t++) {
+				out.writeDouble(trees.get(t).getErrorScore());
+				for(int p : trees.get(t).getParents(nodeTable)) {
+					out.writeInt(p);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// Getters
+
+	public ArrayList<String> getSampleNames() {
+		return sampleNames;
+	}
+
+	public int getNumSamples() {
+		return sampleNames.size();
+	}
+
+	public int getNumNodes() {
+		return nodeIds.length;
+	}
+
+	public int getNumTrees() {
+		return parents.length;
+	}
+
+	public int getNodeId(int node) {
+		return nodeIds[node];
+	}
+
+	public int getNodeLevel(int node) {
+		return nodeLevels[node];
+	}
+
+	/** Returns the presence profile of the node (empty for the root) */
+	public String getNodeProfile(int node) {
+		return nodeProfiles[node];
+	}
+
+	public double getNodeVAF(int node, int sample) {
+		return nodeVAFs[node*getNumSamples() + sample];
+	}
+
+	public double getNodeStdDev(int node, int sample) {
+		return nodeStdDevs[node*getNumSamples() + sample];
+	}
+
+	/** Returns the ids of the member SNVs of the node */
+	public int[] getNodeMembers(int node) {
+		return nodeMembers[node];
+	}
+
+	public double getErrorScore(int tree) {
+		return errorScores[tree];
+	}
+
+	/** Returns the parent index of each node in the given tree (-1 for the root) */
+	public int[] getParents(int tree) {
+		return parents[tree];
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.io.Serializable;
+
+/**
+ * Immutable column-major matrix of per-sample VAFs of the input SNVs
+ * (one column per sample, one row per SNV).
+ * A single matrix is created per run by the SNVDataStore and shared 
+ * by all the SNV groups, which only store row and sample indices into it.
+ *
+ * @autor viq
+ */
+public class VAFMatrix implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+
+	/** Number of rows (SNVs) */
+	private final int numRows;
+	
+	/** Number of columns (samples) */
+	private final int numSamples;
+	
+	/** VAF values stored column by column (numSamples x numRows) */
+	private final double[] data;
+	
+	/**
+	 * @param vafs - VAF values in column-major order
+	 * @requires vafs.length == numRows * numSamples
+	 */
+	public VAFMatrix(double[] vafs, int numRows, int numSamples) {
+		this.data = vafs;
+		this.numRows = numRows;
+		this.numSamples = numSamples;
+	}
+	
+	/** Returns the VAF of the SNV in the given row in the given sample */
+	public double get(int row, int sample) {
+		return data[sample*numRows + row];
+	}
+	
+	public int getNumRows() {
+		return numRows;
+	}
+	
+	public int getNumSamples() {
+		return numSamples;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.util.ArrayList;
+
+/**
+ * K-d tree over the VAFs of a group of SNVs.
+ * Finds the SNV in the group with the maximum VAF similarity to a query SNV,
+ * where the similarity is the sum of the per-sample VAF ratios (min/max)
+ * over a given subset of the samples.
+ *
+ * The search is exact: nodes are pruned using an upper bound on the VAF ratio
+ * within the node bounding box.
+ *
+ * @autor viq
+ */
+public class VAFTree {
+
+	/** Maximum number of SNVs in a leaf */
+	private static final int LEAF_SIZE = 8;
+	/** Value used in place of a zero VAF in the ratio numerator */
+	private static final double MIN_RATIO_VAF = 0.0001;
+
+	private final int numSamples;
+	/** VAFs of the indexed SNVs (in tree order, numSamples values per SNV) */
+	private final double[] vafs;
+	private final Node root;
+
+	private class Node {
+		/** Range of SNVs in this node */
+		int start, end;
+		/** Bounding box of the SNV VAFs */
+		double[] lo, hi;
+		Node left, right;
+	}
+
+	public VAFTree(ArrayList<SNVEntry> snvs, int numSamples) {
+		this.numSamples = numSamples;
+		int n = snvs.size();
+		double[][] points = new double[n][];
+		for(int i = 0; i < n; i++) {
+			SNVEntry entry = snvs.get(i);
+			points[i] = new double[numSamples];
+			for(int j = 0; j < numSamples; j++) {
+				points[i][j] = entry.getVAF(j);
+			}
+		}
+		root = (n > 0) ? build(points, 0, n) : null;
+		vafs = new double[n*numSamples];
+		for(int i = 0; i < n; i++) {
+			System.arraycopy(points[i], 0, vafs, i*numSamples, numSamples);
+		}
+	}
+
+	private Node build(double[][] points, int start, int end) {
+		Node node = new Node();
+		node.start = start;
+		node.end = end;
+		node.lo = new double[numSamples];
+		node.hi = new double[numSamples];
+		for(int j = 0; j < numSamples; j++) {
+			node.lo[j] = points[start][j];
+			node.hi[j] = points[start][j];
+			for(int i = start + 1; i < end; i++) {
+				node.lo[j] = Math.min(node.lo[j], points[i][j]);
+				node.hi[j] = Math.max(node.hi[j], points[i][j]);
+			}
+		}
+		if(end - start <= LEAF_SIZE) {
+			return node;
+		}
+		// split at the median of the sample with the largest VAF spread
+		int splitSample = 0;
+		for(int j = 1; j < numSamples; j++) {
+			if(node.hi[j] - node.lo[j] > node.hi[splitSample] - node.lo[splitSample]) {
+				splitSample = j;
+			}
+		}
+		int mid = (start + end) >>> 1;
+		select(points, start, end - 1, mid, splitSample);
+		node.left = build(points, start, mid);
+		node.right = build(points, mid, end);
+		return node;
+	}
+
+	/** Partially sorts the points so that the k-th point is in its sorted position by the given sample */
+	private static void select(double[][] points, int left, int right, int k, int sample) {
+		while(left < right) {
+			double pivot = points[(left + right) >>> 1][sample];
+			int i = left, j = right;
+			while(i <= j) {
+				while(points[i][sample] < pivot) i++;
+				while(points[j][sample] > pivot) j--;
+				if(i <= j) {
+					double[] tmp = points[i];
+					points[i] = points[j];
+					points[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if(k <= j) {
+				right = j;
+			} else if(k >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * VAF ratio of two SNVs in a given sample
+	 * (zero VAFs are replaced by MIN_RATIO_VAF in the numerator)
+	 */
+	public static double vafRatio(double vaf1, double vaf2) {
+		double min = vaf1 < vaf2 ? vaf1 : vaf2;
+		double max = vaf1 > vaf2 ? vaf1 : vaf2;
+		if(min == 0) {
+			min = MIN_RATIO_VAF;
+		}
+		return min/max;
+	}
+
+	/** Upper bound on the VAF ratio of the given VAF to any VAF in [lo, hi] */
+	private static double maxVAFRatio(double vaf, double lo, double hi) {
+		if(!(vaf >= 0 && lo >= 0 && hi >= 0)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		if(vaf == 0) {
+			return (lo == 0) ? Double.POSITIVE_INFINITY : MIN_RATIO_VAF/lo;
+		}
+		double bound;
+		if(vaf > hi) {
+			bound = (hi == 0) ? 0 : hi/vaf;
+		} else if(vaf < lo) {
+			bound = vaf/lo;
+		} else {
+			bound = 1;
+		}
+		if(lo == 0) {
+			bound = Math.max(bound, MIN_RATIO_VAF/vaf);
+		}
+		return bound;
+	}
+
+	/**
+	 * Returns the maximum VAF similarity of the query VAFs to the SNVs in the tree
+	 * summed over the given samples (in the given order),
+	 * if it is greater than the threshold
+	 * @return 0 if no SNV in the tree has similarity greater than the threshold
+	 */
+	public double getMaxSimilarity(double[] query, int[] samples, double threshold) {
+		if(root == null) return 0;
+		double best = search(root, query, samples, threshold);
+		return (best > threshold) ? best : 0;
+	}
+
+	private double search(Node node, double[] query, int[] samples, double best) {
+		double bound = 0;
+		for(int i : samples) {
+			bound += maxVAFRatio(query[i], node.lo[i], node.hi[i]);
+		}
+		if(!(bound > best)) {
+			return best;
+		}
+		if(node.left == null) {
+			for(int p = node.start; p < node.end; p++) {
+				int offset = p*numSamples;
+				double dist = 0;
+				for(int i : samples) {
+					dist += vafRatio(vafs[offset + i], query[i]);
+				}
+				if(dist > best) {
+					best = dist;
+				}
+			}
+			return best;
+		}
+		best = search(node.left, query, samples, best);
+		return search(node.right, query, samples, best);
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Program LICHeE for multi-sample cancer phylogeny reconstruction
+ * by Victoria Popic (viq@stanford.edu) 2014
+ *
+ * MIT License
+ *
+ * Copyright (c) 2014 Victoria Popic.
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+*/
+
+
+package lineage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Streaming reader of multi-sample VCF files (plain, gzip or BGZF compressed).
+ * Only biallelic SNV records that passed all the filters (FILTER is PASS or .)
+ * on chromosomes 1-22, X and Y are returned; other records are skipped
+ * before their sample columns are parsed.
+ *
+ * The VAF of an SNV in a sample is computed from the AD (allelic depths) and DP (read depth)
+ * fields of the sample if available, and taken from the AF field otherwise.
+ *
+ * @autor viq
+ */
+public class VCFReader {
+
+	/** Number of fixed VCF columns before the sample columns (including FORMAT) */
+	private static final int NUM_FIXED_FIELDS = 9;
+
+	private BufferedReader rd;
+	private ArrayList<String> sampleNames;
+	/** Current record */
+	private String line;
+	private String[] fields;
+	private int chr;
+	private int position;
+	/** Indices of the AD/DP/AF fields in the FORMAT of the current record (-1 if missing) */
+	private int adIndex, dpIndex, afIndex;
+	/** Number of skipped records */
+	private int numSkipped;
+
+	/**
+	 * @param numThreads - number of threads decompressing the file (if BGZF compressed)
+	 */
+	public VCFReader(String fileName, int numThreads) throws IOException {
+		rd = new BufferedReader(new InputStreamReader(CompressedFileInputStream.open(fileName, numThreads)), 1 << 16);
+
+		// skip the meta-information lines and read the header line
+		String header = rd.readLine();
+		while(header != null && header.startsWith("##")) {
+			header = rd.readLine();
+		}
+		if(header == null || !header.startsWith("#CHROM")) {
+			rd.close();
+			throw new IOException("Missing VCF header line (#CHROM ...)");
+		}
+		String[] headerFields = header.split("\t");
+		sampleNames = new ArrayList<String>();
+		if(headerFields.length > NUM_FIXED_FIELDS) {
+			sampleNames.addAll(Arrays.asList(headerFields).subList(NUM_FIXED_FIELDS, headerFields.length));
+		}
+	}
+
+	public ArrayList<String> getSampleNames() {
+		return sampleNames;
+	}
+
+	/**
+	 * Advances to the next PASS SNV record
+	 * @return false if there are no more records
+	 */
+	public boolean nextRecord() throws IOException {
+		while((line = rd.readLine()) != null) {
+			if(line.length() == 0 || line.charAt(0) == '#') continue;
+			if(!isPassSNV(line)) {
+				numSkipped++;
+				continue;
+			}
+			fields = line.split("\t");
+			if(fields.length != NUM_FIXED_FIELDS + sampleNames.size()) {
+				// reported by the caller
+				chr = 0;
+				return true;
+			}
+			chr = parseChromosome(fields[0]);
+			if(chr == -1) {
+				numSkipped++;
+				continue;
+			}
+			try {
+				position = Integer.parseInt(fields[1]);
+			} catch (NumberFormatException e) {
+				position = -1;
+			}
+			String[] format = fields[8].split(":");
+			adIndex = dpIndex = afIndex = -1;
+			for(int i = 0; i < format.length; i++) {
+				if(format[i].equals("AD")) {
+					adIndex = i;
+				} else if(format[i].equals("DP")) {
+					dpIndex = i;
+				} else if(format[i].equals("AF")) {
+					afIndex = i;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks the REF, ALT and FILTER columns of the record
+	 * without splitting the entire line
+	 */
+	private static boolean isPassSNV(String line) {
+		int start = 0;
+		for(int i = 0; i < 3; i++) {
+			start = line.indexOf('\t', start) + 1;
+			if(start == 0) return false;
+		}
+		// REF, ALT, QUAL, FILTER
+		int refEnd = line.indexOf('\t', start);
+		if(refEnd != start + 1 || !isBase(line.charAt(start))) return false;
+		int altEnd = line.indexOf('\t', refEnd + 1);
+		if(altEnd != refEnd + 2 || !isBase(line.charAt(refEnd + 1))) return false;
+		int filterStart = line.indexOf('\t', altEnd + 1) + 1;
+		if(filterStart == 0) return false;
+		int filterEnd = line.indexOf('\t', filterStart);
+		if(filterEnd == -1) filterEnd = line.length();
+		// the lengths are checked first: the FILTER field can be empty (e.g. at the end of a truncated line)
+		return filterEnd == filterStart + 4 && line.startsWith("PASS", filterStart)
+				|| filterEnd == filterStart + 1 && line.charAt(filterStart) == '.';
+	}
+
+	private static boolean isBase(char c) {
+		switch(c) {
+		case 'A': case 'C': case 'G': case 'T':
+		case 'a': case 'c': case 'g': case 't':
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Parses the chromosome name (with an optional chr prefix)
+	 * @return chromosome number (X = 23, Y = 24), -1 if not supported
+	 */
+	static int parseChromosome(String name) {
+		if(name.startsWith("chr")) {
+			name = name.substring(3);
+		}
+		if(name.equalsIgnoreCase("x")) return 23;
+		if(name.equalsIgnoreCase("y")) return 24;
+		try {
+			int c = Integer.parseInt(name);
+			return (c > 0 && c <= 22) ? c : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** Returns true if the current record has the expected number of columns */
+	public boolean isValidRecord() {
+		return fields.length == NUM_FIXED_FIELDS + sampleNames.size();
+	}
+
+	/** Returns the current line */
+	public String getLine() {
+		return line;
+	}
+
+	public int getChromosome() {
+		return chr;
+	}
+
+	/** Returns the record position, -1 if not a valid number */
+	public int getPosition() {
+		return position;
+	}
+
+	/** Returns the record ID, or REF>ALT if the record has no ID */
+	public String getDescription() {
+		if(!fields[2].equals(".")) {
+			return fields[2];
+		}
+		return fields[3] + ">" + fields[4];
+	}
+
+	/**
+	 * Computes the VAF of the current record in the given sample
+	 * (missing values are treated as 0)
+	 * @throws NumberFormatException if the sample fields are malformed or there are no AD/AF fields
+	 */
+	public double getVAF(int sample) {
+		String[] values = fields[NUM_FIXED_FIELDS + sample].split(":");
+		if(adIndex != -1) {
+			String ad = getValue(values, adIndex);
+			if(ad == null) return 0;
+			String[] counts = ad.split(",");
+			if(counts.length < 2) {
+				throw new NumberFormatException(ad);
+			}
+			double alt = parseCount(counts[1]);
+			double depth;
+			String dp = (dpIndex != -1) ? getValue(values, dpIndex) : null;
+			if(dp != null) {
+				depth = parseCount(dp);
+			} else {
+				depth = 0;
+				for(String c : counts) {
+					depth += parseCount(c);
+				}
+			}
+			return (depth > 0) ? alt/depth : 0;
+		}
+		if(afIndex != -1) {
+			String af = getValue(values, afIndex);
+			return (af == null) ? 0 : Double.parseDouble(af);
+		}
+		throw new NumberFormatException("no AD or AF field");
+	}
+
+	/** Returns the value of the given FORMAT field, null if missing */
+	private static String getValue(String[] values, int index) {
+		if(index >= values.length || values[index].equals(".")) {
+			return null;
+		}
+		return values[index];
+	}
+
+	private static int parseCount(String c) {
+		return c.equals(".") ? 0 : Integer.parseInt(c);
+	}
+
+	/** Returns the number of records skipped so far */
+	public int getNumSkipped() {
+		return numSkipped;
+	}
+
+	public void close() throws IOException {
+		rd.close();
+	}
+}
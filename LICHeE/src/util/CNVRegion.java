@@ -46,6 +46,21 @@ public class CNVRegion {
 	}
 
 	
+	public int getChromosome(){
+		return chr;
+	}
+	
+	/** Start position of the region (0 for whole-chromosome regions) */
+	public int getStartPos(){
+		return whole ? 0 : startPos;
+	}
+	
+	/** End position of the region, inclusive (Integer.MAX_VALUE for whole-chromosome regions) */
+	public int getEndPos(){
+		return whole ? Integer.MAX_VALUE : endPos;
+	}
+
+	
 	public String toString(){
 		String str = chr +"\t"+ startPos+"\t"+endPos;
 		return str;